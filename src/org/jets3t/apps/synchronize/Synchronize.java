@@ -29,6 +29,7 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -36,6 +37,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.jets3t.service.Constants;
@@ -47,6 +49,7 @@ import org.jets3t.service.acl.AccessControlList;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageBucket;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.multi.DownloadPackage;
@@ -61,16 +64,20 @@ import org.jets3t.service.multi.s3.MultipartCompletesEvent;
 import org.jets3t.service.multi.s3.MultipartStartsEvent;
 import org.jets3t.service.multi.s3.MultipartUploadsEvent;
 import org.jets3t.service.multi.s3.S3ServiceEventAdaptor;
+import org.jets3t.service.multi.s3.ThreadedS3Service;
 import org.jets3t.service.security.AWSCredentials;
 import org.jets3t.service.security.EncryptionUtil;
 import org.jets3t.service.security.GSCredentials;
 import org.jets3t.service.security.ProviderCredentials;
 import org.jets3t.service.utils.ByteFormatter;
+import org.jets3t.service.utils.ChunkedFileStore;
+import org.jets3t.service.utils.FileBundler;
 import org.jets3t.service.utils.FileComparer;
 import org.jets3t.service.utils.FileComparerResults;
 import org.jets3t.service.utils.Mimetypes;
 import org.jets3t.service.utils.MultipartUtils;
 import org.jets3t.service.utils.ObjectUtils;
+import org.jets3t.service.utils.ServiceUtils;
 import org.jets3t.service.utils.TimeFormatter;
 import org.jets3t.service.utils.FileComparer.PartialObjectListing;
 
@@ -104,6 +111,10 @@ public class Synchronize {
     private boolean isEncryptionEnabled = false; // Files will be encrypted prior to upload if true.
     private boolean isMoveEnabled = false;
     private boolean isBatchMode = false;
+    private boolean isStreamingTransformedFiles = false; // Gzip/encrypt during upload, without temp files.
+    private boolean isBundlingSmallFiles = false; // Small files are stored in bundle objects if true.
+    private ChunkedFileStore chunkedFileStore = null; // Large files are stored as chunks if set.
+    private long chunkedFileMinSize = 0;
     private int reportLevel = REPORT_LEVEL_ALL;
     private String cryptoPassword = null;
     private Jets3tProperties properties = null;
@@ -199,6 +210,7 @@ public class Synchronize {
         private byte[] md5HashOfFile;
         private final String aclString;
         private final EncryptionUtil encryptionUtil;
+        private StorageObject appendedToObject = null;
 
         /**
          * @param targetKey
@@ -223,19 +235,30 @@ public class Synchronize {
         }
 
         public StorageObject prepareUploadObject() throws Exception {
-            StorageObject newObject = ObjectUtils.createObjectForUpload(
-                targetKey, file, md5HashOfFile, encryptionUtil, isGzipEnabled, null);
-
-            if ("PUBLIC_READ".equalsIgnoreCase(aclString)) {
-                newObject.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
-            } else if ("PUBLIC_READ_WRITE".equalsIgnoreCase(aclString)) {
-                newObject.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ_WRITE);
-            } else if ("PRIVATE".equalsIgnoreCase(aclString)) {
-                // Private is the default, no need to add an ACL
+            StorageObject newObject = null;
+            if (isChunkedUpload()) {
+                if (!file.canRead()) {
+                    throw new FileNotFoundException("Cannot read file " + file);
+                }
+                // The object is the file's chunk manifest, its data is set when uploaded
+                newObject = new S3Object(targetKey);
+                newObject.setAcl(AccessControlList.REST_CANNED_PRIVATE);
+                newObject.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,
+                    ServiceUtils.formatIso8601Date(new Date(file.lastModified())));
+            } else if (isStreamingTransformedFiles && !file.isDirectory()) {
+                if (!file.canRead()) {
+                    throw new FileNotFoundException("Cannot read file " + file);
+                }
+                newObject = ObjectUtils.createObjectForStreamingUpload(
+                    targetKey, file, md5HashOfFile, encryptionUtil, isGzipEnabled, properties);
             } else {
-                throw new Exception("Invalid value for ACL string: " + aclString);
+                newObject = ObjectUtils.createObjectForUpload(
+                    targetKey, file, md5HashOfFile, encryptionUtil, isGzipEnabled, null,
+                    properties);
             }
 
+            applyAcl(newObject, aclString);
+
             // Apply custom metadata items to upload object.
             newObject.addAllMetadata(customMetadata);
 
@@ -245,9 +268,55 @@ public class Synchronize {
         public File getFile() {
             return file;
         }
+
+        /**
+         * @return
+         * true if the object's data must be uploaded with
+         * {@link ObjectUtils#putObjectWithStreamingTransform}.
+         */
+        public boolean isStreamingUpload() {
+            return isStreamingTransformedFiles && !file.isDirectory();
+        }
+
+        /**
+         * @return
+         * true if the file must be uploaded as chunks with {@link ChunkedFileStore#putFile}.
+         */
+        public boolean isChunkedUpload() {
+            return chunkedFileStore != null && !file.isDirectory()
+                && file.length() >= chunkedFileMinSize;
+        }
+
+        /**
+         * @return
+         * the existing object whose data is a prefix of the file's data, if only the
+         * appended data needs to be uploaded, otherwise null.
+         */
+        public StorageObject getAppendedToObject() {
+            return appendedToObject;
+        }
+
+        public void setAppendedToObject(StorageObject appendedToObject) {
+            this.appendedToObject = appendedToObject;
+        }
     }
 
 
+    /**
+     * Applies the ACL named by the given ACL string to an object that will be uploaded.
+     */
+    private void applyAcl(StorageObject object, String aclString) throws Exception {
+        if ("PUBLIC_READ".equalsIgnoreCase(aclString)) {
+            object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+        } else if ("PUBLIC_READ_WRITE".equalsIgnoreCase(aclString)) {
+            object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ_WRITE);
+        } else if ("PRIVATE".equalsIgnoreCase(aclString)) {
+            // Private is the default, no need to add an ACL
+        } else {
+            throw new Exception("Invalid value for ACL string: " + aclString);
+        }
+    }
+
     private String formatTransferDetails(ThreadWatcher watcher) {
         String detailsText = "";
         long bytesPerSecond = watcher.getBytesPerSecond();
@@ -312,7 +381,9 @@ public class Synchronize {
                     + mergedDiscrepancyResults.getCountOfItemsCompared() + ")"
                 : ""));
 
-        boolean forceMetadataDownload = isEncryptionEnabled || isGzipEnabled;
+        // Metadata identifies chunk manifests, which are not restored like other objects
+        boolean forceMetadataDownload = isEncryptionEnabled || isGzipEnabled
+            || chunkedFileStore != null;
 
         PartialObjectListing partialListing = fileComparer.buildObjectMapPartial(
             storageService, bucketName, rootObjectPath, priorLastKey,
@@ -328,6 +399,19 @@ public class Synchronize {
         priorLastKey = partialListing.getPriorLastKey();
         Map<String, StorageObject> objectsMap = partialListing.getObjectsMap();
 
+        // Bundle and chunk objects are managed separately, not synchronized with local files.
+        if (isBundlingSmallFiles || chunkedFileStore != null) {
+            Iterator<String> keyIter = objectsMap.keySet().iterator();
+            while (keyIter.hasNext()) {
+                String keyPath = keyIter.next();
+                if ((isBundlingSmallFiles && FileBundler.isBundleKeyPath(keyPath))
+                    || (chunkedFileStore != null && ChunkedFileStore.isChunkKeyPath(keyPath)))
+                {
+                    keyIter.remove();
+                }
+            }
+        }
+
         // Compare the listed objects with the local system.
         printProgressLine("Comparing service contents with local system");
         FileComparerResults discrepancyResults = fileComparer.buildDiscrepancyLists(
@@ -343,6 +427,168 @@ public class Synchronize {
         return result;
     }
 
+    /**
+     * Uploads files with gzip and/or encryption applied as the data is sent.
+     */
+    private void uploadObjectsWithStreamingTransform(String bucketName,
+        List<StorageObject> objects, List<File> files, EncryptionUtil encryptionUtil,
+        long partSize) throws Exception
+    {
+        (new ThreadedS3Service((S3Service) storageService, serviceEventAdaptor))
+            .putObjectsWithStreamingTransform(bucketName,
+                objects.toArray(new S3Object[objects.size()]),
+                files.toArray(new File[files.size()]),
+                encryptionUtil, isGzipEnabled, partSize);
+        serviceEventAdaptor.throwErrorIfPresent();
+    }
+
+    /**
+     * Uploads large files as content-defined chunks, sending only chunks that are not
+     * already stored. Chunks of each file are uploaded concurrently.
+     */
+    private void uploadChunkedObjects(List<StorageObject> objects, List<File> files)
+        throws Exception
+    {
+        for (int i = 0; i < objects.size(); i++) {
+            int uploadedCount = chunkedFileStore.putFile(objects.get(i), files.get(i));
+            printProgressLine("Upload: " + (i + 1) + "/" + objects.size()
+                + " chunked files (" + uploadedCount + " new chunks in "
+                + objects.get(i).getKey() + ")");
+        }
+    }
+
+    /**
+     * Creates a package to download an object to a file, unless the object is a chunk
+     * manifest in which case the object is added to the map of manifests to restore.
+     */
+    private void prepareDownload(StorageObject object, File fileTarget,
+        List<DownloadPackage> downloadPackagesList, Map<File, StorageObject> chunkedObjects)
+        throws Exception
+    {
+        if (chunkedFileStore != null && ChunkedFileStore.isChunkManifest(object)) {
+            chunkedObjects.put(fileTarget, object);
+            return;
+        }
+        DownloadPackage downloadPackage = ObjectUtils.createPackageForDownload(
+            object, fileTarget, isGzipEnabled, isEncryptionEnabled, cryptoPassword, properties);
+        if (downloadPackage != null) {
+            downloadPackagesList.add(downloadPackage);
+        }
+    }
+
+    /**
+     * Stores small files in bundle objects, rewriting only the bundles affected by new,
+     * changed or deleted files.
+     *
+     * @return
+     * the results of comparing the small files with the bundled files.
+     */
+    private FileComparerResults uploadBundledFiles(Map<String, String> smallFiles,
+        StorageBucket bucket, String rootObjectPath,
+        BytesProgressWatcher md5GenerationProgressWatcher) throws Exception
+    {
+        FileBundler fileBundler = new FileBundler(storageService, bucket.getName(),
+            rootObjectPath, properties.getLongProperty("upload.bundle-size", 8 * 1024 * 1024));
+
+        printProgressLine("Comparing bundled files with local system");
+        fileBundler.loadIndex();
+        FileComparerResults results = fileBundler.compareFiles(
+            smallFiles, fileComparer, md5GenerationProgressWatcher);
+        md5GenerationProgressWatcher.resetWatcher();
+
+        for (String keyPath: smallFiles.keySet()) {
+            if (results.onlyOnClientKeys.contains(keyPath)) {
+                printOutputLine("N " + keyPath, REPORT_LEVEL_ACTIONS);
+            } else if (results.updatedOnClientKeys.contains(keyPath)) {
+                printOutputLine("U " + keyPath, REPORT_LEVEL_ACTIONS);
+            } else {
+                printOutputLine("- " + keyPath, REPORT_LEVEL_ALL);
+            }
+        }
+        boolean isRemovingMembers = !(isKeepFiles || isNoDelete);
+        for (String keyPath: results.onlyOnServerKeys) {
+            if (isRemovingMembers) {
+                printOutputLine("D " + keyPath, REPORT_LEVEL_ACTIONS);
+            } else {
+                printOutputLine("d " + keyPath, REPORT_LEVEL_DIFFERENCES);
+            }
+        }
+
+        if (doAction) {
+            printProgressLine("Uploading bundled files");
+            fileBundler.uploadChanges(
+                results, smallFiles, isRemovingMembers, serviceEventAdaptor);
+        }
+        return results;
+    }
+
+    /**
+     * Restores bundled files that are missing or differ from the local files, using
+     * ranged GETs on the bundle objects that run in parallel.
+     *
+     * @return
+     * the results of comparing the local files with the bundled files.
+     */
+    private FileComparerResults restoreBundledFiles(FileBundler fileBundler,
+        Map<String, String> bundledLocalFiles, File localDirectory,
+        BytesProgressWatcher md5GenerationProgressWatcher) throws Exception
+    {
+        printProgressLine("Comparing bundled files with local system");
+        FileComparerResults results = fileBundler.compareFiles(
+            bundledLocalFiles, fileComparer, md5GenerationProgressWatcher);
+        md5GenerationProgressWatcher.resetWatcher();
+
+        Map<String, File> filesToRestore = new TreeMap<String, File>();
+        for (String keyPath: fileBundler.getMembers().keySet()) {
+            boolean isRestoring = false;
+            if (results.onlyOnServerKeys.contains(keyPath)) {
+                printOutputLine("N " + keyPath, REPORT_LEVEL_ACTIONS);
+                isRestoring = true;
+            } else if (results.updatedOnClientKeys.contains(keyPath)) {
+                if (isKeepFiles) {
+                    printOutputLine("r " + keyPath, REPORT_LEVEL_DIFFERENCES);
+                } else {
+                    printOutputLine("R " + keyPath, REPORT_LEVEL_ACTIONS);
+                    isRestoring = true;
+                }
+            } else if (isForce) {
+                printOutputLine("F " + keyPath, REPORT_LEVEL_ACTIONS);
+                isRestoring = true;
+            } else {
+                printOutputLine("- " + keyPath, REPORT_LEVEL_ALL);
+            }
+            if (isRestoring) {
+                filesToRestore.put(keyPath, new File(localDirectory, keyPath));
+            }
+        }
+        if (doAction && filesToRestore.size() > 0) {
+            fileBundler.restoreFiles(filesToRestore, serviceEventAdaptor);
+        }
+        return results;
+    }
+
+    /**
+     * @return
+     * the store for large files that are stored as content-defined chunks, or null if files
+     * are not stored as chunks.
+     */
+    private ChunkedFileStore createChunkedFileStore(StorageBucket bucket, String rootObjectPath) {
+        if (chunkedFileStore != null) {
+            chunkedFileStore.shutdown();
+        }
+        if (isGzipEnabled || isEncryptionEnabled
+            || !properties.getBoolProperty("upload.chunk-large-files", false))
+        {
+            return null;
+        }
+        chunkedFileMinSize = properties.getLongProperty(
+            "upload.chunk-min-file-size", 64 * 1024 * 1024);
+        return new ChunkedFileStore(storageService, bucket.getName(), rootObjectPath,
+            properties.getIntProperty("upload.chunk-average-size",
+                ChunkedFileStore.DEFAULT_AVERAGE_CHUNK_SIZE),
+            properties.getIntProperty("threaded-service.max-thread-count", 2));
+    }
+
     /**
      * Copies the contents of a local directory to a service, storing them in the given root path.
      * <p>
@@ -405,6 +651,43 @@ public class Synchronize {
             multipartUtils = new MultipartUtils(maxUploadPartSize);
         }
 
+        // Optionally gzip and/or encrypt files as they are uploaded, instead of
+        // transforming them into temporary files first -- Amazon S3 only
+        isStreamingTransformedFiles = (storageService instanceof S3Service)
+            && (isGzipEnabled || isEncryptionEnabled)
+            && properties.getBoolProperty("upload.stream-transformed-files", false);
+        long streamingPartSize = properties.getLongProperty(
+            "upload.stream-part-size", 16 * 1024 * 1024);
+
+        // Optionally upload only the data appended to files that have grown since they were
+        // uploaded -- Amazon S3 only, and not for files that are transformed before upload
+        boolean isDetectingAppendedFiles = (multipartUtils != null)
+            && !isGzipEnabled && !isEncryptionEnabled
+            && properties.getBoolProperty("upload.detect-appended-files", false);
+
+        // Optionally copy objects in the service for files that have been moved or renamed,
+        // instead of uploading the files' data again
+        boolean isDetectingRenamedFiles =
+            properties.getBoolProperty("upload.detect-renamed-files", false);
+
+        // Optionally store large files as deduplicated content-defined chunks
+        chunkedFileStore = createChunkedFileStore(bucket, rootObjectPath);
+
+        // Optionally store small files in bundle objects, instead of one object per file
+        // -- not for files that are transformed before upload
+        Map<String, String> allFilesMap = objectKeyToFilepathMap;
+        FileComparerResults bundleResults = null;
+        isBundlingSmallFiles = !isGzipEnabled && !isEncryptionEnabled
+            && properties.getBoolProperty("upload.bundle-small-files", false);
+        if (isBundlingSmallFiles) {
+            Map<String, String> smallFiles = FileBundler.findSmallFiles(objectKeyToFilepathMap,
+                properties.getLongProperty("upload.bundle-max-file-size", 10240));
+            objectKeyToFilepathMap = new TreeMap<String, String>(objectKeyToFilepathMap);
+            objectKeyToFilepathMap.keySet().removeAll(smallFiles.keySet());
+            bundleResults = uploadBundledFiles(smallFiles, bucket, rootObjectPath,
+                md5GenerationProgressWatcher);
+        }
+
         // Repeat list and upload actions until all objects in bucket have been listed.
         do {
             ComparisonResult result =
@@ -413,10 +696,18 @@ public class Synchronize {
             priorLastKey = result.priorLastKey;
             FileComparerResults discrepancyResults = result.discrepancyResults;
 
+            Map<String, String> renamedKeys = new HashMap<String, String>();
+            if (isDetectingRenamedFiles && !isForce) {
+                renamedKeys = fileComparer.findRenamedFiles(discrepancyResults,
+                    objectKeyToFilepathMap, result.objectsMap, md5GenerationProgressWatcher);
+            }
+
             // Repeat upload actions until all local files have been uploaded (or we repeat listing loop)
             Iterator<String> objectKeyIter = objectKeyToFilepathMap.keySet().iterator();
             do {
                 List<LazyPreparedUploadObject> objectsToUpload = new ArrayList<LazyPreparedUploadObject>();
+                List<String> sourceKeysToCopy = new ArrayList<String>();
+                List<StorageObject> objectsToCopy = new ArrayList<StorageObject>();
 
                 // Iterate through local files and perform the necessary action to synchronize them.
                 while (objectKeyIter.hasNext()) {
@@ -457,14 +748,34 @@ public class Synchronize {
                         }
                     }
 
-                    if (discrepancyResults.onlyOnClientKeys.contains(relativeKeyPath)) {
+                    if (discrepancyResults.onlyOnClientKeys.contains(relativeKeyPath)
+                        && renamedKeys.containsKey(relativeKeyPath))
+                    {
+                        // File was moved or renamed, copy its existing object
+                        StorageObject sourceObject =
+                            result.objectsMap.get(renamedKeys.get(relativeKeyPath));
+                        printOutputLine("N " + targetKey + " (copied from "
+                            + sourceObject.getKey() + ")", REPORT_LEVEL_ACTIONS);
+                        StorageObject copyObject = new StorageObject(targetKey);
+                        applyAcl(copyObject, aclString);
+                        sourceKeysToCopy.add(sourceObject.getKey());
+                        objectsToCopy.add(copyObject);
+                    } else if (discrepancyResults.onlyOnClientKeys.contains(relativeKeyPath)) {
                         printOutputLine("N " + targetKey, REPORT_LEVEL_ACTIONS);
                         objectsToUpload.add(new LazyPreparedUploadObject(
                             targetKey, file, md5HashOfFile, aclString, encryptionUtil));
                     } else if (discrepancyResults.updatedOnClientKeys.contains(relativeKeyPath)) {
                         printOutputLine("U " + targetKey, REPORT_LEVEL_ACTIONS);
-                        objectsToUpload.add(new LazyPreparedUploadObject(
-                            targetKey, file, md5HashOfFile, aclString, encryptionUtil));
+                        LazyPreparedUploadObject lazyObj = new LazyPreparedUploadObject(
+                            targetKey, file, md5HashOfFile, aclString, encryptionUtil);
+                        StorageObject existingObject = result.objectsMap.get(relativeKeyPath);
+                        if (isDetectingAppendedFiles && existingObject != null
+                            && !file.isDirectory() && !lazyObj.isChunkedUpload()
+                            && multipartUtils.isAppendedFile(file, existingObject))
+                        {
+                            lazyObj.setAppendedToObject(existingObject);
+                        }
+                        objectsToUpload.add(lazyObj);
                     } else if (discrepancyResults.alreadySynchronisedKeys.contains(relativeKeyPath)
                                || discrepancyResults.alreadySynchronisedLocalPaths.contains(relativeKeyPath))
                     {
@@ -517,6 +828,12 @@ public class Synchronize {
                 while (doAction && objectsToUpload.size() > 0) {
                     List<StorageObject> objectsForStandardPut = new ArrayList<StorageObject>();
                     List<StorageObject> objectsForMultipartUpload = new ArrayList<StorageObject>();
+                    List<StorageObject> objectsForStreamingUpload = new ArrayList<StorageObject>();
+                    List<File> filesForStreamingUpload = new ArrayList<File>();
+                    List<StorageObject> objectsForAppendedUpload = new ArrayList<StorageObject>();
+                    List<StorageObject> existingObjectsForAppendedUpload = new ArrayList<StorageObject>();
+                    List<StorageObject> objectsForChunkedUpload = new ArrayList<StorageObject>();
+                    List<File> filesForChunkedUpload = new ArrayList<File>();
 
                     // Invoke lazy upload object creator.
                     int maxBatchSize = Math.min(uploadBatchSize, objectsToUpload.size());
@@ -538,7 +855,16 @@ public class Synchronize {
                             }
                         }
 
-                        if (multipartUtils != null
+                        if (lazyObj.isChunkedUpload()) {
+                            objectsForChunkedUpload.add(object);
+                            filesForChunkedUpload.add(lazyObj.getFile());
+                        } else if (lazyObj.getAppendedToObject() != null) {
+                            objectsForAppendedUpload.add(object);
+                            existingObjectsForAppendedUpload.add(lazyObj.getAppendedToObject());
+                        } else if (lazyObj.isStreamingUpload()) {
+                            objectsForStreamingUpload.add(object);
+                            filesForStreamingUpload.add(lazyObj.getFile());
+                        } else if (multipartUtils != null
                             && multipartUtils.isFileLargerThanMaxPartSize(lazyObj.getFile()))
                         {
                             objectsForMultipartUpload.add(object);
@@ -560,6 +886,35 @@ public class Synchronize {
                             bucket.getName(), (S3Service)storageService,
                             objectsForMultipartUpload, serviceEventAdaptor);
                     }
+
+                    // Perform uploads of appended data only
+                    if (objectsForAppendedUpload.size() > 0) {
+                        multipartUtils.uploadAppendedObjects(
+                            bucket.getName(), (S3Service)storageService, objectsForAppendedUpload,
+                            existingObjectsForAppendedUpload, serviceEventAdaptor);
+                    }
+
+                    // Perform streaming uploads of transformed files
+                    if (objectsForStreamingUpload.size() > 0) {
+                        uploadObjectsWithStreamingTransform(bucket.getName(),
+                            objectsForStreamingUpload, filesForStreamingUpload,
+                            encryptionUtil, streamingPartSize);
+                    }
+
+                    // Perform uploads of new chunks of large files
+                    if (objectsForChunkedUpload.size() > 0) {
+                        uploadChunkedObjects(objectsForChunkedUpload, filesForChunkedUpload);
+                    }
+                }
+
+                // Copy objects for moved or renamed files, retaining the objects' metadata.
+                // The original objects are deleted below unless deletes are disabled.
+                if (doAction && objectsToCopy.size() > 0) {
+                    (new ThreadedStorageService(storageService, serviceEventAdaptor)).copyObjects(
+                        bucket.getName(), bucket.getName(),
+                        sourceKeysToCopy.toArray(new String[sourceKeysToCopy.size()]),
+                        objectsToCopy.toArray(new StorageObject[objectsToCopy.size()]), false);
+                    serviceEventAdaptor.throwErrorIfPresent();
                 }
             } while (objectKeyIter.hasNext()); // End of upload loop
 
@@ -598,6 +953,11 @@ public class Synchronize {
             serviceEventAdaptor.throwErrorIfPresent();
         }
 
+        // Include bundled files in moves and the summary, now that objects are deleted.
+        if (bundleResults != null) {
+            mergedDiscrepancyResults.merge(bundleResults);
+        }
+
         // Delete local files that have been moved to service.
         List<String> filesMoved = new ArrayList<String>();
         if (isMoveEnabled) {
@@ -610,7 +970,7 @@ public class Synchronize {
             Iterator<String> filesMovedIter = filesMoved.iterator();
             while (filesMovedIter.hasNext()) {
                 String keyPath = filesMovedIter.next();
-                File file = new File(objectKeyToFilepathMap.get(keyPath));
+                File file = new File(allFilesMap.get(keyPath));
 
                 printOutputLine("M " + keyPath, REPORT_LEVEL_ACTIONS);
                 if (doAction) {
@@ -695,6 +1055,30 @@ public class Synchronize {
         // Store local path mapped to storage object for moved objects.
         Map<String, StorageObject> objectsMoved = new HashMap<String, StorageObject>();
 
+        // Optionally restore large files stored as content-defined chunks
+        chunkedFileStore = createChunkedFileStore(bucket, rootObjectPath);
+
+        // Optionally restore files stored in bundle objects. Bundled files are not removed
+        // from their bundles when moved.
+        FileComparerResults bundleResults = null;
+        isBundlingSmallFiles = !isGzipEnabled && !isEncryptionEnabled
+            && properties.getBoolProperty("upload.bundle-small-files", false);
+        if (isBundlingSmallFiles) {
+            FileBundler fileBundler = new FileBundler(
+                storageService, bucket.getName(), rootObjectPath, 0);
+            fileBundler.loadIndex();
+            Map<String, String> bundledLocalFiles = new TreeMap<String, String>();
+            for (String keyPath: fileBundler.getMembers().keySet()) {
+                if (objectKeyToFilepathMap.containsKey(keyPath)) {
+                    bundledLocalFiles.put(keyPath, objectKeyToFilepathMap.get(keyPath));
+                }
+            }
+            objectKeyToFilepathMap = new TreeMap<String, String>(objectKeyToFilepathMap);
+            objectKeyToFilepathMap.keySet().removeAll(fileBundler.getMembers().keySet());
+            bundleResults = restoreBundledFiles(fileBundler, bundledLocalFiles, localDirectory,
+                md5GenerationProgressWatcher);
+        }
+
         // Repeat download actions until all objects in bucket have been listed.
         do {
             ComparisonResult result =
@@ -711,6 +1095,7 @@ public class Synchronize {
             // Optionally download objects in batches to minimize memory use
             do {
                 List<DownloadPackage> downloadPackagesList = new ArrayList<DownloadPackage>();
+                Map<File, StorageObject> chunkedObjectsToRestore = new HashMap<File, StorageObject>();
                 while (objectKeyIter.hasNext()) {
                     String keyPath = objectKeyIter.next();
                     StorageObject object = objectsMap.get(keyPath);
@@ -738,26 +1123,17 @@ public class Synchronize {
 
                     if (discrepancyResults.onlyOnServerKeys.contains(keyPath)) {
                         printOutputLine("N " + localPath, REPORT_LEVEL_ACTIONS);
-                        DownloadPackage downloadPackage = ObjectUtils.createPackageForDownload(
-                            object, fileTarget, isGzipEnabled, isEncryptionEnabled, cryptoPassword);
-                        if (downloadPackage != null) {
-                            downloadPackagesList.add(downloadPackage);
-                        }
+                        prepareDownload(object, fileTarget, downloadPackagesList,
+                            chunkedObjectsToRestore);
                     } else if (discrepancyResults.updatedOnServerKeys.contains(keyPath)) {
                         printOutputLine("U " + localPath, REPORT_LEVEL_ACTIONS);
-                        DownloadPackage downloadPackage = ObjectUtils.createPackageForDownload(
-                            object, fileTarget, isGzipEnabled, isEncryptionEnabled, cryptoPassword);
-                        if (downloadPackage != null) {
-                            downloadPackagesList.add(downloadPackage);
-                        }
+                        prepareDownload(object, fileTarget, downloadPackagesList,
+                            chunkedObjectsToRestore);
                     } else if (discrepancyResults.alreadySynchronisedKeys.contains(keyPath)) {
                         if (isForce) {
                             printOutputLine("F " + localPath, REPORT_LEVEL_ACTIONS);
-                            DownloadPackage downloadPackage = ObjectUtils.createPackageForDownload(
-                                object, fileTarget, isGzipEnabled, isEncryptionEnabled, cryptoPassword);
-                            if (downloadPackage != null) {
-                                downloadPackagesList.add(downloadPackage);
-                            }
+                            prepareDownload(object, fileTarget, downloadPackagesList,
+                                chunkedObjectsToRestore);
                         } else {
                             printOutputLine("- " + localPath, REPORT_LEVEL_ALL);
                         }
@@ -767,11 +1143,8 @@ public class Synchronize {
                             printOutputLine("r " + localPath, REPORT_LEVEL_DIFFERENCES);
                         } else {
                             printOutputLine("R " + localPath, REPORT_LEVEL_ACTIONS);
-                            DownloadPackage downloadPackage = ObjectUtils.createPackageForDownload(
-                                object, fileTarget, isGzipEnabled, isEncryptionEnabled, cryptoPassword);
-                            if (downloadPackage != null) {
-                                downloadPackagesList.add(downloadPackage);
-                            }
+                            prepareDownload(object, fileTarget, downloadPackagesList,
+                                chunkedObjectsToRestore);
                         }
                     } else {
                         // Uh oh, program error here. The safest thing to do is abort!
@@ -803,6 +1176,17 @@ public class Synchronize {
                         bucket.getName(), downloadPackages);
                     serviceEventAdaptor.throwErrorIfPresent();
                 }
+
+                // Restore files stored as chunks, fetching each file's chunks concurrently.
+                if (doAction && chunkedObjectsToRestore.size() > 0) {
+                    int restoredCount = 0;
+                    for (Map.Entry<File, StorageObject> entry: chunkedObjectsToRestore.entrySet()) {
+                        chunkedFileStore.restoreFile(entry.getValue().getKey(), entry.getKey());
+                        restoredCount++;
+                        printProgressLine("Download: " + restoredCount + "/"
+                            + chunkedObjectsToRestore.size() + " chunked files");
+                    }
+                }
             } while (objectKeyIter.hasNext());
 
         } while (priorLastKey != null);
@@ -834,6 +1218,9 @@ public class Synchronize {
             File dir = dirIter.next();
             dir.delete();
         }
+        if (bundleResults != null) {
+            mergedDiscrepancyResults.merge(bundleResults);
+        }
 
         // Delete objects in service that have been moved to the local computer.
         if (isMoveEnabled) {
@@ -1029,12 +1416,19 @@ public class Synchronize {
                 }
             };
 
-        if ("UP".equals(actionCommand)) {
-            uploadLocalDirectory(objectKeyToFilepathMap, bucket, objectPath,
-                aclString, md5GenerationProgressWatcher);
-        } else if ("DOWN".equals(actionCommand)) {
-            restoreToLocalDirectory(objectKeyToFilepathMap, objectPath,
-                files[0], bucket, md5GenerationProgressWatcher);
+        try {
+            if ("UP".equals(actionCommand)) {
+                uploadLocalDirectory(objectKeyToFilepathMap, bucket, objectPath,
+                    aclString, md5GenerationProgressWatcher);
+            } else if ("DOWN".equals(actionCommand)) {
+                restoreToLocalDirectory(objectKeyToFilepathMap, objectPath,
+                    files[0], bucket, md5GenerationProgressWatcher);
+            }
+        } finally {
+            // Stop the chunk transfer threads shared by all the files of the sync
+            if (chunkedFileStore != null) {
+                chunkedFileStore.shutdown();
+            }
         }
     }
 
@@ -116,6 +116,12 @@ public class Constants {
      */
     public static final String METADATA_JETS3T_COMPRESSED = "jets3t-compression";
 
+    /**
+     * Metadata header marking an object as a manifest of content-defined chunks, naming the
+     * chunking scheme used by jets3t tools.
+     */
+    public static final String METADATA_JETS3T_CHUNK_MANIFEST = "jets3t-chunk-manifest";
+
     ///////////////////////////////////
     // Settings used by all S3 Services
     ///////////////////////////////////
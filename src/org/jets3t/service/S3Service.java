@@ -18,6 +18,8 @@
  */
 package org.jets3t.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -25,9 +27,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -59,6 +68,7 @@ import org.jets3t.service.mx.MxDelegate;
 import org.jets3t.service.security.AWSDevPayCredentials;
 import org.jets3t.service.security.AWSEC2IAMSessionCredentials;
 import org.jets3t.service.security.ProviderCredentials;
+import org.jets3t.service.utils.MultipartUploadCheckpoint;
 import org.jets3t.service.utils.MultipartUtils;
 import org.jets3t.service.utils.RestUtils;
 import org.jets3t.service.utils.ServiceUtils;
@@ -90,6 +100,16 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
 
     private static final Log log = LogFactory.getLog(S3Service.class);
 
+    /**
+     * The largest source object, in bytes, that S3 will copy with a single copy request.
+     */
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * The maximum number of parts permitted in a multipart upload.
+     */
+    public static final int MAX_MULTIPART_PART_COUNT = 10000;
+
     protected S3Service(ProviderCredentials credentials, String invokingApplicationDescription,
         CredentialsProvider credentialsProvider, Jets3tProperties jets3tProperties)
     {
@@ -3337,6 +3357,36 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
      */
     public void putObjectMaybeAsMultipart(String bucketName, StorageObject object,
         long maxPartSize) throws ServiceException
+    {
+        putObjectMaybeAsMultipart(bucketName, object, maxPartSize, null);
+    }
+
+    /**
+     * Convenience method that uploads a file-based object like
+     * {@link #putObjectMaybeAsMultipart(String, StorageObject, long)}, except that a
+     * multipart upload can be resumed after it is interrupted.
+     * <p>
+     * The progress of a multipart upload is recorded in the given checkpoint file
+     * (see {@link MultipartUploadCheckpoint}). If the checkpoint file already exists
+     * and matches this upload, the recorded upload is resumed and only the parts that
+     * are not already present in S3 with a matching size and ETag are uploaded. If the
+     * upload fails it is <em>not</em> aborted, so it can be resumed by calling this
+     * method again with the same checkpoint file. The checkpoint file is deleted once
+     * the upload is completed.
+     *
+     * @param bucketName
+     * the name of the bucket in which the object will be stored.
+     * @param object
+     * a file-based object containing all information that will be written to the service.
+     * @param maxPartSize
+     * the maximum size in bytes for any single upload part.
+     * @param checkpointFile
+     * file in which to record the upload's progress, or null for a non-resumable upload.
+     *
+     * @throws ServiceException
+     */
+    public void putObjectMaybeAsMultipart(String bucketName, StorageObject object,
+        long maxPartSize, File checkpointFile) throws ServiceException
     {
         // Only file-based objects are supported
         if (object.getDataInputFile() == null) {
@@ -3353,12 +3403,29 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
         } else {
             log.debug("Performing multipart upload for object with data > " + maxPartSize);
 
-            // Start upload
-            MultipartUpload upload = multipartStartUpload(bucketName, object.getKey(),
-                object.getMetadataMap(), object.getAcl(), object.getStorageClass());
+            // Resume upload from checkpoint, if possible
+            MultipartUploadCheckpoint checkpoint = null;
+            if (checkpointFile != null) {
+                try {
+                    checkpoint = multipartUtils.resumeFromCheckpoint(
+                        this, checkpointFile, bucketName, object);
+                } catch (IOException e) {
+                    throw new ServiceException(
+                        "Unable to read multipart upload checkpoint " + checkpointFile, e);
+                }
+            }
+
+            MultipartUpload upload = null;
+            if (checkpoint != null) {
+                upload = checkpoint.getMultipartUpload();
+            } else {
+                // Start upload
+                upload = multipartStartUpload(bucketName, object.getKey(),
+                    object.getMetadataMap(), object.getAcl(), object.getStorageClass());
+            }
 
             // Ensure upload is present on service-side, might take a little time
-            boolean foundUpload = false;
+            boolean foundUpload = (checkpoint != null);
             int maxTries = 5; // Allow up to 5 lookups for upload before we give up
             int tries = 0;
             do {
@@ -3386,21 +3453,44 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
                     + tries + " attempts, giving up");
             }
 
-            // Will attempt to delete multipart upload upon failure.
+            // Will attempt to delete multipart upload upon failure, unless it is resumable.
             try {
+                if (checkpointFile != null && checkpoint == null) {
+                    checkpoint = new MultipartUploadCheckpoint(
+                        checkpointFile, upload, object.getDataInputFile(), maxPartSize);
+                    checkpoint.save();
+                }
+
                 List<S3Object> partObjects = multipartUtils.splitFileIntoObjectsByMaxPartSize(
                     object.getKey(), object.getDataInputFile());
 
+                Map<Integer, MultipartPart> uploadedParts = (checkpoint != null
+                    ? multipartUtils.findUploadedParts(
+                        partObjects, upload.getMultipartPartsUploaded())
+                    : new TreeMap<Integer, MultipartPart>());
+
                 List<MultipartPart> parts = new ArrayList<MultipartPart>();
                 int partNumber = 1;
                 for (S3Object partObject: partObjects) {
-                    MultipartPart part = multipartUploadPart(upload, partNumber, partObject);
+                    MultipartPart part = uploadedParts.get(partNumber);
+                    if (part != null) {
+                        partObject.closeDataInputStream();
+                    } else {
+                        part = multipartUploadPart(upload, partNumber, partObject);
+                        if (checkpoint != null) {
+                            checkpoint.recordParts(Arrays.asList(part));
+                        }
+                    }
                     parts.add(part);
                     partNumber++;
                 }
 
                 multipartCompleteUpload(upload, parts);
 
+                if (checkpoint != null) {
+                    checkpoint.delete();
+                }
+
                 // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
                 if (object.getAcl() != null
                     && object.getAcl().getValueForRESTHeaderACL() == null)
@@ -3415,12 +3505,18 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
             } catch (RuntimeException e) {
                 throw e;
             } catch (Exception e) {
-                // If upload fails for any reason after the upload was started, try to clean up.
-                log.warn("Multipart upload failed, attempting clean-up by aborting upload", e);
-                try {
-                    multipartAbortUpload(upload);
-                } catch (S3ServiceException e2) {
-                    log.warn("Multipart upload failed and could not clean-up by aborting upload", e2);
+                if (checkpoint != null) {
+                    // Leave the upload in place so it can be resumed from the checkpoint.
+                    log.warn("Multipart upload failed, it can be resumed from checkpoint "
+                        + checkpointFile, e);
+                } else {
+                    // If upload fails for any reason after the upload was started, try to clean up.
+                    log.warn("Multipart upload failed, attempting clean-up by aborting upload", e);
+                    try {
+                        multipartAbortUpload(upload);
+                    } catch (S3ServiceException e2) {
+                        log.warn("Multipart upload failed and could not clean-up by aborting upload", e2);
+                    }
                 }
                 // Throw original failure exception
                 if (e instanceof ServiceException) {
@@ -3432,6 +3528,222 @@ public abstract class S3Service extends RestStorageService implements SignedUrlH
         }
     }
 
+    /**
+     * Copy an object, using a multipart upload built from concurrent byte-range part
+     * copies if the source object is too large for a single copy request.
+     * <p>
+     * S3 refuses single copy requests for source objects larger than 5 GB. This method
+     * first attempts a normal copy and, if S3 rejects the request for that reason, copies
+     * the object with a multipart upload instead. Objects larger than the JetS3t property
+     * <tt>s3service.multipart-copy-threshold</tt> are always copied as multipart uploads;
+     * when this threshold is below 5 GB the source object's size is looked up with an
+     * extra HEAD request before every copy.
+     * <p>
+     * A multipart copy is performed with up to <tt>s3service.multipart-copy-thread-count</tt>
+     * part copies in progress at once, each of <tt>s3service.multipart-copy-part-size</tt>
+     * bytes or larger if needed to stay within 10,000 parts. The source object's metadata
+     * is copied unless replaceMetadata is true, and ACLs are applied to the new object just
+     * as for a single copy.
+     */
+    @Override
+    public Map<String, Object> copyObject(String sourceBucketName, String sourceObjectKey,
+        String destinationBucketName, StorageObject destinationObject, boolean replaceMetadata,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince, String[] ifMatchTags,
+        String[] ifNoneMatchTags) throws ServiceException
+    {
+        long multipartCopyThreshold = getJetS3tProperties().getLongProperty(
+            "s3service.multipart-copy-threshold", MAX_SINGLE_COPY_SIZE);
+
+        if (multipartCopyThreshold < MAX_SINGLE_COPY_SIZE) {
+            StorageObject sourceObject = getObjectDetails(sourceBucketName, sourceObjectKey);
+            if (sourceObject.getContentLength() > multipartCopyThreshold) {
+                return multipartCopyObject(sourceBucketName, sourceObject,
+                    destinationBucketName, destinationObject, replaceMetadata,
+                    ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags);
+            }
+            return super.copyObject(sourceBucketName, sourceObjectKey,
+                destinationBucketName, destinationObject, replaceMetadata,
+                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags);
+        }
+
+        try {
+            return super.copyObject(sourceBucketName, sourceObjectKey,
+                destinationBucketName, destinationObject, replaceMetadata,
+                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags);
+        } catch (ServiceException e) {
+            if (!"InvalidRequest".equals(e.getErrorCode())) {
+                throw e;
+            }
+            // Check whether the copy was refused because the source object is too large
+            StorageObject sourceObject = getObjectDetails(sourceBucketName, sourceObjectKey);
+            if (sourceObject.getContentLength() <= MAX_SINGLE_COPY_SIZE) {
+                throw e;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Object " + sourceBucketName + ":" + sourceObjectKey
+                    + " is too large for a single copy request, using a multipart copy");
+            }
+            return multipartCopyObject(sourceBucketName, sourceObject,
+                destinationBucketName, destinationObject, replaceMetadata,
+                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags);
+        }
+    }
+
+    /**
+     * Copy an object with a multipart upload whose parts are byte-range copies of the
+     * source object, performed concurrently. The copy is pinned to the source object's
+     * current ETag, unless other If-Match preconditions are given, so all the parts are
+     * copied from the same version of the source. If any part copy fails the multipart
+     * upload is aborted.
+     *
+     * @param sourceBucketName
+     * the name of the bucket that contains the original object.
+     * @param sourceObject
+     * details of the original object, including its size and metadata.
+     * @param destinationBucketName
+     * the name of the destination bucket to which the object will be copied.
+     * @param destinationObject
+     * the object that will be created by the copy operation.
+     * @param replaceMetadata
+     * If this parameter is true, the copied object will be assigned the metadata
+     * values present in the destinationObject. Otherwise, the copied object will
+     * have the same metadata as the original object.
+     * @param ifModifiedSince
+     * @param ifUnmodifiedSince
+     * @param ifMatchTags
+     * @param ifNoneMatchTags
+     * preconditions applied to every part copy, ignored if null.
+     *
+     * @return
+     * a map of the result information after the object copy, including the new object's
+     * ETag and size (Content-Length).
+     *
+     * @throws ServiceException
+     */
+    protected Map<String, Object> multipartCopyObject(String sourceBucketName,
+        StorageObject sourceObject, String destinationBucketName,
+        StorageObject destinationObject, boolean replaceMetadata,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
+        final String[] ifMatchTags, String[] ifNoneMatchTags) throws ServiceException
+    {
+        assertAuthenticatedConnection("multipartCopyObject");
+        final String sourceObjectKey = sourceObject.getKey();
+        long objectSize = sourceObject.getContentLength();
+
+        Map<String, Object> metadata = null;
+        if (replaceMetadata) {
+            metadata = destinationObject.getModifiableMetadata();
+        } else {
+            // Multipart uploads do not inherit the source's metadata, so copy it explicitly
+            metadata = new HashMap<String, Object>(sourceObject.getUserMetadataMap());
+            for (Map.Entry<String, Object> entry: sourceObject.getHttpMetadataMap().entrySet()) {
+                if (RestUtils.HTTP_HEADER_METADATA_NAMES.contains(
+                        entry.getKey().toLowerCase(Locale.ENGLISH))
+                    && !StorageObject.METADATA_HEADER_CONTENT_LENGTH.equalsIgnoreCase(entry.getKey())
+                    && !StorageObject.METADATA_HEADER_CONTENT_MD5.equalsIgnoreCase(entry.getKey()))
+                {
+                    metadata.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        long partSize = getJetS3tProperties().getLongProperty(
+            "s3service.multipart-copy-part-size", 128 * 1024 * 1024);
+        // Parts must be between 5 MB and 5 GB, and there may be no more than 10,000 of them
+        partSize = Math.min(Math.max(partSize, MultipartUtils.MIN_PART_SIZE), MAX_SINGLE_COPY_SIZE);
+        partSize = Math.max(partSize, (objectSize + MAX_MULTIPART_PART_COUNT - 1)
+            / MAX_MULTIPART_PART_COUNT);
+        int partCount = (int) Math.max(1, (objectSize + partSize - 1) / partSize);
+        int threadCount = Math.max(1, Math.min(partCount, getJetS3tProperties().getIntProperty(
+            "s3service.multipart-copy-thread-count", 10)));
+
+        final String[] partIfMatchTags = (ifMatchTags != null
+            ? ifMatchTags : new String[] {sourceObject.getETag()});
+
+        final MultipartUpload upload = multipartStartUploadImpl(destinationBucketName,
+            destinationObject.getKey(), metadata, destinationObject.getAcl(),
+            destinationObject.getStorageClass(),
+            destinationObject.getServerSideEncryptionAlgorithm());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Copying " + objectSize + " bytes from " + sourceBucketName + ":"
+                + sourceObjectKey + " to " + destinationBucketName + ":"
+                + destinationObject.getKey() + " in " + partCount + " parts using "
+                + threadCount + " threads");
+        }
+
+        MxDelegate.getInstance().registerStorageObjectCopyEvent(sourceBucketName, sourceObjectKey);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<MultipartPart>> futures = new ArrayList<Future<MultipartPart>>();
+        try {
+            for (int i = 0; i < partCount; i++) {
+                final Integer partNumber = i + 1;
+                final Long byteRangeStart = i * partSize;
+                final Long byteRangeEnd = Math.min(objectSize, byteRangeStart + partSize) - 1;
+                final String partSourceBucketName = sourceBucketName;
+                final Calendar partIfModifiedSince = ifModifiedSince;
+                final Calendar partIfUnmodifiedSince = ifUnmodifiedSince;
+                final String[] partIfNoneMatchTags = ifNoneMatchTags;
+                futures.add(executor.submit(new Callable<MultipartPart>() {
+                    public MultipartPart call() throws Exception {
+                        return multipartUploadPartCopyImpl(upload.getUploadId(),
+                            upload.getBucketName(), upload.getObjectKey(), partNumber,
+                            partSourceBucketName, sourceObjectKey,
+                            partIfModifiedSince, partIfUnmodifiedSince,
+                            partIfMatchTags, partIfNoneMatchTags,
+                            byteRangeStart, byteRangeEnd, null);
+                    }
+                }));
+            }
+
+            List<MultipartPart> parts = new ArrayList<MultipartPart>();
+            for (Future<MultipartPart> future: futures) {
+                MultipartPart part = future.get();
+                upload.addMultipartPartToUploadedList(part);
+                parts.add(part);
+            }
+
+            MultipartCompleted completed = multipartCompleteUpload(upload, parts);
+
+            // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
+            if (destinationObject.getAcl() != null
+                && destinationObject.getAcl().getValueForRESTHeaderACL() == null)
+            {
+                putAclImpl(destinationBucketName, destinationObject.getKey(),
+                    destinationObject.getAcl(), null);
+            }
+
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("ETag", completed.getEtag());
+            map.put("Content-Length", String.valueOf(objectSize));
+            map.put("X-JetS3t-SourceBucketName", sourceBucketName);
+            map.put("X-JetS3t-SourceObjectKey", sourceObjectKey);
+            map.put("X-JetS3t-DestinationBucketName", destinationBucketName);
+            map.put("X-JetS3t-DestinationObjectKey", destinationObject.getKey());
+            map.put("X-JetS3t-MultipartCopyPartCount", String.valueOf(partCount));
+            return map;
+        } catch (Exception e) {
+            for (Future<MultipartPart> future: futures) {
+                future.cancel(true);
+            }
+            log.warn("Multipart copy failed, attempting clean-up by aborting upload", e);
+            try {
+                multipartAbortUpload(upload);
+            } catch (S3ServiceException e2) {
+                log.warn("Multipart copy failed and could not clean-up by aborting upload", e2);
+            }
+            Throwable cause = (e instanceof ExecutionException ? e.getCause() : e);
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else {
+                throw new ServiceException("Multipart copy failed", cause);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Start a multipart upload process for a given object; must be done before
      * individual parts can be uploaded.
@@ -36,6 +36,7 @@ import org.jets3t.service.model.StorageOwner;
 import org.jets3t.service.mx.MxDelegate;
 import org.jets3t.service.security.ProviderCredentials;
 import org.jets3t.service.utils.RestUtils;
+import org.jets3t.service.utils.RetryPolicy;
 
 /**
  * A service that handles communication with a storage service, offering all the operations that
@@ -85,6 +86,7 @@ public abstract class StorageService {
     private String invokingApplicationDescription = null;
     private boolean isHttpsOnly = true;
     private int internalErrorRetryMax = 5;
+    private RetryPolicy retryPolicy = null;
 
     private boolean isShutdown = false;
 
@@ -122,6 +124,7 @@ public abstract class StorageService {
         this.isHttpsOnly = this.getHttpsOnly();
         this.internalErrorRetryMax = jets3tProperties.getIntProperty(
             "storage-service.internal-error-retry-max", 5);
+        this.retryPolicy = RetryPolicy.getInstance(jets3tProperties);
 
         this.initializeDefaults();
     }
@@ -264,23 +267,31 @@ public abstract class StorageService {
      */
     protected abstract StorageObject newObject();
 
+    /**
+     * @return
+     * the policy that decides how long to wait before retrying failed requests, and
+     * whether the retry budget allows them.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy
+     * the policy that decides how long to wait before retrying failed requests.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Sleeps for a period of time based on the number of Internal Server errors a request has
      * encountered, provided the number of errors does not exceed the value set with the
      * property <code>storage-service.internal-error-retry-max</code>. If the maximum error count is
      * exceeded, this method will throw the provided {@link ServiceException}.
      *
-     * The millisecond delay grows rapidly according to the formula
-     * <code>50 * (<i>internalErrorCount</i> ^ 2)</code>.
-     *
-     * <table summary="Exponential back-off delay times">
-     * <tr><th>Error count</th><th>Delay in milliseconds</th></tr>
-     * <tr><td>1</td><td>50</td></tr>
-     * <tr><td>2</td><td>200</td></tr>
-     * <tr><td>3</td><td>450</td></tr>
-     * <tr><td>4</td><td>800</td></tr>
-     * <tr><td>5</td><td>1250</td></tr>
-     * </table>
+     * The delay is chosen by the service's {@link RetryPolicy}, see
+     * {@link #sleepBeforeRetry(int, int, long, ServiceException)}.
      *
      * @param internalErrorCount
      * the number of Internal Server errors encountered by a request.
@@ -293,20 +304,59 @@ public abstract class StorageService {
     protected void sleepOnInternalError(int internalErrorCount, ServiceException ex)
         throws ServiceException, InterruptedException
     {
-        if (internalErrorCount <= internalErrorRetryMax) {
-            long delayMs = 50L * (int) Math.pow(internalErrorCount, 2);
+        sleepBeforeRetry(internalErrorCount, internalErrorRetryMax, 0, ex);
+    }
+
+    /**
+     * Sleeps before a request is retried, provided the request has not already been retried
+     * too many times and the service's retry budget allows another retry. Otherwise this
+     * method throws the provided {@link ServiceException}.
+     * <p>
+     * The delay grows with jitter from one retry to the next, starts higher for throttling
+     * errors like <code>SlowDown</code>, and follows any <code>Retry-After</code> header in
+     * the error response.
+     *
+     * @param retryCount
+     * the number of times the request has failed in this way, including this failure.
+     * @param retryMax
+     * the maximum number of retries permitted.
+     * @param previousDelayMs
+     * the delay before the request's previous retry, or 0 if there was none.
+     * @param ex
+     * the error that caused the request to fail.
+     * @return
+     * the delay in milliseconds, to be passed in for the request's next retry.
+     *
+     * @throws ServiceException
+     * thrown if the request may not be retried.
+     * @throws InterruptedException
+     * thrown if the thread sleep is interrupted.
+     */
+    protected long sleepBeforeRetry(int retryCount, int retryMax, long previousDelayMs,
+        ServiceException ex) throws ServiceException, InterruptedException
+    {
+        if (retryCount > retryMax) {
             if (log.isWarnEnabled()) {
-                log.warn("Encountered " + internalErrorCount
-                    + " Internal Server error(s), will retry in " + delayMs + "ms");
+                log.warn("Encountered too many errors (" + retryCount + "), aborting request: "
+                    + ex.getMessage());
             }
-            Thread.sleep(delayMs);
-        } else {
+            throw ex;
+        }
+        if (!retryPolicy.acquireRetry()) {
             if (log.isWarnEnabled()) {
-                log.warn("Encountered too many Internal Server errors ("
-                    + internalErrorCount + "), aborting request.");
+                log.warn("Retry budget is exhausted, aborting request: " + ex.getMessage());
             }
             throw ex;
         }
+        long delayMs = retryPolicy.getDelayMs(retryCount, previousDelayMs, ex);
+        if (log.isWarnEnabled()) {
+            log.warn("Encountered " + retryCount + " error(s) with response code "
+                + ex.getResponseCode()
+                + (ex.getErrorCode() != null ? " (" + ex.getErrorCode() + ")" : "")
+                + ", will retry in " + delayMs + "ms");
+        }
+        Thread.sleep(delayMs);
+        return delayMs;
     }
 
     /**
@@ -0,0 +1,349 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Jets3tProperties;
+
+/**
+ * Client-side limit on the rate of requests sent to each bucket, or to each key prefix
+ * within a bucket, which adapts to the capacity the service is willing to provide.
+ * <p>
+ * The allowed rate for a partition grows additively while requests succeed, by about
+ * <code>additiveIncrease</code> requests per second each second, and is cut
+ * multiplicatively when the service throttles a request with a <code>SlowDown</code>
+ * or 503 response. Requests in excess of the allowed rate wait their turn rather than
+ * fail, so the request rate converges on what the partition can sustain.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class AdaptiveRateLimiter {
+    private static final Log log = LogFactory.getLog(AdaptiveRateLimiter.class);
+
+    /**
+     * Throttling responses to requests sent in a burst at the old rate arrive together,
+     * so the rate is cut at most once within this period.
+     */
+    private static final long DECREASE_INTERVAL_NANOS = 100L * 1000000;
+
+    /**
+     * Partitions unused for this long are forgotten, so the partitions of a limiter with
+     * many prefixes do not accumulate without bound.
+     */
+    private static final long PARTITION_EXPIRY_NANOS = 5L * 60 * 1000000000L;
+
+    /**
+     * Idle partitions are only looked for once there are more than this many.
+     */
+    private static final int PARTITION_EXPIRY_THRESHOLD = 1000;
+
+    /**
+     * Allowed request rate and schedule of one bucket or prefix. Times are from
+     * {@link System#nanoTime()}, so are only compared by their difference, and are
+     * unset until first used.
+     */
+    private class Partition {
+        double rate = initialRate;
+        boolean isScheduled = false;
+        long nextPermitNanos = 0;
+        boolean hasDecreased = false;
+        long lastDecreaseNanos = 0;
+        volatile long lastUsedNanos;
+
+        Partition(long nowNanos) {
+            this.lastUsedNanos = nowNanos;
+        }
+    }
+
+    private final double initialRate;
+    private final double minRate;
+    private final double maxRate;
+    private final double additiveIncrease;
+    private final double decreaseFactor;
+    private final int prefixDepth;
+
+    private final ConcurrentMap<String, Partition> partitions =
+        new ConcurrentHashMap<String, Partition>();
+    private final AtomicLong throttledCount = new AtomicLong(0);
+    private final AtomicLong delayedCount = new AtomicLong(0);
+
+    /**
+     * @param initialRate
+     * the requests per second allowed for a partition before anything is known about it.
+     * @param minRate
+     * the lowest requests per second the rate can be cut to.
+     * @param maxRate
+     * the highest requests per second the rate can grow to.
+     * @param additiveIncrease
+     * the growth in requests per second, per second of successful requests.
+     * @param decreaseFactor
+     * the factor, between 0 and 1, the rate is multiplied by when requests are throttled.
+     * @param prefixDepth
+     * the number of leading components of object keys, separated by '/', that identify
+     * a partition within a bucket. If 0, each bucket is a single partition.
+     */
+    public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate,
+        double additiveIncrease, double decreaseFactor, int prefixDepth)
+    {
+        this.minRate = Math.max(0.1, minRate);
+        this.maxRate = Math.max(this.minRate, maxRate);
+        this.initialRate = Math.min(this.maxRate, Math.max(this.minRate, initialRate));
+        this.additiveIncrease = additiveIncrease;
+        this.decreaseFactor = decreaseFactor;
+        this.prefixDepth = prefixDepth;
+    }
+
+    /**
+     * Create a rate limiter configured by the
+     * <code>storage-service.adaptive-rate-limit-*</code> properties.
+     *
+     * @param properties
+     * @return
+     * a rate limiter.
+     */
+    public static AdaptiveRateLimiter getInstance(Jets3tProperties properties) {
+        return new AdaptiveRateLimiter(
+            getDoubleProperty(properties, "storage-service.adaptive-rate-limit-initial-rate", 100),
+            getDoubleProperty(properties, "storage-service.adaptive-rate-limit-min-rate", 1),
+            getDoubleProperty(properties, "storage-service.adaptive-rate-limit-max-rate", 5000),
+            getDoubleProperty(properties, "storage-service.adaptive-rate-limit-increase", 10),
+            getDoubleProperty(properties, "storage-service.adaptive-rate-limit-decrease-factor", 0.5),
+            properties.getIntProperty("storage-service.adaptive-rate-limit-prefix-depth", 0));
+    }
+
+    private static double getDoubleProperty(Jets3tProperties properties, String name,
+        double defaultValue)
+    {
+        return Double.parseDouble(
+            properties.getStringProperty(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * @param bucketName
+     * the bucket a request targets, may be null for service-level requests.
+     * @param objectKey
+     * the object key a request targets, may be null.
+     * @return
+     * the name of the partition whose rate limits the request, or null if the
+     * request is not rate limited.
+     */
+    public String getPartitionName(String bucketName, String objectKey) {
+        if (bucketName == null) {
+            return null;
+        }
+        if (prefixDepth <= 0 || objectKey == null) {
+            return bucketName;
+        }
+        int end = -1;
+        for (int i = 0; i < prefixDepth; i++) {
+            end = objectKey.indexOf('/', end + 1);
+            if (end < 0) {
+                // Keys with fewer components share their parent's partition
+                end = objectKey.lastIndexOf('/');
+                break;
+            }
+        }
+        return bucketName + "/" + (end < 0 ? "" : objectKey.substring(0, end + 1));
+    }
+
+    /**
+     * Wait until a request may be sent to a partition.
+     *
+     * @param partitionName
+     * a name returned by {@link #getPartitionName(String, String)}, may be null.
+     * @throws InterruptedException
+     * if the wait is interrupted.
+     */
+    public void acquire(String partitionName) throws InterruptedException {
+        long delayNanos = reserve(partitionName, nanoTime());
+        if (delayNanos > 0) {
+            delayedCount.incrementAndGet();
+            Thread.sleep(delayNanos / 1000000, (int) (delayNanos % 1000000));
+        }
+    }
+
+    /**
+     * Reserve the next slot for a request to a partition.
+     *
+     * @return
+     * how long the request must wait for its slot, in nanoseconds.
+     */
+    long reserve(String partitionName, long nowNanos) {
+        if (partitionName == null) {
+            return 0;
+        }
+        Partition partition = getPartition(partitionName, nowNanos);
+        synchronized (partition) {
+            long intervalNanos = (long) (1000000000L / partition.rate);
+            long slotNanos = nowNanos;
+            if (partition.isScheduled && partition.nextPermitNanos - nowNanos > 0) {
+                slotNanos = partition.nextPermitNanos;
+            }
+            partition.isScheduled = true;
+            partition.nextPermitNanos = slotNanos + intervalNanos;
+            return slotNanos - nowNanos;
+        }
+    }
+
+    /**
+     * Record a request to a partition that was not throttled, increasing its rate.
+     *
+     * @param partitionName
+     * may be null.
+     */
+    public void onSuccess(String partitionName) {
+        if (partitionName == null) {
+            return;
+        }
+        Partition partition = getPartition(partitionName, nanoTime());
+        synchronized (partition) {
+            partition.rate = Math.min(maxRate,
+                partition.rate + additiveIncrease / partition.rate);
+        }
+    }
+
+    /**
+     * Record a request to a partition that was throttled, decreasing its rate.
+     *
+     * @param partitionName
+     * may be null.
+     */
+    public void onThrottled(String partitionName) {
+        onThrottled(partitionName, nanoTime());
+    }
+
+    void onThrottled(String partitionName, long nowNanos) {
+        if (partitionName == null) {
+            return;
+        }
+        throttledCount.incrementAndGet();
+        Partition partition = getPartition(partitionName, nowNanos);
+        synchronized (partition) {
+            if (partition.hasDecreased
+                && nowNanos - partition.lastDecreaseNanos < DECREASE_INTERVAL_NANOS)
+            {
+                return;
+            }
+            partition.hasDecreased = true;
+            partition.lastDecreaseNanos = nowNanos;
+            partition.rate = Math.max(minRate, partition.rate * decreaseFactor);
+            if (log.isDebugEnabled()) {
+                log.debug("Request rate for " + partitionName + " reduced to "
+                    + partition.rate + "/s after throttling");
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the currently allowed requests per second of each partition, by partition name.
+     */
+    public Map<String, Double> getRates() {
+        Map<String, Double> rates = new TreeMap<String, Double>();
+        for (Map.Entry<String, Partition> entry: partitions.entrySet()) {
+            synchronized (entry.getValue()) {
+                rates.put(entry.getKey(), entry.getValue().rate);
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * @param partitionName
+     * @return
+     * the currently allowed requests per second of a partition.
+     */
+    public double getRate(String partitionName) {
+        Partition partition = partitions.get(partitionName);
+        if (partition == null) {
+            return initialRate;
+        }
+        synchronized (partition) {
+            return partition.rate;
+        }
+    }
+
+    /**
+     * @return
+     * the number of throttled requests reported to this limiter.
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * @return
+     * the number of requests that had to wait before being sent.
+     */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private Partition getPartition(String partitionName, long nowNanos) {
+        Partition partition = partitions.get(partitionName);
+        if (partition == null) {
+            if (partitions.size() >= PARTITION_EXPIRY_THRESHOLD) {
+                removeIdlePartitions(nowNanos);
+            }
+            Partition newPartition = new Partition(nowNanos);
+            partition = partitions.putIfAbsent(partitionName, newPartition);
+            if (partition == null) {
+                partition = newPartition;
+            }
+        }
+        partition.lastUsedNanos = nowNanos;
+        return partition;
+    }
+
+    /**
+     * Forget partitions that have not been used recently, whose rate would be out of date.
+     */
+    private void removeIdlePartitions(long nowNanos) {
+        Iterator<Map.Entry<String, Partition>> iter = partitions.entrySet().iterator();
+        while (iter.hasNext()) {
+            Partition partition = iter.next().getValue();
+            if (nowNanos - partition.lastUsedNanos > PARTITION_EXPIRY_NANOS) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the number of partitions whose rate is being tracked.
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+}
@@ -90,10 +90,15 @@ public class HttpMethodReleaseInputStream extends InputStream implements InputSt
      */
     protected void releaseConnection() throws IOException {
         if (!alreadyReleased) {
-            if (!underlyingStreamConsumed) {
-                // Underlying input stream has not been consumed,
-                // trigger connection close and clean-up.
-                RestUtils.closeHttpResponse(httpResponse);
+            try {
+                if (!underlyingStreamConsumed) {
+                    // Underlying input stream has not been consumed,
+                    // trigger connection close and clean-up.
+                    RestUtils.closeHttpResponse(httpResponse);
+                }
+            } finally {
+                // Free any request scheduler slot held for the response data
+                RequestScheduler.releaseSlotHeldBy(httpResponse);
             }
             alreadyReleased = true;
         }
@@ -0,0 +1,114 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Cache of object details retrieved with HEAD requests, so repeated
+ * <code>getObjectDetails</code> calls for the same object can be answered without
+ * a round-trip to the service. Implementations must be thread-safe.
+ * <p>
+ * A service also keeps each bucket's status and location in the cache, under
+ * reserved keys that no object can have.
+ * <p>
+ * A service using a cache invalidates the entry for an object whenever it
+ * puts, copies over or deletes that object, once the write has completed, but
+ * cannot see changes made by other clients, so cached details may be stale until
+ * their entry expires.
+ *
+ * @author James Murty
+ */
+public interface MetadataCache {
+
+    /**
+     * Marker stored for, and returned by {@link #get(String, String)} for, objects
+     * known not to exist.
+     */
+    StorageObject NOT_FOUND = new StorageObject("");
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @return
+     * the cached details of the object, {@link #NOT_FOUND} if the object is known
+     * not to exist, or null if nothing is cached for the object.
+     */
+    StorageObject get(String bucketName, String objectKey);
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @param details
+     * the object's details, or {@link #NOT_FOUND} if the object does not exist.
+     */
+    void put(String bucketName, String objectKey, StorageObject details);
+
+    /**
+     * @param bucketName
+     * @param objectKey
+     * @return
+     * the object's current generation, to be passed to
+     * {@link #put(String, String, StorageObject, long)} when the details retrieved after
+     * this call arrive.
+     */
+    long getGeneration(String bucketName, String objectKey);
+
+    /**
+     * Cache an object's details only if the object has not been invalidated since its
+     * generation was obtained, so details read before a change to the object completed
+     * are not cached after the change.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param details
+     * the object's details, or {@link #NOT_FOUND} if the object does not exist.
+     * @param generation
+     * the object's generation from {@link #getGeneration(String, String)}, obtained before
+     * the details were requested.
+     */
+    void put(String bucketName, String objectKey, StorageObject details, long generation);
+
+    /**
+     * Discard anything cached for an object.
+     *
+     * @param bucketName
+     * @param objectKey
+     */
+    void invalidate(String bucketName, String objectKey);
+
+    /**
+     * Discard everything in the cache.
+     */
+    void clear();
+
+    /**
+     * @return
+     * the number of lookups answered from the cache, including those for objects
+     * known not to exist.
+     */
+    long getHitCount();
+
+    /**
+     * @return
+     * the number of lookups that found nothing cached, or only an expired entry.
+     */
+    long getMissCount();
+
+}
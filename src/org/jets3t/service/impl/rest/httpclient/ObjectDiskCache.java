@@ -0,0 +1,571 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * Read-through cache that keeps copies of objects' data and metadata in a local directory,
+ * so repeated GETs of the same objects are served from local disk.
+ * <p>
+ * Every read of a cached object is revalidated with a conditional GET that includes the
+ * cached ETag in an <tt>If-None-Match</tt> header. If the object is unchanged the service
+ * responds with 304 (Not Modified) and no data, and the object is served from the cache,
+ * otherwise the new data replaces the cached copy. The least recently used objects are
+ * removed when the cached data exceeds a maximum size, and objects larger than the maximum
+ * size are not cached.
+ * <p>
+ * Concurrent reads of the same object share a single request: threads that read an object
+ * while another thread is fetching it wait for that fetch, then read the cached copy.
+ * Cached copies are kept separately for each scope, such as a service endpoint and the
+ * credentials used to fetch them, so a read is never served data fetched for another scope.
+ * <p>
+ * Cached objects remain in the directory across restarts. Use {@link #getInstance} to share
+ * a cache, and its size accounting, among all services that use the same directory.
+ *
+ * @author James Murty
+ */
+public class ObjectDiskCache {
+    private static final Log log = LogFactory.getLog(ObjectDiskCache.class);
+
+    private static final String DATA_FILE_SUFFIX = ".data";
+    private static final String METADATA_FILE_SUFFIX = ".properties";
+
+    private static final Map<File, ObjectDiskCache> instances = new HashMap<File, ObjectDiskCache>();
+
+    private final File directory;
+    private final long maxSize;
+
+    // Entries in least- to most-recently used order
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentMap<String, Fetch> fetchesInProgress =
+        new ConcurrentHashMap<String, Fetch>();
+    private long totalSize = 0;
+
+    private long hitCount = 0;
+    private long revalidatedCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Fetches an object from the service, for objects that are not cached or may have changed.
+     */
+    public interface ObjectFetcher {
+        /**
+         * @param ifNoneMatchTags
+         * ETags to include in an <tt>If-None-Match</tt> header, or null to fetch the object
+         * unconditionally.
+         * @return
+         * the object, including its data input stream.
+         * @throws ServiceException
+         * with a response code of 304 if the object matches one of the given ETags.
+         */
+        StorageObject fetchObject(String[] ifNoneMatchTags) throws ServiceException;
+
+        /**
+         * @return
+         * a new, empty, object of the type returned by the service.
+         */
+        StorageObject newObject();
+    }
+
+    private static class Entry {
+        final String name;
+        final String etag;
+        final long length;
+        final Map<String, Object> metadata;
+
+        Entry(String name, String etag, long length, Map<String, Object> metadata) {
+            this.name = name;
+            this.etag = etag;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Fetch {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Entry entry = null;
+        ServiceException error = null;
+        // Response that could not be cached, which only the fetching thread may use
+        StorageObject uncachedObject = null;
+    }
+
+    /**
+     * @param directory
+     * the directory in which to store cached objects.
+     * @param maxSize
+     * the maximum total size, in bytes, of the cached objects' data.
+     * @return
+     * the cache for the given directory, which is created if necessary. If the cache
+     * already exists, the maximum size of the existing cache applies.
+     */
+    public static ObjectDiskCache getInstance(File directory, long maxSize) {
+        File key = directory.getAbsoluteFile();
+        synchronized (instances) {
+            ObjectDiskCache cache = instances.get(key);
+            if (cache == null) {
+                cache = new ObjectDiskCache(key, maxSize);
+                instances.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Create a cache in the given directory, including any objects already cached there.
+     *
+     * @param directory
+     * the directory in which to store cached objects.
+     * @param maxSize
+     * the maximum total size, in bytes, of the cached objects' data.
+     */
+    public ObjectDiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        loadEntries();
+    }
+
+    /**
+     * @return
+     * a name for the cached copy of an object, unique to the bucket, key and version.
+     */
+    public static String getCacheName(String bucketName, String objectKey, String versionId) {
+        return getCacheName(null, bucketName, objectKey, versionId);
+    }
+
+    /**
+     * @param scope
+     * identifies who fetched the object, such as the service endpoint and the access key of
+     * the credentials used, or null if the cache is not shared between scopes.
+     * @return
+     * a name for the cached copy of an object, unique to the scope, bucket, key and version.
+     */
+    public static String getCacheName(String scope, String bucketName, String objectKey,
+        String versionId)
+    {
+        String cacheKey = bucketName + "\n" + objectKey + "\n" + (versionId == null ? "" : versionId);
+        if (scope != null) {
+            cacheKey = scope + "\n" + cacheKey;
+        }
+        try {
+            return ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+                cacheKey.getBytes(Constants.DEFAULT_ENCODING)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to generate cache name", e);
+        }
+    }
+
+    /**
+     * Get an object from the cache, for a cache that is not shared between scopes.
+     *
+     * @see #getObject(String, String, String, String, ObjectFetcher)
+     */
+    public StorageObject getObject(String bucketName, String objectKey, String versionId,
+        ObjectFetcher fetcher) throws ServiceException
+    {
+        return getObject(null, bucketName, objectKey, versionId, fetcher);
+    }
+
+    /**
+     * Get an object from the cache, after checking with the service that the cached copy
+     * is up-to-date. Objects that are not cached, or have changed, are fetched and cached.
+     *
+     * @param scope
+     * identifies who is reading the object, such as the service endpoint and the access key
+     * of the credentials used. Only reads in the same scope share cached copies and fetches.
+     * @param bucketName
+     * @param objectKey
+     * @param versionId
+     * the object's version, or null for the latest version.
+     * @param fetcher
+     * performs requests for the object.
+     * @return
+     * the object, with a data input stream that reads the cached data.
+     * @throws ServiceException
+     */
+    public StorageObject getObject(String scope, String bucketName, String objectKey,
+        String versionId, ObjectFetcher fetcher) throws ServiceException
+    {
+        String name = getCacheName(scope, bucketName, objectKey, versionId);
+        Fetch fetch = new Fetch();
+        Fetch existingFetch = fetchesInProgress.putIfAbsent(name, fetch);
+        Entry entry = null;
+        if (existingFetch != null) {
+            // Another thread is fetching this object, wait for it
+            try {
+                existingFetch.latch.await();
+            } catch (InterruptedException e) {
+                throw new ServiceException("Interrupted waiting for object " + objectKey, e);
+            }
+            if (existingFetch.error != null) {
+                throw existingFetch.error;
+            }
+            entry = existingFetch.entry;
+            if (entry != null) {
+                synchronized (this) {
+                    hitCount++;
+                }
+            }
+        } else {
+            try {
+                fetchEntry(name, fetcher, fetch);
+                entry = fetch.entry;
+            } catch (ServiceException e) {
+                fetch.error = e;
+                throw e;
+            } catch (RuntimeException e) {
+                fetch.error = new ServiceException("Unable to cache object " + objectKey, e);
+                throw e;
+            } finally {
+                fetchesInProgress.remove(name);
+                fetch.latch.countDown();
+            }
+            if (fetch.uncachedObject != null) {
+                // Return the response we already have rather than fetching it again
+                StorageObject object = fetch.uncachedObject;
+                fetch.uncachedObject = null;
+                return object;
+            }
+        }
+
+        StorageObject object = (entry == null ? null : openEntry(entry, bucketName, objectKey, fetcher));
+        if (object == null) {
+            // Object is not cacheable, or its cached copy was removed
+            return fetcher.fetchObject(null);
+        }
+        return object;
+    }
+
+    /**
+     * Fetch an object, and set the fetch's entry to its cached copy. If the object cannot
+     * be cached, the fetch's uncached object is set to the response instead.
+     */
+    private void fetchEntry(String name, ObjectFetcher fetcher, Fetch fetch)
+        throws ServiceException
+    {
+        Entry entry = null;
+        synchronized (this) {
+            entry = entries.get(name);
+        }
+        StorageObject object = null;
+        try {
+            object = fetcher.fetchObject(
+                entry != null && entry.etag != null ? new String[] {entry.etag} : null);
+        } catch (ServiceException e) {
+            if (entry != null && e.getResponseCode() == 304) {
+                synchronized (this) {
+                    hitCount++;
+                    revalidatedCount++;
+                }
+                new File(directory, name + DATA_FILE_SUFFIX).setLastModified(System.currentTimeMillis());
+                fetch.entry = entry;
+                return;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            missCount++;
+        }
+        if (object.getContentLength() < 0 || object.getContentLength() > maxSize) {
+            // Not cacheable, the fetching thread reads this response directly
+            fetch.uncachedObject = object;
+            return;
+        }
+        try {
+            fetch.entry = storeEntry(name, object);
+        } catch (IOException e) {
+            throw new ServiceException("Unable to cache object " + object.getKey(), e);
+        } finally {
+            closeQuietly(object);
+        }
+    }
+
+    private StorageObject openEntry(Entry entry, String bucketName, String objectKey,
+        ObjectFetcher fetcher)
+    {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(new File(directory, entry.name + DATA_FILE_SUFFIX));
+        } catch (FileNotFoundException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Cached data for " + objectKey + " is no longer available", e);
+            }
+            return null;
+        }
+        StorageObject object = fetcher.newObject();
+        object.setKey(objectKey);
+        object.setBucketName(bucketName);
+        object.replaceAllMetadata(new HashMap<String, Object>(entry.metadata));
+        object.setContentLength(entry.length);
+        object.setMetadataComplete(true);
+        object.setDataInputStream(is);
+        return object;
+    }
+
+    private Entry storeEntry(String name, StorageObject object) throws IOException, ServiceException {
+        File tempFile = new File(directory,
+            name + ".tmp-" + Thread.currentThread().getId());
+        long length = 0;
+        InputStream is = object.getDataInputStream();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            byte[] buffer = new byte[8192];
+            int count = 0;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+                length += count;
+            }
+        } finally {
+            os.close();
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("length", String.valueOf(length));
+        for (Map.Entry<String, Object> metadata: object.getMetadataMap().entrySet()) {
+            if (metadata.getValue() instanceof Date) {
+                properties.setProperty("date." + metadata.getKey(),
+                    String.valueOf(((Date) metadata.getValue()).getTime()));
+            } else if (metadata.getValue() != null) {
+                properties.setProperty("meta." + metadata.getKey(), metadata.getValue().toString());
+            }
+        }
+        Entry entry = newEntry(name, length, properties);
+
+        synchronized (this) {
+            removeEntry(name);
+            File dataFile = new File(directory, name + DATA_FILE_SUFFIX);
+            if (!tempFile.renameTo(dataFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to store cached data in " + dataFile);
+            }
+            OutputStream mos = new BufferedOutputStream(
+                new FileOutputStream(new File(directory, name + METADATA_FILE_SUFFIX)));
+            try {
+                properties.store(mos, "JetS3t object cache entry");
+            } finally {
+                mos.close();
+            }
+            entries.put(name, entry);
+            totalSize += length;
+            evictEntries();
+        }
+        return entry;
+    }
+
+    private Entry newEntry(String name, long length, Properties properties) {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        Enumeration<?> propertyNames = properties.propertyNames();
+        while (propertyNames.hasMoreElements()) {
+            String propertyName = (String) propertyNames.nextElement();
+            if (propertyName.startsWith("meta.")) {
+                metadata.put(propertyName.substring(5), properties.getProperty(propertyName));
+            } else if (propertyName.startsWith("date.")) {
+                metadata.put(propertyName.substring(5),
+                    new Date(Long.parseLong(properties.getProperty(propertyName))));
+            }
+        }
+        Object etag = metadata.get(StorageObject.METADATA_HEADER_ETAG);
+        return new Entry(name, (etag == null ? null : etag.toString()), length, metadata);
+    }
+
+    private synchronized void loadEntries() {
+        File[] metadataFiles = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String fileName) {
+                return fileName.endsWith(METADATA_FILE_SUFFIX);
+            }
+        });
+        if (metadataFiles == null) {
+            return;
+        }
+        // Load entries in least- to most-recently used order
+        Arrays.sort(metadataFiles, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long lm1 = dataFileFor(f1).lastModified();
+                long lm2 = dataFileFor(f2).lastModified();
+                return (lm1 < lm2 ? -1 : (lm1 == lm2 ? 0 : 1));
+            }
+        });
+        for (File metadataFile: metadataFiles) {
+            String fileName = metadataFile.getName();
+            String name = fileName.substring(0, fileName.length() - METADATA_FILE_SUFFIX.length());
+            try {
+                Properties properties = new Properties();
+                InputStream is = new BufferedInputStream(new FileInputStream(metadataFile));
+                try {
+                    properties.load(is);
+                } finally {
+                    is.close();
+                }
+                long length = Long.parseLong(properties.getProperty("length"));
+                if (dataFileFor(metadataFile).length() != length) {
+                    throw new IOException("Cached data has the wrong length");
+                }
+                entries.put(name, newEntry(name, length, properties));
+                totalSize += length;
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Removing unreadable object cache entry " + metadataFile, e);
+                }
+                metadataFile.delete();
+                dataFileFor(metadataFile).delete();
+            }
+        }
+        evictEntries();
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + entries.size() + " cached objects, totalling " + totalSize
+                + " bytes, from " + directory);
+        }
+    }
+
+    private File dataFileFor(File metadataFile) {
+        String fileName = metadataFile.getName();
+        return new File(directory, fileName.substring(0,
+            fileName.length() - METADATA_FILE_SUFFIX.length()) + DATA_FILE_SUFFIX);
+    }
+
+    private void evictEntries() {
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (totalSize > maxSize && iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            deleteFiles(entry);
+            if (log.isDebugEnabled()) {
+                log.debug("Evicted cached object " + entry.name + " of " + entry.length + " bytes");
+            }
+        }
+    }
+
+    private void removeEntry(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            deleteFiles(entry);
+        }
+    }
+
+    private void deleteFiles(Entry entry) {
+        totalSize -= entry.length;
+        new File(directory, entry.name + DATA_FILE_SUFFIX).delete();
+        new File(directory, entry.name + METADATA_FILE_SUFFIX).delete();
+    }
+
+    private void closeQuietly(StorageObject object) {
+        try {
+            object.closeDataInputStream();
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to close data stream of " + object.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Remove the cached copy of an object, if any.
+     */
+    public synchronized void invalidate(String bucketName, String objectKey, String versionId) {
+        removeEntry(getCacheName(bucketName, objectKey, versionId));
+    }
+
+    /**
+     * Remove the cached copy of an object in the given scope, if any.
+     */
+    public synchronized void invalidate(String scope, String bucketName, String objectKey,
+        String versionId)
+    {
+        removeEntry(getCacheName(scope, bucketName, objectKey, versionId));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return
+     * the total size, in bytes, of the cached objects' data.
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return
+     * the number of reads served from the cache, including reads that waited for another
+     * thread's fetch of the same object.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return
+     * the number of reads served from the cache after the service responded that the
+     * cached copy was up-to-date.
+     */
+    public synchronized long getRevalidatedCount() {
+        return revalidatedCount;
+    }
+
+    /**
+     * @return
+     * the number of reads whose data was fetched from the service.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+}
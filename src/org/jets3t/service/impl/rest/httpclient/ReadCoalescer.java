@@ -0,0 +1,389 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * Coalesces identical concurrent reads of an object into a single request (single-flight).
+ * <p>
+ * A thread that reads an object while an identical read by another thread is waiting for
+ * its response joins that read instead of sending its own request. Reads are identical
+ * if they are made with the same credentials and have the same bucket, key, version, byte
+ * range and conditional headers, as given by {@link #getReadName}.
+ * <p>
+ * Once the response arrives the read is closed to new joiners. If no other thread joined,
+ * the response is returned as-is, so uncontended reads are not slowed down. Otherwise the
+ * response data is read in full and fanned out to every thread: data up to
+ * <code>maxBufferSize</code> bytes is kept in memory, larger data is written to a shared
+ * temporary file that is deleted when every thread has closed its data stream.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class ReadCoalescer {
+    private static final Log log = LogFactory.getLog(ReadCoalescer.class);
+
+    /**
+     * Performs a read of an object.
+     */
+    public interface Read {
+        /**
+         * @return
+         * the object, including its data input stream unless the read is a HEAD request.
+         * @throws ServiceException
+         */
+        StorageObject perform() throws ServiceException;
+    }
+
+    /**
+     * A read in progress, and its shared outcome.
+     */
+    private static class Flight {
+        final CountDownLatch latch = new CountDownLatch(1);
+        // Number of joined threads, or -1 once the read is closed to joiners
+        final AtomicInteger joinedCount = new AtomicInteger(0);
+        StorageObject object = null;
+        byte[] data = null;
+        ServiceException error = null;
+        // Guarded by this flight's monitor
+        private SharedFile dataFile = null;
+        private int abandonedCount = 0;
+
+        /**
+         * Share data through a file with the leader and the joined threads that are
+         * still waiting.
+         */
+        synchronized SharedFile shareFile(File file, int joinedCount) {
+            dataFile = new SharedFile(file, joinedCount + 1 - abandonedCount);
+            return dataFile;
+        }
+
+        synchronized SharedFile getDataFile() {
+            return dataFile;
+        }
+
+        /**
+         * Record that a joined thread gave up waiting, so it will not read a shared file.
+         */
+        synchronized void abandon() {
+            if (dataFile != null) {
+                dataFile.release();
+            } else {
+                abandonedCount++;
+            }
+        }
+
+        boolean join() {
+            while (true) {
+                int count = joinedCount.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (joinedCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        int close() {
+            return joinedCount.getAndSet(-1);
+        }
+    }
+
+    /**
+     * Temporary file of data shared by several threads, which is deleted when all their
+     * streams are closed.
+     */
+    private static class SharedFile {
+        final File file;
+        final AtomicInteger openCount;
+
+        SharedFile(File file, int readerCount) {
+            this.file = file;
+            this.openCount = new AtomicInteger(readerCount);
+        }
+
+        InputStream open() throws IOException {
+            return new FilterInputStream(new FileInputStream(file)) {
+                private boolean isClosed = false;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!isClosed) {
+                        isClosed = true;
+                        release();
+                    }
+                }
+            };
+        }
+
+        void release() {
+            if (openCount.decrementAndGet() == 0) {
+                file.delete();
+            }
+        }
+    }
+
+    private final long maxBufferSize;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /**
+     * @param maxBufferSize
+     * the largest response data, in bytes, shared from memory. Larger data is shared
+     * through a temporary file.
+     */
+    public ReadCoalescer(long maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @return
+     * a name that is the same for reads with identical results, and different for reads
+     * made against different endpoints or with different credentials, so no caller receives
+     * data read from another service or with credentials other than its own.
+     *
+     * @param scope
+     * identifies the endpoint and credentials the read is made with, such as
+     * {@link RestStorageService#getObjectDiskCacheScope()}.
+     */
+    public static String getReadName(String scope, boolean headOnly,
+        String bucketName, String objectKey, String versionId,
+        Long byteRangeStart, Long byteRangeEnd,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
+        String[] ifMatchTags, String[] ifNoneMatchTags)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(scope == null ? "" : scope).append('\n')
+            .append(headOnly ? "HEAD" : "GET").append('\n')
+            .append(bucketName).append('\n')
+            .append(objectKey).append('\n')
+            .append(versionId == null ? "" : versionId).append('\n')
+            .append(byteRangeStart == null ? "" : byteRangeStart.toString()).append('-')
+            .append(byteRangeEnd == null ? "" : byteRangeEnd.toString()).append('\n')
+            .append(ifModifiedSince == null ? "" : String.valueOf(ifModifiedSince.getTimeInMillis()))
+            .append('\n')
+            .append(ifUnmodifiedSince == null ? "" : String.valueOf(ifUnmodifiedSince.getTimeInMillis()))
+            .append('\n')
+            .append(ifMatchTags == null ? "" : ServiceUtils.join(ifMatchTags, ",")).append('\n')
+            .append(ifNoneMatchTags == null ? "" : ServiceUtils.join(ifNoneMatchTags, ","));
+        try {
+            // Hash the name so credentials are not kept in memory in plain text
+            return ServiceUtils.toHex(ServiceUtils.hashSHA256(
+                sb.toString().getBytes(Constants.DEFAULT_ENCODING)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to generate read name", e);
+        }
+    }
+
+    /**
+     * Perform a read, or join an identical read already in progress.
+     *
+     * @param name
+     * the read's name from {@link #getReadName}.
+     * @param read
+     * performs the read if there is no identical read in progress.
+     * @return
+     * the object, with its own data input stream if the read has data.
+     * @throws ServiceException
+     * the error of the read, which is shared by all threads that joined it.
+     */
+    public StorageObject read(String name, Read read) throws ServiceException {
+        while (true) {
+            Flight flight = new Flight();
+            Flight existingFlight = flights.putIfAbsent(name, flight);
+            if (existingFlight == null) {
+                return lead(name, flight, read);
+            }
+            if (existingFlight.join()) {
+                coalescedCount.incrementAndGet();
+                return follow(existingFlight);
+            }
+            // The read closed before we could join, so it is about to be removed.
+            // Try again, usually leading a new read.
+            flights.remove(name, existingFlight);
+        }
+    }
+
+    private StorageObject lead(String name, Flight flight, Read read) throws ServiceException {
+        requestCount.incrementAndGet();
+        int joinedCount = 0;
+        try {
+            StorageObject object;
+            try {
+                object = read.perform();
+            } finally {
+                joinedCount = flight.close();
+                flights.remove(name, flight);
+            }
+            if (joinedCount == 0) {
+                // No one to share with, so return the response as-is
+                return object;
+            }
+            return share(flight, object, joinedCount);
+        } catch (ServiceException e) {
+            flight.error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.error = new ServiceException("Unable to read object", e);
+            throw e;
+        } finally {
+            flight.latch.countDown();
+        }
+    }
+
+    private StorageObject share(Flight flight, StorageObject object, int joinedCount)
+        throws ServiceException
+    {
+        if (object.getDataInputStream() == null) {
+            flight.object = object;
+            return (StorageObject) object.clone();
+        }
+        File file = null;
+        boolean isFileShared = false;
+        try {
+            InputStream is = object.getDataInputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            OutputStream os = buffer;
+            try {
+                byte[] bytes = new byte[8192];
+                long length = 0;
+                int count;
+                while ((count = is.read(bytes)) != -1) {
+                    length += count;
+                    if (file == null && length > maxBufferSize) {
+                        // Too large to share from memory, switch to a temporary file
+                        file = File.createTempFile("jets3t-coalesced-", ".tmp");
+                        file.deleteOnExit();
+                        os = new BufferedOutputStream(new FileOutputStream(file));
+                        buffer.writeTo(os);
+                        buffer = null;
+                    }
+                    os.write(bytes, 0, count);
+                }
+            } finally {
+                if (file != null) {
+                    os.close();
+                }
+                object.closeDataInputStream();
+            }
+            object.setDataInputStream(null);
+            flight.object = object;
+            if (file == null) {
+                flight.data = buffer.toByteArray();
+            } else {
+                // The leader and each joined thread read the file
+                flight.shareFile(file, joinedCount);
+                isFileShared = true;
+                if (log.isDebugEnabled()) {
+                    log.debug("Sharing data of " + object.getKey() + " with " + joinedCount
+                        + " threads through temporary file " + file);
+                }
+            }
+            return copyResult(flight);
+        } catch (IOException e) {
+            throw new ServiceException("Unable to read data of object " + object.getKey(), e);
+        } finally {
+            if (file != null && !isFileShared) {
+                file.delete();
+            }
+        }
+    }
+
+    private StorageObject follow(Flight flight) throws ServiceException {
+        try {
+            flight.latch.await();
+        } catch (InterruptedException e) {
+            flight.abandon();
+            throw new ServiceException("Interrupted waiting for shared read", e);
+        }
+        if (flight.error != null) {
+            throw flight.error;
+        }
+        try {
+            return copyResult(flight);
+        } catch (IOException e) {
+            throw new ServiceException(
+                "Unable to read shared data of object " + flight.object.getKey(), e);
+        }
+    }
+
+    private StorageObject copyResult(Flight flight) throws IOException {
+        StorageObject object = (StorageObject) flight.object.clone();
+        SharedFile dataFile = flight.getDataFile();
+        if (flight.data != null) {
+            object.setDataInputStream(new ByteArrayInputStream(flight.data));
+        } else if (dataFile != null) {
+            try {
+                object.setDataInputStream(dataFile.open());
+            } catch (IOException e) {
+                dataFile.release();
+                throw e;
+            }
+        }
+        return object;
+    }
+
+    /**
+     * @return
+     * the number of reads that sent a request.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return
+     * the number of reads that joined an identical read instead of sending a request.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+}
@@ -18,49 +18,234 @@
  */
 package org.jets3t.service.impl.rest.httpclient;
 
-import java.util.HashMap;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Cache to store mappings from a bucket name to a region, used to help with
  * request signing for AWS version 4 requests where you need to know a bucket's
  * region before you can correctly sign requests that operate on that bucket.
+ * <p>
+ * The cache is safe for use by many threads. If it is given a file, mappings
+ * are loaded from that file on construction and written back shortly after
+ * new mappings are learned, so they survive application restarts. Changes made
+ * within {@link #SAVE_DELAY_MS} of each other are written together, so learning
+ * the regions of many buckets does not rewrite the file for every bucket. Call
+ * {@link #flush()} to write pending changes at once, for example before the
+ * application exits.
  *
  * @author jmurty
  */
 public class RegionEndpointCache {
-    private Map<String, String> bucketNameToRegionMap = new HashMap<String, String>();
+    private static final Log log = LogFactory.getLog(RegionEndpointCache.class);
+
+    /**
+     * Delay before changed mappings are written to the persistent file: 1 second.
+     */
+    public static final long SAVE_DELAY_MS = 1000;
+
+    private static final ScheduledExecutorService saveExecutor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RegionEndpointCache-save");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final Map<String, String> bucketNameToRegionMap =
+        new ConcurrentHashMap<String, String>();
+    private final File persistentFile;
+    private final AtomicBoolean isSavePending = new AtomicBoolean(false);
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    public RegionEndpointCache() {
+        this(null);
+    }
+
+    /**
+     * @param persistentFile
+     * file to load mappings from and save them to, or null for an in-memory cache.
+     */
+    public RegionEndpointCache(File persistentFile) {
+        this.persistentFile = persistentFile;
+        if (persistentFile != null && persistentFile.exists()) {
+            load();
+        }
+    }
 
     public String getRegionForBucketName(String bucketName) {
-        if (bucketNameToRegionMap.containsKey(bucketName)) {
-            return bucketNameToRegionMap.get(bucketName);
-        } else {
+        if (bucketName == null) {
             return null;
         }
+        return bucketNameToRegionMap.get(bucketName);
     }
 
     public String putRegionForBucketName(String bucketName, String region) {
         if (bucketName != null && region != null) {
-            return bucketNameToRegionMap.put(bucketName, region);
+            String previousRegion = bucketNameToRegionMap.put(bucketName, region);
+            if (!region.equals(previousRegion)) {
+                scheduleSave();
+            }
+            return previousRegion;
         } else {
             return null;
         }
     }
 
     public boolean containsRegionForBucketName(String bucketName) {
-        return bucketNameToRegionMap.containsKey(bucketName);
+        return bucketName != null && bucketNameToRegionMap.containsKey(bucketName);
     }
 
     public boolean containsRegionForAnyBucketName(String region) {
-        return bucketNameToRegionMap.containsValue(region);
+        return region != null && bucketNameToRegionMap.containsValue(region);
     }
 
     public String removeRegionForBucketName(String bucketName) {
-        return bucketNameToRegionMap.remove(bucketName);
+        if (bucketName == null) {
+            return null;
+        }
+        String previousRegion = bucketNameToRegionMap.remove(bucketName);
+        if (previousRegion != null) {
+            scheduleSave();
+        }
+        return previousRegion;
     }
 
     public void clear() {
         bucketNameToRegionMap.clear();
+        scheduleSave();
+    }
+
+    /**
+     * Write any changed mappings to the persistent file now, instead of waiting
+     * for the scheduled save.
+     */
+    public void flush() {
+        if (persistentFile == null) {
+            return;
+        }
+        saveLock.lock();
+        try {
+            // Clear the flag before reading the mappings, so a change made while
+            // the file is written schedules another save.
+            if (isSavePending.getAndSet(false)) {
+                save();
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * @return
+     * the file mappings are persisted to, or null if the cache is in-memory only.
+     */
+    public File getPersistentFile() {
+        return persistentFile;
+    }
+
+    private void load() {
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(persistentFile);
+            properties.load(is);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to load bucket regions from " + persistentFile, e);
+            }
+            return;
+        } finally {
+            closeQuietly(is);
+        }
+        Enumeration<?> names = properties.propertyNames();
+        while (names.hasMoreElements()) {
+            String bucketName = (String) names.nextElement();
+            bucketNameToRegionMap.put(bucketName, properties.getProperty(bucketName));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + properties.size() + " bucket regions from " + persistentFile);
+        }
+    }
+
+    /**
+     * Schedule a save of the mappings to the persistent file, unless one is already
+     * pending, in which case it will include the latest change.
+     */
+    private void scheduleSave() {
+        if (persistentFile == null) {
+            return;
+        }
+        if (isSavePending.compareAndSet(false, true)) {
+            saveExecutor.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write all mappings to the persistent file, called with the save lock held.
+     * Failure to save the cache is logged but otherwise ignored since the cache
+     * is only an optimisation.
+     */
+    private void save() {
+        Properties properties = new Properties();
+        properties.putAll(bucketNameToRegionMap);
+        File tempFile = new File(persistentFile.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            File parentDirectory = persistentFile.getAbsoluteFile().getParentFile();
+            if (parentDirectory != null) {
+                parentDirectory.mkdirs();
+            }
+            os = new FileOutputStream(tempFile);
+            properties.store(os, "JetS3t bucket name to region mappings");
+            os.close();
+            os = null;
+            // Replace the old file in one step so readers never see partial contents
+            if (!tempFile.renameTo(persistentFile)) {
+                persistentFile.delete();
+                if (!tempFile.renameTo(persistentFile)) {
+                    throw new IOException("Unable to rename " + tempFile + " to " + persistentFile);
+                }
+            }
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to save bucket regions to " + persistentFile, e);
+            }
+        } finally {
+            closeQuietly(os);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
 }
@@ -25,6 +25,8 @@ import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -73,6 +75,7 @@ public class RepeatableRequestEntity implements HttpEntity {
     private static volatile long bytesWrittenThisSecond = 0;
     private static volatile long currentSecondMonitored = 0;
     private static final Random random = new Random();
+    private static final Lock throttleLock = new ReentrantLock();
 
     private boolean isLiveMD5HashingEnabled = true;
     private byte[] dataMD5Hash = null;
@@ -321,43 +324,51 @@ public class RepeatableRequestEntity implements HttpEntity {
             return;
         }
 
-        // All calculations are based on the current second time interval.
-        long currentSecond = System.currentTimeMillis() / 1000;
-        boolean willExceedThrottle;
-
-        // All calculations are synchronized as this method can be called by multiple threads.
-        synchronized (random) {
-            // Check whether a new second has ticked over.
-            boolean isCurrentSecond = currentSecond == currentSecondMonitored;
-
-            if (isCurrentSecond) {
-                // If a new second hasn't ticked over, we must limit the number of extra bytes
-                // written this second. Check whether we can write the requested number of bytes.
-                willExceedThrottle = bytesWrittenThisSecond + bytesToWrite > MAX_BYTES_PER_SECOND;
-
-                if (!willExceedThrottle) {
-                    // We can write bytes without exceeding the limit; keep track of how many
-                    // bytes we are about to write.
-                    bytesWrittenThisSecond += bytesToWrite;
+        while (true) {
+            // All calculations are based on the current second time interval.
+            long currentSecond = System.currentTimeMillis() / 1000;
+            boolean willExceedThrottle;
+
+            // All calculations are locked as this method can be called by multiple threads.
+            // An explicit lock is used, not a synchronized block, so virtual threads do not
+            // pin their carrier threads here.
+            throttleLock.lock();
+            try {
+                // Check whether a new second has ticked over.
+                boolean isCurrentSecond = currentSecond == currentSecondMonitored;
+
+                if (isCurrentSecond) {
+                    // If a new second hasn't ticked over, we must limit the number of extra bytes
+                    // written this second. Check whether we can write the requested number of bytes.
+                    willExceedThrottle = bytesWrittenThisSecond + bytesToWrite > MAX_BYTES_PER_SECOND;
+
+                    if (!willExceedThrottle) {
+                        // We can write bytes without exceeding the limit; keep track of how many
+                        // bytes we are about to write.
+                        bytesWrittenThisSecond += bytesToWrite;
+                    }
+                } else {
+                    // We are in a brand new second, so write some bytes this round to ensure
+                    // we keep the connection alive (S3 won't keep inactive connections open for long)
+                    willExceedThrottle = false;
+                    currentSecondMonitored = currentSecond;
+                    bytesWrittenThisSecond = bytesToWrite;
                 }
-            } else {
-                // We are in a brand new second, so write some bytes this round to ensure
-                // we keep the connection alive (S3 won't keep inactive connections open for long)
-                willExceedThrottle = false;
-                currentSecondMonitored = currentSecond;
-                bytesWrittenThisSecond = bytesToWrite;
+            } finally {
+                throttleLock.unlock();
+            }
+
+            if (!willExceedThrottle) {
+                return;
             }
-        } // End synchronized
 
-        if (willExceedThrottle) {
-            // Sleep for a random interval, then make a recursive call to see if we
-            // will be allowed to write bytes then.
+            // Sleep for a random interval, then check again whether we will be allowed
+            // to write bytes then.
             try {
                 Thread.sleep(random.nextInt(250));
             } catch (InterruptedException e) {
                 throw new IOException("Throttling of transmission was interrupted");
             }
-            throttle(bytesToWrite);
         }
     }
 
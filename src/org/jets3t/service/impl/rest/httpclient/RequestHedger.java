@@ -0,0 +1,501 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+
+/**
+ * Cuts the tail latency of idempotent requests by hedging: if a request has not
+ * completed within a delay, a duplicate request is sent and whichever completes first
+ * is used, while the other is cancelled. The first attempt runs on the caller's thread,
+ * so only hedges use the hedger's threads.
+ * <p>
+ * The hedge delay is either fixed, or learned as a percentile of the latencies of recent
+ * requests so that only the slowest few percent of requests are hedged. The latency
+ * of the first attempt is always the one learned from, even when a hedge wins, so
+ * hedging does not hide the slow requests it is meant to catch. A hedge budget
+ * bounds the extra load: each request earns a fraction of a hedge token and each hedge
+ * spends a whole token, so by default at most about 5% more requests are sent.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class RequestHedger {
+    private static final Log log = LogFactory.getLog(RequestHedger.class);
+
+    /**
+     * Number of recent latencies from which the hedge delay percentile is learned.
+     */
+    private static final int LATENCY_SAMPLE_COUNT = 1000;
+
+    /**
+     * Number of latencies that must be recorded before the learned delay is used.
+     */
+    private static final int MIN_LATENCY_SAMPLE_COUNT = 20;
+
+    /**
+     * Number of latencies recorded between updates of the learned hedge delay.
+     */
+    private static final int LATENCY_SAMPLES_PER_UPDATE = 50;
+
+    /**
+     * One attempt at performing a request.
+     */
+    public interface Attempt<T> {
+        /**
+         * Perform the request, blocking until it completes.
+         */
+        T perform() throws ServiceException;
+
+        /**
+         * Cancel the request, which is either still in progress or complete but unused,
+         * and release any resources it holds.
+         *
+         * @param result
+         * the unused result of a complete request, or null if the request is in progress.
+         */
+        void cancel(T result);
+    }
+
+    /**
+     * Creates an independent attempt at the request each time it is called.
+     */
+    public interface AttemptFactory<T> {
+        Attempt<T> newAttempt();
+    }
+
+    private final long fixedDelayMs;
+    private final double percentile;
+    private final double budgetRatio;
+    private final double budgetMaxTokens;
+    private final ScheduledExecutorService executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long[] latencySamplesNanos = new long[LATENCY_SAMPLE_COUNT];
+    private int latencySampleCount = 0;
+    private int nextLatencySample = 0;
+    private int samplesSinceDelayUpdate = 0;
+    private volatile long learnedDelayMs = -1;
+    private double budgetTokens;
+
+    private final AtomicLong hedgeCount = new AtomicLong(0);
+    private final AtomicLong hedgeWinCount = new AtomicLong(0);
+    private final AtomicLong budgetExhaustedCount = new AtomicLong(0);
+
+    /**
+     * @param fixedDelayMs
+     * how long to wait for a request before hedging it, in milliseconds. If a percentile
+     * is given, this is the delay used until enough latencies are known to learn it.
+     * @param percentile
+     * the percentile of recent latencies, between 0 and 100, after which a request is
+     * hedged; or 0 or less to always use the fixed delay.
+     * @param budgetRatio
+     * the fraction of a hedge token earned by each request, eg 0.05 permits hedging
+     * up to roughly 5% of requests.
+     * @param budgetMaxTokens
+     * the maximum number of hedge tokens that can be saved up, which is also the number
+     * of requests that may be hedged in a burst.
+     * @param executor
+     * the executor that starts and performs hedge attempts after the hedge delay. Its
+     * thread count bounds how many hedges are in progress at once.
+     */
+    public RequestHedger(long fixedDelayMs, double percentile, double budgetRatio,
+        double budgetMaxTokens, ScheduledExecutorService executor)
+    {
+        if (percentile > 100) {
+            throw new IllegalArgumentException("Percentile cannot exceed 100: " + percentile);
+        }
+        this.fixedDelayMs = fixedDelayMs;
+        this.percentile = percentile;
+        this.budgetRatio = budgetRatio;
+        this.budgetMaxTokens = budgetMaxTokens;
+        this.budgetTokens = budgetMaxTokens;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a hedger configured by the JetS3t properties <tt>storage-service.hedge-*</tt>,
+     * which runs hedge attempts on a fixed pool of daemon threads.
+     *
+     * @param properties
+     * @return
+     * a request hedger.
+     */
+    public static RequestHedger getInstance(Jets3tProperties properties) {
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+            properties.getIntProperty("storage-service.hedge-thread-count", 10),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jets3t-request-hedger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        return new RequestHedger(
+            properties.getLongProperty("storage-service.hedge-delay-ms", 100),
+            getDoubleProperty(properties, "storage-service.hedge-percentile", 95),
+            getDoubleProperty(properties, "storage-service.hedge-budget-ratio", 0.05),
+            getDoubleProperty(properties, "storage-service.hedge-budget-max-tokens", 10),
+            executor);
+    }
+
+    private static double getDoubleProperty(Jets3tProperties properties, String name,
+        double defaultValue)
+    {
+        return Double.parseDouble(
+            properties.getStringProperty(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Perform a request, hedging it with a second attempt if the first is slow and the
+     * budget allows. The first attempt runs on the calling thread, and a hedge runs on
+     * one of the hedger's threads. The result of the first attempt to complete is
+     * returned, and the other attempt is cancelled. An attempt that fails without a
+     * response from the service, such as on a connection error, does not win if the
+     * other attempt is still in progress.
+     *
+     * @param factory
+     * creates the attempts at the request, which must be idempotent.
+     * @return
+     * the result of the winning attempt.
+     * @throws ServiceException
+     * the error of the winning attempt, or of the last attempt if all attempts failed.
+     */
+    public <T> T execute(AttemptFactory<T> factory) throws ServiceException {
+        recordRequest();
+        HedgedRequest<T> request = new HedgedRequest<T>(factory);
+        ScheduledFuture<?> hedgeStart = executor.schedule(
+            request, getHedgeDelayMs(), TimeUnit.MILLISECONDS);
+        try {
+            return request.performPrimary();
+        } finally {
+            hedgeStart.cancel(false);
+        }
+    }
+
+    private static ServiceException toServiceException(Throwable t) {
+        if (t instanceof ServiceException) {
+            return (ServiceException) t;
+        }
+        return new ServiceException("Request Error: " + t.getMessage(), t);
+    }
+
+    /**
+     * Decides between the primary attempt, performed by the caller, and a hedge that is
+     * started by running this object on the hedger's executor after the hedge delay.
+     * The first attempt to complete with a result, or with an error response, decides
+     * the outcome; an attempt that fails without a response only decides the outcome
+     * once the other attempt has completed or if there is no other attempt.
+     */
+    private class HedgedRequest<T> implements Runnable {
+        private final AttemptFactory<T> factory;
+        private final TrackedAttempt<T> primary;
+
+        // Guarded by this object's monitor
+        private TrackedAttempt<T> hedge = null;
+        private boolean isPrimaryComplete = false;
+        private boolean isHedgeComplete = false;
+        private boolean isDecided = false;
+        private T hedgeResult = null;
+        private ServiceException hedgeError = null;
+
+        HedgedRequest(AttemptFactory<T> factory) {
+            this.factory = factory;
+            this.primary = new TrackedAttempt<T>(factory.newAttempt());
+        }
+
+        T performPrimary() throws ServiceException {
+            T result = null;
+            ServiceException error = null;
+            try {
+                result = primary.perform();
+            } catch (ServiceException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = toServiceException(e);
+            }
+
+            TrackedAttempt<T> hedgeToCancel = null;
+            boolean isPrimaryWinner = false;
+            synchronized (this) {
+                isPrimaryComplete = true;
+                if (!isDecided && (error == null || error.getResponseCode() > 0
+                    || hedge == null || isHedgeComplete))
+                {
+                    isDecided = true;
+                    isPrimaryWinner = true;
+                    hedgeToCancel = hedge;
+                }
+            }
+            if (isPrimaryWinner) {
+                if (error == null) {
+                    recordLatency(primary.durationNanos);
+                }
+                if (hedgeToCancel != null) {
+                    hedgeToCancel.cancel();
+                }
+                if (error != null) {
+                    throw error;
+                }
+                return result;
+            }
+
+            // The hedge won or will decide the outcome
+            if (result != null) {
+                primary.release(result);
+            }
+            try {
+                synchronized (this) {
+                    while (!isHedgeComplete) {
+                        wait();
+                    }
+                    if (hedgeError == null) {
+                        // The primary was at least this slow before it was abandoned
+                        recordLatency(primary.durationNanos);
+                        return hedgeResult;
+                    }
+                    throw hedgeError;
+                }
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    isDecided = true;
+                    hedgeToCancel = hedge;
+                }
+                hedgeToCancel.cancel();
+                throw new ServiceException("Interrupted while waiting for request", e);
+            }
+        }
+
+        /**
+         * Start the hedge, if the primary is still in progress and the budget allows.
+         */
+        public void run() {
+            TrackedAttempt<T> attempt;
+            synchronized (this) {
+                if (isDecided || isPrimaryComplete || !acquireHedge()) {
+                    return;
+                }
+                attempt = new TrackedAttempt<T>(factory.newAttempt());
+                hedge = attempt;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Hedging request that has not completed after "
+                    + getHedgeDelayMs() + "ms");
+            }
+
+            T result = null;
+            ServiceException error = null;
+            try {
+                result = attempt.perform();
+            } catch (ServiceException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = toServiceException(e);
+            }
+
+            boolean isHedgeWinner = false;
+            synchronized (this) {
+                isHedgeComplete = true;
+                if (!isDecided && (error == null || error.getResponseCode() > 0
+                    || isPrimaryComplete))
+                {
+                    isDecided = true;
+                    isHedgeWinner = true;
+                    hedgeResult = result;
+                    hedgeError = error;
+                }
+                notifyAll();
+            }
+            if (isHedgeWinner) {
+                if (error == null) {
+                    hedgeWinCount.incrementAndGet();
+                }
+                primary.cancel();
+            } else if (result != null) {
+                attempt.release(result);
+            }
+        }
+    }
+
+    /**
+     * Runs an attempt and ensures its resources are released if it is cancelled, even if
+     * it completes after it has been cancelled.
+     */
+    private static class TrackedAttempt<T> {
+        private final Attempt<T> attempt;
+        private final AtomicBoolean isFinished = new AtomicBoolean(false);
+        volatile long durationNanos = 0;
+
+        TrackedAttempt(Attempt<T> attempt) {
+            this.attempt = attempt;
+        }
+
+        T perform() throws ServiceException {
+            long startTime = System.nanoTime();
+            T result;
+            try {
+                result = attempt.perform();
+            } finally {
+                durationNanos = System.nanoTime() - startTime;
+                isFinished.set(true);
+            }
+            return result;
+        }
+
+        /**
+         * Abort the attempt if it is still in progress. A result it goes on to return is
+         * released by the attempt's owner.
+         */
+        void cancel() {
+            if (isFinished.compareAndSet(false, true)) {
+                attempt.cancel(null);
+            }
+        }
+
+        /**
+         * Release the unused result of a completed attempt.
+         */
+        void release(T result) {
+            attempt.cancel(result);
+        }
+    }
+
+    /**
+     * Record a request, which earns a fraction of a hedge token.
+     */
+    public void recordRequest() {
+        lock.lock();
+        try {
+            budgetTokens = Math.min(budgetMaxTokens, budgetTokens + budgetRatio);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Spend a hedge token, if the budget allows a hedge.
+     *
+     * @return
+     * true if a request may be hedged, false if the hedge budget is exhausted.
+     */
+    public boolean acquireHedge() {
+        lock.lock();
+        try {
+            if (budgetTokens < 1) {
+                budgetExhaustedCount.incrementAndGet();
+                return false;
+            }
+            budgetTokens -= 1;
+        } finally {
+            lock.unlock();
+        }
+        hedgeCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record the latency of a completed request, from which the hedge delay is learned.
+     *
+     * @param durationNanos
+     */
+    public void recordLatency(long durationNanos) {
+        lock.lock();
+        try {
+            latencySamplesNanos[nextLatencySample] = durationNanos;
+            nextLatencySample = (nextLatencySample + 1) % LATENCY_SAMPLE_COUNT;
+            if (latencySampleCount < LATENCY_SAMPLE_COUNT) {
+                latencySampleCount++;
+            }
+            samplesSinceDelayUpdate++;
+            if (percentile > 0 && latencySampleCount >= MIN_LATENCY_SAMPLE_COUNT
+                && (learnedDelayMs < 0 || samplesSinceDelayUpdate >= LATENCY_SAMPLES_PER_UPDATE))
+            {
+                learnedDelayMs = calculatePercentileMs();
+                samplesSinceDelayUpdate = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long calculatePercentileMs() {
+        long[] samples = new long[latencySampleCount];
+        System.arraycopy(latencySamplesNanos, 0, samples, 0, latencySampleCount);
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        index = Math.max(0, Math.min(samples.length - 1, index));
+        return Math.max(1, samples[index] / 1000000);
+    }
+
+    /**
+     * @return
+     * how long to wait for a request before hedging it, in milliseconds: the configured
+     * percentile of recent latencies if enough are known, otherwise the fixed delay.
+     */
+    public long getHedgeDelayMs() {
+        long delayMs = learnedDelayMs;
+        return (delayMs < 0 ? fixedDelayMs : delayMs);
+    }
+
+    /**
+     * @return
+     * the number of requests that have been hedged.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * @return
+     * the number of hedged requests for which the hedge completed first.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * @return
+     * the number of slow requests that were not hedged because the budget was exhausted.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    /**
+     * Stop the threads that perform request attempts.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
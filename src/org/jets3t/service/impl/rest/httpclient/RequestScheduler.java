@@ -0,0 +1,463 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.jets3t.service.Jets3tProperties;
+
+/**
+ * Admits requests to a service in order of priority class, so that small interactive
+ * requests are not queued behind a large background job sharing the same connections.
+ * <p>
+ * At most <code>maxConcurrentRequests</code> requests are in progress at once. When more
+ * requests are waiting, slots are shared between the priority classes in proportion to
+ * their weights (weighted fair queuing), so lower classes are slowed but never starved.
+ * Some slots can be reserved for {@link #PRIORITY_INTERACTIVE} requests, so they need not
+ * wait for a long-running bulk transfer to finish.
+ * <p>
+ * The priority of requests is taken from the thread that performs them, as set with
+ * {@link #setCurrentPriority(int)}; requests from threads without a priority are
+ * {@link #PRIORITY_NORMAL}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class RequestScheduler {
+
+    /**
+     * Priority of requests a user is waiting for, such as listing a bucket in a GUI.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    /**
+     * Default priority of requests.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Priority of background transfers, such as a large synchronize job.
+     */
+    public static final int PRIORITY_BULK = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final ThreadLocal<Integer> currentPriority = new ThreadLocal<Integer>();
+
+    // Count of slots held by each thread, so nested requests (such as a bucket location
+    // lookup while signing a request) reuse their thread's slot instead of deadlocking.
+    private final ThreadLocal<int[]> heldCounts = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] {0};
+        }
+    };
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static class Ticket {
+        final Condition granted;
+        boolean isGranted = false;
+
+        Ticket(Condition granted) {
+            this.granted = granted;
+        }
+    }
+
+    private final int maxConcurrentRequests;
+    private final int interactiveReservedRequests;
+    private final double[] weights = new double[PRIORITY_COUNT];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<LinkedList<Ticket>> queues;
+    private final double[] virtualTimes = new double[PRIORITY_COUNT];
+    private final long[] admittedCounts = new long[PRIORITY_COUNT];
+    private double systemVirtualTime = 0;
+    private int activeCount = 0;
+
+    /**
+     * @param maxConcurrentRequests
+     * the most requests that may be in progress at once, normally the size of the
+     * connection pool.
+     * @param interactiveReservedRequests
+     * the number of slots only interactive requests may use.
+     * @param interactiveWeight
+     * the share of slots given to interactive requests when all classes are waiting.
+     * @param normalWeight
+     * the share of slots given to normal requests when all classes are waiting.
+     * @param bulkWeight
+     * the share of slots given to bulk requests when all classes are waiting.
+     */
+    public RequestScheduler(int maxConcurrentRequests, int interactiveReservedRequests,
+        double interactiveWeight, double normalWeight, double bulkWeight)
+    {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException(
+                "Maximum concurrent requests must be at least 1: " + maxConcurrentRequests);
+        }
+        if (interactiveWeight <= 0 || normalWeight <= 0 || bulkWeight <= 0) {
+            throw new IllegalArgumentException("Priority weights must be greater than 0");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.interactiveReservedRequests = Math.max(0,
+            Math.min(interactiveReservedRequests, maxConcurrentRequests - 1));
+        this.weights[PRIORITY_INTERACTIVE] = interactiveWeight;
+        this.weights[PRIORITY_NORMAL] = normalWeight;
+        this.weights[PRIORITY_BULK] = bulkWeight;
+        this.queues = new ArrayList<LinkedList<Ticket>>(PRIORITY_COUNT);
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            this.queues.add(new LinkedList<Ticket>());
+        }
+    }
+
+    /**
+     * Create a scheduler configured by the JetS3t properties
+     * <tt>storage-service.request-scheduler-*</tt>, sized to the
+     * <tt>httpclient.max-connections</tt> connection pool.
+     *
+     * @param properties
+     * @return
+     * a request scheduler.
+     */
+    public static RequestScheduler getInstance(Jets3tProperties properties) {
+        return new RequestScheduler(
+            properties.getIntProperty("httpclient.max-connections", 20),
+            properties.getIntProperty("storage-service.request-scheduler-interactive-reserved", 2),
+            getDoubleProperty(properties, "storage-service.request-scheduler-interactive-weight", 8),
+            getDoubleProperty(properties, "storage-service.request-scheduler-normal-weight", 4),
+            getDoubleProperty(properties, "storage-service.request-scheduler-bulk-weight", 1));
+    }
+
+    private static double getDoubleProperty(Jets3tProperties properties, String name,
+        double defaultValue)
+    {
+        return Double.parseDouble(
+            properties.getStringProperty(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Set the priority class of requests performed by the current thread.
+     *
+     * @param priority
+     * one of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}.
+     */
+    public static void setCurrentPriority(int priority) {
+        checkPriority(priority);
+        currentPriority.set(Integer.valueOf(priority));
+    }
+
+    /**
+     * @return
+     * the priority class of requests performed by the current thread, which is
+     * {@link #PRIORITY_NORMAL} unless set otherwise.
+     */
+    public static int getCurrentPriority() {
+        Integer priority = currentPriority.get();
+        return (priority == null ? PRIORITY_NORMAL : priority.intValue());
+    }
+
+    /**
+     * Reset the priority class of requests performed by the current thread to the default.
+     */
+    public static void clearCurrentPriority() {
+        currentPriority.remove();
+    }
+
+    private static void checkPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Invalid request priority: " + priority);
+        }
+    }
+
+    /**
+     * Wait until a request of the given priority may be performed. Every call that returns
+     * normally must be followed by a call to {@link #release()} once the request is complete.
+     * A thread that already holds a slot is admitted immediately.
+     *
+     * @param priority
+     * @throws InterruptedException
+     * if the thread is interrupted while waiting, in which case no slot is held.
+     */
+    public void acquire(int priority) throws InterruptedException {
+        checkPriority(priority);
+        int[] heldCount = heldCounts.get();
+        if (heldCount[0] == 0) {
+            acquireSlot(priority);
+        }
+        heldCount[0]++;
+    }
+
+    private void acquireSlot(int priority) throws InterruptedException {
+        lock.lock();
+        try {
+            if (queues.get(priority).isEmpty() && isSlotAvailable(priority)) {
+                admit(priority);
+                return;
+            }
+            if (queues.get(priority).isEmpty()) {
+                // A class that starts waiting gets no credit for the time it was idle
+                virtualTimes[priority] = Math.max(virtualTimes[priority], systemVirtualTime);
+            }
+            Ticket ticket = new Ticket(lock.newCondition());
+            queues.get(priority).add(ticket);
+            try {
+                while (!ticket.isGranted) {
+                    ticket.granted.await();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.isGranted) {
+                    // Pass on the slot we were given but cannot use
+                    activeCount--;
+                    grantWaitingRequests();
+                } else {
+                    queues.get(priority).remove(ticket);
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a request with the current thread's priority may be performed.
+     *
+     * @throws InterruptedException
+     * @see #acquire(int)
+     */
+    public void acquire() throws InterruptedException {
+        acquire(getCurrentPriority());
+    }
+
+    /**
+     * Release the slot held by a request that has completed.
+     */
+    public void release() {
+        int[] heldCount = heldCounts.get();
+        if (heldCount[0] == 0) {
+            throw new IllegalStateException("Current thread does not hold a request slot");
+        }
+        if (--heldCount[0] > 0) {
+            return;
+        }
+        freeSlot();
+    }
+
+    /**
+     * Release the current thread's slot once the given response entity has been read or
+     * closed, instead of now, so the slot covers the transfer of a streamed response body.
+     * The slot is detached from the thread, so the entity may be read by any thread.
+     * If the thread's slot is also held by an enclosing request, this is the same as
+     * {@link #release()}.
+     *
+     * @param entity
+     * the response entity whose data has yet to be read.
+     * @return
+     * an entity to use in place of the given one, which releases the slot when its data
+     * is fully read or its content is closed.
+     */
+    public HttpEntity releaseAfterEntity(HttpEntity entity) {
+        int[] heldCount = heldCounts.get();
+        if (heldCount[0] != 1) {
+            release();
+            return entity;
+        }
+        heldCount[0] = 0;
+        return new SlotHoldingEntity(entity);
+    }
+
+    /**
+     * Release the slot held by a response's entity, as returned by
+     * {@link #releaseAfterEntity(HttpEntity)}, if it has not already been released. This
+     * must be called when a response is discarded without its content being read or closed.
+     *
+     * @param response
+     * the response, whose entity may not hold a slot.
+     */
+    public static void releaseSlotHeldBy(HttpResponse response) {
+        if (response != null && response.getEntity() instanceof SlotHoldingEntity) {
+            ((SlotHoldingEntity) response.getEntity()).releaseSlot();
+        }
+    }
+
+    private void freeSlot() {
+        lock.lock();
+        try {
+            activeCount--;
+            grantWaitingRequests();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Response entity that holds a request slot until its content is fully read or closed.
+     */
+    private class SlotHoldingEntity extends HttpEntityWrapper {
+        private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+        SlotHoldingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        void releaseSlot() {
+            if (isReleased.compareAndSet(false, true)) {
+                freeSlot();
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        releaseSlot();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count == -1) {
+                        releaseSlot();
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        releaseSlot();
+                    }
+                }
+            };
+        }
+    }
+
+    private boolean isSlotAvailable(int priority) {
+        if (priority == PRIORITY_INTERACTIVE) {
+            return activeCount < maxConcurrentRequests;
+        }
+        return activeCount < maxConcurrentRequests - interactiveReservedRequests;
+    }
+
+    private void admit(int priority) {
+        activeCount++;
+        admittedCounts[priority]++;
+        double startTime = Math.max(virtualTimes[priority], systemVirtualTime);
+        virtualTimes[priority] = startTime + 1 / weights[priority];
+        systemVirtualTime = Math.max(systemVirtualTime, startTime);
+    }
+
+    /**
+     * Give free slots to waiting requests, choosing the waiting class whose share of
+     * slots is furthest behind its weight.
+     */
+    private void grantWaitingRequests() {
+        while (true) {
+            int chosen = -1;
+            double chosenFinishTime = Double.MAX_VALUE;
+            for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+                if (queues.get(priority).isEmpty() || !isSlotAvailable(priority)) {
+                    continue;
+                }
+                // Waiting classes were brought up to the system virtual time when they
+                // started waiting, so their own virtual time orders them fairly.
+                double finishTime = virtualTimes[priority] + 1 / weights[priority];
+                if (finishTime < chosenFinishTime) {
+                    chosen = priority;
+                    chosenFinishTime = finishTime;
+                }
+            }
+            if (chosen < 0) {
+                return;
+            }
+            Ticket ticket = queues.get(chosen).removeFirst();
+            admit(chosen);
+            ticket.isGranted = true;
+            ticket.granted.signal();
+        }
+    }
+
+    /**
+     * @return
+     * the number of requests in progress.
+     */
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return activeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority
+     * @return
+     * the number of requests of the given priority waiting for a slot.
+     */
+    public int getWaitingCount(int priority) {
+        checkPriority(priority);
+        lock.lock();
+        try {
+            return queues.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority
+     * @return
+     * the total number of requests of the given priority that have been admitted.
+     */
+    public long getAdmittedCount(int priority) {
+        checkPriority(priority);
+        lock.lock();
+        try {
+            return admittedCounts[priority];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+}
@@ -984,6 +984,9 @@ public class RestS3Service extends S3Service {
             throw new S3ServiceException(e);
         } catch (FactoryConfigurationError e) {
             throw new S3ServiceException(e);
+        } finally {
+            // Invalidate after the write; a HEAD begun before this is then not cached
+            invalidateMetadataCache(bucketName, objectKey);
         }
     }
 
@@ -1208,6 +1211,8 @@ public class RestS3Service extends S3Service {
             HttpResponse getMethod = performRestGet(
                 bucketName, null, requestParameters, null, expectedStatusCodes);
             if (getMethod.getStatusLine().getStatusCode() == 404) {
+                // Release the connection, and any request slot held for the response body
+                EntityUtils.consumeQuietly(getMethod.getEntity());
                 return null;
             } else {
                 return getXmlResponseSaxParser().parseLifecycleConfigurationResponse(
@@ -1307,6 +1312,10 @@ public class RestS3Service extends S3Service {
             throw new S3ServiceException(se);
         } catch (UnsupportedEncodingException e) {
             throw new S3ServiceException("Unable to encode XML document", e);
+        } finally {
+            for (ObjectKeyAndVersion nav: objectNameAndVersions) {
+                invalidateMetadataCache(bucketName, nav.getKey());
+            }
         }
     }
 
@@ -19,6 +19,7 @@
 package org.jets3t.service.impl.rest.httpclient;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
@@ -32,6 +33,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -80,6 +85,7 @@ import org.jets3t.service.mx.MxDelegate;
 import org.jets3t.service.security.ProviderCredentials;
 import org.jets3t.service.utils.Mimetypes;
 import org.jets3t.service.utils.RestUtils;
+import org.jets3t.service.utils.RetryPolicy;
 import org.jets3t.service.utils.ServiceUtils;
 import org.jets3t.service.utils.SignatureUtils;
 
@@ -106,6 +112,25 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     protected RegionEndpointCache regionEndpointCache = null;
 
+    protected ObjectDiskCache objectDiskCache = null;
+
+    protected MetadataCache metadataCache = null;
+
+    /**
+     * Reserved metadata cache keys for a bucket's status and location. Object keys
+     * cannot contain a NUL character, so these never match an object.
+     */
+    protected static final String BUCKET_STATUS_CACHE_KEY = "\u0000bucket-status";
+    protected static final String BUCKET_LOCATION_CACHE_KEY = "\u0000bucket-location";
+
+    protected AdaptiveRateLimiter adaptiveRateLimiter = null;
+
+    protected RequestScheduler requestScheduler = null;
+
+    protected RequestHedger requestHedger = null;
+
+    protected ReadCoalescer readCoalescer = null;
+
     protected String defaultStorageClass;
     protected String defaultServerSideEncryptionAlgorithm;
 
@@ -159,7 +184,50 @@ public abstract class RestStorageService extends StorageService implements JetS3
                 "s3service.default-storage-class", null);
         this.defaultServerSideEncryptionAlgorithm = getJetS3tProperties().getStringProperty(
                 "s3service.server-side-encryption", null);
-        this.regionEndpointCache = new RegionEndpointCache();
+        String regionEndpointCacheFile = getJetS3tProperties().getStringProperty(
+                "storage-service.region-endpoint-cache-file", null);
+        this.regionEndpointCache = new RegionEndpointCache(
+                regionEndpointCacheFile == null ? null : new File(regionEndpointCacheFile));
+
+        String objectCacheDirectory = getJetS3tProperties().getStringProperty(
+                "storage-service.object-cache-directory", null);
+        if (objectCacheDirectory != null) {
+            this.objectDiskCache = ObjectDiskCache.getInstance(new File(objectCacheDirectory),
+                    getJetS3tProperties().getLongProperty(
+                            "storage-service.object-cache-max-size", 256 * 1024 * 1024));
+        }
+
+        if (getJetS3tProperties().getBoolProperty(
+                "storage-service.metadata-cache-enabled", false)) {
+            this.metadataCache = new TimedMetadataCache(
+                    getJetS3tProperties().getIntProperty(
+                            "storage-service.metadata-cache-max-entries", 10000),
+                    getJetS3tProperties().getLongProperty(
+                            "storage-service.metadata-cache-ttl-ms", 60000),
+                    getJetS3tProperties().getLongProperty(
+                            "storage-service.metadata-cache-not-found-ttl-ms", 10000));
+        }
+
+        if (getJetS3tProperties().getBoolProperty(
+                "storage-service.adaptive-rate-limit-enabled", false)) {
+            this.adaptiveRateLimiter = AdaptiveRateLimiter.getInstance(getJetS3tProperties());
+        }
+
+        if (getJetS3tProperties().getBoolProperty(
+                "storage-service.request-scheduler-enabled", false)) {
+            this.requestScheduler = RequestScheduler.getInstance(getJetS3tProperties());
+        }
+
+        if (getJetS3tProperties().getBoolProperty(
+                "storage-service.hedge-enabled", false)) {
+            this.requestHedger = RequestHedger.getInstance(getJetS3tProperties());
+        }
+
+        if (getJetS3tProperties().getBoolProperty(
+                "storage-service.read-coalescing-enabled", false)) {
+            this.readCoalescer = new ReadCoalescer(getJetS3tProperties().getLongProperty(
+                    "storage-service.read-coalescing-max-buffer-size", 1048576));
+        }
     }
 
     @Override
@@ -188,12 +256,224 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     protected abstract boolean isTargettingGoogleStorageService();
 
+    /**
+     * @return
+     * the cache through which object GETs are served, or null if GETs are not cached.
+     */
+    public ObjectDiskCache getObjectDiskCache() {
+        return objectDiskCache;
+    }
+
+    /**
+     * @param objectDiskCache
+     * a cache through which complete, unconditional, object GETs are served, or null to
+     * disable caching.
+     */
+    public void setObjectDiskCache(ObjectDiskCache objectDiskCache) {
+        this.objectDiskCache = objectDiskCache;
+    }
+
+    /**
+     * @return
+     * the scope of this service's reads through the object cache, which is shared between
+     * services: the endpoint and the access key of the credentials, so that cached data
+     * fetched from another endpoint or with other credentials is never served.
+     */
+    protected String getObjectDiskCacheScope() {
+        ProviderCredentials credentials = getProviderCredentials();
+        return getEndpoint() + "\n" + (credentials == null ? "" : credentials.getAccessKey());
+    }
+
+    /**
+     * @return
+     * the cache of object details from HEAD requests, or null if details are not cached.
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * @param metadataCache
+     * a cache for the details of objects retrieved by unconditional, unversioned, HEAD
+     * requests, or null to disable caching.
+     */
+    public void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * @return
+     * the limiter that adapts the rate of requests to each bucket or prefix to the rate
+     * the service will accept, or null if request rates are not limited.
+     */
+    public AdaptiveRateLimiter getAdaptiveRateLimiter() {
+        return adaptiveRateLimiter;
+    }
+
+    /**
+     * @param adaptiveRateLimiter
+     * a limiter for the rate of requests to each bucket or prefix, or null to send
+     * requests without delay.
+     */
+    public void setAdaptiveRateLimiter(AdaptiveRateLimiter adaptiveRateLimiter) {
+        this.adaptiveRateLimiter = adaptiveRateLimiter;
+    }
+
+    /**
+     * @return
+     * the scheduler that admits requests by priority class, or null if requests are
+     * performed in the order they are made.
+     */
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * @param requestScheduler
+     * a scheduler that shares connections between requests according to the priority
+     * set with {@link RequestScheduler#setCurrentPriority(int)}, or null to perform
+     * requests in the order they are made.
+     */
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
+    /**
+     * @return
+     * the hedger that duplicates slow object GET and HEAD requests, or null if requests
+     * are not hedged.
+     */
+    public RequestHedger getRequestHedger() {
+        return requestHedger;
+    }
+
+    /**
+     * @param requestHedger
+     * a hedger that sends a duplicate of object GET and HEAD requests that are slow to
+     * respond, or null to send each request once.
+     */
+    public void setRequestHedger(RequestHedger requestHedger) {
+        this.requestHedger = requestHedger;
+    }
+
+    /**
+     * @return
+     * the coalescer that shares identical concurrent object reads, or null if every read
+     * sends its own request.
+     */
+    public ReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    /**
+     * @param readCoalescer
+     * a coalescer that combines identical concurrent object GETs and HEADs into a single
+     * request, or null to send a request for every read.
+     */
+    public void setReadCoalescer(ReadCoalescer readCoalescer) {
+        this.readCoalescer = readCoalescer;
+    }
+
+    /**
+     * @param httpUriRequest
+     * @return
+     * the name of the rate limiter partition for the bucket and object targeted by a
+     * request, or null if the request is not rate limited.
+     */
+    protected String getRateLimitPartitionName(HttpUriRequest httpUriRequest) {
+        URI uri = httpUriRequest.getURI();
+        if(uri.getHost() == null) {
+            return null;
+        }
+        String bucketName = ServiceUtils.findBucketNameInHostOrPath(uri, this.getEndpoint());
+        if(bucketName == null) {
+            return null;
+        }
+        String objectKey = uri.getPath();
+        if(objectKey != null && objectKey.startsWith("/")) {
+            objectKey = objectKey.substring(1);
+        }
+        // Remove bucket name from path-style request paths
+        if(objectKey != null && !uri.getHost().startsWith(bucketName + ".")
+                && objectKey.startsWith(bucketName)) {
+            objectKey = objectKey.substring(bucketName.length());
+            if(objectKey.startsWith("/")) {
+                objectKey = objectKey.substring(1);
+            }
+        }
+        return adaptiveRateLimiter.getPartitionName(bucketName, objectKey);
+    }
+
+    /**
+     * Discard any cached details for an object this service has changed or deleted.
+     *
+     * @param bucketName
+     * @param objectKey
+     */
+    protected void invalidateMetadataCache(String bucketName, String objectKey) {
+        if(metadataCache != null && objectKey != null) {
+            metadataCache.invalidate(bucketName, objectKey);
+        }
+    }
+
+    /**
+     * Look up a bucket's status or location in the metadata cache, where they are kept
+     * under reserved keys that no object can have.
+     *
+     * @param bucketName
+     * @param cacheKey
+     * {@link #BUCKET_STATUS_CACHE_KEY} or {@link #BUCKET_LOCATION_CACHE_KEY}.
+     * @return
+     * the cached value, or null if nothing is cached.
+     */
+    protected String getCachedBucketDetail(String bucketName, String cacheKey) {
+        if(metadataCache == null) {
+            return null;
+        }
+        StorageObject cached = metadataCache.get(bucketName, cacheKey);
+        if(cached == null || cached == MetadataCache.NOT_FOUND) {
+            return null;
+        }
+        return (String) cached.getMetadata(cacheKey);
+    }
+
+    /**
+     * Store a bucket's status or location in the metadata cache.
+     *
+     * @param bucketName
+     * @param cacheKey
+     * {@link #BUCKET_STATUS_CACHE_KEY} or {@link #BUCKET_LOCATION_CACHE_KEY}.
+     * @param value
+     */
+    protected void putCachedBucketDetail(String bucketName, String cacheKey, String value) {
+        if(metadataCache != null && value != null) {
+            StorageObject details = new StorageObject(cacheKey);
+            details.addMetadata(cacheKey, value);
+            metadataCache.put(bucketName, cacheKey, details);
+        }
+    }
+
+    /**
+     * Discard any cached status or location for a bucket this service has created or deleted.
+     *
+     * @param bucketName
+     */
+    protected void invalidateBucketMetadataCache(String bucketName) {
+        if(metadataCache != null) {
+            metadataCache.invalidate(bucketName, BUCKET_STATUS_CACHE_KEY);
+            metadataCache.invalidate(bucketName, BUCKET_LOCATION_CACHE_KEY);
+        }
+    }
+
     /**
      * Shut down all connections managed by the underlying HttpConnectionManager.
      */
     @Override
     protected void shutdownImpl() throws ServiceException {
         shuttingDown = true;
+        if(requestHedger != null) {
+            requestHedger.shutdown();
+        }
         // Will shutdown connection manager
         try {
             httpClient.close();
@@ -272,6 +552,89 @@ public abstract class RestStorageService extends StorageService implements JetS3
         this.regionEndpointCache = rec;
     }
 
+    /**
+     * Look up the locations of many buckets in parallel and record their regions in the
+     * region endpoint cache, so the first requests to buckets outside the default region
+     * do not need to be redirected or retried. Buckets whose region is already cached are
+     * skipped, and buckets whose location cannot be retrieved are logged and ignored.
+     *
+     * @param bucketNames
+     * the buckets whose regions should be cached.
+     * @return
+     * the number of buckets whose region is cached after the look-ups have finished.
+     * @throws ServiceException
+     * if the look-ups are interrupted.
+     */
+    public int prewarmRegionEndpointCache(String[] bucketNames) throws ServiceException {
+        final RegionEndpointCache cache = this.regionEndpointCache;
+        if(cache == null) {
+            return 0;
+        }
+        int threadCount = getJetS3tProperties().getIntProperty(
+                "threaded-service.admin-max-thread-count", 20);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threadCount, bucketNames.length)));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(final String bucketName : bucketNames) {
+                if(cache.containsRegionForBucketName(bucketName)) {
+                    continue;
+                }
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            cache.putRegionForBucketName(bucketName,
+                                    regionForBucketLocation(getBucketLocationImpl(bucketName)));
+                        }
+                        catch(ServiceException e) {
+                            if(log.isWarnEnabled()) {
+                                log.warn("Unable to look up location of bucket " + bucketName, e);
+                            }
+                        }
+                    }
+                }));
+            }
+            for(Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch(InterruptedException e) {
+            throw new ServiceException("Interrupted while looking up bucket locations", e);
+        }
+        catch(ExecutionException e) {
+            throw new ServiceException("Unable to look up bucket locations", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        // Write the learned regions together, rather than waiting for the delayed save
+        cache.flush();
+        int cachedCount = 0;
+        for(String bucketName : bucketNames) {
+            if(cache.containsRegionForBucketName(bucketName)) {
+                cachedCount++;
+            }
+        }
+        return cachedCount;
+    }
+
+    /**
+     * @param location
+     * a bucket location constraint as returned by a bucket location request.
+     * @return
+     * the AWS region name for the location, accounting for the legacy names used for
+     * the US Standard and EU locations.
+     */
+    protected static String regionForBucketLocation(String location) {
+        if(location == null || location.length() == 0 || "US".equals(location)) {
+            return "us-east-1";
+        }
+        else if("EU".equals(location)) {
+            return "eu-west-1";
+        }
+        return location;
+    }
+
     /**
      * @param contentType HTTP Header
      * @return true if the given Content-Type string represents an XML document.
@@ -306,6 +669,8 @@ public abstract class RestStorageService extends StorageService implements JetS3
             HttpContext context) throws ServiceException
     {
         HttpResponse response = null;
+        RequestScheduler scheduler = this.requestScheduler;
+        boolean isScheduled = false;
         try {
             if(log.isDebugEnabled()) {
                 log.debug("Performing " + httpUriRequest.getMethod()
@@ -321,15 +686,39 @@ public abstract class RestStorageService extends StorageService implements JetS3
             int redirectCount = 0;
             int authFailureCount = 0;
             int requestTimeTooSkewedErrorCount = 0;
+            int throttledErrorCount = 0;
+            long retryDelayMs = 0;
 
             // Use retry count limit for all error types
             int retryMaxCount = getJetS3tProperties().getIntProperty("httpclient.retry-max", 5);
 
+            // Each request earns a little of the budget that limits retries of failed requests
+            getRetryPolicy().recordRequest();
+
+            AdaptiveRateLimiter rateLimiter = this.adaptiveRateLimiter;
+            String rateLimitPartitionName = null;
+            if(rateLimiter != null) {
+                rateLimitPartitionName = getRateLimitPartitionName(httpUriRequest);
+            }
+
             String forceRequestSignatureVersion = null;
 
             // Perform the request, and retry on potentially recoverable failures.
             // This eternal loop is broken by an explicit `break` command or by throwing an exception
             while(true) {
+                // Wait our turn if requests to this bucket or prefix are being rate limited,
+                // before signing so the signature is not made stale by the wait
+                if(rateLimiter != null) {
+                    rateLimiter.acquire(rateLimitPartitionName);
+                }
+
+                // Wait for a connection slot according to the priority of this thread's
+                // requests. The slot is held for one attempt, not through retry back-off.
+                if(scheduler != null) {
+                    scheduler.acquire();
+                    isScheduled = true;
+                }
+
                 // Build the authorization string for the method
                 authorizeHttpRequest(httpUriRequest, context, forceRequestSignatureVersion);
 
@@ -373,6 +762,17 @@ public abstract class RestStorageService extends StorageService implements JetS3
                  * remainder of code in this while(true) loop handles errors and retries.
                  */
                 if (didReceiveExpectedResponseCode) {
+                    if(rateLimiter != null) {
+                        rateLimiter.onSuccess(rateLimitPartitionName);
+                    }
+                    // A streamed GET body holds the slot until it is read or closed,
+                    // so the slot covers the whole transfer and not just the headers.
+                    if(isScheduled && "GET".equals(httpUriRequest.getMethod())
+                        && response.getEntity() != null && response.getEntity().isStreaming())
+                    {
+                        isScheduled = false;
+                        response.setEntity(scheduler.releaseAfterEntity(response.getEntity()));
+                    }
                     break;
                 }
 
@@ -440,14 +840,34 @@ public abstract class RestStorageService extends StorageService implements JetS3
                 // Consume and release connection.
                 EntityUtils.consume(response.getEntity());
 
+                // Give up the connection slot before any retry back-off
+                if(isScheduled) {
+                    isScheduled = false;
+                    scheduler.release();
+                }
+
                 /*
                  * For cases where the request may succeed if retried, count the number of attempts
                  * we have made to ensure we don't exceeded the max retry limit.
                  */
+                if (rateLimiter != null) {
+                    if (responseCode == 503 || RetryPolicy.isThrottled(exception)) {
+                        rateLimiter.onThrottled(rateLimitPartitionName);
+                    }
+                }
+
+                // Back off further then retry when the service is throttling requests,
+                // signalled by SlowDown 503 responses or 429 Too Many Requests.
+                if (RetryPolicy.isThrottled(exception)) {
+                    // Throws provided exception if we have exceeded the retry count or budget
+                    retryDelayMs = sleepBeforeRetry(++throttledErrorCount,
+                            getInternalErrorRetryMax(), retryDelayMs, exception);
+                }
                 // Sleep then retry on 5xx Internal Server errors.
-                if (responseCode >= 500) {
-                    // Throws provided exception if we have exceeded the retry count
-                    sleepOnInternalError(++internalErrorCount, exception);
+                else if (responseCode >= 500) {
+                    // Throws provided exception if we have exceeded the retry count or budget
+                    retryDelayMs = sleepBeforeRetry(++internalErrorCount,
+                            getInternalErrorRetryMax(), retryDelayMs, exception);
                 }
                 // Retry after Temporary Redirect 307
                 else if(responseCode == 307) {
@@ -480,11 +900,11 @@ public abstract class RestStorageService extends StorageService implements JetS3
                             + httpUriRequest.getURI().toString());
                     }
                 }
+                // The service timed out waiting for request data, so retry after a brief
+                // pause rather than immediately re-sending to a struggling connection.
                 else if("RequestTimeout".equals(exception.getErrorCode())) {
-                    if(requestTimeoutErrorCount >= retryMaxCount) {
-                        throw exception;
-                    }
-                    requestTimeoutErrorCount++;
+                    retryDelayMs = sleepBeforeRetry(++requestTimeoutErrorCount,
+                            retryMaxCount, retryDelayMs, exception);
                     if(log.isWarnEnabled()) {
                         log.warn(
                             "Retrying connection that failed with RequestTimeout error ("
@@ -512,8 +932,9 @@ public abstract class RestStorageService extends StorageService implements JetS3
                         && "NoSuchKey".equals(exception.getErrorCode())
                         // If PUT operation is trying to copy an existing source object, don't ignore 404
                         && httpUriRequest.getFirstHeader(getRestHeaderPrefix() + "copy-source") == null) {
-                    // Throws provided exception if we have exceeded the retry count
-                    sleepOnInternalError(++internalErrorCount, exception);
+                    // Throws provided exception if we have exceeded the retry count or budget
+                    retryDelayMs = sleepBeforeRetry(++internalErrorCount,
+                            getInternalErrorRetryMax(), retryDelayMs, exception);
                     if(log.isDebugEnabled()) {
                         log.debug("Ignoring NoSuchKey/404 error on PUT to: " + httpUriRequest.getURI().toString());
                     }
@@ -663,6 +1084,11 @@ public abstract class RestStorageService extends StorageService implements JetS3
             }
             throw serviceException;
         }
+        finally {
+            if(isScheduled) {
+                scheduler.release();
+            }
+        }
         return response;
     }
 
@@ -1054,6 +1480,12 @@ public abstract class RestStorageService extends StorageService implements JetS3
                                            Map<String, String> requestParameters, Map<String, Object> requestHeaders)
             throws ServiceException {
 
+        // Object requests are idempotent, so may be hedged
+        if(requestHedger != null && objectKey != null) {
+            return performHedgedRequest(HTTP_METHOD.HEAD, bucketName, objectKey,
+                    requestParameters, requestHeaders, new int[]{200});
+        }
+
         HttpUriRequest httpMethod = setupConnection(
                 HTTP_METHOD.HEAD,
                 bucketName,
@@ -1107,6 +1539,11 @@ public abstract class RestStorageService extends StorageService implements JetS3
         int[] expectedStatusCodes)
         throws ServiceException
     {
+        // Object requests are idempotent, so may be hedged
+        if(requestHedger != null && objectKey != null) {
+            return performHedgedRequest(HTTP_METHOD.GET, bucketName, objectKey,
+                    requestParameters, requestHeaders, expectedStatusCodes);
+        }
 
         HttpUriRequest httpMethod = setupConnection(
                 HTTP_METHOD.GET,
@@ -1118,6 +1555,66 @@ public abstract class RestStorageService extends StorageService implements JetS3
         return performRequest(httpMethod, expectedStatusCodes);
     }
 
+    /**
+     * Performs an idempotent HTTP request using the {@link #performRequest} method, sending
+     * a duplicate request with the {@link RequestHedger} if the response is slow to arrive.
+     * The first response is returned and the other request is aborted, which closes its
+     * connection.
+     *
+     * @param method            the HTTP method, which must be idempotent.
+     * @param bucketName        the bucket's name
+     * @param objectKey         the object's key name, may be null if the operation is on a bucket only.
+     * @param requestParameters parameters to add to the request URL as GET params
+     * @param requestHeaders    headers to add to the request
+     * @param expectedStatusCodes HTTP status response codes expected, anything else causes an exception.
+     * @return The HTTP method object used to perform the request.
+     * @throws org.jets3t.service.ServiceException
+     *
+     */
+    protected HttpResponse performHedgedRequest(final HTTP_METHOD method,
+        final String bucketName, final String objectKey,
+        final Map<String, String> requestParameters, final Map<String, Object> requestHeaders,
+        final int[] expectedStatusCodes)
+        throws ServiceException
+    {
+        // Hedges run on the hedger's threads, so carry over this thread's request priority
+        final int priority = RequestScheduler.getCurrentPriority();
+        final Thread callerThread = Thread.currentThread();
+        return requestHedger.execute(new RequestHedger.AttemptFactory<HttpResponse>() {
+            public RequestHedger.Attempt<HttpResponse> newAttempt() {
+                return new RequestHedger.Attempt<HttpResponse>() {
+                    private volatile HttpUriRequest httpMethod = null;
+
+                    public HttpResponse perform() throws ServiceException {
+                        boolean isHedge = (Thread.currentThread() != callerThread);
+                        if(isHedge) {
+                            RequestScheduler.setCurrentPriority(priority);
+                        }
+                        try {
+                            HttpUriRequest request = setupConnection(
+                                    method, bucketName, objectKey, requestParameters);
+                            addRequestHeadersToConnection(request, requestHeaders);
+                            httpMethod = request;
+                            return performRequest(request, expectedStatusCodes);
+                        } finally {
+                            if(isHedge) {
+                                RequestScheduler.clearCurrentPriority();
+                            }
+                        }
+                    }
+
+                    public void cancel(HttpResponse result) {
+                        HttpUriRequest request = httpMethod;
+                        if(request != null) {
+                            request.abort();
+                        }
+                        RequestScheduler.releaseSlotHeldBy(result);
+                    }
+                };
+            }
+        });
+    }
+
     /**
      * Performs an HTTP PUT request using the {@link #performRequest} method.
      *
@@ -1436,6 +1933,16 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     @Override
     public int checkBucketStatus(String bucketName) throws ServiceException {
+        String cachedStatus = getCachedBucketDetail(bucketName, BUCKET_STATUS_CACHE_KEY);
+        if(cachedStatus != null) {
+            return Integer.parseInt(cachedStatus);
+        }
+        int status = checkBucketStatusImpl(bucketName);
+        putCachedBucketDetail(bucketName, BUCKET_STATUS_CACHE_KEY, String.valueOf(status));
+        return status;
+    }
+
+    protected int checkBucketStatusImpl(String bucketName) throws ServiceException {
         if(log.isDebugEnabled()) {
             log.debug("Checking availability of bucket name: " + bucketName);
         }
@@ -1648,8 +2155,13 @@ public abstract class RestStorageService extends StorageService implements JetS3
         if(versionId != null) {
             requestParameters.put("versionId", versionId);
         }
-        performRestDelete(bucketName, objectKey, requestParameters,
-                multiFactorSerialNumber, multiFactorAuthCode);
+        try {
+            performRestDelete(bucketName, objectKey, requestParameters,
+                    multiFactorSerialNumber, multiFactorAuthCode);
+        }
+        finally {
+            invalidateMetadataCache(bucketName, objectKey);
+        }
     }
 
     protected AccessControlList getObjectAclImpl(String bucketName, String objectKey)
@@ -1765,8 +2277,14 @@ public abstract class RestStorageService extends StorageService implements JetS3
             }
         }
 
-        Map<String, Object> map = createObjectImpl(bucketName, null, null,
-                requestEntity, metadata, null, acl, null, null);
+        Map<String, Object> map;
+        try {
+            map = createObjectImpl(bucketName, null, null,
+                    requestEntity, metadata, null, acl, null, null);
+        }
+        finally {
+            invalidateBucketMetadataCache(bucketName);
+        }
 
         StorageBucket bucket = newBucket();
         bucket.setName(bucketName);
@@ -1778,7 +2296,12 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     @Override
     protected void deleteBucketImpl(String bucketName) throws ServiceException {
-        performRestDelete(bucketName, null, null, null, null);
+        try {
+            performRestDelete(bucketName, null, null, null, null);
+        }
+        finally {
+            invalidateBucketMetadataCache(bucketName);
+        }
     }
 
     protected boolean isLiveMD5HashingRequired(StorageObject object) {
@@ -1794,6 +2317,10 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     protected String getBucketLocationImpl(String bucketName)
             throws ServiceException {
+        String cachedLocation = getCachedBucketDetail(bucketName, BUCKET_LOCATION_CACHE_KEY);
+        if(cachedLocation != null) {
+            return cachedLocation;
+        }
         if(log.isDebugEnabled()) {
             log.debug("Retrieving location of Bucket: " + bucketName);
         }
@@ -1802,9 +2329,11 @@ public abstract class RestStorageService extends StorageService implements JetS3
         requestParameters.put("location", "");
 
         HttpResponse httpResponse = performRestGet(bucketName, null, requestParameters, null);
-        return getXmlResponseSaxParser()
+        String location = getXmlResponseSaxParser()
                 .parseBucketLocationResponse(
                         new HttpMethodReleaseInputStream(httpResponse));
+        putCachedBucketDetail(bucketName, BUCKET_LOCATION_CACHE_KEY, location);
+        return location;
     }
 
     protected StorageBucketLoggingStatus getBucketLoggingStatusImpl(String bucketName)
@@ -1899,11 +2428,17 @@ public abstract class RestStorageService extends StorageService implements JetS3
 
     protected void putObjectWithRequestEntityImpl(String bucketName, StorageObject object,
                                                   HttpEntity requestEntity, Map<String, String> requestParams) throws ServiceException {
-
-        Map<String, Object> map = createObjectImpl(bucketName, object.getKey(),
-                object.getContentType(), requestEntity, object.getMetadataMap(),
-                requestParams, object.getAcl(), object.getStorageClass(),
-                object.getServerSideEncryptionAlgorithm());
+        Map<String, Object> map;
+        try {
+            map = createObjectImpl(bucketName, object.getKey(),
+                    object.getContentType(), requestEntity, object.getMetadataMap(),
+                    requestParams, object.getAcl(), object.getStorageClass(),
+                    object.getServerSideEncryptionAlgorithm());
+        }
+        finally {
+            // Invalidate after the write; a HEAD begun before this is then not cached
+            invalidateMetadataCache(bucketName, object.getKey());
+        }
 
         try {
             object.closeDataInputStream();
@@ -2142,16 +2677,24 @@ public abstract class RestStorageService extends StorageService implements JetS3
             }
         }
 
-        HttpResponseAndByteCount methodAndByteCount = performRestPut(
-                destinationBucketName, destinationObjectKey, metadata, null, null, false);
+        HttpResponseAndByteCount methodAndByteCount;
+        CopyObjectResultHandler handler;
+        try {
+            methodAndByteCount = performRestPut(
+                    destinationBucketName, destinationObjectKey, metadata, null, null, false);
 
-        CopyObjectResultHandler handler = getXmlResponseSaxParser()
+            handler = getXmlResponseSaxParser()
                 .parseCopyObjectResponse(
                         new HttpMethodReleaseInputStream(methodAndByteCount.getHttpResponse()));
 
-        // Release HTTP connection manually. This should already have been done by the
-        // HttpMethodReleaseInputStream class, but you can never be too sure...
-        releaseConnection(methodAndByteCount.getHttpResponse());
+            // Release HTTP connection manually. This should already have been done by the
+            // HttpMethodReleaseInputStream class, but you can never be too sure...
+            releaseConnection(methodAndByteCount.getHttpResponse());
+        }
+        finally {
+            // Invalidate after the write; a HEAD begun before this is then not cached
+            invalidateMetadataCache(destinationBucketName, destinationObjectKey);
+        }
 
         if(handler.isErrorResponse()) {
             throw new ServiceException(
@@ -2204,19 +2747,100 @@ public abstract class RestStorageService extends StorageService implements JetS3
                                                  Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
                                                  String[] ifMatchTags, String[] ifNoneMatchTags, String versionId)
             throws ServiceException {
-        return getObjectImpl(true, bucketName, objectKey,
-                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, null, null,
-                versionId);
+        // Only the current version's details from unconditional requests are cached
+        boolean isCacheable = metadataCache != null && ifModifiedSince == null
+                && ifUnmodifiedSince == null && ifMatchTags == null && ifNoneMatchTags == null
+                && versionId == null;
+        if(isCacheable) {
+            StorageObject cachedDetails = metadataCache.get(bucketName, objectKey);
+            if(cachedDetails == MetadataCache.NOT_FOUND) {
+                ServiceException e = new ServiceException(
+                        "Object " + objectKey + " in bucket " + bucketName
+                        + " was recently found not to exist");
+                e.setResponseCode(404);
+                throw e;
+            }
+            else if(cachedDetails != null) {
+                return (StorageObject) cachedDetails.clone();
+            }
+        }
+
+        // Taken before the request, so details are not cached if the object changes meanwhile
+        long generation = isCacheable ? metadataCache.getGeneration(bucketName, objectKey) : 0;
+        StorageObject object;
+        try {
+            object = getObjectImplCoalesced(true, bucketName, objectKey,
+                    ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, null, null,
+                    versionId);
+        }
+        catch(ServiceException e) {
+            if(isCacheable && e.getResponseCode() == 404) {
+                metadataCache.put(bucketName, objectKey, MetadataCache.NOT_FOUND, generation);
+            }
+            throw e;
+        }
+        if(isCacheable) {
+            metadataCache.put(bucketName, objectKey, (StorageObject) object.clone(),
+                    generation);
+        }
+        return object;
     }
 
     @Override
-    protected StorageObject getObjectImpl(String bucketName, String objectKey,
+    protected StorageObject getObjectImpl(final String bucketName, final String objectKey,
                                           Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
                                           String[] ifMatchTags, String[] ifNoneMatchTags,
-                                          Long byteRangeStart, Long byteRangeEnd, String versionId)
+                                          Long byteRangeStart, Long byteRangeEnd, final String versionId)
+            throws ServiceException {
+        // Serve complete, unconditional, reads through the object cache if there is one
+        if(objectDiskCache != null && ifModifiedSince == null && ifUnmodifiedSince == null
+                && ifMatchTags == null && ifNoneMatchTags == null
+                && byteRangeStart == null && byteRangeEnd == null) {
+            return objectDiskCache.getObject(getObjectDiskCacheScope(),
+                    bucketName, objectKey, versionId,
+                    new ObjectDiskCache.ObjectFetcher() {
+                public StorageObject fetchObject(String[] cachedETags) throws ServiceException {
+                    return getObjectImpl(false, bucketName, objectKey, null, null, null,
+                            cachedETags, null, null, versionId);
+                }
+
+                public StorageObject newObject() {
+                    return RestStorageService.this.newObject();
+                }
+            });
+        }
+        return getObjectImplCoalesced(false, bucketName, objectKey, ifModifiedSince,
+                ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, byteRangeStart, byteRangeEnd,
+                versionId);
+    }
+
+    /**
+     * Perform an object GET or HEAD, joining an identical read already in progress if
+     * reads are coalesced by a {@link ReadCoalescer}.
+     */
+    private StorageObject getObjectImplCoalesced(final boolean headOnly,
+            final String bucketName, final String objectKey,
+            final Calendar ifModifiedSince, final Calendar ifUnmodifiedSince,
+            final String[] ifMatchTags, final String[] ifNoneMatchTags,
+            final Long byteRangeStart, final Long byteRangeEnd, final String versionId)
             throws ServiceException {
-        return getObjectImpl(false, bucketName, objectKey, ifModifiedSince, ifUnmodifiedSince,
-                ifMatchTags, ifNoneMatchTags, byteRangeStart, byteRangeEnd, versionId);
+        ReadCoalescer coalescer = this.readCoalescer;
+        if(coalescer == null) {
+            return getObjectImpl(headOnly, bucketName, objectKey, ifModifiedSince,
+                    ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, byteRangeStart,
+                    byteRangeEnd, versionId);
+        }
+        // Only reads made against the same endpoint with the same credentials may share a response
+        String readName = ReadCoalescer.getReadName(getObjectDiskCacheScope(), headOnly,
+                bucketName, objectKey, versionId, byteRangeStart, byteRangeEnd,
+                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags);
+        return coalescer.read(readName, new ReadCoalescer.Read() {
+            public StorageObject perform() throws ServiceException {
+                return getObjectImpl(headOnly, bucketName, objectKey, ifModifiedSince,
+                        ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags, byteRangeStart,
+                        byteRangeEnd, versionId);
+            }
+        });
     }
 
     private StorageObject getObjectImpl(boolean headOnly, String bucketName, String objectKey,
@@ -0,0 +1,281 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.jets3t.service.Jets3tProperties;
+
+/**
+ * DNS resolver that spreads new connections to a host across all of its addresses.
+ * <p>
+ * HttpClient connects to the first address a resolver returns, so with a plain resolver
+ * every pooled connection to an endpoint tends to go to the same front-end server. This
+ * resolver looks up all the A and AAAA records of a host, keeps them for a time-to-live
+ * period, and returns them in round-robin order so each new connection starts with the
+ * next address.
+ * <p>
+ * Addresses that fail to accept connections are ejected for a period: they are moved to
+ * the end of the list, so they are only tried if the other addresses fail too. To report
+ * connection failures, wrap the connection manager's socket factories with
+ * {@link #wrapSocketFactory(ConnectionSocketFactory)}.
+ * <p>
+ * Lookups are performed by a delegate resolver, by default the system resolver. Note that
+ * the JVM's own DNS cache, see <tt>networkaddress.cache.ttl</tt>, still applies beneath it.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class RoundRobinDnsResolver implements DnsResolver {
+    private static final Log log = LogFactory.getLog(RoundRobinDnsResolver.class);
+
+    /**
+     * Resolved addresses of a host.
+     */
+    private static class HostAddresses {
+        final InetAddress[] addresses;
+        final long expiryTimeMs;
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+
+        HostAddresses(InetAddress[] addresses, long expiryTimeMs) {
+            this.addresses = addresses;
+            this.expiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    private final DnsResolver delegate;
+    private final long ttlMs;
+    private final long ejectionMs;
+
+    private final ConcurrentMap<String, HostAddresses> hosts =
+        new ConcurrentHashMap<String, HostAddresses>();
+    private final ConcurrentMap<InetAddress, Long> ejectedUntilMs =
+        new ConcurrentHashMap<InetAddress, Long>();
+
+    /**
+     * @param delegate
+     * the resolver that looks up the addresses of hosts.
+     * @param ttlMs
+     * how long the addresses of a host are used before they are looked up again.
+     * @param ejectionMs
+     * how long an address that failed to accept a connection is avoided.
+     */
+    public RoundRobinDnsResolver(DnsResolver delegate, long ttlMs, long ejectionMs) {
+        this.delegate = delegate;
+        this.ttlMs = ttlMs;
+        this.ejectionMs = ejectionMs;
+    }
+
+    /**
+     * Create a resolver configured by the JetS3t properties
+     * <tt>storage-service.dns-round-robin-*</tt>, which looks up addresses with the
+     * system resolver.
+     *
+     * @param properties
+     * @return
+     * a round-robin DNS resolver.
+     */
+    public static RoundRobinDnsResolver getInstance(Jets3tProperties properties) {
+        return new RoundRobinDnsResolver(SystemDefaultDnsResolver.INSTANCE,
+            properties.getLongProperty("storage-service.dns-round-robin-ttl-ms", 60000),
+            properties.getLongProperty("storage-service.dns-round-robin-ejection-ms", 30000));
+    }
+
+    /**
+     * @return
+     * the current time in milliseconds, which subclasses may override for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @param host
+     * @return
+     * all addresses of the host, starting with the next address in round-robin order and
+     * with any ejected addresses last.
+     * @throws UnknownHostException
+     * if the host cannot be resolved and no previously resolved addresses are known.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        HostAddresses hostAddresses = getHostAddresses(host);
+        InetAddress[] addresses = hostAddresses.addresses;
+        int count = addresses.length;
+        if (count <= 1) {
+            return addresses.clone();
+        }
+        int start = (hostAddresses.nextIndex.getAndIncrement() & Integer.MAX_VALUE) % count;
+
+        long now = currentTimeMillis();
+        List<InetAddress> available = new ArrayList<InetAddress>(count);
+        List<InetAddress> ejected = new ArrayList<InetAddress>();
+        for (int i = 0; i < count; i++) {
+            InetAddress address = addresses[(start + i) % count];
+            if (isEjected(address, now)) {
+                ejected.add(address);
+            } else {
+                available.add(address);
+            }
+        }
+        available.addAll(ejected);
+        return available.toArray(new InetAddress[count]);
+    }
+
+    private HostAddresses getHostAddresses(String host) throws UnknownHostException {
+        long now = currentTimeMillis();
+        HostAddresses hostAddresses = hosts.get(host);
+        if (hostAddresses != null && now < hostAddresses.expiryTimeMs) {
+            return hostAddresses;
+        }
+        InetAddress[] addresses;
+        try {
+            addresses = delegate.resolve(host);
+        } catch (UnknownHostException e) {
+            if (hostAddresses == null) {
+                throw e;
+            }
+            // Keep using the addresses we know until the host can be resolved again
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to refresh addresses of " + host
+                    + ", continuing to use " + Arrays.asList(hostAddresses.addresses), e);
+            }
+            addresses = hostAddresses.addresses;
+        }
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        HostAddresses refreshed = new HostAddresses(addresses, now + ttlMs);
+        hosts.put(host, refreshed);
+        if (log.isDebugEnabled()) {
+            log.debug("Resolved " + host + " to " + Arrays.asList(addresses));
+        }
+        return refreshed;
+    }
+
+    private boolean isEjected(InetAddress address, long now) {
+        Long untilMs = ejectedUntilMs.get(address);
+        if (untilMs == null) {
+            return false;
+        }
+        if (now >= untilMs.longValue()) {
+            ejectedUntilMs.remove(address, untilMs);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Avoid an address for a while, because it failed to accept a connection.
+     *
+     * @param address
+     */
+    public void reportFailure(InetAddress address) {
+        ejectedUntilMs.put(address, Long.valueOf(currentTimeMillis() + ejectionMs));
+        if (log.isDebugEnabled()) {
+            log.debug("Ejecting address " + address + " for " + ejectionMs + "ms after failure");
+        }
+    }
+
+    /**
+     * @param address
+     * @return
+     * true if the address is currently being avoided because of a failure.
+     */
+    public boolean isEjected(InetAddress address) {
+        return isEjected(address, currentTimeMillis());
+    }
+
+    /**
+     * @param factory
+     * a socket factory used by a connection manager that resolves hosts with this resolver.
+     * @return
+     * a socket factory that reports addresses that fail to accept connections to this
+     * resolver, and is otherwise the same as the given factory.
+     */
+    public ConnectionSocketFactory wrapSocketFactory(ConnectionSocketFactory factory) {
+        if (factory instanceof LayeredConnectionSocketFactory) {
+            return new ReportingLayeredSocketFactory((LayeredConnectionSocketFactory) factory);
+        }
+        return new ReportingSocketFactory(factory);
+    }
+
+    private class ReportingSocketFactory implements ConnectionSocketFactory {
+        private final ConnectionSocketFactory factory;
+
+        ReportingSocketFactory(ConnectionSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        public Socket createSocket(HttpContext context) throws IOException {
+            return factory.createSocket(context);
+        }
+
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+            InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+            HttpContext context) throws IOException
+        {
+            try {
+                return factory.connectSocket(connectTimeout, socket, host, remoteAddress,
+                    localAddress, context);
+            } catch (IOException e) {
+                if (remoteAddress != null && remoteAddress.getAddress() != null) {
+                    reportFailure(remoteAddress.getAddress());
+                }
+                throw e;
+            }
+        }
+    }
+
+    private class ReportingLayeredSocketFactory extends ReportingSocketFactory
+        implements LayeredConnectionSocketFactory
+    {
+        private final LayeredConnectionSocketFactory factory;
+
+        ReportingLayeredSocketFactory(LayeredConnectionSocketFactory factory) {
+            super(factory);
+            this.factory = factory;
+        }
+
+        public Socket createLayeredSocket(Socket socket, String target, int port,
+            HttpContext context) throws IOException
+        {
+            return factory.createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+}
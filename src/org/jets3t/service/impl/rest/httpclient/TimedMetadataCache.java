@@ -0,0 +1,202 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Default {@link MetadataCache}, which holds up to a fixed number of entries in
+ * memory and discards the least recently used entries beyond that limit. Entries
+ * expire after a time-to-live, with a separate (usually shorter) time-to-live for
+ * objects known not to exist.
+ * <p>
+ * Each invalidation is numbered, and the numbers of recent invalidations are remembered
+ * for as many objects as the cache holds entries. Details are cached with a generation
+ * only if the object has not been invalidated since then; if an object's invalidation has
+ * been forgotten, the most recent forgotten invalidation is assumed.
+ *
+ * @author James Murty
+ */
+public class TimedMetadataCache implements MetadataCache {
+
+    private static class CachedDetails {
+        final StorageObject details;
+        final long expiryTime;
+
+        CachedDetails(StorageObject details, long expiryTime) {
+            this.details = details;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeToLiveMs;
+    private final long notFoundTimeToLiveMs;
+    private final Map<String, CachedDetails> entries;
+    private final Map<String, Long> invalidations;
+    private long generation = 0;
+    private long forgottenGeneration = 0;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * @param maxEntries
+     * the maximum number of objects to cache details for.
+     * @param timeToLiveMs
+     * how long the details of an object remain valid, in milliseconds.
+     * @param notFoundTimeToLiveMs
+     * how long an object is remembered as not existing, in milliseconds. If 0 or less,
+     * missing objects are not cached.
+     */
+    public TimedMetadataCache(final int maxEntries, long timeToLiveMs,
+        long notFoundTimeToLiveMs)
+    {
+        this.maxEntries = maxEntries;
+        this.timeToLiveMs = timeToLiveMs;
+        this.notFoundTimeToLiveMs = notFoundTimeToLiveMs;
+        this.entries = new LinkedHashMap<String, CachedDetails>(16, 0.75f, true) {
+            private static final long serialVersionUID = 6285361497826203461L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDetails> eldest) {
+                return size() > TimedMetadataCache.this.maxEntries;
+            }
+        };
+        this.invalidations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2613724106271395042L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > Math.max(TimedMetadataCache.this.maxEntries, 0)) {
+                    forgottenGeneration = Math.max(forgottenGeneration, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public StorageObject get(String bucketName, String objectKey) {
+        String cacheKey = getCacheKey(bucketName, objectKey);
+        synchronized (entries) {
+            CachedDetails entry = entries.get(cacheKey);
+            if (entry != null && entry.expiryTime <= currentTimeMillis()) {
+                entries.remove(cacheKey);
+                entry = null;
+            }
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry.details;
+        }
+    }
+
+    public void put(String bucketName, String objectKey, StorageObject details) {
+        long timeToLive = (details == NOT_FOUND ? notFoundTimeToLiveMs : timeToLiveMs);
+        if (timeToLive <= 0 || maxEntries <= 0) {
+            return;
+        }
+        CachedDetails entry = new CachedDetails(details, currentTimeMillis() + timeToLive);
+        synchronized (entries) {
+            entries.put(getCacheKey(bucketName, objectKey), entry);
+        }
+    }
+
+    public long getGeneration(String bucketName, String objectKey) {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    public void put(String bucketName, String objectKey, StorageObject details,
+        long generation)
+    {
+        long timeToLive = (details == NOT_FOUND ? notFoundTimeToLiveMs : timeToLiveMs);
+        if (timeToLive <= 0 || maxEntries <= 0) {
+            return;
+        }
+        CachedDetails entry = new CachedDetails(details, currentTimeMillis() + timeToLive);
+        String cacheKey = getCacheKey(bucketName, objectKey);
+        synchronized (entries) {
+            Long invalidated = invalidations.get(cacheKey);
+            long lastInvalidated = (invalidated != null
+                ? invalidated.longValue() : forgottenGeneration);
+            if (lastInvalidated > generation) {
+                // The object changed while its details were being retrieved
+                return;
+            }
+            entries.put(cacheKey, entry);
+        }
+    }
+
+    public void invalidate(String bucketName, String objectKey) {
+        String cacheKey = getCacheKey(bucketName, objectKey);
+        synchronized (entries) {
+            entries.remove(cacheKey);
+            invalidations.put(cacheKey, ++generation);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            invalidations.clear();
+            forgottenGeneration = ++generation;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return
+     * the number of entries in the cache, including any that have expired but
+     * not yet been discarded.
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return
+     * the current time in milliseconds, overridable for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private String getCacheKey(String bucketName, String objectKey) {
+        return bucketName + "/" + objectKey;
+    }
+
+}
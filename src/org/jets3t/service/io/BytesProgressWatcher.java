@@ -20,6 +20,8 @@ package org.jets3t.service.io;
 
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Utility class that tracks the number of bytes transferred from a source, and uses this
@@ -49,7 +51,9 @@ public class BytesProgressWatcher {
 
     private final Map<Long, Long> historyOfBytesBySecond = new TreeMap<Long, Long>();
     private long earliestHistorySecond = Long.MAX_VALUE;
-    private Object synchronizeObject = new Object();
+    // An explicit lock rather than synchronized blocks, so virtual threads that update
+    // progress do not pin their carrier threads.
+    private final Lock lock = new ReentrantLock();
 
     /**
      * Construct a watcher for a transfer that will involve a given number of bytes.
@@ -84,7 +88,8 @@ public class BytesProgressWatcher {
      *
      */
     public void resetWatcher() {
-        synchronized(synchronizeObject) {
+        lock.lock();
+        try {
             startTimeCurrentTransferMS = System.currentTimeMillis();
             if (startTimeAllTransfersMS == -1) {
                 startTimeAllTransfersMS = startTimeCurrentTransferMS;
@@ -92,6 +97,8 @@ public class BytesProgressWatcher {
             endTimeCurrentTransferMS = -1;
             totalBytesInCurrentTransfer = 0;
             isStarted = true;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -107,7 +114,8 @@ public class BytesProgressWatcher {
             resetWatcher();
         }
 
-        synchronized(synchronizeObject) {
+        lock.lock();
+        try {
             // Store the total byte count for the current transfer, and for all transfers.
             totalBytesInCurrentTransfer += byteCount;
             totalBytesInAllTransfers += byteCount;
@@ -140,6 +148,8 @@ public class BytesProgressWatcher {
                 removedFromHistory(pSec, bytes);
             }
             earliestHistorySecond = removeHistoryBeforeSecond;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -156,7 +166,8 @@ public class BytesProgressWatcher {
      * Clears the history of transfer progress data.
      */
     protected void clearHistory() {
-        synchronized(synchronizeObject) {
+        lock.lock();
+        try {
             // empty history
             Long currentSecond = new Long(System.currentTimeMillis() / 1000);
             for (long sec = earliestHistorySecond; sec <= currentSecond; sec++) {
@@ -164,6 +175,8 @@ public class BytesProgressWatcher {
                 Long bytes = historyOfBytesBySecond.remove(pSec);
                 removedFromHistory(pSec, bytes);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -0,0 +1,76 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format that can be applied to object data on upload and removed again
+ * on download. The codec's name is recorded in an object's
+ * {@link org.jets3t.service.Constants#METADATA_JETS3T_COMPRESSED} metadata item, so the
+ * matching codec can be chosen automatically when the object is downloaded.
+ * <p>
+ * GZip is built in. Other codecs, such as zstd or lz4 implementations backed by a native
+ * library, are made available by naming their implementation classes in the JetS3t
+ * property <tt>compression.codec-classes</tt>, or by registering them with
+ * {@link org.jets3t.service.utils.CompressionCodecs#registerCodec(CompressionCodec)}.
+ * Implementations must have a public no-argument constructor to be loaded by name.
+ *
+ * @author James Murty
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return
+     * the unique name of this codec, such as "gzip", recorded in object metadata.
+     */
+    String getName();
+
+    /**
+     * @return
+     * the HTTP Content-Encoding value for data compressed by this codec, or null if the
+     * Content-Encoding header should not be set. Only encodings that HTTP clients can
+     * decode, such as "gzip", should be returned.
+     */
+    String getContentEncoding();
+
+    /**
+     * @param inputStream
+     * a stream of original data.
+     * @param level
+     * the codec-specific compression level, or -1 for the codec's default level.
+     * @return
+     * a stream that returns the compressed form of the original data.
+     * @throws IOException
+     */
+    InputStream compress(InputStream inputStream, int level) throws IOException;
+
+    /**
+     * @param outputStream
+     * the stream to which decompressed data will be written.
+     * @return
+     * a stream that accepts compressed data and writes its decompressed form to the given
+     * output stream.
+     * @throws IOException
+     */
+    OutputStream decompress(OutputStream outputStream) throws IOException;
+
+}
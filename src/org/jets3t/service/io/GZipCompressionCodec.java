@@ -0,0 +1,72 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The built-in GZip compression codec, which compresses data with
+ * {@link GZipDeflatingInputStream} or, when more than one thread is allowed,
+ * {@link ParallelGZipDeflatingInputStream}. Compression levels are those of
+ * {@link java.util.zip.Deflater}, 1 (fastest) to 9 (best compression).
+ *
+ * @author James Murty
+ */
+public class GZipCompressionCodec implements CompressionCodec {
+
+    public static final String NAME = "gzip";
+
+    private int threadCount = 1;
+
+    public GZipCompressionCodec() {
+    }
+
+    /**
+     * @param threadCount
+     * the number of threads used to compress data, values above 1 produce multi-member
+     * GZip data.
+     */
+    public GZipCompressionCodec(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public String getContentEncoding() {
+        return NAME;
+    }
+
+    public InputStream compress(InputStream inputStream, int level) throws IOException {
+        if (threadCount > 1) {
+            return new ParallelGZipDeflatingInputStream(inputStream, threadCount,
+                ParallelGZipDeflatingInputStream.DEFAULT_BLOCK_SIZE, level);
+        } else {
+            return new GZipDeflatingInputStream(inputStream, level);
+        }
+    }
+
+    public OutputStream decompress(OutputStream outputStream) throws IOException {
+        return new GZipInflatingOutputStream(outputStream);
+    }
+
+}
@@ -32,7 +32,7 @@ import java.util.zip.Deflater;
 public class GZipDeflatingInputStream extends InputStream implements InputStreamWrapper {
     private int BUFFER_SIZE = 8192;
 
-    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    Deflater deflater = null;
     private InputStream inputStream = null;
     private byte[] buffer = new byte[BUFFER_SIZE];
     private byte[] deflatedBytes = new byte[BUFFER_SIZE];
@@ -44,7 +44,18 @@ public class GZipDeflatingInputStream extends InputStream implements InputStream
     boolean EOFTail = false;
 
     public GZipDeflatingInputStream(InputStream inputStream) throws IOException {
+        this(inputStream, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param inputStream
+     * @param level
+     * the {@link Deflater} compression level, or -1 for the default level.
+     * @throws IOException
+     */
+    public GZipDeflatingInputStream(InputStream inputStream, int level) throws IOException {
         this.inputStream = inputStream;
+        this.deflater = new Deflater(level, true);
         crc.reset();
 
         // Write the GZip Header.
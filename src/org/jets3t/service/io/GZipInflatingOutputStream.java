@@ -28,6 +28,9 @@ import java.util.zip.Inflater;
 /**
  * Output stream that wraps another stream and inflates (de-compresses) the underlying stream's
  * data on-the-fly. This class provides only a basic implementation of GZip functionality.
+ * <p>
+ * Data made up of several concatenated GZip members, such as the output of
+ * {@link ParallelGZipDeflatingInputStream}, is inflated as a single stream.
  *
  * @author James Murty
  */
@@ -46,6 +49,13 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
     private final static int FNAME    = 8;    // File name
     private final static int FCOMMENT    = 16;    // File comment
 
+    /*
+     * Parsing states for each GZip member.
+     */
+    private final static int STATE_HEADER = 0;
+    private final static int STATE_DATA = 1;
+    private final static int STATE_TRAILER = 2;
+
     private int BUFFER_SIZE = 8192;
 
     private Inflater inflater = new Inflater(true);
@@ -53,23 +63,22 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
     private OutputStream outputStream = null;
     private byte[] inflatedBytes = new byte[BUFFER_SIZE];
 
+    private int state = STATE_HEADER;
+    private int membersCompleted = 0;
+    private long memberBytesInflated = 0;
+
     // Variables used to parse Header.
-    private boolean finishedHeader = false;
     private byte[] headerBytes = new byte[156];
-    private int expectedHeaderLength = 0;
     private int headerLength = 0;
-    private int headerOffset = 0;
-    private int headerFlag = 0;
 
     // Variables used to parse tail.
-    private byte[] trailerBytes = new byte[8]; // Can we assume trailer is only ever 8 bytes...?
+    private byte[] trailerBytes = new byte[8];
     private int trailerOffset = 0;
 
 
     public GZipInflatingOutputStream(OutputStream outputStream) throws IOException {
         this.outputStream = outputStream;
         crc.reset();
-        expectedHeaderLength = 4;
     }
 
     private void inflateData() throws IOException {
@@ -79,6 +88,7 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
                 bytesWritten = inflater.inflate(inflatedBytes, 0, inflatedBytes.length);
                 outputStream.write(inflatedBytes, 0, bytesWritten);
                 crc.update(inflatedBytes, 0, bytesWritten);
+                memberBytesInflated += bytesWritten;
             }
         } catch (IOException e) {
             outputStream.close();
@@ -89,99 +99,86 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
         }
     }
 
-    private void parseHeader(byte[] b, int off, int len) throws IOException {
-        // Store all potential header bytes in a buffer.
-        for (int i = 0; i < len && headerLength < headerBytes.length; i++) {
-            headerBytes[headerLength++] = b[off + i];
+    /**
+     * @return
+     * the length of the complete header in the header buffer, or -1 if more header
+     * bytes are required.
+     */
+    private int parseHeader() throws IOException {
+        if (headerLength < 10) {
+            return -1;
+        }
+        // Check header magic
+        if (bytesToShort(headerBytes, 0) != GZIP_MAGIC) {
+            outputStream.close();
+            throw new IOException("Not in GZIP format");
+        }
+        // Check compression method
+        if ((headerBytes[2] & 0xFF) != Deflater.DEFLATED) {
+            outputStream.close();
+            throw new IOException("Unexpected compression method");
         }
 
-        // Once we have the first 4 bytes, check for validity and flag values.
-        if (headerOffset == 0 && headerLength >= 4) {
-            // Check header magic
-            int GZIP_MAGIC = 0x8b1f;
-            if (bytesToShort(headerBytes, 0) != GZIP_MAGIC) {
-                outputStream.close();
-                throw new IOException("Not in GZIP format");
+        // Read header content flags, then skip MTIME, XFL, and OS fields
+        int headerFlag = (headerBytes[3] & 0xFF);
+        int offset = 10;
+
+        // Skip optional extra field
+        if ((headerFlag & FEXTRA) == FEXTRA) {
+            if (headerLength < offset + 2) {
+                return -1;
             }
-            // Check compression method
-            if ((headerBytes[2] & 0xFF) != Deflater.DEFLATED) {
-                outputStream.close();
-                throw new IOException("Unexpected compression method");
+            offset += 2 + bytesToShort(headerBytes, offset);
+        }
+        // Skip optional file name
+        if ((headerFlag & FNAME) == FNAME) {
+            offset = skipZeroTerminatedField(offset);
+            if (offset < 0) {
+                return -1;
             }
-
-            // Read header content flags
-            headerFlag = (headerBytes[3] & 0xFF);
-
-            // Skip MTIME, XFL, and OS fields
-            expectedHeaderLength += 6;
-            headerOffset = 10;
-
-            if ((headerFlag & FEXTRA) == FEXTRA)
-                expectedHeaderLength += 2;
-
-            if ((headerFlag & FNAME) == FNAME)
-                expectedHeaderLength++;
-
-            if ((headerFlag & FCOMMENT) == FCOMMENT) {
-                expectedHeaderLength++;
+        }
+        // Skip optional file comment
+        if ((headerFlag & FCOMMENT) == FCOMMENT) {
+            offset = skipZeroTerminatedField(offset);
+            if (offset < 0) {
+                return -1;
             }
-
-            if ((headerFlag & FHCRC) == FHCRC) {
-                expectedHeaderLength += 2;
+        }
+        // Check optional header CRC
+        if ((headerFlag & FHCRC) == FHCRC) {
+            if (headerLength < offset + 2) {
+                return -1;
+            }
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(headerBytes, 0, offset);
+            int v = (int) headerCrc.getValue() & 0xffff;
+            if (bytesToShort(headerBytes, offset) != v) {
+                outputStream.close();
+                throw new IOException("Corrupt GZIP header");
             }
+            offset += 2;
         }
+        return (headerLength >= offset ? offset : -1);
+    }
 
-        // Once we have enough bytes to start checking flag values, do so.
-        while (headerOffset != expectedHeaderLength && headerLength >= expectedHeaderLength) {
-            // Skip optional extra field
-            if ((headerFlag & FEXTRA) == FEXTRA) {
-                // Skip past this variable-length field.
-                int fieldLength = bytesToShort(headerBytes, headerOffset);
-                expectedHeaderLength += fieldLength;
-                headerOffset += 2 + fieldLength;
-            } else
-            // Skip optional file name
-            if ((headerFlag & FNAME) == FNAME) {
-                char fnameChar = (char) headerBytes[headerOffset++];
-                if (fnameChar != 0) {
-                    // More filename characters to come.
-                    expectedHeaderLength++;
-                }
-            } else
-            // Skip optional file comment
-            if ((headerFlag & FCOMMENT) == FCOMMENT) {
-                // Consume bytes until we get to the end of the comments.
-                while ((headerBytes[headerOffset] & 0xFF) != 0) {
-                    headerOffset++;
-                    expectedHeaderLength++;
-                }
-            } else
-            // Check optional header CRC
-            if ((headerFlag & FHCRC) == FHCRC) {
-                crc.update(headerBytes, 0, headerOffset);
-                int v = (int)crc.getValue() & 0xffff;
-                if (bytesToShort(headerBytes, headerOffset) != v) {
-                    outputStream.close();
-                    throw new IOException("Corrupt GZIP header");
-                }
-                crc.reset();
-                headerOffset++;
-                expectedHeaderLength++;
+    private int skipZeroTerminatedField(int offset) {
+        while (offset < headerLength) {
+            if (headerBytes[offset++] == 0) {
+                return offset;
             }
         }
+        return -1;
+    }
 
-        if (headerOffset == expectedHeaderLength && headerLength >= expectedHeaderLength) {
-            // Finished parsing the header.
-
-            finishedHeader = true;
-            // Pass any remaining bytes in the header buffer to the inflater.
-            if (headerLength > headerOffset) {
-                inflater.setInput(headerBytes, headerOffset, headerLength - headerOffset);
-            }
-            // Pass all other remaining bytes to the inflater.
-            if (len > headerLength) {
-                inflater.setInput(b, headerOffset, len - headerOffset);
-            }
+    private void checkTrailer() throws IOException {
+        // Check CRC from trail
+        long trailerCrc = bytesToInt(trailerBytes, 0);
+        if (trailerCrc != crc.getValue()) {
+            throw new IOException("Corrupt GZIP trailer, CRC values mismatch");
+        }
+        long trailerByteCount = bytesToInt(trailerBytes, 4);
+        if (trailerByteCount != (memberBytesInflated & 0xffffffffL)) {
+            throw new IOException("Corrupt GZIP trailer, actual size of inflated data mismatch");
         }
     }
 
@@ -191,35 +188,54 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
-        if (len <= 0) {
-            return;
-        }
-
-        if (!finishedHeader) {
-            // Keep parsing header data until the header is finished.
-            parseHeader(b, off, len);
-        } else {
-            inflater.setInput(b, off, len);
-        }
-
-        if (!inflater.finished()) {
-            inflateData();
-
-            if (inflater.finished() && inflater.getRemaining() > 0) {
-                // Copy bytes left-over from inflater into trailer buffer.
-                int trailerOffsetInInput = len - inflater.getRemaining();
-                while (trailerOffset < inflater.getRemaining()) {
-                    trailerBytes[trailerOffset++] = b[trailerOffsetInInput++];
+        while (len > 0) {
+            if (state == STATE_HEADER) {
+                // Keep collecting header data one byte at a time until the header is finished.
+                if (headerLength == headerBytes.length) {
+                    byte[] largerHeaderBytes = new byte[headerBytes.length * 2];
+                    System.arraycopy(headerBytes, 0, largerHeaderBytes, 0, headerLength);
+                    headerBytes = largerHeaderBytes;
+                }
+                headerBytes[headerLength++] = b[off++];
+                len--;
+                if (parseHeader() >= 0) {
+                    state = STATE_DATA;
+                }
+            } else if (state == STATE_DATA) {
+                inflater.setInput(b, off, len);
+                inflateData();
+                if (inflater.finished()) {
+                    // Bytes left-over from inflater belong to the trailer.
+                    int consumed = len - inflater.getRemaining();
+                    off += consumed;
+                    len -= consumed;
+                    state = STATE_TRAILER;
+                } else {
+                    len = 0;
+                }
+            } else {
+                int count = Math.min(len, trailerBytes.length - trailerOffset);
+                System.arraycopy(b, off, trailerBytes, trailerOffset, count);
+                trailerOffset += count;
+                off += count;
+                len -= count;
+                if (trailerOffset == trailerBytes.length) {
+                    try {
+                        checkTrailer();
+                    } catch (IOException e) {
+                        outputStream.close();
+                        throw e;
+                    }
+                    // Prepare for another GZip member that may follow this one.
+                    membersCompleted++;
+                    inflater.reset();
+                    crc.reset();
+                    memberBytesInflated = 0;
+                    headerLength = 0;
+                    trailerOffset = 0;
+                    state = STATE_HEADER;
                 }
             }
-        } else {
-            // Inflator has all the input bytes it needs, anything left over is for the tailer fields.
-            if (trailerOffset + len > trailerBytes.length) {
-                outputStream.close();
-                throw new IOException("Corrupt GZIP trailer, too many trailer bytes (only 8 expected)");
-            }
-            System.arraycopy(b, off, trailerBytes, trailerOffset, len);
-            trailerOffset += len;
         }
     }
 
@@ -232,34 +248,27 @@ public class GZipInflatingOutputStream extends OutputStream implements OutputStr
 
         if (inflater != null) {
             // Check that the data stream has been correctly unzipped.
-
-            if (trailerOffset < trailerBytes.length) {
-                throw new IOException("Corrupt GZIP trailer, trailer is incomplete. Expected 8 bytes, only have " + trailerOffset);
-            }
-            // Check CRC from trail
-            long trailerCrc = bytesToInt(trailerBytes, 0);
-            if (trailerCrc != crc.getValue()) {
-                throw new IOException("Corrupt GZIP trailer, CRC values mismatch");
-            }
-            long trailerByteCount = bytesToInt(trailerBytes, 4);
-            if (trailerByteCount != inflater.getTotalOut()) {
-                throw new IOException("Corrupt GZIP trailer, actual size of inflated data mismatch");
+            try {
+                if (state != STATE_HEADER || headerLength > 0 || membersCompleted == 0) {
+                    throw new IOException("Corrupt GZIP trailer, trailer is incomplete. Expected 8 bytes, only have " + trailerOffset);
+                }
+            } finally {
+                inflater.end();
+                inflater = null;
             }
-            inflater.end();
-            inflater = null;
         }
     }
 
     private int bytesToShort(byte[] b, int offset) {
         int low = (b[offset] & 0xFF);
-            int high = (b[offset + 1] & 0xFF);
-           return (high << 8) | low;
+        int high = (b[offset + 1] & 0xFF);
+        return (high << 8) | low;
     }
 
     private long bytesToInt(byte[] b, int offset) {
-            int low = bytesToShort(b, offset);
-            int high = bytesToShort(b, offset + 2);
-            return ((long)high << 16) | low;
+        int low = bytesToShort(b, offset);
+        int high = bytesToShort(b, offset + 2);
+        return ((long)high << 16) | low;
     }
 
     public OutputStream getWrappedOutputStream() {
@@ -0,0 +1,296 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Input stream that wraps another stream and deflates (compresses) the underlying stream's
+ * data on-the-fly using several processor cores. The input is split into blocks that are
+ * compressed concurrently by a pool of worker threads, and each compressed block is
+ * emitted as a complete GZip member. The result is a standard multi-member GZip stream,
+ * which any GZip reader (including {@link GZipInflatingOutputStream}) decompresses into
+ * the original data.
+ * <p>
+ * Input is read, and compressed output returned, in order on the caller's thread. Only a
+ * bounded number of blocks are compressed ahead of the reader, so memory use is limited
+ * to roughly twice the thread count multiplied by the block size.
+ *
+ * @author James Murty
+ */
+public class ParallelGZipDeflatingInputStream extends InputStream implements InputStreamWrapper {
+
+    /**
+     * Default size of the uncompressed blocks that are compressed independently.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static ThreadPoolExecutor sharedExecutor = null;
+
+    private final InputStream inputStream;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+
+    private byte[] currentBlock = new byte[0];
+    private int currentOffset = 0;
+    private boolean EOFInput = false;
+    private boolean emittedMember = false;
+    private boolean closed = false;
+
+    /**
+     * Compresses data using one thread per available processor and the default block size.
+     *
+     * @param inputStream
+     * @throws IOException
+     */
+    public ParallelGZipDeflatingInputStream(InputStream inputStream) throws IOException {
+        this(inputStream, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param inputStream
+     * the stream of data to compress.
+     * @param threadCount
+     * the number of threads that compress blocks concurrently. Threads are shared by all
+     * parallel GZip streams, so the largest thread count requested is used by all of them.
+     * @param blockSize
+     * the number of uncompressed bytes in each block.
+     * @throws IOException
+     */
+    public ParallelGZipDeflatingInputStream(InputStream inputStream, int threadCount,
+        int blockSize) throws IOException
+    {
+        this(inputStream, threadCount, blockSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param inputStream
+     * the stream of data to compress.
+     * @param threadCount
+     * the number of threads that compress blocks concurrently.
+     * @param blockSize
+     * the number of uncompressed bytes in each block.
+     * @param level
+     * the {@link Deflater} compression level, or -1 for the default level.
+     * @throws IOException
+     */
+    public ParallelGZipDeflatingInputStream(InputStream inputStream, int threadCount,
+        int blockSize, int level) throws IOException
+    {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be greater than 0: " + blockSize);
+        }
+        this.inputStream = inputStream;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPendingBlocks = Math.max(1, threadCount) * 2;
+        this.executor = getSharedExecutor(Math.max(1, threadCount));
+    }
+
+    private static synchronized ExecutorService getSharedExecutor(int threadCount) {
+        if (sharedExecutor == null) {
+            sharedExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ParallelGZipDeflatingInputStream");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        } else if (threadCount > sharedExecutor.getCorePoolSize()) {
+            sharedExecutor.setMaximumPoolSize(threadCount);
+            sharedExecutor.setCorePoolSize(threadCount);
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Reads blocks of input and submits them for compression until the maximum number
+     * of blocks are pending or the input is exhausted.
+     */
+    private void submitBlocks() throws IOException {
+        while (!EOFInput && pendingBlocks.size() < maxPendingBlocks) {
+            byte[] block = new byte[blockSize];
+            int blockLength = 0;
+            while (blockLength < blockSize) {
+                int byteCount = inputStream.read(block, blockLength, blockSize - blockLength);
+                if (byteCount < 0) {
+                    EOFInput = true;
+                    break;
+                }
+                blockLength += byteCount;
+            }
+            // Always emit at least one member, so empty input becomes a valid GZip stream.
+            if (blockLength > 0 || !emittedMember) {
+                pendingBlocks.add(executor.submit(new DeflateBlockTask(block, blockLength, level)));
+                emittedMember = true;
+            }
+        }
+    }
+
+    /**
+     * @return
+     * false if there is no more compressed data.
+     */
+    private boolean nextBlock() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (currentOffset == currentBlock.length) {
+            submitBlocks();
+            if (pendingBlocks.isEmpty()) {
+                return false;
+            }
+            Future<byte[]> future = pendingBlocks.removeFirst();
+            try {
+                currentBlock = future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for compressed data");
+            } catch (ExecutionException e) {
+                IOException ioe = new IOException("Unable to compress data block");
+                ioe.initCause(e.getCause());
+                throw ioe;
+            }
+            currentOffset = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return currentBlock[currentOffset++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int count = Math.min(len, currentBlock.length - currentOffset);
+        System.arraycopy(currentBlock, currentOffset, b, off, count);
+        currentOffset += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return currentBlock.length - currentOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            for (Future<byte[]> future: pendingBlocks) {
+                future.cancel(true);
+            }
+            pendingBlocks.clear();
+        }
+        inputStream.close();
+    }
+
+    public InputStream getWrappedInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Compresses a block of data into a complete GZip member.
+     */
+    private static class DeflateBlockTask implements Callable<byte[]> {
+        private final byte[] block;
+        private final int blockLength;
+        private final int level;
+
+        public DeflateBlockTask(byte[] block, int blockLength, int level) {
+            this.block = block;
+            this.blockLength = blockLength;
+            this.level = level;
+        }
+
+        public byte[] call() throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(blockLength / 2 + 64);
+
+            // Write the GZip Header.
+            writeShort(out, GZipInflatingOutputStream.GZIP_MAGIC); // Magic number
+            out.write(Deflater.DEFLATED); // Compression method (CM)
+            out.write(0); // Flags (FLG)
+            writeInt(out, 0); // Modification time (MTIME)
+            out.write(0); // Extra flags (XFL)
+            out.write(0); // Operating system (OS)
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(block, 0, blockLength);
+                deflater.finish();
+                byte[] deflatedBytes = new byte[8192];
+                while (!deflater.finished()) {
+                    int byteCount = deflater.deflate(deflatedBytes);
+                    out.write(deflatedBytes, 0, byteCount);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, blockLength);
+            writeInt(out, (int) crc.getValue()); // CRC-32 of uncompressed data
+            writeInt(out, blockLength); // Number of uncompressed bytes
+            return out.toByteArray();
+        }
+
+        /*
+         * Writes integer in Intel byte order.
+         */
+        private void writeInt(ByteArrayOutputStream out, int i) {
+            writeShort(out, i & 0xffff);
+            writeShort(out, (i >> 16) & 0xffff);
+        }
+
+        /*
+         * Writes short integer in Intel byte order.
+         */
+        private void writeShort(ByteArrayOutputStream out, int s) {
+            out.write(s & 0xff);
+            out.write((s >> 8) & 0xff);
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A repeatable input stream for files based on a {@link FileChannel}. Like
+ * {@link RepeatableFileInputStream} this input stream can be repeated an unlimited
+ * number of times, but it uses positional reads on the channel so a reset merely
+ * moves the read position back to the mark point instead of re-opening and
+ * re-skipping through the file.
+ * <p>
+ * The channel is obtained from a {@link SharedFileChannel} so many streams over the
+ * same file can share a single file descriptor. The channel is also exposed through
+ * {@link #getFileChannel()} and {@link #transferTo(WritableByteChannel)} so callers
+ * can send the stream's data with {@link FileChannel#transferTo} where possible.
+ *
+ * @author James Murty
+ */
+public class RepeatableFileChannelInputStream extends InputStream {
+    private static final Log log = LogFactory.getLog(RepeatableFileChannelInputStream.class);
+
+    protected SharedFileChannel sharedChannel = null;
+    protected FileChannel channel = null;
+    protected long startOffset = 0;
+    protected long length = 0;
+    protected long position = 0;
+    protected long markPoint = 0;
+
+    /**
+     * Creates a repeatable input stream based on a file, with its own file channel.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public RepeatableFileChannelInputStream(File file) throws IOException {
+        this(new SharedFileChannel(file), 0, -1);
+    }
+
+    /**
+     * Creates a repeatable input stream for a byte range within a file, using a
+     * channel that may be shared with other streams.
+     *
+     * @param sharedChannel
+     * the channel from which data is read.
+     * @param offset
+     * the offset within the file at which this stream's data starts.
+     * @param length
+     * the number of bytes available from this stream, or -1 to read to the end of the file.
+     * @throws IOException
+     */
+    protected RepeatableFileChannelInputStream(SharedFileChannel sharedChannel,
+        long offset, long length) throws IOException
+    {
+        if (sharedChannel == null) {
+            throw new IllegalArgumentException("Shared file channel cannot be null");
+        }
+        this.sharedChannel = sharedChannel;
+        this.channel = sharedChannel.acquire();
+        this.startOffset = offset;
+        this.length = (length < 0 ? this.channel.size() - offset : length);
+        this.position = offset;
+        this.markPoint = offset;
+    }
+
+    /**
+     * @return
+     * the file channel underlying this stream, which must not be closed directly.
+     */
+    public FileChannel getFileChannel() {
+        return this.channel;
+    }
+
+    /**
+     * @return
+     * the file this stream reads from.
+     */
+    public File getFile() {
+        return this.sharedChannel.getFile();
+    }
+
+    /**
+     * @return
+     * the absolute position within the file from which the next byte will be read.
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return
+     * the number of bytes remaining before the end of this stream.
+     */
+    public long getRemaining() {
+        return (this.startOffset + this.length) - this.position;
+    }
+
+    /**
+     * Transfers all remaining bytes in this stream to the given channel using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which may
+     * avoid copying the data through user space.
+     *
+     * @param target
+     * @return
+     * the number of bytes transferred.
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        ensureOpen();
+        long transferred = 0;
+        while (getRemaining() > 0) {
+            long count = this.channel.transferTo(this.position, getRemaining(), target);
+            if (count <= 0) {
+                // The file must have been truncated underneath us.
+                break;
+            }
+            this.position += count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long skip(long toSkip) throws IOException {
+        if (toSkip <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(toSkip, getRemaining());
+        this.position += skipped;
+        return skipped;
+    }
+
+    /**
+     * Resets the input stream to the last mark point, or the beginning of the stream if
+     * there is no mark point. If the stream has been closed the shared channel is
+     * re-acquired.
+     *
+     * @throws UnrecoverableIOException
+     * when the file channel cannot be re-opened.
+     */
+    @Override
+    public void reset() throws IOException {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            throw new UnrecoverableIOException("Input stream is not repeatable: " + e.getMessage());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Reset to mark point " + (markPoint - startOffset) + " after returning "
+                + (position - markPoint) + " bytes");
+        }
+        this.position = this.markPoint;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        this.markPoint = this.position;
+        if (log.isDebugEnabled()) {
+            log.debug("Input stream marked at " + (markPoint - startOffset) + " bytes");
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        long remaining = getRemaining();
+        if (remaining > Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) remaining;
+    }
+
+    /**
+     * Releases this stream's reference to the shared file channel. The stream can
+     * still be re-used after it is closed by calling {@link #reset()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel = null;
+            this.sharedChannel.release();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int count = read(single, 0, 1);
+        if (count <= 0) {
+            return -1;
+        }
+        return single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (this.channel == null) {
+            throw new IOException("Stream closed");
+        }
+        long remaining = getRemaining();
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int toRead = (int) Math.min(len, remaining);
+        int count = this.channel.read(ByteBuffer.wrap(bytes, off, toRead), this.position);
+        if (count > 0) {
+            this.position += count;
+        }
+        return count;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.channel == null) {
+            this.channel = this.sharedChannel.acquire();
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A repeatable input stream for a segment of a file, based on a {@link java.nio.channels.FileChannel}
+ * that may be shared by the streams for all the other segments of the same file.
+ * This is the channel-based equivalent of {@link SegmentedRepeatableFileInputStream},
+ * except that creating or resetting a segment never re-opens or seeks through the file.
+ *
+ * @author James Murty
+ */
+public class SegmentedRepeatableFileChannelInputStream extends RepeatableFileChannelInputStream {
+
+    /**
+     * Creates a repeatable input stream for a segment of a file, with its own file channel.
+     *
+     * @param file
+     * @param offset
+     * @param segmentLength
+     * @throws IOException
+     */
+    public SegmentedRepeatableFileChannelInputStream(File file, long offset, long segmentLength)
+        throws IOException
+    {
+        this(new SharedFileChannel(file), offset, segmentLength);
+    }
+
+    /**
+     * Creates a repeatable input stream for a segment of a file, reading from a channel
+     * that is shared with other streams.
+     *
+     * @param sharedChannel
+     * @param offset
+     * @param segmentLength
+     * @throws IOException
+     */
+    public SegmentedRepeatableFileChannelInputStream(SharedFileChannel sharedChannel,
+        long offset, long segmentLength) throws IOException
+    {
+        super(sharedChannel, offset, checkSegmentLength(segmentLength));
+
+        // Sanity check segment bounds against underlying file
+        if (this.channel.size() < offset + segmentLength) {
+            long fileLength = this.channel.size();
+            close();
+            throw new IllegalArgumentException(
+                "Offset " + offset + " plus segment length " + segmentLength
+                + " exceed length " + fileLength + " of file " + sharedChannel.getFile());
+        }
+    }
+
+    private static long checkSegmentLength(long segmentLength) {
+        if (segmentLength < 1) {
+            throw new IllegalArgumentException(
+                "Segment length " + segmentLength + " must be greater than 0");
+        }
+        return segmentLength;
+    }
+
+}
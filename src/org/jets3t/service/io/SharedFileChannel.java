@@ -0,0 +1,117 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A reference-counted, read-only {@link FileChannel} for a file that can be shared
+ * by many {@link RepeatableFileChannelInputStream}s at once, for example by all the
+ * parts of a multipart upload. Because readers use positional reads the channel
+ * has no shared file pointer, so a single file descriptor serves every reader.
+ * <p>
+ * The underlying channel is opened on the first {@link #acquire()} and closed when
+ * the last reference is given up with {@link #release()}. It is re-opened
+ * transparently if it is acquired again after that.
+ *
+ * @author James Murty
+ */
+public class SharedFileChannel {
+    private static final Log log = LogFactory.getLog(SharedFileChannel.class);
+
+    private final File file;
+    private RandomAccessFile randomAccessFile = null;
+    private FileChannel channel = null;
+    private int referenceCount = 0;
+
+    /**
+     * @param file
+     * the file that will be opened for reading when the channel is first acquired.
+     */
+    public SharedFileChannel(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        this.file = file;
+    }
+
+    /**
+     * @return
+     * the file underlying this channel.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Obtain a reference to the channel, opening it if necessary. Every call to this
+     * method must be balanced by a call to {@link #release()}.
+     *
+     * @return
+     * an open channel for reading the file.
+     * @throws IOException
+     */
+    public synchronized FileChannel acquire() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            if (log.isDebugEnabled()) {
+                log.debug("Opened shared file channel for " + file);
+            }
+        }
+        referenceCount++;
+        return channel;
+    }
+
+    /**
+     * Give up a reference to the channel obtained with {@link #acquire()}, closing the
+     * channel if this was the last reference.
+     *
+     * @throws IOException
+     */
+    public synchronized void release() throws IOException {
+        if (referenceCount <= 0) {
+            return;
+        }
+        referenceCount--;
+        if (referenceCount == 0 && randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+            channel = null;
+            if (log.isDebugEnabled()) {
+                log.debug("Closed shared file channel for " + file);
+            }
+        }
+    }
+
+    /**
+     * @return
+     * the number of outstanding references to the channel.
+     */
+    public synchronized int getReferenceCount() {
+        return referenceCount;
+    }
+
+}
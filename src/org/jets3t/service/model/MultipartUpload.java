@@ -19,6 +19,7 @@
 package org.jets3t.service.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -39,7 +40,9 @@ public class MultipartUpload {
     private S3Owner initiator;
     private S3Owner owner;
     private Date initiatedDate;
-    private List<MultipartPart> multipartsPartsUploaded = new ArrayList<MultipartPart>();
+    // Parts may be uploaded, and so added, concurrently by multiple threads
+    private List<MultipartPart> multipartsPartsUploaded =
+        Collections.synchronizedList(new ArrayList<MultipartPart>());
 
     public MultipartUpload(String uploadId, String bucketName, String objectKey)
     {
@@ -36,7 +36,7 @@ import org.apache.commons.logging.LogFactory;
 import org.jets3t.service.Constants;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.acl.AccessControlList;
-import org.jets3t.service.io.RepeatableFileInputStream;
+import org.jets3t.service.io.RepeatableFileChannelInputStream;
 import org.jets3t.service.utils.Mimetypes;
 import org.jets3t.service.utils.ServiceUtils;
 
@@ -223,8 +223,8 @@ public class StorageObject extends BaseStorageItem implements Cloneable {
         if (dataInputStream == null && dataInputFile != null) {
             try {
                 // Use a repeatable file data input stream, so transmissions can be retried if necessary.
-                dataInputStream = new RepeatableFileInputStream(dataInputFile);
-            } catch (FileNotFoundException e) {
+                dataInputStream = new RepeatableFileChannelInputStream(dataInputFile);
+            } catch (IOException e) {
                 throw new ServiceException("Cannot open file input stream", e);
             }
         }
@@ -0,0 +1,153 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.multi;
+
+/**
+ * Concurrency limit that adjusts the number of tasks run at once to suit the workload,
+ * using a gradient algorithm driven by the measured duration of completed tasks.
+ * <p>
+ * Tasks that transfer more data take longer without any queueing, so each duration is
+ * first scaled by the amount of data the task transferred, treating each request as
+ * costing as much as transferring a fixed overhead of bytes. Objects of very different
+ * sizes then give comparable samples, as long as throughput holds up.
+ * <p>
+ * The limit tracks the shortest task duration seen, a proxy for the duration when
+ * nothing is queued, and a smoothed recent duration. While recent tasks take no longer
+ * than the shortest (within a tolerance) the limit grows; as they slow down, showing that
+ * extra tasks only queue up at the service or on the network, the limit shrinks in
+ * proportion. Failed tasks also shrink the limit. The limit always stays between the
+ * configured minimum and maximum.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final double SMOOTHING = 0.2;
+    private static final double TOLERANCE = 1.5;
+    private static final double FAILURE_BACKOFF_RATIO = 0.9;
+
+    /**
+     * The shortest duration is forgotten after this many samples, so a limit learned
+     * under good conditions does not persist after they change.
+     */
+    private static final int MIN_DURATION_RESET_SAMPLES = 1000;
+
+    /**
+     * The amount of data whose transfer takes about as long as the fixed latency of
+     * a request, used to normalize the durations of tasks that transfer data.
+     */
+    private static final long REQUEST_OVERHEAD_BYTES = 128 * 1024;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private long minDurationNanos = 0;
+    private double recentDurationNanos = 0;
+    private long sampleCount = 0;
+
+    /**
+     * @param initialLimit
+     * the number of tasks to run at once before any have completed.
+     * @param minLimit
+     * the smallest number of tasks to run at once.
+     * @param maxLimit
+     * the largest number of tasks to run at once.
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Record the outcome of a completed task that transferred no data, and adjust the limit.
+     *
+     * @param durationNanos
+     * how long the task took to run, in nanoseconds.
+     * @param failed
+     * true if the task failed.
+     */
+    public void onSample(long durationNanos, boolean failed) {
+        onSample(durationNanos, 0, failed);
+    }
+
+    /**
+     * Record the outcome of a completed task and adjust the limit.
+     *
+     * @param durationNanos
+     * how long the task took to run, in nanoseconds.
+     * @param byteCount
+     * the number of bytes of data the task sent or received.
+     * @param failed
+     * true if the task failed.
+     */
+    public synchronized void onSample(long durationNanos, long byteCount, boolean failed) {
+        if (failed) {
+            limit = Math.max(minLimit, limit * FAILURE_BACKOFF_RATIO);
+            return;
+        }
+        // Latency per byte, scaled so a task without data keeps its raw duration
+        durationNanos = (long) (durationNanos * (double) REQUEST_OVERHEAD_BYTES
+            / (Math.max(0, byteCount) + REQUEST_OVERHEAD_BYTES));
+        durationNanos = Math.max(1, durationNanos);
+        sampleCount++;
+        if (recentDurationNanos == 0) {
+            recentDurationNanos = durationNanos;
+        } else {
+            recentDurationNanos =
+                recentDurationNanos * (1 - SMOOTHING) + durationNanos * SMOOTHING;
+        }
+        if (minDurationNanos == 0 || durationNanos < minDurationNanos) {
+            minDurationNanos = durationNanos;
+        }
+
+        double gradient = Math.max(0.5,
+            Math.min(1.0, TOLERANCE * minDurationNanos / recentDurationNanos));
+        // Only grow while nothing is queueing, otherwise the square root would hold the
+        // limit well above the minimum however slow tasks become
+        double newLimit = (gradient >= 1.0
+            ? limit + Math.sqrt(limit) : limit * gradient);
+        limit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.min(maxLimit, Math.max(minLimit, limit));
+
+        if (sampleCount % MIN_DURATION_RESET_SAMPLES == 0) {
+            minDurationNanos = (long) recentDurationNanos;
+        }
+    }
+
+    /**
+     * @return
+     * the number of tasks that should currently run at once.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+}
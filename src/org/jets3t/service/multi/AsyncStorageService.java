@@ -0,0 +1,389 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.multi;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Storage service wrapper that performs individual requests asynchronously, returning
+ * a {@link Future} for each request instead of blocking the caller until it completes.
+ * An optional {@link ServiceCallback} may also be notified of each request's outcome.
+ * <p>
+ * Requests are performed by the underlying thread-safe {@link StorageService} on a pool
+ * of worker threads, so they are signed, retried and have their errors mapped exactly
+ * as for direct calls to that service. The underlying HTTP client is blocking, so each
+ * request in progress occupies a worker thread until it completes: this class frees the
+ * caller's thread, but does not reduce the number of threads needed to perform
+ * concurrent requests. The number of requests in progress at once is limited by the
+ * size of the pool, set by the property <code>async-service.max-thread-count</code>;
+ * further requests wait in a queue.
+ * <p>
+ * On JVMs that support virtual threads, setting the property
+ * <code>async-service.virtual-threads-enabled</code> runs the workers on virtual threads,
+ * which are much cheaper to keep blocked than platform threads.
+ * <p>
+ * For performing operations on many objects at once with progress notification, see
+ * {@link ThreadedStorageService}.
+ *
+ * @author James Murty
+ */
+public class AsyncStorageService {
+
+    /**
+     * A storage service operation to be performed by a worker thread.
+     */
+    protected interface ServiceOperation<T> {
+        T perform() throws ServiceException;
+    }
+
+    private final StorageService service;
+    private final ExecutorService executor;
+
+    /**
+     * Construct an asynchronous service with a pool of worker threads sized by the
+     * <code>async-service.max-thread-count</code> property, which are virtual threads
+     * if the <code>async-service.virtual-threads-enabled</code> property is set and the
+     * JVM supports them.
+     *
+     * @param service
+     * a thread-safe StorageService implementation that will perform requests.
+     */
+    public AsyncStorageService(StorageService service) {
+        this(service, createExecutor(service.getJetS3tProperties()));
+    }
+
+    /**
+     * Construct an asynchronous service that performs requests with the given executor.
+     *
+     * @param service
+     * a thread-safe StorageService implementation that will perform requests.
+     * @param executor
+     * the executor whose threads will perform requests.
+     */
+    public AsyncStorageService(StorageService service, ExecutorService executor) {
+        this.service = service;
+        this.executor = executor;
+    }
+
+    private static ExecutorService createExecutor(Jets3tProperties properties) {
+        if (properties == null) {
+            properties = Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME);
+        }
+        int maxThreadCount = Math.max(1,
+            properties.getIntProperty("async-service.max-thread-count", 50));
+        if (properties.getBoolProperty("async-service.virtual-threads-enabled", false)) {
+            ThreadFactory virtualThreadFactory = ThreadedStorageService
+                .createVirtualThreadFactory("async-service.virtual-threads-enabled");
+            if (virtualThreadFactory != null) {
+                return Executors.newFixedThreadPool(maxThreadCount, virtualThreadFactory);
+            }
+        }
+        return Executors.newFixedThreadPool(maxThreadCount);
+    }
+
+    /**
+     * @return
+     * the underlying service used by this asynchronous service.
+     */
+    public StorageService getStorageService() {
+        return service;
+    }
+
+    /**
+     * Stop accepting new requests and release the worker threads once requests already
+     * submitted have completed. The underlying service is not shut down.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait for an asynchronous request to complete and return its result, re-throwing
+     * any exception that caused the request to fail.
+     *
+     * @param future
+     * a future returned by this service.
+     * @return
+     * the result of the request.
+     * @throws ServiceException
+     * the exception thrown by the failed request, or if the wait was interrupted.
+     */
+    public static <T> T getResult(Future<T> future) throws ServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new ServiceException("Interrupted while waiting for request", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw new ServiceException("Request failed", e.getCause());
+        }
+    }
+
+    /**
+     * Perform an operation on a worker thread, notifying the callback of its outcome.
+     *
+     * @param operation
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the operation's result.
+     */
+    protected <T> Future<T> submit(final ServiceOperation<T> operation,
+        final ServiceCallback<T> callback)
+    {
+        return executor.submit(new Callable<T>() {
+            public T call() throws ServiceException {
+                T result;
+                try {
+                    result = operation.perform();
+                } catch (ServiceException e) {
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                    throw e;
+                } catch (RuntimeException e) {
+                    if (callback != null) {
+                        callback.failed(new ServiceException(e));
+                    }
+                    throw e;
+                }
+                if (callback != null) {
+                    callback.succeeded(result);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link StorageService#getObject(String, String)}.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the object, whose data input stream must be read or closed by the caller.
+     */
+    public Future<StorageObject> getObject(final String bucketName, final String objectKey,
+        ServiceCallback<StorageObject> callback)
+    {
+        return submit(new ServiceOperation<StorageObject>() {
+            public StorageObject perform() throws ServiceException {
+                return service.getObject(bucketName, objectKey);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of
+     * {@link StorageService#getObject(String, String, Calendar, Calendar, String[], String[], Long, Long)}.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param ifModifiedSince
+     * @param ifUnmodifiedSince
+     * @param ifMatchTags
+     * @param ifNoneMatchTags
+     * @param byteRangeStart
+     * @param byteRangeEnd
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the object, whose data input stream must be read or closed by the caller.
+     */
+    public Future<StorageObject> getObject(final String bucketName, final String objectKey,
+        final Calendar ifModifiedSince, final Calendar ifUnmodifiedSince,
+        final String[] ifMatchTags, final String[] ifNoneMatchTags,
+        final Long byteRangeStart, final Long byteRangeEnd,
+        ServiceCallback<StorageObject> callback)
+    {
+        return submit(new ServiceOperation<StorageObject>() {
+            public StorageObject perform() throws ServiceException {
+                return service.getObject(bucketName, objectKey, ifModifiedSince,
+                    ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags,
+                    byteRangeStart, byteRangeEnd);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of {@link StorageService#getObjectDetails(String, String)}.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the object's details.
+     */
+    public Future<StorageObject> getObjectDetails(final String bucketName,
+        final String objectKey, ServiceCallback<StorageObject> callback)
+    {
+        return submit(new ServiceOperation<StorageObject>() {
+            public StorageObject perform() throws ServiceException {
+                return service.getObjectDetails(bucketName, objectKey);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of {@link StorageService#putObject(String, StorageObject)}.
+     *
+     * @param bucketName
+     * @param object
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the object as stored.
+     */
+    public Future<StorageObject> putObject(final String bucketName,
+        final StorageObject object, ServiceCallback<StorageObject> callback)
+    {
+        return submit(new ServiceOperation<StorageObject>() {
+            public StorageObject perform() throws ServiceException {
+                return service.putObject(bucketName, object);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of {@link StorageService#deleteObject(String, String)}.
+     *
+     * @param bucketName
+     * @param objectKey
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future that completes with a null result when the object is deleted.
+     */
+    public Future<Void> deleteObject(final String bucketName, final String objectKey,
+        ServiceCallback<Void> callback)
+    {
+        return submit(new ServiceOperation<Void>() {
+            public Void perform() throws ServiceException {
+                service.deleteObject(bucketName, objectKey);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of
+     * {@link StorageService#listObjectsChunked(String, String, String, long, String)},
+     * which lists a single page of objects.
+     *
+     * @param bucketName
+     * @param prefix
+     * @param delimiter
+     * @param maxListingLength
+     * @param priorLastKey
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the page of listing results.
+     */
+    public Future<StorageObjectsChunk> listObjectsChunked(final String bucketName,
+        final String prefix, final String delimiter, final long maxListingLength,
+        final String priorLastKey, ServiceCallback<StorageObjectsChunk> callback)
+    {
+        return submit(new ServiceOperation<StorageObjectsChunk>() {
+            public StorageObjectsChunk perform() throws ServiceException {
+                return service.listObjectsChunked(bucketName, prefix, delimiter,
+                    maxListingLength, priorLastKey);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of
+     * {@link StorageService#copyObject(String, String, String, StorageObject, boolean)}.
+     *
+     * @param sourceBucketName
+     * @param sourceObjectKey
+     * @param destinationBucketName
+     * @param destinationObject
+     * @param replaceMetadata
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the header and result information of the copy.
+     */
+    public Future<Map<String, Object>> copyObject(final String sourceBucketName,
+        final String sourceObjectKey, final String destinationBucketName,
+        final StorageObject destinationObject, final boolean replaceMetadata,
+        ServiceCallback<Map<String, Object>> callback)
+    {
+        return submit(new ServiceOperation<Map<String, Object>>() {
+            public Map<String, Object> perform() throws ServiceException {
+                return service.copyObject(sourceBucketName, sourceObjectKey,
+                    destinationBucketName, destinationObject, replaceMetadata);
+            }
+        }, callback);
+    }
+
+    /**
+     * Asynchronous version of
+     * {@link S3Service#multipartUploadPart(MultipartUpload, Integer, S3Object)}.
+     * Only available when the underlying service is an {@link S3Service}.
+     *
+     * @param upload
+     * @param partNumber
+     * @param object
+     * @param callback
+     * notified of the outcome, may be null.
+     * @return
+     * a future for the uploaded part's information.
+     */
+    public Future<MultipartPart> multipartUploadPart(final MultipartUpload upload,
+        final Integer partNumber, final S3Object object,
+        ServiceCallback<MultipartPart> callback)
+    {
+        return submit(new ServiceOperation<MultipartPart>() {
+            public MultipartPart perform() throws ServiceException {
+                if (!(service instanceof S3Service)) {
+                    throw new ServiceException(
+                        "Multipart uploads are only supported by S3Service implementations");
+                }
+                return ((S3Service) service).multipartUploadPart(upload, partNumber, object);
+            }
+        }, callback);
+    }
+
+}
@@ -28,6 +28,7 @@ import java.security.NoSuchAlgorithmException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.io.CompressionCodec;
 import org.jets3t.service.io.GZipInflatingOutputStream;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.security.EncryptionUtil;
@@ -49,8 +50,12 @@ public class DownloadPackage {
     protected OutputStream outputStream = null;
     protected boolean isUnzipping = false;
     protected EncryptionUtil encryptionUtil = null;
+    protected CompressionCodec compressionCodec = null;
 
     private boolean appendToFile = false;
+    private boolean resumable = false;
+    private Long byteRangeStart = null;
+    private Long byteRangeEnd = null;
 
     public DownloadPackage(StorageObject object, File outputFile) {
         this(object, outputFile, false, null);
@@ -109,12 +114,79 @@ public class DownloadPackage {
         this.appendToFile = appendToFile;
     }
 
+    /**
+     * @return
+     * true if an interrupted download to this package's target file can be resumed.
+     * Downloads can only be resumed for packages with a target file whose data is
+     * written as-is, not inflated or decrypted, and that download the whole object.
+     */
+    public boolean isResumable() {
+        return resumable && outputFile != null && !isUnzipping && encryptionUtil == null
+            && compressionCodec == null && !isByteRange();
+    }
+
+    /**
+     * @return
+     * true if this package downloads only a range of the object's data.
+     */
+    public boolean isByteRange() {
+        return byteRangeStart != null;
+    }
+
+    public Long getByteRangeStart() {
+        return byteRangeStart;
+    }
+
+    public Long getByteRangeEnd() {
+        return byteRangeEnd;
+    }
+
+    /**
+     * Download only the given range of the object's data. The ETag of the object is the
+     * hash of all its data, so the data of a range is not verified against it.
+     *
+     * @param byteRangeStart
+     * the offset of the first byte to download.
+     * @param byteRangeEnd
+     * the offset of the last byte to download, or null to download to the end of the object.
+     */
+    public void setByteRange(Long byteRangeStart, Long byteRangeEnd) {
+        this.byteRangeStart = byteRangeStart;
+        this.byteRangeEnd = byteRangeEnd;
+    }
+
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * Set the codec used to decompress the object's data. If no codec is set, data is
+     * inflated as gzip when this package is unzipping.
+     *
+     * @param compressionCodec
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    /**
+     * If true, an interrupted download to the target file can be resumed from the end
+     * of the partial file, as recorded by a
+     * {@link org.jets3t.service.utils.DownloadCheckpoint} sidecar file. This option is
+     * ignored for packages with a target output stream or that inflate or decrypt data.
+     *
+     * @param resumable
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
     /**
      * Creates an output stream to receive the object's data. The output stream is either
      * the output stream provided to this package in its constructor, or an
      * automatically-created FileOutputStream if a File object was provided as the target
-     * output object. The output stream will also be wrapped in a GZipInflatingOutputStream if
-     * isUnzipping is true and/or a decrypting output stream if this package has an associated
+     * output object. The output stream will also be wrapped in a decompressing stream if
+     * this package has a compression codec or isUnzipping is true and/or a decrypting output stream if this package has an associated
      * non-null EncryptionUtil.
      *
      * @return
@@ -135,7 +207,11 @@ public class DownloadPackage {
             outputStream = this.outputStream;
         }
 
-        if (isUnzipping) {
+        if (compressionCodec != null) {
+            log.debug("Decompressing " + compressionCodec.getName()
+                + " data for object: " + object.getKey());
+            outputStream = compressionCodec.decompress(outputStream);
+        } else if (isUnzipping) {
             log.debug("Inflating gzipped data for object: " + object.getKey());
             outputStream = new GZipInflatingOutputStream(outputStream);
         }
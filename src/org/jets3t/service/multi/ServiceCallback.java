@@ -0,0 +1,47 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.multi;
+
+import org.jets3t.service.ServiceException;
+
+/**
+ * Receives the outcome of an operation performed by an {@link AsyncStorageService}.
+ * Callbacks are invoked on the thread that performed the operation, so they should
+ * return quickly and must not block waiting for other asynchronous operations.
+ *
+ * @author James Murty
+ *
+ * @param <T>
+ * the type of result produced by the operation.
+ */
+public interface ServiceCallback<T> {
+
+    /**
+     * @param result
+     * the result of the operation, null for operations with no result.
+     */
+    void succeeded(T result);
+
+    /**
+     * @param exception
+     * the exception that caused the operation to fail.
+     */
+    void failed(ServiceException exception);
+
+}
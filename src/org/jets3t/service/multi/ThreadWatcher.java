@@ -48,6 +48,7 @@ import org.jets3t.service.io.BytesProgressWatcher;
 public class ThreadWatcher {
     private long completedThreads = 0;
     private long threadCount = 0;
+    private int concurrentThreadCount = 0;
     private CancelEventTrigger cancelEventListener = null;
     private BytesProgressWatcher[] progressWatchers = null;
 
@@ -96,12 +97,43 @@ public class ThreadWatcher {
 
     /**
      * @return
-     * the total number of threads involved in an operation.
+     * the total number of threads involved in an operation. For operations that pull their
+     * tasks from an iterator this is the number of tasks started so far, which reaches the
+     * total once the iterator is exhausted.
      */
     public long getThreadCount() {
         return threadCount;
     }
 
+    /**
+     * Sets the total number of threads involved in an operation, for operations whose
+     * tasks are not all known when the operation starts.
+     *
+     * @param threadCount
+     */
+    public void updateThreadCount(long threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Sets the number of threads the operation may run at once.
+     *
+     * @param concurrentThreadCount
+     */
+    public void updateConcurrentThreadCount(int concurrentThreadCount) {
+        this.concurrentThreadCount = concurrentThreadCount;
+    }
+
+    /**
+     * @return
+     * the number of threads the operation may currently run at once. This is fixed by the
+     * maximum thread count properties, unless adaptive concurrency is enabled with the
+     * property <code>threaded-service.adaptive-concurrency-enabled</code>.
+     */
+    public int getConcurrentThreadCount() {
+        return concurrentThreadCount;
+    }
+
     /**
      * If this method returns true, the methods {@link #getBytesTotal()} and {@link #getBytesTransferred()}
      * will contain information about the amount of data being transferred by the watched threads.
@@ -21,13 +21,19 @@ package org.jets3t.service.multi;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,6 +43,7 @@ import org.jets3t.service.ServiceException;
 import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.StorageService;
 import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.impl.rest.httpclient.RequestScheduler;
 import org.jets3t.service.io.BytesProgressWatcher;
 import org.jets3t.service.io.InterruptableInputStream;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
@@ -56,6 +63,7 @@ import org.jets3t.service.multi.event.LookupACLEvent;
 import org.jets3t.service.multi.event.ServiceEvent;
 import org.jets3t.service.multi.event.UpdateACLEvent;
 import org.jets3t.service.security.ProviderCredentials;
+import org.jets3t.service.utils.DownloadCheckpoint;
 import org.jets3t.service.utils.ServiceUtils;
 
 /**
@@ -90,6 +98,24 @@ public class ThreadedStorageService {
         new ArrayList<StorageServiceEventListener>();
     protected final long sleepTime;
 
+    /**
+     * Limits that adapt the number of concurrent threads to the workload, or null if the
+     * maximum thread counts are fixed.
+     */
+    protected AdaptiveConcurrencyLimit concurrencyLimit = null;
+    protected AdaptiveConcurrencyLimit adminConcurrencyLimit = null;
+
+    /**
+     * Factory that creates virtual threads to run tasks, or null if tasks run on platform threads.
+     */
+    protected ThreadFactory virtualThreadFactory = null;
+
+    /**
+     * Priority class of the requests performed by this service's threads, or -1 if threads
+     * keep the default priority.
+     */
+    protected volatile int requestPriority = -1;
+
     /**
      * Construct a multi-threaded service based on a StorageService and which sends event notifications
      * to an event listening class. EVENT_IN_PROGRESS events are sent at the default time interval
@@ -149,6 +175,125 @@ public class ThreadedStorageService {
                 + adminMaxThreadCount
                 + ") simultaneous admin threads - please adjust JetS3t properties");
         }
+
+        if (this.storageService.getJetS3tProperties().getBoolProperty(
+            "threaded-service.adaptive-concurrency-enabled", false))
+        {
+            this.concurrencyLimit = createConcurrencyLimit(
+                Math.min(maxThreadCount, maxConnectionCount));
+            this.adminConcurrencyLimit = createConcurrencyLimit(
+                Math.min(adminMaxThreadCount, maxConnectionCount));
+        }
+
+        if (this.storageService.getJetS3tProperties().getBoolProperty(
+            "threaded-service.virtual-threads-enabled", false))
+        {
+            this.virtualThreadFactory = createVirtualThreadFactory(
+                "threaded-service.virtual-threads-enabled");
+        }
+    }
+
+    /**
+     * Look up the virtual thread factory of the running JVM via reflection, so this class
+     * still works on JVMs that do not support virtual threads.
+     *
+     * @param propertyName
+     * the property that enabled virtual threads, which is named in the warning logged
+     * if they are not supported.
+     * @return
+     * a factory of virtual threads, or null if the JVM does not support them.
+     */
+    protected static ThreadFactory createVirtualThreadFactory(String propertyName) {
+        try {
+            Method ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtualMethod.invoke(null);
+            Method factoryMethod = Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory");
+            return (ThreadFactory) factoryMethod.invoke(builder);
+        } catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Virtual threads are not available in this JVM, tasks will run"
+                    + " on platform threads instead (property " + propertyName
+                    + " is ignored)");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return
+     * true if tasks are run on virtual threads, false if they are run on platform threads.
+     */
+    public boolean isVirtualThreadsEnabled() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Set the priority class of the requests performed by this service's tasks, which is
+     * honoured by the {@link RequestScheduler} of the underlying service, if it has one.
+     * For example, a background synchronize job can use {@link RequestScheduler#PRIORITY_BULK}
+     * so that interactive requests sharing the same service are not queued behind it.
+     *
+     * @param requestPriority
+     * one of {@link RequestScheduler#PRIORITY_INTERACTIVE},
+     * {@link RequestScheduler#PRIORITY_NORMAL} or {@link RequestScheduler#PRIORITY_BULK}.
+     */
+    public void setRequestPriority(int requestPriority) {
+        if (requestPriority != RequestScheduler.PRIORITY_INTERACTIVE
+            && requestPriority != RequestScheduler.PRIORITY_NORMAL
+            && requestPriority != RequestScheduler.PRIORITY_BULK)
+        {
+            throw new IllegalArgumentException("Invalid request priority: " + requestPriority);
+        }
+        this.requestPriority = requestPriority;
+    }
+
+    /**
+     * @return
+     * the priority class of the requests performed by this service's tasks.
+     */
+    public int getRequestPriority() {
+        return (requestPriority < 0 ? RequestScheduler.PRIORITY_NORMAL : requestPriority);
+    }
+
+    /**
+     * Create the thread that will run a task, which is a virtual thread if
+     * {@link #isVirtualThreadsEnabled()}.
+     *
+     * @param runnable
+     * the task the thread will run.
+     * @return
+     * a new thread that has not been started.
+     */
+    protected Thread newThread(Runnable runnable) {
+        if (virtualThreadFactory != null) {
+            return virtualThreadFactory.newThread(runnable);
+        }
+        return new Thread(runnable);
+    }
+
+    private AdaptiveConcurrencyLimit createConcurrencyLimit(int maxLimit) {
+        int initialLimit = this.storageService.getJetS3tProperties().getIntProperty(
+            "threaded-service.adaptive-concurrency-initial-thread-count", 4);
+        return new AdaptiveConcurrencyLimit(initialLimit, 1, maxLimit);
+    }
+
+    /**
+     * @return
+     * the limit that adapts the number of threads running at once for data operations,
+     * or null if the <code>threaded-service.max-thread-count</code> is used as a fixed count.
+     */
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @return
+     * the limit that adapts the number of threads running at once for admin operations, or
+     * null if the <code>threaded-service.admin-max-thread-count</code> is used as a fixed count.
+     */
+    public AdaptiveConcurrencyLimit getAdminConcurrencyLimit() {
+        return adminConcurrencyLimit;
     }
 
     /**
@@ -412,7 +557,11 @@ public class ThreadedStorageService {
      * {@link CopyObjectsEvent} notification events.
      * <p>
      * The maximum number of threads is controlled by the JetS3t configuration property
-     * <tt>threaded-service.admin-max-thread-count</tt>.
+     * <tt>threaded-service.admin-max-thread-count</tt>. When the underlying service is an
+     * {@link org.jets3t.service.S3Service}, objects too large for a single copy request
+     * are copied as multipart uploads whose parts are themselves copied concurrently, see
+     * {@link org.jets3t.service.S3Service#copyObject(String, String, String, StorageObject,
+     * boolean, java.util.Calendar, java.util.Calendar, String[], String[])}.
      *
      * @param sourceBucketName
      * the name of the bucket containing the objects that will be copied.
@@ -493,6 +642,117 @@ public class ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * Copies multiple objects within or between buckets, while sending
+     * {@link CopyObjectsEvent} notification events. Objects to copy are pulled from the
+     * given iterators only as threads become available to copy them, so the work to be
+     * done need not be held in memory all at once.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.admin-max-thread-count</tt>. The completed event of this operation
+     * does not list the copied objects, which are instead reported by in-progress events,
+     * and the cancelled event lists only the copies that were underway.
+     *
+     * @param sourceBucketName
+     * the name of the bucket containing the objects that will be copied.
+     * @param destinationBucketName
+     * the name of the bucket to which the objects will be copied. The destination
+     * bucket may be the same as the source bucket.
+     * @param sourceObjectKeys
+     * the key names of the objects that will be copied.
+     * @param destinationObjects
+     * objects that will be created by the copy operation, in the same order as the
+     * source key names.
+     * @param replaceMetadata
+     * if true, the metadata items in the destination objects will be stored
+     * in using the REPLACE metadata copying option. If false, the metadata
+     * items will be copied unchanged from the original objects using the COPY
+     * metadata copying option.
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean copyObjects(final String sourceBucketName, final String destinationBucketName,
+        final Iterator<String> sourceObjectKeys,
+        final Iterator<? extends StorageObject> destinationObjects, final boolean replaceMetadata)
+    {
+        final List<CopyObjectRunnable> incompletedRunnablesList = new ArrayList<CopyObjectRunnable>();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        // Create each copy task only when a thread is available to run it.
+        Iterator<AbstractRunnable> runnables = new Iterator<AbstractRunnable>() {
+            public boolean hasNext() {
+                return sourceObjectKeys.hasNext() && destinationObjects.hasNext();
+            }
+            public AbstractRunnable next() {
+                CopyObjectRunnable runnable = new CopyObjectRunnable(sourceBucketName,
+                    destinationBucketName, sourceObjectKeys.next(), destinationObjects.next(),
+                    replaceMetadata);
+                incompletedRunnablesList.add(runnable);
+                return runnable;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // Wait for threads to finish, or be cancelled.
+        (new ThreadGroupManager(runnables, new ThreadWatcher(-1),
+            this.storageService.getJetS3tProperties(), true)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(CopyObjectsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                // Copy results are maps of response headers rather than objects, so
+                // identify completed copies by their runnables having a result.
+                Iterator<CopyObjectRunnable> iter = incompletedRunnablesList.iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().getResult() != null) {
+                        iter.remove();
+                    }
+                }
+                Map[] copyResults = (Map[]) completedResults
+                    .toArray(new Map[completedResults.size()]);
+                fireServiceEvent(CopyObjectsEvent.newInProgressEvent(threadWatcher,
+                    copyResults, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                List<StorageObject> incompletedObjectsList = new ArrayList<StorageObject>();
+                for (CopyObjectRunnable runnable: incompletedRunnablesList) {
+                    if (runnable.getResult() == null) {
+                        incompletedObjectsList.add(runnable.destinationObject);
+                    }
+                }
+                StorageObject[] incompletedObjects = incompletedObjectsList
+                    .toArray(new StorageObject[incompletedObjectsList.size()]);
+                success[0] = false;
+                fireServiceEvent(CopyObjectsEvent.newCancelledEvent(incompletedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(CopyObjectsEvent.newCompletedEvent(uniqueOperationId,
+                    new String[0], new StorageObject[0]));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(CopyObjectsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(CopyObjectsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
     /**
      * Creates multiple objects in a bucket, and sends {@link CreateObjectsEvent} notification events.
      * <p>
@@ -566,6 +826,90 @@ public class ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * Creates multiple objects in a bucket, and sends {@link CreateObjectsEvent} notification events.
+     * Objects are pulled from the given iterator only as threads become available to upload
+     * them, so an iterator that creates each object on demand keeps memory use and open
+     * files independent of the number of objects.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.max-thread-count</tt>. Progress events for this operation do
+     * not include byte transfer information, and the cancelled event lists only the
+     * uploads that were underway.
+     *
+     * @param bucketName
+     * name of the bucket where objects will be stored
+     * @param objects
+     * the objects to create/upload.
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean putObjects(final String bucketName,
+        final Iterator<? extends StorageObject> objects)
+    {
+        final List incompletedObjectsList = new ArrayList();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        // Create each upload task only when a thread is available to run it.
+        Iterator<AbstractRunnable> runnables = new Iterator<AbstractRunnable>() {
+            public boolean hasNext() {
+                return objects.hasNext();
+            }
+            public AbstractRunnable next() {
+                StorageObject object = objects.next();
+                incompletedObjectsList.add(object);
+                return new CreateObjectRunnable(bucketName, object,
+                    new BytesProgressWatcher(object.getContentLength()));
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // Wait for threads to finish, or be cancelled.
+        (new ThreadGroupManager(runnables, new ThreadWatcher(-1),
+            this.storageService.getJetS3tProperties(), false)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(CreateObjectsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                incompletedObjectsList.removeAll(completedResults);
+                StorageObject[] completedObjects = (StorageObject[]) completedResults
+                    .toArray(new StorageObject[completedResults.size()]);
+                fireServiceEvent(CreateObjectsEvent.newInProgressEvent(threadWatcher,
+                    completedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                StorageObject[] incompletedObjects = (StorageObject[]) incompletedObjectsList
+                    .toArray(new StorageObject[incompletedObjectsList.size()]);
+                success[0] = false;
+                fireServiceEvent(CreateObjectsEvent.newCancelledEvent(incompletedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(CreateObjectsEvent.newCompletedEvent(uniqueOperationId));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(CreateObjectsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(CreateObjectsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
     /**
      * Deletes multiple objects from a bucket, and sends {@link DeleteObjectsEvent} notification events.
      * <p>
@@ -655,6 +999,86 @@ public class ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * Deletes multiple objects from a bucket, and sends {@link DeleteObjectsEvent} notification events.
+     * Objects are pulled from the given iterator only as threads become available to delete
+     * them, so the objects need not all be held in memory at once.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.admin-max-thread-count</tt>. The cancelled event of this operation
+     * lists only the deletions that were underway.
+     *
+     * @param bucketName
+     * name of the bucket containing the objects to be deleted
+     * @param objects
+     * the objects to delete
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean deleteObjects(final String bucketName,
+        final Iterator<? extends StorageObject> objects)
+    {
+        final List objectsToDeleteList = new ArrayList();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        // Create each delete task only when a thread is available to run it.
+        Iterator<AbstractRunnable> runnables = new Iterator<AbstractRunnable>() {
+            public boolean hasNext() {
+                return objects.hasNext();
+            }
+            public AbstractRunnable next() {
+                StorageObject object = objects.next();
+                objectsToDeleteList.add(object);
+                return new DeleteObjectRunnable(bucketName, object);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // Wait for threads to finish, or be cancelled.
+        (new ThreadGroupManager(runnables, new ThreadWatcher(-1),
+            this.storageService.getJetS3tProperties(), true)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(DeleteObjectsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                objectsToDeleteList.removeAll(completedResults);
+                StorageObject[] deletedObjects = (StorageObject[]) completedResults
+                    .toArray(new StorageObject[completedResults.size()]);
+                fireServiceEvent(DeleteObjectsEvent.newInProgressEvent(threadWatcher, deletedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                StorageObject[] remainingObjects = (StorageObject[]) objectsToDeleteList
+                    .toArray(new StorageObject[objectsToDeleteList.size()]);
+                success[0] = false;
+                fireServiceEvent(DeleteObjectsEvent.newCancelledEvent(remainingObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(DeleteObjectsEvent.newCompletedEvent(uniqueOperationId));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(DeleteObjectsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(DeleteObjectsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
     /**
      * Retrieves multiple objects (details and data) from a bucket, and sends
      * {@link GetObjectsEvent} notification events.
@@ -894,6 +1318,97 @@ public class ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * Retrieves details (but no data) about multiple objects from a bucket, and sends
+     * {@link GetObjectHeadsEvent} notification events. Key names are pulled from the given
+     * iterator only as threads become available to look them up, so the key names need not
+     * all be held in memory at once.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.admin-max-thread-count</tt>. The cancelled event of this operation
+     * lists only the look-ups that were underway.
+     *
+     * @param bucketName
+     * name of the bucket containing the objects.
+     * @param objectKeys
+     * the key names of the objects with details to retrieve.
+     * @param errorPermitter
+     * callback handler to decide which errors will cause a {@link ThrowableBearingStorageObject}
+     * to pass through the system instead of raising an exception and aborting the operation.
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean getObjectsHeads(final String bucketName, final Iterator<String> objectKeys,
+        final ErrorPermitter errorPermitter)
+    {
+        final List pendingObjectKeysList = new ArrayList();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        // Create each look-up task only when a thread is available to run it.
+        Iterator<AbstractRunnable> runnables = new Iterator<AbstractRunnable>() {
+            public boolean hasNext() {
+                return objectKeys.hasNext();
+            }
+            public AbstractRunnable next() {
+                String objectKey = objectKeys.next();
+                pendingObjectKeysList.add(objectKey);
+                return new GetObjectRunnable(bucketName, objectKey, true, errorPermitter);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // Wait for threads to finish, or be cancelled.
+        (new ThreadGroupManager(runnables, new ThreadWatcher(-1),
+            this.storageService.getJetS3tProperties(), true)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(GetObjectHeadsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                StorageObject[] completedObjects = (StorageObject[]) completedResults
+                    .toArray(new StorageObject[completedResults.size()]);
+                for (int i = 0; i < completedObjects.length; i++) {
+                    pendingObjectKeysList.remove(completedObjects[i].getKey());
+                }
+                fireServiceEvent(GetObjectHeadsEvent.newInProgressEvent(threadWatcher, completedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                List cancelledObjectsList = new ArrayList();
+                Iterator iter = pendingObjectKeysList.iterator();
+                while (iter.hasNext()) {
+                    String key = (String) iter.next();
+                    cancelledObjectsList.add(new StorageObject(key));
+                }
+                StorageObject[] cancelledObjects = (StorageObject[]) cancelledObjectsList
+                    .toArray(new StorageObject[cancelledObjectsList.size()]);
+                success[0] = false;
+                fireServiceEvent(GetObjectHeadsEvent.newCancelledEvent(cancelledObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(GetObjectHeadsEvent.newCompletedEvent(uniqueOperationId));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(GetObjectHeadsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(GetObjectHeadsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
     /**
      * Retrieves Access Control List (ACL) information for multiple objects from a bucket, and sends
      * {@link LookupACLEvent} notification events.
@@ -1094,12 +1609,17 @@ public class ThreadedStorageService {
 
         boolean restoreLastModifiedDate = this.storageService.getJetS3tProperties()
             .getBoolProperty("downloads.restoreLastModifiedDate", false);
+        boolean resumePartialFiles = this.storageService.getJetS3tProperties()
+            .getBoolProperty("downloads.resumePartialFiles", false);
 
         // Start all queries in the background.
         DownloadObjectRunnable[] runnables = new DownloadObjectRunnable[downloadPackages.length];
         final StorageObject[] objects = new StorageObject[downloadPackages.length];
         for (int i = 0; i < runnables.length; i++) {
             objects[i] = downloadPackages[i].getObject();
+            if (resumePartialFiles) {
+                downloadPackages[i].setResumable(true);
+            }
 
             BytesProgressWatcher progressMonitor = new BytesProgressWatcher(objects[i].getContentLength());
 
@@ -1153,6 +1673,106 @@ public class ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * A convenience method to download multiple objects to output streams, pulling download
+     * packages from the given iterator only as threads become available to download them.
+     * Each package's output stream is opened just before its download starts, so an iterator
+     * that creates packages on demand keeps memory use and open files independent of the
+     * number of objects.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.max-thread-count</tt>. Progress events for this operation do
+     * not include byte transfer information, and the cancelled event lists only the
+     * downloads that were underway.
+     *
+     * @param bucketName
+     * name of the bucket containing the objects
+     * @param downloadPackages
+     * download packages containing the object to be downloaded, and able to build
+     * an output stream where the object's contents will be written to.
+     * @param errorPermitter
+     * callback handler to decide which errors will cause a {@link ThrowableBearingStorageObject}
+     * to pass through the system instead of raising an exception and aborting the operation.
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     * @throws ServiceException
+     */
+    public boolean downloadObjects(final String bucketName,
+        final Iterator<DownloadPackage> downloadPackages, final ErrorPermitter errorPermitter)
+        throws ServiceException
+    {
+        final List incompleteObjectDownloadList = new ArrayList();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        final boolean restoreLastModifiedDate = this.storageService.getJetS3tProperties()
+            .getBoolProperty("downloads.restoreLastModifiedDate", false);
+        final boolean resumePartialFiles = this.storageService.getJetS3tProperties()
+            .getBoolProperty("downloads.resumePartialFiles", false);
+
+        // Create each download task only when a thread is available to run it.
+        Iterator<AbstractRunnable> runnables = new Iterator<AbstractRunnable>() {
+            public boolean hasNext() {
+                return downloadPackages.hasNext();
+            }
+            public AbstractRunnable next() {
+                DownloadPackage downloadPackage = downloadPackages.next();
+                StorageObject object = downloadPackage.getObject();
+                if (resumePartialFiles) {
+                    downloadPackage.setResumable(true);
+                }
+                incompleteObjectDownloadList.add(object);
+                return new DownloadObjectRunnable(bucketName, object.getKey(), downloadPackage,
+                    new BytesProgressWatcher(object.getContentLength()),
+                    restoreLastModifiedDate, errorPermitter);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // Wait for threads to finish, or be cancelled.
+        (new ThreadGroupManager(runnables, new ThreadWatcher(-1),
+            this.storageService.getJetS3tProperties(), false)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(DownloadObjectsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                incompleteObjectDownloadList.removeAll(completedResults);
+                StorageObject[] completedObjects = (StorageObject[]) completedResults
+                    .toArray(new StorageObject[completedResults.size()]);
+                fireServiceEvent(DownloadObjectsEvent.newInProgressEvent(threadWatcher, completedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                StorageObject[] incompleteObjects = (StorageObject[]) incompleteObjectDownloadList
+                    .toArray(new StorageObject[incompleteObjectDownloadList.size()]);
+                success[0] = false;
+                fireServiceEvent(DownloadObjectsEvent.newCancelledEvent(incompleteObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(DownloadObjectsEvent.newCompletedEvent(uniqueOperationId));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(DownloadObjectsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(DownloadObjectsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
     ///////////////////////////////////////////////
     // Private classes used by the methods above //
     ///////////////////////////////////////////////
@@ -1168,6 +1788,15 @@ public class ThreadedStorageService {
 
         public abstract void forceInterruptCalled();
 
+        /**
+         * @return
+         * the number of bytes of object data this task has sent or received, so the
+         * durations of tasks transferring different amounts of data can be compared.
+         */
+        public long getBytesTransferred() {
+            return 0;
+        }
+
         protected void forceInterrupt() {
             forceInterruptCalled();
         }
@@ -1424,6 +2053,11 @@ public class ThreadedStorageService {
             return result;
         }
 
+        @Override
+        public long getBytesTransferred() {
+            return progressMonitor.getBytesTransferred();
+        }
+
         @Override
         public void forceInterruptCalled() {
             if (interruptableInputStream != null) {
@@ -1537,6 +2171,7 @@ public class ThreadedStorageService {
         private BytesProgressWatcher progressMonitor = null;
         private boolean restoreLastModifiedDate = true;
         private ErrorPermitter errorPermitter = null;
+        private long resumedByteCount = 0;
 
         private Object result = null;
 
@@ -1558,8 +2193,79 @@ public class ThreadedStorageService {
             StorageObject object = null;
 
             try {
-                object = storageService.getObject(
-                    bucketName, objectKey);
+                MessageDigest messageDigest = null;
+                try {
+                    messageDigest = MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Unable to calculate MD5 hash of data received as algorithm is not available", e);
+                    }
+                }
+
+                // Resume an interrupted download from the end of a partial file, if possible.
+                DownloadCheckpoint checkpoint = null;
+                long resumeOffset = 0;
+                if (downloadPackage.isResumable()) {
+                    File dataFile = downloadPackage.getDataFile();
+                    checkpoint = DownloadCheckpoint.load(
+                        DownloadCheckpoint.getSidecarFile(dataFile));
+                    if (checkpoint != null && dataFile.exists() && dataFile.length() > 0
+                        && dataFile.length() < checkpoint.getContentLength())
+                    {
+                        resumeOffset = dataFile.length();
+                    }
+                }
+                if (resumeOffset > 0) {
+                    try {
+                        object = storageService.getObject(bucketName, objectKey, null, null,
+                            new String[] {checkpoint.getETag()}, null, resumeOffset, null);
+                    } catch (ServiceException e) {
+                        // Precondition Failed or Range Not Satisfiable: object has changed
+                        if (e.getResponseCode() != 412 && e.getResponseCode() != 416) {
+                            throw e;
+                        }
+                        if (log.isWarnEnabled()) {
+                            log.warn("Object '" + objectKey + "' has changed since the partial"
+                                + " download to " + downloadPackage.getDataFile()
+                                + ", downloading it again in full");
+                        }
+                        resumeOffset = 0;
+                    }
+                }
+                if (resumeOffset > 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Resuming download of object '" + objectKey + "' at byte "
+                            + resumeOffset + " of " + checkpoint.getContentLength());
+                    }
+                    // Hash the data already downloaded so the whole file can be verified.
+                    if (messageDigest != null) {
+                        updateDigestWithFile(messageDigest, downloadPackage.getDataFile());
+                    }
+                    object.setContentLength(checkpoint.getContentLength());
+                    progressMonitor.updateBytesTransferred(resumeOffset);
+                    resumedByteCount = resumeOffset;
+                    downloadPackage.setAppendToFile(true);
+                } else if (downloadPackage.isByteRange()) {
+                    object = storageService.getObject(bucketName, objectKey, null, null,
+                        null, null, downloadPackage.getByteRangeStart(),
+                        downloadPackage.getByteRangeEnd());
+                    // The ETag is the hash of all the object's data, not of this range
+                    messageDigest = null;
+                } else {
+                    object = storageService.getObject(
+                        bucketName, objectKey);
+                    if (downloadPackage.isResumable()) {
+                        downloadPackage.setAppendToFile(false);
+                        if (object.getETag() != null) {
+                            checkpoint = new DownloadCheckpoint(
+                                DownloadCheckpoint.getSidecarFile(downloadPackage.getDataFile()),
+                                object.getETag(), object.getContentLength());
+                            checkpoint.save();
+                        } else {
+                            checkpoint = null;
+                        }
+                    }
+                }
 
                 // Replace the object in the download package with the downloaded version to make metadata available.
                 downloadPackage.setObject(object);
@@ -1572,15 +2278,6 @@ public class ThreadedStorageService {
                 bufferedOutputStream = new BufferedOutputStream(
                     downloadPackage.getOutputStream());
 
-                MessageDigest messageDigest = null;
-                try {
-                    messageDigest = MessageDigest.getInstance("MD5");
-                } catch (NoSuchAlgorithmException e) {
-                    if (log.isWarnEnabled()) {
-                        log.warn("Unable to calculate MD5 hash of data received as algorithm is not available", e);
-                    }
-                }
-
                 try {
                     byte[] buffer = new byte[1024];
                     int byteCount = -1;
@@ -1612,6 +2309,10 @@ public class ThreadedStorageService {
                             }
                         } else {
                             if (!hexMD5OfDownloadedData.equals(object.getETag())) {
+                                // Don't resume a corrupt partial file.
+                                if (checkpoint != null) {
+                                    checkpoint.delete();
+                                }
                                 throw new ServiceException("Mismatch between MD5 hash of downloaded data ("
                                     + hexMD5OfDownloadedData + ") and ETag returned by service ("
                                     + object.getETag() + ") for object key: "
@@ -1634,12 +2335,19 @@ public class ThreadedStorageService {
                     }
                 }
 
+                if (checkpoint != null) {
+                    checkpoint.delete();
+                }
+
                 object.setDataInputStream(null);
                 object.setDataInputFile(downloadPackage.getDataFile());
 
-                // If data was downloaded to a file, set the file's Last Modified date
-                // to the original last modified date metadata stored with the object.
-                if (restoreLastModifiedDate && downloadPackage.getDataFile() != null) {
+                // If data was downloaded to a file, set the file's Last Modified
+                // date to the original last modified date metadata stored with the object,
+                // unless only a range of the object's data was downloaded.
+                if (restoreLastModifiedDate && downloadPackage.getDataFile() != null
+                    && !downloadPackage.isByteRange())
+                {
                     String metadataLocalFileDate = (String) object.getMetadata(
                         Constants.METADATA_JETS3T_LOCAL_FILE_DATE);
 
@@ -1683,11 +2391,31 @@ public class ThreadedStorageService {
             }
         }
 
+        private void updateDigestWithFile(MessageDigest messageDigest, File file)
+            throws IOException
+        {
+            InputStream is = new BufferedInputStream(new FileInputStream(file));
+            try {
+                byte[] buffer = new byte[16384];
+                int byteCount = -1;
+                while ((byteCount = is.read(buffer)) != -1) {
+                    messageDigest.update(buffer, 0, byteCount);
+                }
+            } finally {
+                is.close();
+            }
+        }
+
         @Override
         public Object getResult() {
             return result;
         }
 
+        @Override
+        public long getBytesTransferred() {
+            return progressMonitor.getBytesTransferred() - resumedByteCount;
+        }
+
         @Override
         public void forceInterruptCalled() {
             if (interruptableInputStream != null) {
@@ -1708,31 +2436,31 @@ public class ThreadedStorageService {
     protected abstract class ThreadGroupManager {
         private final Log log = LogFactory.getLog(ThreadGroupManager.class);
         private int maxThreadCount = 1;
+        private AdaptiveConcurrencyLimit limit = null;
 
         /**
-         * the set of runnable objects to execute.
+         * the runnable objects yet to be started, pulled only as threads become available.
          */
-        private AbstractRunnable[] runnables = null;
+        private volatile Iterator<AbstractRunnable> pendingRunnables = null;
 
         /**
-         * Thread objects that are currently running, where the index corresponds to the
-         * runnables index. Any AbstractThread runnable that is not started, or has completed,
-         * will have a null value in this array.
+         * true if the total number of runnables was known in advance and given to the
+         * thread watcher, false if the total is only known once all runnables are started.
          */
-        private Thread[] threads = null;
-
-        private boolean ignoreExceptions = false;
+        private boolean isRunnableCountKnown = true;
 
         /**
-         * set of flags indicating which runnable items have been started
+         * Runnables that have been started, and their Thread objects, which have not yet
+         * had In Progress events fired on their behalf. These lists never grow larger than
+         * the number of threads allowed to run at once.
          */
-        private boolean started[] = null;
+        private final List<AbstractRunnable> runnables = new ArrayList<AbstractRunnable>();
+        private final List<Thread> threads = new ArrayList<Thread>();
 
-        /**
-         * set of flags indicating which threads have already had In Progress events fired on
-         * their behalf. These threads have finished running.
-         */
-        private boolean alreadyFired[] = null;
+        private long startedCount = 0;
+        private long completedCount = 0;
+
+        private boolean ignoreExceptions = false;
 
         private ThreadWatcher threadWatcher = null;
 
@@ -1743,21 +2471,35 @@ public class ThreadedStorageService {
             ThreadWatcher threadWatcher, Jets3tProperties jets3tProperties,
             boolean isAdminTask)
         {
-            this.runnables = runnables;
+            this(Arrays.asList(runnables).iterator(), threadWatcher, jets3tProperties,
+                isAdminTask);
+        }
+
+        /**
+         * Construct a manager that pulls runnables from an iterator only as threads become
+         * available to run them, so the runnables need not all exist at once. If the thread
+         * watcher's thread count is negative, it is updated as runnables are started.
+         */
+        public ThreadGroupManager(Iterator<? extends AbstractRunnable> runnables,
+            ThreadWatcher threadWatcher, Jets3tProperties jets3tProperties,
+            boolean isAdminTask)
+        {
+            @SuppressWarnings("unchecked")
+            Iterator<AbstractRunnable> pendingRunnables = (Iterator<AbstractRunnable>) runnables;
+            this.pendingRunnables = pendingRunnables;
             this.threadWatcher = threadWatcher;
+            this.isRunnableCountKnown = threadWatcher.getThreadCount() >= 0;
             if (isAdminTask) {
                 this.maxThreadCount = jets3tProperties
                     .getIntProperty("threaded-service.admin-max-thread-count", 20);
+                this.limit = adminConcurrencyLimit;
             } else {
                 this.maxThreadCount = jets3tProperties
                     .getIntProperty("threaded-service.max-thread-count", 2);
+                this.limit = concurrencyLimit;
             }
             this.ignoreExceptions = jets3tProperties
                 .getBoolProperty("threaded-service.ignore-exceptions-in-multi", false);
-
-            this.threads = new Thread[runnables.length];
-            started = new boolean[runnables.length]; // All values initialized to false.
-            alreadyFired = new boolean[runnables.length]; // All values initialized to false.
         }
 
         /**
@@ -1775,18 +2517,23 @@ public class ThreadedStorageService {
             ArrayList completedResults = new ArrayList();
             ArrayList errorResults = new ArrayList();
 
-            for (int i = 0; i < threads.length; i++) {
-                if (!alreadyFired[i] && started[i] && !threads[i].isAlive()) {
-                    alreadyFired[i] = true;
+            for (int i = 0; i < threads.size(); i++) {
+                if (!threads.get(i).isAlive()) {
+                    AbstractRunnable runnable;
+                    synchronized (runnables) {
+                        runnable = runnables.remove(i);
+                    }
+                    threads.remove(i);
+                    i--;
+                    completedCount++;
                     if (log.isDebugEnabled()) {
-                        log.debug("Thread " + (i+1) + " of " + threads.length
+                        log.debug("Thread " + completedCount + " of "
+                            + (isRunnableCountKnown ? String.valueOf(threadWatcher.getThreadCount()) : "?")
                             + " has recently completed, releasing resources");
                     }
 
-                    if (runnables[i].getResult() instanceof Throwable) {
-                        Throwable throwable = (Throwable) runnables[i].getResult();
-                        runnables[i] = null;
-                        threads[i] = null;
+                    if (runnable.getResult() instanceof Throwable) {
+                        Throwable throwable = (Throwable) runnable.getResult();
 
                         if (ignoreExceptions) {
                             // Ignore exceptions
@@ -1800,9 +2547,7 @@ public class ThreadedStorageService {
                             throw throwable;
                         }
                     } else {
-                        completedResults.add(runnables[i].getResult());
-                        runnables[i] = null;
-                        threads[i] = null;
+                        completedResults.add(runnable.getResult());
                     }
                 }
             }
@@ -1815,49 +2560,67 @@ public class ThreadedStorageService {
             return new ResultsTuple(completedResults, ignoredErrors);
         }
 
+        /**
+         * @return
+         * the number of threads that may run at once, which varies over time if an
+         * adaptive concurrency limit is in use.
+         */
+        private int getConcurrentThreadCount() {
+            if (limit != null) {
+                return Math.min(maxThreadCount, limit.getLimit());
+            }
+            return maxThreadCount;
+        }
+
         /**
          * Starts pending threads such that the total of running threads never exceeds the
-         * maximum count set in the JetS3t property <i>threaded-service.max-thread-count</i>.
+         * maximum count set in the JetS3t property <i>threaded-service.max-thread-count</i>,
+         * or the current adaptive concurrency limit if that is lower.
          *
          * @throws Throwable
          */
         private void startPendingThreads()
             throws Throwable
         {
-            // Count active threads that are running (i.e. have been started but final event not fired)
-            int runningThreadCount = 0;
-            for (int i = 0; i < runnables.length; i++) {
-                if (started[i] && !alreadyFired[i]) {
-                    runningThreadCount++;
+            int concurrentThreadCount = getConcurrentThreadCount();
+            threadWatcher.updateConcurrentThreadCount(concurrentThreadCount);
+
+            // Threads that have been started but whose final event has not been fired
+            // count as running. Start threads until we are running the maximum number allowed.
+            while (threads.size() < concurrentThreadCount && pendingRunnables.hasNext()) {
+                AbstractRunnable runnable = pendingRunnables.next();
+                Runnable task = runnable;
+                if (limit != null) {
+                    task = new MeasuredRunnable(runnable, limit);
                 }
-            }
-
-            // Start threads until we are running the maximum number allowed.
-            for (int i = 0; runningThreadCount < maxThreadCount && i < started.length; i++) {
-                if (!started[i]) {
-                    threads[i] = new Thread(runnables[i]);
-                    threads[i].start();
-                    started[i] = true;
-                    runningThreadCount++;
-                    if (log.isDebugEnabled()) {
-                        log.debug("Thread " + (i+1) + " of " + runnables.length + " has started");
-                    }
+                if (requestPriority >= 0) {
+                    task = new PrioritizedRunnable(task, requestPriority);
+                }
+                Thread thread = newThread(task);
+                synchronized (runnables) {
+                    runnables.add(runnable);
+                }
+                threads.add(thread);
+                thread.start();
+                startedCount++;
+                if (!isRunnableCountKnown) {
+                    threadWatcher.updateThreadCount(startedCount);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Thread " + startedCount + " of "
+                        + (isRunnableCountKnown ? String.valueOf(threadWatcher.getThreadCount()) : "?")
+                        + " has started");
                 }
             }
         }
 
         /**
          * @return
-         * the number of threads that have not finished running (sum of those currently running, and those awaiting start)
+         * true if any threads have not finished running (those currently running, and those
+         * awaiting start)
          */
-        private int getPendingThreadCount() {
-            int pendingThreadCount = 0;
-            for (int i = 0; i < runnables.length; i++) {
-                if (!alreadyFired[i]) {
-                    pendingThreadCount++;
-                }
-            }
-            return pendingThreadCount;
+        private boolean hasPendingThreads() {
+            return !threads.isEmpty() || pendingRunnables.hasNext();
         }
 
         /**
@@ -1868,12 +2631,13 @@ public class ThreadedStorageService {
             if (log.isDebugEnabled()) {
                 log.debug("Setting force interrupt flag on all runnables");
             }
-            for (int i = 0; i < runnables.length; i++) {
-                if (runnables[i] != null) {
-                    runnables[i].forceInterrupt();
-                    runnables[i] = null;
+            synchronized (runnables) {
+                for (AbstractRunnable runnable: runnables) {
+                    runnable.forceInterrupt();
                 }
             }
+            // Start no more runnables
+            pendingRunnables = Collections.<AbstractRunnable>emptyList().iterator();
         }
 
         /**
@@ -1916,7 +2680,7 @@ public class ThreadedStorageService {
 
                 // Loop while threads haven't been interrupted/cancelled, and at least one thread is
                 // still active (ie hasn't finished its work)
-                while (!interrupted[0] && getPendingThreadCount() > 0) {
+                while (!interrupted[0] && hasPendingThreads()) {
                     try {
                         // Shut down threads if this service has been shutdown.
                         if (isShutdown[0]) {
@@ -1930,9 +2694,8 @@ public class ThreadedStorageService {
                         } else {
                             if (System.currentTimeMillis() - lastProgressEventFiredTime > sleepTime) {
                                 // Fire progress event.
-                                int completedThreads = runnables.length - getPendingThreadCount();
-                                threadWatcher.updateThreadsCompletedCount(completedThreads, cancelEventTrigger);
                                 ResultsTuple results = getNewlyCompletedResults();
+                                threadWatcher.updateThreadsCompletedCount(completedCount, cancelEventTrigger);
 
                                 lastProgressEventFiredTime = System.currentTimeMillis();
                                 fireProgressEvent(threadWatcher, results.completedResults);
@@ -1954,9 +2717,8 @@ public class ThreadedStorageService {
                 if (interrupted[0]) {
                     fireCancelEvent();
                 } else {
-                    int completedThreads = runnables.length - getPendingThreadCount();
-                    threadWatcher.updateThreadsCompletedCount(completedThreads, cancelEventTrigger);
                     ResultsTuple results = getNewlyCompletedResults();
+                    threadWatcher.updateThreadsCompletedCount(completedCount, cancelEventTrigger);
 
                     fireProgressEvent(threadWatcher, results.completedResults);
                     if (results.completedResults.size() > 0) {
@@ -1994,6 +2756,52 @@ public class ThreadedStorageService {
 
         public abstract void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors);
 
+        /**
+         * Runs a task and reports its duration and outcome to a concurrency limit.
+         */
+        private class MeasuredRunnable implements Runnable {
+            private final AbstractRunnable runnable;
+            private final AdaptiveConcurrencyLimit limit;
+
+            public MeasuredRunnable(AbstractRunnable runnable, AdaptiveConcurrencyLimit limit) {
+                this.runnable = runnable;
+                this.limit = limit;
+            }
+
+            public void run() {
+                long startTime = System.nanoTime();
+                try {
+                    runnable.run();
+                } finally {
+                    limit.onSample(System.nanoTime() - startTime,
+                        runnable.getBytesTransferred(),
+                        runnable.getResult() instanceof Throwable);
+                }
+            }
+        }
+
+        /**
+         * Runs a task with the priority class of its requests set for the scheduler.
+         */
+        private class PrioritizedRunnable implements Runnable {
+            private final Runnable runnable;
+            private final int priority;
+
+            public PrioritizedRunnable(Runnable runnable, int priority) {
+                this.runnable = runnable;
+                this.priority = priority;
+            }
+
+            public void run() {
+                RequestScheduler.setCurrentPriority(priority);
+                try {
+                    runnable.run();
+                } finally {
+                    RequestScheduler.clearCurrentPriority();
+                }
+            }
+        }
+
         private class ResultsTuple {
             public List completedResults = null;
             public Throwable[] errorResults = null;
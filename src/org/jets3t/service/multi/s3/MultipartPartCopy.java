@@ -0,0 +1,81 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.multi.s3;
+
+import org.jets3t.service.model.MultipartUpload;
+
+
+/**
+ * Packages together a MultipartUpload and the details of a part to copy into it
+ * from a range of an existing object.
+ *
+ * @author James Murty
+ */
+public class MultipartPartCopy {
+
+    private MultipartUpload multipartUpload;
+    private Integer partNumber;
+    private String sourceBucketName;
+    private String sourceObjectKey;
+    private String[] ifMatchTags;
+    private Long byteRangeStart;
+    private Long byteRangeEnd;
+
+    public MultipartPartCopy(MultipartUpload multipartUpload, Integer partNumber,
+        String sourceBucketName, String sourceObjectKey, String[] ifMatchTags,
+        Long byteRangeStart, Long byteRangeEnd)
+    {
+        this.multipartUpload = multipartUpload;
+        this.partNumber = partNumber;
+        this.sourceBucketName = sourceBucketName;
+        this.sourceObjectKey = sourceObjectKey;
+        this.ifMatchTags = ifMatchTags;
+        this.byteRangeStart = byteRangeStart;
+        this.byteRangeEnd = byteRangeEnd;
+    }
+
+    public MultipartUpload getMultipartUpload() {
+        return multipartUpload;
+    }
+
+    public Integer getPartNumber() {
+        return partNumber;
+    }
+
+    public String getSourceBucketName() {
+        return sourceBucketName;
+    }
+
+    public String getSourceObjectKey() {
+        return sourceObjectKey;
+    }
+
+    public String[] getIfMatchTags() {
+        return ifMatchTags;
+    }
+
+    public Long getByteRangeStart() {
+        return byteRangeStart;
+    }
+
+    public Long getByteRangeEnd() {
+        return byteRangeEnd;
+    }
+
+}
@@ -1,7 +1,15 @@
 package org.jets3t.service.multi.s3;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,7 +25,11 @@ import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.multi.StorageServiceEventListener;
 import org.jets3t.service.multi.ThreadWatcher;
 import org.jets3t.service.multi.ThreadedStorageService;
+import org.jets3t.service.multi.event.CreateObjectsEvent;
 import org.jets3t.service.multi.event.ServiceEvent;
+import org.jets3t.service.security.EncryptionUtil;
+import org.jets3t.service.utils.MultipartUploadOutputStream;
+import org.jets3t.service.utils.ObjectUtils;
 
 public class ThreadedS3Service extends ThreadedStorageService {
     private static final Log log = LogFactory.getLog(ThreadedS3Service.class);
@@ -292,6 +304,196 @@ public class ThreadedS3Service extends ThreadedStorageService {
         return success[0];
     }
 
+    /**
+     * Copies ranges of existing objects as parts of multipart uploads, and sends
+     * {@link MultipartUploadsEvent} notification events. The completed objects reported
+     * by the events have the key of each part's upload and the length of its range.
+     * <p>
+     * The data is copied by the service, so the maximum number of threads is controlled
+     * by the JetS3t configuration property <tt>threaded-service.max-admin-thread-count</tt>.
+     *
+     * @param partCopies
+     * list of wrapper objects containing a previously-started MultipartUpload and the
+     * source object and range of a part that will make up the final object.
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean multipartCopyParts(List<MultipartPartCopy> partCopies)
+    {
+        assertIsS3Service();
+        final List<StorageObject> incompletedObjectsList = new ArrayList<StorageObject>();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        // Start all queries in the background.
+        List<MultipartCopyPartRunnable> runnableList =
+            new ArrayList<MultipartCopyPartRunnable>();
+        for (MultipartPartCopy partCopy: partCopies) {
+            S3Object partObject = new S3Object(partCopy.getMultipartUpload().getObjectKey());
+            partObject.setContentLength(
+                partCopy.getByteRangeEnd() - partCopy.getByteRangeStart() + 1);
+            incompletedObjectsList.add(partObject);
+            runnableList.add(new MultipartCopyPartRunnable(partCopy, partObject));
+        }
+
+        // Wait for threads to finish, or be canceled.
+        ThreadWatcher threadWatcher = new ThreadWatcher(runnableList.size());
+        (new ThreadGroupManager(runnableList.toArray(new MultipartCopyPartRunnable[] {}),
+            threadWatcher, this.storageService.getJetS3tProperties(), true)
+        {
+            @Override
+            public void fireStartEvent(ThreadWatcher threadWatcher) {
+                fireServiceEvent(MultipartUploadsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+            }
+            @Override
+            public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                incompletedObjectsList.removeAll(completedResults);
+                StorageObject[] completedObjects = (StorageObject[]) completedResults
+                    .toArray(new StorageObject[completedResults.size()]);
+                fireServiceEvent(MultipartUploadsEvent.newInProgressEvent(threadWatcher,
+                    completedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCancelEvent() {
+                StorageObject[] incompletedObjects = incompletedObjectsList
+                    .toArray(new StorageObject[incompletedObjectsList.size()]);
+                success[0] = false;
+                fireServiceEvent(MultipartUploadsEvent.newCancelledEvent(incompletedObjects, uniqueOperationId));
+            }
+            @Override
+            public void fireCompletedEvent() {
+                fireServiceEvent(MultipartUploadsEvent.newCompletedEvent(uniqueOperationId));
+            }
+            @Override
+            public void fireErrorEvent(Throwable throwable) {
+                success[0] = false;
+                fireServiceEvent(MultipartUploadsEvent.newErrorEvent(throwable, uniqueOperationId));
+            }
+            @Override
+            public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                success[0] = false;
+                fireServiceEvent(MultipartUploadsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+            }
+        }).run();
+
+        return success[0];
+    }
+
+    /**
+     * Uploads files as objects, gzipping and/or encrypting their data as it is sent, and
+     * sends {@link CreateObjectsEvent} notification events. Each file is uploaded with
+     * {@link ObjectUtils#putObjectWithStreamingTransform(S3Service, String, S3Object,
+     * InputStream, long, EncryptionUtil, boolean, long, ExecutorService, BlockingQueue)},
+     * after the file is hashed if its object has no original hash metadata item.
+     * <p>
+     * The maximum number of threads is controlled by the JetS3t configuration property
+     * <tt>threaded-service.max-thread-count</tt>. All the uploads share one pool of
+     * <tt>uploads.stream-part-buffer-count</tt> part buffers (default: 4), and the threads
+     * that upload those parts, so the memory used for parts is limited to that many
+     * times the part size however many files are uploaded at once.
+     *
+     * @param bucketName
+     * name of the bucket where objects will be stored.
+     * @param objects
+     * objects created for the files by {@link ObjectUtils#createObjectForStreamingUpload}.
+     * @param files
+     * the files to upload, in the same order as the objects.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the files' data.
+     * @param gzipFiles
+     * if true the files will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     * @param partSize
+     * the size of each part of a multipart upload.
+     *
+     * @return
+     * true if all the threaded tasks completed successfully, false otherwise.
+     */
+    public boolean putObjectsWithStreamingTransform(final String bucketName,
+        final S3Object[] objects, final File[] files, final EncryptionUtil encryptionUtil,
+        final boolean gzipFiles, final long partSize)
+    {
+        assertIsS3Service();
+        final List<StorageObject> incompletedObjectsList = new ArrayList<StorageObject>();
+        final List<BytesProgressWatcher> progressWatchers = new ArrayList<BytesProgressWatcher>();
+        final Object uniqueOperationId = new Object(); // Special object used to identify this operation.
+        final boolean[] success = new boolean[] {true};
+
+        int bufferCount = Math.max(1, this.storageService.getJetS3tProperties()
+            .getIntProperty("uploads.stream-part-buffer-count", 4));
+        BlockingQueue<byte[]> bufferPool = MultipartUploadOutputStream.createBufferPool(bufferCount);
+        // Each part being uploaded holds a buffer, so more threads than buffers are idle
+        ExecutorService partExecutor = Executors.newFixedThreadPool(bufferCount,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = ThreadedS3Service.this.newThread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        // Start all uploads in the background.
+        List<StreamingTransformUploadRunnable> runnableList =
+            new ArrayList<StreamingTransformUploadRunnable>();
+        for (int i = 0; i < objects.length; i++) {
+            incompletedObjectsList.add(objects[i]);
+            BytesProgressWatcher progressMonitor = new BytesProgressWatcher(files[i].length());
+            runnableList.add(new StreamingTransformUploadRunnable(bucketName, objects[i],
+                files[i], encryptionUtil, gzipFiles, partSize, partExecutor, bufferPool,
+                progressMonitor));
+            progressWatchers.add(progressMonitor);
+        }
+
+        // Wait for threads to finish, or be cancelled.
+        ThreadWatcher threadWatcher = new ThreadWatcher(
+            progressWatchers.toArray(new BytesProgressWatcher[progressWatchers.size()]));
+        try {
+            (new ThreadGroupManager(runnableList.toArray(new StreamingTransformUploadRunnable[] {}),
+                threadWatcher, this.storageService.getJetS3tProperties(), false)
+            {
+                @Override
+                public void fireStartEvent(ThreadWatcher threadWatcher) {
+                    fireServiceEvent(CreateObjectsEvent.newStartedEvent(threadWatcher, uniqueOperationId));
+                }
+                @Override
+                public void fireProgressEvent(ThreadWatcher threadWatcher, List completedResults) {
+                    incompletedObjectsList.removeAll(completedResults);
+                    StorageObject[] completedObjects = (StorageObject[]) completedResults
+                        .toArray(new StorageObject[completedResults.size()]);
+                    fireServiceEvent(CreateObjectsEvent.newInProgressEvent(threadWatcher,
+                        completedObjects, uniqueOperationId));
+                }
+                @Override
+                public void fireCancelEvent() {
+                    StorageObject[] incompletedObjects = incompletedObjectsList
+                        .toArray(new StorageObject[incompletedObjectsList.size()]);
+                    success[0] = false;
+                    fireServiceEvent(CreateObjectsEvent.newCancelledEvent(incompletedObjects, uniqueOperationId));
+                }
+                @Override
+                public void fireCompletedEvent() {
+                    fireServiceEvent(CreateObjectsEvent.newCompletedEvent(uniqueOperationId));
+                }
+                @Override
+                public void fireErrorEvent(Throwable throwable) {
+                    success[0] = false;
+                    fireServiceEvent(CreateObjectsEvent.newErrorEvent(throwable, uniqueOperationId));
+                }
+                @Override
+                public void fireIgnoredErrorsEvent(ThreadWatcher threadWatcher, Throwable[] ignoredErrors) {
+                    success[0] = false;
+                    fireServiceEvent(CreateObjectsEvent.newIgnoredErrorsEvent(threadWatcher, ignoredErrors, uniqueOperationId));
+                }
+            }).run();
+        } finally {
+            partExecutor.shutdown();
+        }
+
+        return success[0];
+    }
+
 
     /**
      * Thread for starting a single multipart object upload.
@@ -405,6 +607,122 @@ public class ThreadedS3Service extends ThreadedStorageService {
             return result;
         }
 
+        @Override
+        public long getBytesTransferred() {
+            return progressMonitor.getBytesTransferred();
+        }
+
+        @Override
+        public void forceInterruptCalled() {
+            if (interruptableInputStream != null) {
+                interruptableInputStream.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Thread for copying a range of an existing object as part of a single multipart object.
+     */
+    private class MultipartCopyPartRunnable extends AbstractRunnable {
+        private MultipartPartCopy partCopy = null;
+        private S3Object partObject = null;
+
+        private Object result = null;
+
+        public MultipartCopyPartRunnable(MultipartPartCopy partCopy, S3Object partObject)
+        {
+            this.partCopy = partCopy;
+            this.partObject = partObject;
+        }
+
+        public void run() {
+            try {
+                ((S3Service)storageService).multipartUploadPartCopy(
+                    partCopy.getMultipartUpload(), partCopy.getPartNumber(),
+                    partCopy.getSourceBucketName(), partCopy.getSourceObjectKey(),
+                    null, null, partCopy.getIfMatchTags(), null,
+                    partCopy.getByteRangeStart(), partCopy.getByteRangeEnd(), null);
+                result = partObject;
+            } catch (ServiceException e) {
+                result = e;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return result;
+        }
+
+        @Override
+        public void forceInterruptCalled() {
+            // operation cannot be interrupted, no-op
+        }
+    }
+
+    /**
+     * Thread for uploading a file with gzip and/or encryption applied as it is sent.
+     * Reading of the file is monitored with a {@link ProgressMonitoredInputStream} and
+     * can be cancelled as the input stream is wrapped in an {@link InterruptableInputStream}.
+     */
+    private class StreamingTransformUploadRunnable extends AbstractRunnable {
+        private String bucketName = null;
+        private S3Object object = null;
+        private File file = null;
+        private EncryptionUtil encryptionUtil = null;
+        private boolean gzipFile = false;
+        private long partSize = 0;
+        private ExecutorService partExecutor = null;
+        private BlockingQueue<byte[]> bufferPool = null;
+        private InterruptableInputStream interruptableInputStream = null;
+        private BytesProgressWatcher progressMonitor = null;
+
+        private Object result = null;
+
+        public StreamingTransformUploadRunnable(String bucketName, S3Object object, File file,
+            EncryptionUtil encryptionUtil, boolean gzipFile, long partSize,
+            ExecutorService partExecutor, BlockingQueue<byte[]> bufferPool,
+            BytesProgressWatcher progressMonitor)
+        {
+            this.bucketName = bucketName;
+            this.object = object;
+            this.file = file;
+            this.encryptionUtil = encryptionUtil;
+            this.gzipFile = gzipFile;
+            this.partSize = partSize;
+            this.partExecutor = partExecutor;
+            this.bufferPool = bufferPool;
+            this.progressMonitor = progressMonitor;
+        }
+
+        public void run() {
+            try {
+                ObjectUtils.addOriginalHashForStreamingUpload(object, file);
+                interruptableInputStream = new InterruptableInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+                InputStream inputStream = new ProgressMonitoredInputStream(
+                    interruptableInputStream, progressMonitor);
+                result = ObjectUtils.putObjectWithStreamingTransform(
+                    (S3Service) storageService, bucketName, object, inputStream,
+                    file.length(), encryptionUtil, gzipFile, partSize,
+                    partExecutor, bufferPool);
+            } catch (ServiceException e) {
+                result = e;
+            } catch (Exception e) {
+                result = new ServiceException(
+                    "Failed to upload " + file + " to " + object.getKey(), e);
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return result;
+        }
+
+        @Override
+        public long getBytesTransferred() {
+            return progressMonitor.getBytesTransferred();
+        }
+
         @Override
         public void forceInterruptCalled() {
             if (interruptableInputStream != null) {
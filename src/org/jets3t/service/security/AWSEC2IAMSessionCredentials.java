@@ -21,6 +21,8 @@ package org.jets3t.service.security;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,7 +51,7 @@ public class AWSEC2IAMSessionCredentials extends AWSSessionCredentials {
         "http://169.254.169.254/latest/meta-data/iam/security-credentials";
 
     protected String roleName = null;
-    protected Date expiration = null;
+    protected volatile Date expiration = null;
     protected boolean automaticRefreshEnabled = true;
 
     // How often will refreshFromEC2InstanceDataIfNearExpiration be retried
@@ -57,6 +59,10 @@ public class AWSEC2IAMSessionCredentials extends AWSSessionCredentials {
     protected long automaticRefreshRetryDelaySeconds = 10;
     private volatile long automaticRefreshLastRetryMS = 0;
 
+    // Guards refreshes with an explicit lock, not a synchronized method, so virtual threads
+    // waiting on the instance data service do not pin their carrier threads.
+    private final Lock refreshLock = new ReentrantLock();
+
     /**
      * Construct credentials.
      *
@@ -177,23 +183,33 @@ public class AWSEC2IAMSessionCredentials extends AWSSessionCredentials {
      * fetch the latest IAM role credentials from EC2 instance data and
      * re-populate this object (via {@link #refreshFromEC2InstanceData()}.
      */
-    public synchronized void refreshFromEC2InstanceDataIfNearExpiration() {
-        if (this.automaticRefreshEnabled && this.isNearExpiration()) {
-            // Only attempt refresh at sensible intervals, to avoid hammering
-            // the instance metadata service if it is temporarily unvailable
-            long msSinceLastRetry =
-                System.currentTimeMillis() - this.automaticRefreshLastRetryMS;
-            if (msSinceLastRetry / 1000 < this.automaticRefreshRetryDelaySeconds) {
-                return;  // Skip too-soon refresh attempts
-            }
+    public void refreshFromEC2InstanceDataIfNearExpiration() {
+        // Check without the lock first, since this method is called by every credentials
+        // getter and refreshes are rarely needed.
+        if (!this.automaticRefreshEnabled || !this.isNearExpiration()) {
+            return;
+        }
+        refreshLock.lock();
+        try {
+            if (this.automaticRefreshEnabled && this.isNearExpiration()) {
+                // Only attempt refresh at sensible intervals, to avoid hammering
+                // the instance metadata service if it is temporarily unvailable
+                long msSinceLastRetry =
+                    System.currentTimeMillis() - this.automaticRefreshLastRetryMS;
+                if (msSinceLastRetry / 1000 < this.automaticRefreshRetryDelaySeconds) {
+                    return;  // Skip too-soon refresh attempts
+                }
 
-            try {
-                this.automaticRefreshLastRetryMS = System.currentTimeMillis();
-                this.refreshFromEC2InstanceData();
-            } catch (Exception ex) {
-                log.warn("Failed to automatically refresh IAM role credentials"
-                         + " from EC2 instance data", ex);
+                try {
+                    this.automaticRefreshLastRetryMS = System.currentTimeMillis();
+                    this.refreshFromEC2InstanceData();
+                } catch (Exception ex) {
+                    log.warn("Failed to automatically refresh IAM role credentials"
+                             + " from EC2 instance data", ex);
+                }
             }
+        } finally {
+            refreshLock.unlock();
         }
     }
 
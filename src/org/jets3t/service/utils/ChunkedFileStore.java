@@ -0,0 +1,570 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Stores files as content-defined chunks, so a file that changes in small regions can be
+ * backed up again by uploading only the chunks containing the changes.
+ * <p>
+ * Chunk boundaries are found with a rolling "gear" hash of the file's data, so boundaries
+ * depend on the data near them rather than on their offsets, and data inserted into or
+ * removed from a file only changes the chunks around it. Each chunk is stored once, in an
+ * object named by the SHA-256 hash of its data under the {@link #CHUNK_DIRECTORY} path,
+ * and chunks already listed in the service are not uploaded again. A file is stored as a
+ * small manifest object that lists its chunks, and is restored by fetching the chunks
+ * concurrently and writing them at their offsets in the file.
+ * <p>
+ * Manifest objects carry the {@link Constants#METADATA_JETS3T_CHUNK_MANIFEST} metadata item,
+ * and the MD5 hash of the complete file as their
+ * {@link StorageObject#METADATA_HEADER_ORIGINAL_HASH_MD5} metadata, so they can be compared
+ * with local files like other encoded objects. Chunks that are no longer referenced by any
+ * manifest are not deleted.
+ *
+ * @author James Murty
+ */
+public class ChunkedFileStore {
+    private static final Log log = LogFactory.getLog(ChunkedFileStore.class);
+
+    /**
+     * Name of the directory, relative to the synchronized path, that holds chunk objects.
+     */
+    public static final String CHUNK_DIRECTORY = ".jets3t-chunks";
+
+    /**
+     * Name of the chunking scheme, stored as the value of the
+     * {@link Constants#METADATA_JETS3T_CHUNK_MANIFEST} metadata item of manifest objects.
+     */
+    public static final String CHUNKING_SCHEME = "gear-sha256-v1";
+
+    /**
+     * Default average size of chunks, 1 MB.
+     */
+    public static final int DEFAULT_AVERAGE_CHUNK_SIZE = 1024 * 1024;
+
+    /*
+     * Random values for each byte value, from a fixed seed so chunk boundaries are the
+     * same in every JVM.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6a65747333744cL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final StorageService service;
+    private final String bucketName;
+    private final String chunkPath;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long boundaryMask;
+    private final int threadCount;
+
+    private final Set<String> knownChunkHashes = Collections.synchronizedSet(new HashSet<String>());
+    private boolean isChunkIndexLoaded = false;
+    private ExecutorService executor = null;
+
+    /**
+     * A contiguous range of a file's data.
+     */
+    public static class Chunk {
+        private final String hash;
+        private final long offset;
+        private final int length;
+
+        public Chunk(String hash, long offset, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return
+         * the hex-encoded SHA-256 hash of the chunk's data.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @param service
+     * the service that stores the chunks and manifests.
+     * @param bucketName
+     * the bucket that stores the chunks and manifests.
+     * @param rootObjectPath
+     * the path in the bucket of the synchronized files, may be empty.
+     * @param averageChunkSize
+     * the approximate average size of chunks, rounded down to a power of two. Chunks are
+     * between a quarter of and four times this size, except for the last chunk in a file.
+     * @param threadCount
+     * the number of chunks to upload or download concurrently. The threads are shared by
+     * all the files stored or restored, until {@link #shutdown()} is called.
+     */
+    public ChunkedFileStore(StorageService service, String bucketName, String rootObjectPath,
+        int averageChunkSize, int threadCount)
+    {
+        this.service = service;
+        this.bucketName = bucketName;
+        String path = (rootObjectPath == null ? "" : rootObjectPath);
+        if (path.length() > 0 && !path.endsWith(Constants.FILE_PATH_DELIM)) {
+            path += Constants.FILE_PATH_DELIM;
+        }
+        this.chunkPath = path + CHUNK_DIRECTORY + Constants.FILE_PATH_DELIM;
+
+        int boundaryBits = Math.max(1, 31 - Integer.numberOfLeadingZeros(averageChunkSize));
+        this.boundaryMask = ((1L << boundaryBits) - 1) << (64 - boundaryBits);
+        this.minChunkSize = Math.max(1, (1 << boundaryBits) / 4);
+        this.maxChunkSize = (1 << boundaryBits) * 4;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * @return
+     * true if the given relative key path names a chunk object managed by this class.
+     */
+    public static boolean isChunkKeyPath(String keyPath) {
+        return keyPath.startsWith(CHUNK_DIRECTORY + Constants.FILE_PATH_DELIM);
+    }
+
+    /**
+     * @return
+     * true if the object is a manifest of chunks, according to its metadata.
+     */
+    public static boolean isChunkManifest(StorageObject object) {
+        return object.containsMetadata(Constants.METADATA_JETS3T_CHUNK_MANIFEST);
+    }
+
+    /**
+     * Split data into content-defined chunks.
+     *
+     * @param is
+     * the data to split, which is read to the end but not closed.
+     * @param dataDigest
+     * if not null, this digest is updated with all the data.
+     * @return
+     * the chunks, in order.
+     *
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public List<Chunk> findChunks(InputStream is, MessageDigest dataDigest)
+        throws IOException, NoSuchAlgorithmException
+    {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        long offset = 0;
+        long chunkStart = 0;
+        long hash = 0;
+        int count = 0;
+        while ((count = is.read(buffer)) != -1) {
+            int bufferStart = 0;
+            for (int i = 0; i < count; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                long chunkLength = offset + i + 1 - chunkStart;
+                if ((chunkLength >= minChunkSize && (hash & boundaryMask) == 0)
+                    || chunkLength >= maxChunkSize)
+                {
+                    chunkDigest.update(buffer, bufferStart, i + 1 - bufferStart);
+                    chunks.add(new Chunk(ServiceUtils.toHex(chunkDigest.digest()),
+                        chunkStart, (int) chunkLength));
+                    chunkStart = offset + i + 1;
+                    bufferStart = i + 1;
+                    hash = 0;
+                }
+            }
+            chunkDigest.update(buffer, bufferStart, count - bufferStart);
+            if (dataDigest != null) {
+                dataDigest.update(buffer, 0, count);
+            }
+            offset += count;
+        }
+        if (offset > chunkStart) {
+            chunks.add(new Chunk(ServiceUtils.toHex(chunkDigest.digest()),
+                chunkStart, (int) (offset - chunkStart)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Store a file as chunks, uploading only chunks that are not already stored, then
+     * upload the file's manifest.
+     *
+     * @param manifestObject
+     * the object to store as the file's manifest, with any metadata and ACL settings that
+     * should be applied to it. Its data, content type and hash values are set by this method.
+     * @param file
+     * the file to store.
+     * @return
+     * the number of chunks uploaded.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public int putFile(StorageObject manifestObject, final File file)
+        throws ServiceException, IOException, NoSuchAlgorithmException
+    {
+        if (!isChunkIndexLoaded) {
+            loadChunkIndex();
+        }
+
+        MessageDigest fileDigest = MessageDigest.getInstance("MD5");
+        List<Chunk> chunks = null;
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            chunks = findChunks(is, fileDigest);
+        } finally {
+            is.close();
+        }
+
+        // Upload each chunk that is not already stored, once.
+        Set<String> hashesToUpload = new HashSet<String>();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Chunk chunk: chunks) {
+            if (!knownChunkHashes.contains(chunk.getHash()) && hashesToUpload.add(chunk.getHash())) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        putChunk(file, chunk);
+                        return null;
+                    }
+                });
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("File " + file + " has " + chunks.size() + " chunks, uploading "
+                + tasks.size() + " new chunks");
+        }
+        runTasks(tasks);
+
+        byte[] manifestData = formatManifest(chunks).getBytes(Constants.DEFAULT_ENCODING);
+        manifestObject.setDataInputStream(new ByteArrayInputStream(manifestData));
+        manifestObject.setContentLength(manifestData.length);
+        manifestObject.setContentType("text/plain");
+        manifestObject.setMd5Hash(ServiceUtils.computeMD5Hash(manifestData));
+        manifestObject.addMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5,
+            ServiceUtils.toBase64(fileDigest.digest()));
+        manifestObject.addMetadata(Constants.METADATA_JETS3T_CHUNK_MANIFEST, CHUNKING_SCHEME);
+        putObject(manifestObject);
+        return tasks.size();
+    }
+
+    /**
+     * Restore a file from its manifest, fetching its chunks concurrently. The chunks are
+     * written to a temporary file in the same directory, which replaces the file once all
+     * of them have been written, so the file is left unchanged if the restore fails.
+     *
+     * @param manifestKey
+     * the key of the file's manifest object.
+     * @param file
+     * the local file to write.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     */
+    public void restoreFile(String manifestKey, File file) throws ServiceException, IOException {
+        List<Chunk> chunks = parseManifest(getObjectData(manifestKey));
+
+        // Fetch each distinct chunk once, and write it everywhere it occurs.
+        final Map<String, List<Chunk>> chunksByHash = new LinkedHashMap<String, List<Chunk>>();
+        long fileLength = 0;
+        for (Chunk chunk: chunks) {
+            List<Chunk> occurrences = chunksByHash.get(chunk.getHash());
+            if (occurrences == null) {
+                occurrences = new ArrayList<Chunk>();
+                chunksByHash.put(chunk.getHash(), occurrences);
+            }
+            occurrences.add(chunk);
+            fileLength = chunk.getOffset() + chunk.getLength();
+        }
+
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (parentDir != null) {
+            parentDir.mkdirs();
+        }
+        File tempFile = File.createTempFile(".jets3t-" + file.getName(), ".tmp", parentDir);
+        boolean isRestored = false;
+        final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.setLength(fileLength);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final Map.Entry<String, List<Chunk>> entry: chunksByHash.entrySet()) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        Chunk chunk = entry.getValue().get(0);
+                        byte[] data = getChunk(chunk);
+                        synchronized (raf) {
+                            for (Chunk occurrence: entry.getValue()) {
+                                raf.seek(occurrence.getOffset());
+                                raf.write(data);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            runTasks(tasks);
+            raf.close();
+            // File#renameTo will not replace an existing file on all platforms.
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file + " with restored file "
+                        + tempFile);
+                }
+            }
+            isRestored = true;
+        } finally {
+            raf.close();
+            if (!isRestored) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Stop the threads that transfer chunks, once all files have been stored or restored.
+     * The threads are started again if more files are stored or restored.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * List the chunks already stored in the service, so they are not uploaded again.
+     *
+     * @throws ServiceException
+     */
+    public void loadChunkIndex() throws ServiceException {
+        knownChunkHashes.clear();
+        for (String key: listObjectKeys(chunkPath)) {
+            knownChunkHashes.add(key.substring(key.lastIndexOf(Constants.FILE_PATH_DELIM) + 1));
+        }
+        isChunkIndexLoaded = true;
+        if (log.isDebugEnabled()) {
+            log.debug("Found " + knownChunkHashes.size() + " stored chunks in "
+                + bucketName + ":" + chunkPath);
+        }
+    }
+
+    protected String getChunkKey(String hash) {
+        return chunkPath + hash.substring(0, 2) + Constants.FILE_PATH_DELIM + hash;
+    }
+
+    protected void putChunk(File file, Chunk chunk)
+        throws ServiceException, IOException, NoSuchAlgorithmException
+    {
+        byte[] data = new byte[chunk.getLength()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(chunk.getOffset());
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        if (!chunk.getHash().equals(ServiceUtils.toHex(sha256(data)))) {
+            throw new IOException("File " + file + " changed while it was being uploaded");
+        }
+        putObject(new StorageObject(getChunkKey(chunk.getHash()), data));
+        knownChunkHashes.add(chunk.getHash());
+    }
+
+    protected byte[] getChunk(Chunk chunk) throws ServiceException, IOException {
+        byte[] data = new byte[chunk.getLength()];
+        InputStream is = getObjectData(getChunkKey(chunk.getHash()));
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = is.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    throw new IOException("Chunk " + chunk.getHash() + " is shorter than "
+                        + data.length + " bytes");
+                }
+                offset += count;
+            }
+        } finally {
+            is.close();
+        }
+        if (!chunk.getHash().equals(ServiceUtils.toHex(sha256(data)))) {
+            throw new IOException("Chunk " + chunk.getHash() + " does not match its hash");
+        }
+        return data;
+    }
+
+    protected InputStream getObjectData(String key) throws ServiceException {
+        return service.getObject(bucketName, key).getDataInputStream();
+    }
+
+    protected void putObject(StorageObject object) throws ServiceException {
+        service.putObject(bucketName, object);
+    }
+
+    protected List<String> listObjectKeys(String prefix) throws ServiceException {
+        List<String> keys = new ArrayList<String>();
+        String priorLastKey = null;
+        do {
+            StorageObjectsChunk listing = service.listObjectsChunked(bucketName, prefix, null,
+                Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE, priorLastKey);
+            for (StorageObject object: listing.getObjects()) {
+                keys.add(object.getKey());
+            }
+            priorLastKey = listing.getPriorLastKey();
+        } while (priorLastKey != null);
+        return keys;
+    }
+
+    protected String formatManifest(List<Chunk> chunks) {
+        StringBuffer manifest = new StringBuffer();
+        manifest.append("# ").append(CHUNKING_SCHEME).append("\n");
+        for (Chunk chunk: chunks) {
+            manifest.append(chunk.getHash()).append(" ").append(chunk.getLength()).append("\n");
+        }
+        return manifest.toString();
+    }
+
+    protected List<Chunk> parseManifest(InputStream is) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(is, Constants.DEFAULT_ENCODING));
+        try {
+            long offset = 0;
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                if (fields.length != 2) {
+                    throw new IOException("Invalid chunk manifest line: " + line);
+                }
+                int length = Integer.parseInt(fields[1]);
+                chunks.add(new Chunk(fields[0], offset, length));
+                offset += length;
+            }
+        } finally {
+            reader.close();
+        }
+        return chunks;
+    }
+
+    private void runTasks(List<Callable<Object>> tasks) throws ServiceException, IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = getExecutor();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (Callable<Object> task: tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Object> future: futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ServiceException) {
+                        throw (ServiceException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new ServiceException("Unable to transfer chunk", cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted transferring chunks");
+        } finally {
+            // Stop the remaining transfers for this file if one of them failed
+            for (Future<Object> future: futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ChunkedFileStore-" + bucketName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException("SHA-256 is not available");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.CompressionCodec;
+import org.jets3t.service.io.GZipCompressionCodec;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * Registry of the {@link CompressionCodec}s available to compress uploaded data and
+ * decompress downloaded data.
+ * <p>
+ * The registry is configured from these JetS3t properties, which are read from the
+ * properties of the service doing the work:
+ * <ul>
+ * <li><tt>compression.codec-classes</tt>: comma-separated names of additional codec
+ *     implementation classes to register</li>
+ * <li><tt>uploads.compression-codec</tt>: name of the codec used when uploads are
+ *     compressed, default "gzip"</li>
+ * <li><tt>uploads.compression-level</tt>: codec-specific compression level for uploads,
+ *     default -1 for the codec's default level</li>
+ * <li><tt>uploads.gzip-thread-count</tt>: number of threads used by the gzip codec</li>
+ * </ul>
+ *
+ * @author James Murty
+ */
+public class CompressionCodecs {
+    private static final Log log = LogFactory.getLog(CompressionCodecs.class);
+
+    private static final Map<String, CompressionCodec> registeredCodecs =
+        new HashMap<String, CompressionCodec>();
+
+    private static final Map<Jets3tProperties, Map<String, CompressionCodec>> configuredCodecs =
+        new WeakHashMap<Jets3tProperties, Map<String, CompressionCodec>>();
+
+    private static synchronized Map<String, CompressionCodec> getConfiguredCodecs(
+        Jets3tProperties properties)
+    {
+        Map<String, CompressionCodec> codecs = configuredCodecs.get(properties);
+        if (codecs == null) {
+            codecs = new HashMap<String, CompressionCodec>();
+            codecs.put(GZipCompressionCodec.NAME, new GZipCompressionCodec(
+                properties.getIntProperty("uploads.gzip-thread-count", 1)));
+
+            String codecClassNames = properties.getStringProperty(
+                "compression.codec-classes", null);
+            if (codecClassNames != null) {
+                for (String className: codecClassNames.split(",")) {
+                    className = className.trim();
+                    if (className.length() == 0) {
+                        continue;
+                    }
+                    try {
+                        CompressionCodec codec = (CompressionCodec)
+                            Class.forName(className).getDeclaredConstructor().newInstance();
+                        codecs.put(codec.getName(), codec);
+                        if (log.isDebugEnabled()) {
+                            log.debug("Registered compression codec '" + codec.getName()
+                                + "' from class " + className);
+                        }
+                    } catch (ClassNotFoundException e) {
+                        log.warn("Unable to find compression codec class " + className, e);
+                    } catch (NoSuchMethodException e) {
+                        log.warn("Compression codec class " + className
+                            + " has no public no-argument constructor", e);
+                    } catch (InvocationTargetException e) {
+                        log.warn("Unable to create compression codec " + className,
+                            e.getCause());
+                    } catch (Exception e) {
+                        log.warn("Unable to load compression codec class " + className, e);
+                    }
+                }
+            }
+            configuredCodecs.put(properties, codecs);
+        }
+        return codecs;
+    }
+
+    /**
+     * Makes a codec available by its name, whatever the properties in use, replacing any
+     * codec with the same name.
+     *
+     * @param codec
+     */
+    public static synchronized void registerCodec(CompressionCodec codec) {
+        registeredCodecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * @param name
+     * @param properties
+     * the properties of the service that will use the codec.
+     * @return
+     * the codec with the given name, or null if no such codec is registered.
+     */
+    public static synchronized CompressionCodec getCodec(String name,
+        Jets3tProperties properties)
+    {
+        CompressionCodec codec = registeredCodecs.get(name);
+        if (codec == null) {
+            codec = getConfiguredCodecs(properties).get(name);
+        }
+        return codec;
+    }
+
+    /**
+     * @param properties
+     * the properties of the service that will upload the data.
+     * @return
+     * the codec named by the <tt>uploads.compression-codec</tt> property, or the gzip
+     * codec if this property is not set.
+     * @throws IllegalStateException
+     * if the named codec is not registered.
+     */
+    public static CompressionCodec getUploadCodec(Jets3tProperties properties) {
+        String name = properties.getStringProperty(
+            "uploads.compression-codec", GZipCompressionCodec.NAME);
+        CompressionCodec codec = getCodec(name, properties);
+        if (codec == null) {
+            throw new IllegalStateException("Compression codec '" + name
+                + "' named by uploads.compression-codec is not registered");
+        }
+        return codec;
+    }
+
+    /**
+     * @param properties
+     * the properties of the service that will upload the data.
+     * @return
+     * the compression level for uploads set by the <tt>uploads.compression-level</tt>
+     * property, or -1 for the codec's default level.
+     */
+    public static int getUploadCompressionLevel(Jets3tProperties properties) {
+        return properties.getIntProperty("uploads.compression-level", -1);
+    }
+
+    /**
+     * Find the codec needed to decompress an object's data, based on the codec name in
+     * its {@link Constants#METADATA_JETS3T_COMPRESSED} metadata item or, for objects
+     * without this item, a Content-Encoding of "gzip".
+     *
+     * @param object
+     * @param properties
+     * the properties of the service that will download the data.
+     * @return
+     * the codec for the object's data, or null if the object is not compressed.
+     * @throws IllegalStateException
+     * if the object is compressed with a codec that is not registered.
+     */
+    public static CompressionCodec getCodecForObject(StorageObject object,
+        Jets3tProperties properties)
+    {
+        String name = (String) object.getMetadata(Constants.METADATA_JETS3T_COMPRESSED);
+        if (name == null) {
+            if (GZipCompressionCodec.NAME.equalsIgnoreCase(object.getContentEncoding())) {
+                return getCodec(GZipCompressionCodec.NAME, properties);
+            }
+            return null;
+        }
+        CompressionCodec codec = getCodec(name, properties);
+        if (codec == null) {
+            throw new IllegalStateException("Object '" + object.getKey()
+                + "' is compressed with codec '" + name + "' which is not registered");
+        }
+        return codec;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A sidecar file stored next to a partially downloaded file, recording the ETag and
+ * total byte count of the object being downloaded. If a download is interrupted the
+ * sidecar allows the download to be resumed from the end of the partial file with a
+ * ranged GET that is only satisfied while the object's ETag is unchanged.
+ *
+ * @author James Murty
+ */
+public class DownloadCheckpoint {
+    private static final Log log = LogFactory.getLog(DownloadCheckpoint.class);
+
+    /**
+     * Suffix added to the name of a downloaded file to name its sidecar file.
+     */
+    public static final String SIDECAR_FILE_SUFFIX = ".jets3t-download";
+
+    private final File sidecarFile;
+    private String etag = null;
+    private long contentLength = 0;
+
+    /**
+     * @param sidecarFile
+     * the file in which the checkpoint will be stored.
+     * @param etag
+     * the ETag of the object being downloaded.
+     * @param contentLength
+     * the total size of the object being downloaded.
+     */
+    public DownloadCheckpoint(File sidecarFile, String etag, long contentLength) {
+        this.sidecarFile = sidecarFile;
+        this.etag = etag;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * @return
+     * the sidecar file used to record the progress of a download to the given file.
+     */
+    public static File getSidecarFile(File dataFile) {
+        return new File(dataFile.getPath() + SIDECAR_FILE_SUFFIX);
+    }
+
+    /**
+     * Load a checkpoint from its sidecar file.
+     *
+     * @param sidecarFile
+     * @return
+     * the checkpoint, or null if the sidecar file does not exist or cannot be parsed.
+     * @throws IOException
+     */
+    public static DownloadCheckpoint load(File sidecarFile) throws IOException {
+        if (!sidecarFile.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream is = new BufferedInputStream(new FileInputStream(sidecarFile));
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+        String etag = properties.getProperty("etag");
+        String contentLength = properties.getProperty("content-length");
+        if (etag == null || contentLength == null) {
+            log.warn("Ignoring incomplete download checkpoint file " + sidecarFile);
+            return null;
+        }
+        try {
+            return new DownloadCheckpoint(sidecarFile, etag, Long.parseLong(contentLength));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring unreadable download checkpoint file " + sidecarFile, e);
+            return null;
+        }
+    }
+
+    public File getSidecarFile() {
+        return sidecarFile;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Write the checkpoint to its sidecar file, replacing any earlier version.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("etag", etag);
+        properties.setProperty("content-length", String.valueOf(contentLength));
+
+        File parentDir = sidecarFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(sidecarFile));
+        try {
+            properties.store(os, "JetS3t download checkpoint");
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Delete the sidecar file, normally once the download has completed.
+     */
+    public void delete() {
+        if (sidecarFile.exists() && !sidecarFile.delete()) {
+            log.warn("Unable to delete download checkpoint file " + sidecarFile);
+        }
+    }
+
+}
@@ -0,0 +1,654 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageService;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.DownloadPackage;
+import org.jets3t.service.multi.StorageServiceEventAdaptor;
+import org.jets3t.service.multi.StorageServiceEventListener;
+import org.jets3t.service.multi.ThreadedStorageService;
+
+/**
+ * Stores many small files in a few larger bundle objects, to avoid the cost of one
+ * request per file when synchronizing trees of small files.
+ * <p>
+ * Each bundle object holds the concatenated data of its member files. A gzipped index
+ * object records each member's bundle, offset, length and MD5 hash, so individual files
+ * can be restored with ranged GETs on their bundles. Bundles and the index are stored
+ * under the {@link #BUNDLE_DIRECTORY} path within a synchronized path.
+ * <p>
+ * When member files change or are removed, only the bundles containing them are
+ * rewritten: their remaining members are packed with any new or changed files into new
+ * bundles, the index is updated, and the replaced bundles are then deleted.
+ *
+ * @author James Murty
+ */
+public class FileBundler {
+    private static final Log log = LogFactory.getLog(FileBundler.class);
+
+    /**
+     * Name of the directory, relative to the synchronized path, that holds bundle objects
+     * and the bundle index.
+     */
+    public static final String BUNDLE_DIRECTORY = ".jets3t-bundles";
+
+    /**
+     * Name of the bundle index object within the {@link #BUNDLE_DIRECTORY}.
+     */
+    public static final String INDEX_OBJECT_NAME = "index.properties.gz";
+
+    private final StorageService service;
+    private final String bucketName;
+    private final String bundlePath;
+    private final long maxBundleSize;
+
+    private final Map<String, Member> members = new TreeMap<String, Member>();
+    private int bundleCounter = 0;
+
+    /**
+     * Details of a file stored in a bundle.
+     */
+    public static class Member {
+        private final String keyPath;
+        private final String bundleName;
+        private final long offset;
+        private final long length;
+        private final String md5HashAsBase64;
+
+        public Member(String keyPath, String bundleName, long offset, long length,
+            String md5HashAsBase64)
+        {
+            this.keyPath = keyPath;
+            this.bundleName = bundleName;
+            this.offset = offset;
+            this.length = length;
+            this.md5HashAsBase64 = md5HashAsBase64;
+        }
+
+        public String getKeyPath() {
+            return keyPath;
+        }
+
+        public String getBundleName() {
+            return bundleName;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getMd5HashAsBase64() {
+            return md5HashAsBase64;
+        }
+    }
+
+    /**
+     * @param service
+     * the service that stores the bundles.
+     * @param bucketName
+     * the bucket that stores the bundles.
+     * @param rootObjectPath
+     * the path in the bucket of the synchronized files, may be empty.
+     * @param maxBundleSize
+     * the approximate maximum size of a bundle object. Bundles hold at least one member,
+     * so a bundle may exceed this size if a single member does.
+     */
+    public FileBundler(StorageService service, String bucketName, String rootObjectPath,
+        long maxBundleSize)
+    {
+        this.service = service;
+        this.bucketName = bucketName;
+        String path = (rootObjectPath == null ? "" : rootObjectPath);
+        if (path.length() > 0 && !path.endsWith(Constants.FILE_PATH_DELIM)) {
+            path += Constants.FILE_PATH_DELIM;
+        }
+        this.bundlePath = path + BUNDLE_DIRECTORY + Constants.FILE_PATH_DELIM;
+        this.maxBundleSize = maxBundleSize;
+    }
+
+    /**
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths.
+     * @param maxFileSize
+     * the largest file size, in bytes, of files to bundle.
+     * @return
+     * the subset of the given map for regular files no larger than the maximum size.
+     */
+    public static Map<String, String> findSmallFiles(Map<String, String> objectKeyToFilepathMap,
+        long maxFileSize)
+    {
+        Map<String, String> smallFiles = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry: objectKeyToFilepathMap.entrySet()) {
+            File file = new File(entry.getValue());
+            if (file.isFile() && file.length() <= maxFileSize) {
+                smallFiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return smallFiles;
+    }
+
+    /**
+     * @return
+     * true if the given relative key path names an object managed by this class.
+     */
+    public static boolean isBundleKeyPath(String keyPath) {
+        return keyPath.startsWith(BUNDLE_DIRECTORY + Constants.FILE_PATH_DELIM);
+    }
+
+    /**
+     * @return
+     * the bundled files, by relative key path.
+     */
+    public Map<String, Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Load the bundle index from the service. If there is no index, there are no members.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     */
+    public void loadIndex() throws ServiceException, IOException {
+        members.clear();
+        InputStream indexData = getObjectData(bundlePath + INDEX_OBJECT_NAME);
+        if (indexData == null) {
+            return;
+        }
+        Properties index = new Properties();
+        InputStream is = new GZIPInputStream(new BufferedInputStream(indexData));
+        try {
+            index.load(is);
+        } finally {
+            is.close();
+        }
+        Enumeration<?> keyPaths = index.propertyNames();
+        while (keyPaths.hasMoreElements()) {
+            String keyPath = (String) keyPaths.nextElement();
+            String[] fields = index.getProperty(keyPath).split(",");
+            if (fields.length != 4) {
+                throw new IOException("Invalid bundle index entry for " + keyPath);
+            }
+            members.put(keyPath, new Member(keyPath, fields[0],
+                Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded bundle index with " + members.size() + " members from "
+                + bucketName + ":" + bundlePath);
+        }
+    }
+
+    /**
+     * Compare local files with the bundled files, based on their MD5 hashes. The index
+     * must have been loaded with {@link #loadIndex()}.
+     *
+     * @param localFiles
+     * map of relative key paths to the absolute paths of the local files to compare.
+     * @param fileComparer
+     * used to generate, or look up, MD5 hashes of the local files.
+     * @param progressWatcher
+     * watcher to monitor progress of MD5 hash generation, may be null.
+     * @return
+     * the results of the comparison, where <tt>onlyOnClientKeys</tt> lists files that are
+     * not bundled, <tt>onlyOnServerKeys</tt> lists bundled files that are not present
+     * locally, <tt>updatedOnClientKeys</tt> lists files whose data differs from the
+     * bundled data, and <tt>alreadySynchronisedKeys</tt> lists unchanged files.
+     *
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public FileComparerResults compareFiles(Map<String, String> localFiles,
+        FileComparer fileComparer, BytesProgressWatcher progressWatcher)
+        throws NoSuchAlgorithmException, IOException
+    {
+        FileComparerResults results = new FileComparerResults();
+        for (Map.Entry<String, String> entry: localFiles.entrySet()) {
+            String keyPath = entry.getKey();
+            String fileHash = ServiceUtils.toBase64(fileComparer.generateFileMD5Hash(
+                new File(entry.getValue()), keyPath, progressWatcher));
+
+            Member member = members.get(keyPath);
+            if (member == null) {
+                results.onlyOnClientKeys.add(keyPath);
+            } else if (member.getMd5HashAsBase64().equals(fileHash)) {
+                results.alreadySynchronisedKeys.add(keyPath);
+                results.alreadySynchronisedLocalPaths.add(keyPath);
+            } else {
+                results.updatedOnClientKeys.add(keyPath);
+            }
+        }
+        for (String keyPath: members.keySet()) {
+            if (!localFiles.containsKey(keyPath)) {
+                results.onlyOnServerKeys.add(keyPath);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Store new and changed local files in bundles, as described for
+     * {@link #uploadChanges(FileComparerResults, Map, boolean, StorageServiceEventListener)},
+     * without an event listener.
+     *
+     * @param results
+     * the results of comparing the local files with the bundled files.
+     * @param localFiles
+     * map of relative key paths to the absolute paths of the local files that were compared.
+     * @param isRemovingMembers
+     * if true, bundled files that are not present locally are removed from the bundles,
+     * otherwise they are retained.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void uploadChanges(FileComparerResults results, Map<String, String> localFiles,
+        boolean isRemovingMembers) throws ServiceException, IOException, NoSuchAlgorithmException
+    {
+        uploadChanges(results, localFiles, isRemovingMembers, null);
+    }
+
+    /**
+     * Store new and changed local files in bundles, following a comparison by
+     * {@link #compareFiles}. Bundles containing changed or removed members are rewritten,
+     * and the index is updated before any replaced bundles are deleted so the stored
+     * bundles are consistent if this process is interrupted.
+     * <p>
+     * Bundles are uploaded in parallel with a {@link ThreadedStorageService}, with at most
+     * <tt>threaded-service.max-thread-count</tt> bundles held in memory at once.
+     *
+     * @param results
+     * the results of comparing the local files with the bundled files.
+     * @param localFiles
+     * map of relative key paths to the absolute paths of the local files that were compared.
+     * @param isRemovingMembers
+     * if true, bundled files that are not present locally are removed from the bundles,
+     * otherwise they are retained.
+     * @param eventListener
+     * an event listener to monitor the upload events, may be null.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public void uploadChanges(FileComparerResults results, Map<String, String> localFiles,
+        boolean isRemovingMembers, StorageServiceEventListener eventListener)
+        throws ServiceException, IOException, NoSuchAlgorithmException
+    {
+        // Find the bundles that must be rewritten
+        Set<String> replacedBundles = new HashSet<String>();
+        for (String keyPath: results.updatedOnClientKeys) {
+            replacedBundles.add(members.get(keyPath).getBundleName());
+        }
+        if (isRemovingMembers) {
+            for (String keyPath: results.onlyOnServerKeys) {
+                replacedBundles.add(members.get(keyPath).getBundleName());
+                members.remove(keyPath);
+            }
+        }
+
+        // Pack new and changed files, and the remaining members of replaced bundles
+        Set<String> keyPathsToPack = new TreeSet<String>();
+        keyPathsToPack.addAll(results.onlyOnClientKeys);
+        keyPathsToPack.addAll(results.updatedOnClientKeys);
+        for (Member member: members.values()) {
+            if (replacedBundles.contains(member.getBundleName())) {
+                keyPathsToPack.add(member.getKeyPath());
+            }
+        }
+        if (keyPathsToPack.isEmpty() && replacedBundles.isEmpty()) {
+            return;
+        }
+
+        int maxPendingBundles = getMaxPendingBundles();
+        List<StorageObject> pendingBundles = new ArrayList<StorageObject>();
+        List<Member> pendingMembers = new ArrayList<Member>();
+        ByteArrayOutputStream bundleData = new ByteArrayOutputStream();
+        int bundleMemberCount = 0;
+        String bundleName = nextBundleName();
+        for (String keyPath: keyPathsToPack) {
+            byte[] data = null;
+            String filepath = localFiles.get(keyPath);
+            if (filepath != null) {
+                data = readFile(new File(filepath));
+            } else {
+                // Retained member without a local file, copy its data from its old bundle
+                data = readMember(members.get(keyPath));
+            }
+            if (bundleData.size() > 0 && bundleData.size() + data.length > maxBundleSize) {
+                pendingBundles.add(createBundleObject(bundleName, bundleData));
+                if (pendingBundles.size() >= maxPendingBundles) {
+                    putBundles(pendingBundles, pendingMembers, eventListener);
+                }
+                bundleData = new ByteArrayOutputStream();
+                bundleMemberCount = 0;
+                bundleName = nextBundleName();
+            }
+            // Hash the data written to the bundle, which may differ from the compared file
+            String md5HashAsBase64 = ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data));
+            pendingMembers.add(new Member(keyPath, bundleName, bundleData.size(),
+                data.length, md5HashAsBase64));
+            bundleData.write(data);
+            bundleMemberCount++;
+        }
+        if (bundleMemberCount > 0) {
+            pendingBundles.add(createBundleObject(bundleName, bundleData));
+        }
+        putBundles(pendingBundles, pendingMembers, eventListener);
+
+        saveIndex();
+
+        for (String replacedBundle: replacedBundles) {
+            deleteObject(bundlePath + replacedBundle);
+        }
+    }
+
+    /**
+     * Restore a bundled file with a ranged GET on its bundle, checking the data against
+     * the member's MD5 hash.
+     *
+     * @param keyPath
+     * the relative key path of the bundled file.
+     * @param file
+     * the local file to write.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     */
+    public void restoreFile(String keyPath, File file) throws ServiceException, IOException {
+        Member member = members.get(keyPath);
+        if (member == null) {
+            throw new IOException("File " + keyPath + " is not bundled");
+        }
+        byte[] data = readMember(member);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Restore bundled files with ranged GETs on their bundles, downloading them in parallel
+     * with a {@link ThreadedStorageService} and checking each file against its member's
+     * MD5 hash.
+     *
+     * @param files
+     * a map from the relative key paths of bundled files to the local files to write.
+     * @param eventListener
+     * an event listener to monitor the download events, may be null.
+     *
+     * @throws ServiceException
+     * @throws IOException
+     */
+    public void restoreFiles(Map<String, File> files, StorageServiceEventListener eventListener)
+        throws ServiceException, IOException
+    {
+        List<DownloadPackage> downloadPackages = new ArrayList<DownloadPackage>();
+        for (Map.Entry<String, File> entry: files.entrySet()) {
+            Member member = members.get(entry.getKey());
+            if (member == null) {
+                throw new IOException("File " + entry.getKey() + " is not bundled");
+            }
+            if (member.getLength() == 0) {
+                // An empty range cannot be requested, so write empty files directly
+                restoreFile(entry.getKey(), entry.getValue());
+                continue;
+            }
+            StorageObject bundleObject = new StorageObject(bundlePath + member.getBundleName());
+            bundleObject.setContentLength(member.getLength());
+            DownloadPackage downloadPackage = new DownloadPackage(bundleObject, entry.getValue());
+            downloadPackage.setByteRange(member.getOffset(),
+                member.getOffset() + member.getLength() - 1);
+            downloadPackages.add(downloadPackage);
+        }
+        if (downloadPackages.isEmpty()) {
+            return;
+        }
+
+        StorageServiceEventAdaptor errorAdaptor = new StorageServiceEventAdaptor();
+        ThreadedStorageService threadedService = new ThreadedStorageService(service, errorAdaptor);
+        if (eventListener != null) {
+            threadedService.addServiceEventListener(eventListener);
+        }
+        if (!threadedService.downloadObjects(bucketName,
+            downloadPackages.toArray(new DownloadPackage[downloadPackages.size()])))
+        {
+            throwThreadedError(errorAdaptor, "Unable to restore bundled files");
+        }
+
+        for (Map.Entry<String, File> entry: files.entrySet()) {
+            Member member = members.get(entry.getKey());
+            if (member.getLength() > 0) {
+                verifyFile(member, entry.getValue());
+            }
+        }
+    }
+
+    protected void verifyFile(Member member, File file) throws ServiceException, IOException {
+        String md5HashAsBase64 = null;
+        try {
+            md5HashAsBase64 = ServiceUtils.toBase64(
+                ServiceUtils.computeMD5Hash(new FileInputStream(file)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ServiceException("Unable to verify bundled data for "
+                + member.getKeyPath(), e);
+        }
+        if (!md5HashAsBase64.equals(member.getMd5HashAsBase64())) {
+            file.delete();
+            throw new IOException("Bundled data for " + member.getKeyPath()
+                + " does not match its MD5 hash");
+        }
+    }
+
+    protected byte[] readMember(Member member) throws ServiceException, IOException {
+        byte[] data = new byte[(int) member.getLength()];
+        if (data.length > 0) {
+            readFully(getObjectData(bundlePath + member.getBundleName(),
+                member.getOffset(), member.getLength()), data);
+        }
+        String md5HashAsBase64 = null;
+        try {
+            md5HashAsBase64 = ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ServiceException("Unable to verify bundled data for "
+                + member.getKeyPath(), e);
+        }
+        if (!md5HashAsBase64.equals(member.getMd5HashAsBase64())) {
+            throw new IOException("Bundled data for " + member.getKeyPath()
+                + " does not match its MD5 hash");
+        }
+        return data;
+    }
+
+    protected String nextBundleName() {
+        return "bundle-" + System.currentTimeMillis() + "-" + (bundleCounter++);
+    }
+
+    /**
+     * @return
+     * the number of packed bundles to hold in memory before they are uploaded together.
+     */
+    protected int getMaxPendingBundles() {
+        return service.getJetS3tProperties().getIntProperty(
+            "threaded-service.max-thread-count", 2);
+    }
+
+    private StorageObject createBundleObject(String bundleName, ByteArrayOutputStream bundleData)
+        throws IOException, NoSuchAlgorithmException
+    {
+        return new StorageObject(bundlePath + bundleName, bundleData.toByteArray());
+    }
+
+    /**
+     * Uploads the given bundles, then adds their members to the index and clears both lists.
+     */
+    private void putBundles(List<StorageObject> bundles, List<Member> bundleMembers,
+        StorageServiceEventListener eventListener) throws ServiceException
+    {
+        if (bundles.isEmpty()) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Uploading " + bundles.size() + " bundles with " + bundleMembers.size()
+                + " members");
+        }
+        putObjects(bundles.toArray(new StorageObject[bundles.size()]), eventListener);
+        for (Member member: bundleMembers) {
+            members.put(member.getKeyPath(), member);
+        }
+        bundles.clear();
+        bundleMembers.clear();
+    }
+
+    protected void saveIndex() throws ServiceException, IOException {
+        Properties index = new Properties();
+        for (Member member: members.values()) {
+            index.setProperty(member.getKeyPath(), member.getBundleName() + ","
+                + member.getOffset() + "," + member.getLength() + ","
+                + member.getMd5HashAsBase64());
+        }
+        ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+        OutputStream os = new GZIPOutputStream(indexData);
+        try {
+            index.store(os, "JetS3t file bundle index");
+        } finally {
+            os.close();
+        }
+        putObject(bundlePath + INDEX_OBJECT_NAME, indexData.toByteArray());
+    }
+
+    /**
+     * @return
+     * the data of the object with the given key, or null if there is no such object.
+     */
+    protected InputStream getObjectData(String key) throws ServiceException {
+        if (!service.isObjectInBucket(bucketName, key)) {
+            return null;
+        }
+        return service.getObject(bucketName, key).getDataInputStream();
+    }
+
+    /**
+     * @return
+     * the given range of data from the object with the given key.
+     */
+    protected InputStream getObjectData(String key, long offset, long length)
+        throws ServiceException
+    {
+        return service.getObject(bucketName, key, null, null, null, null,
+            offset, offset + length - 1).getDataInputStream();
+    }
+
+    protected void putObject(String key, byte[] data) throws ServiceException, IOException {
+        try {
+            service.putObject(bucketName, new StorageObject(key, data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ServiceException("Unable to upload " + key, e);
+        }
+    }
+
+    /**
+     * Uploads objects in parallel with a {@link ThreadedStorageService}.
+     */
+    protected void putObjects(StorageObject[] objects, StorageServiceEventListener eventListener)
+        throws ServiceException
+    {
+        StorageServiceEventAdaptor errorAdaptor = new StorageServiceEventAdaptor();
+        ThreadedStorageService threadedService = new ThreadedStorageService(service, errorAdaptor);
+        if (eventListener != null) {
+            threadedService.addServiceEventListener(eventListener);
+        }
+        if (!threadedService.putObjects(bucketName, objects)) {
+            throwThreadedError(errorAdaptor, "Unable to upload bundles");
+        }
+    }
+
+    protected void deleteObject(String key) throws ServiceException {
+        service.deleteObject(bucketName, key);
+    }
+
+    private void throwThreadedError(StorageServiceEventAdaptor errorAdaptor, String message)
+        throws ServiceException
+    {
+        if (errorAdaptor.getErrorThrown() instanceof ServiceException) {
+            throw (ServiceException) errorAdaptor.getErrorThrown();
+        }
+        throw new ServiceException(message, errorAdaptor.getErrorThrown());
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        readFully(new FileInputStream(file), data);
+        return data;
+    }
+
+    private void readFully(InputStream is, byte[] data) throws IOException {
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = is.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of data after " + offset
+                        + " of " + data.length + " bytes");
+                }
+                offset += count;
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+}
@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -199,6 +200,10 @@ public class FileComparer {
             }
         }
 
+        // Never treat the sidecar files of partial downloads as data files.
+        ignorePatternList.add(Pattern.compile(
+            ".*" + Pattern.quote(DownloadCheckpoint.SIDECAR_FILE_SUFFIX)));
+
         if (isSkipMd5FileUpload()) {
             Pattern pattern = Pattern.compile(".*\\.md5");
             if (log.isDebugEnabled()) {
@@ -1189,19 +1194,7 @@ public class FileComparer {
                             generateFileMD5Hash(file, storageObject.getKey(), progressWatcher));
 
                         // Get the service object's Base64 hash.
-                        String objectHash = null;
-                        if (storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
-                            // Use the object's *original* hash, as it is an encoded version of a local file.
-                            objectHash = (String) storageObject.getMetadata(
-                                StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
-                            if (log.isDebugEnabled()) {
-                                log.debug("Object in service is encoded, using the object's original hash value for: "
-                                + storageObject.getKey());
-                            }
-                        } else {
-                            // The object wasn't altered when uploaded, so use its current hash.
-                            objectHash = storageObject.getMd5HashAsBase64();
-                        }
+                        String objectHash = getOriginalHashAsBase64(storageObject);
 
                         if (fileHashAsBase64.equals(objectHash)) {
                             // Hashes match so file is already synchronised.
@@ -1274,6 +1267,111 @@ public class FileComparer {
             onlyOnClientKeys, alreadySynchronisedKeys, alreadySynchronisedLocalPaths);
     }
 
+    /**
+     * @return
+     * the Base64-encoded MD5 hash of the local data an object was uploaded from, or null
+     * if the hash is not available.
+     */
+    protected String getOriginalHashAsBase64(StorageObject storageObject) {
+        if (storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
+            // Use the object's *original* hash, as it is an encoded version of a local file.
+            if (log.isDebugEnabled()) {
+                log.debug("Object in service is encoded, using the object's original hash value for: "
+                + storageObject.getKey());
+            }
+            return (String) storageObject.getMetadata(
+                StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
+        } else {
+            // The object wasn't altered when uploaded, so use its current hash.
+            return storageObject.getMd5HashAsBase64();
+        }
+    }
+
+    /**
+     * Finds local files that have been moved or renamed since they were uploaded. A file
+     * only on the client is matched with an object only on the service when the file's MD5
+     * hash matches the object's hash, taken from the object's ETag or from the original
+     * hash metadata of objects that were compressed or encrypted when uploaded. Matched
+     * objects can be copied to the new key names in the service instead of uploading the
+     * files' data again.
+     * <p>
+     * Directories and empty files are not matched. Objects without an available hash are
+     * ignored, so objects uploaded as multipart uploads can only be matched if their
+     * metadata has been retrieved, as it is by
+     * {@link #buildObjectMapPartial} for objects that could clash with local files.
+     *
+     * @param discrepancyResults
+     * results of comparing the local files with the objects.
+     * @param objectKeyToFilepathMap
+     * map of '/'-delimited object key names to local file absolute paths.
+     * @param objectsMap
+     * map of relative key paths to the objects in the service.
+     * @param progressWatcher
+     * watcher to monitor progress of MD5 hash generation, may be null.
+     * @return
+     * map of the relative key paths of files only on the client to the relative key paths
+     * of objects only on the service that have the same data.
+     *
+     * @throws NoSuchAlgorithmException
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public Map<String, String> findRenamedFiles(FileComparerResults discrepancyResults,
+        Map<String, String> objectKeyToFilepathMap, Map<String, StorageObject> objectsMap,
+        BytesProgressWatcher progressWatcher)
+        throws NoSuchAlgorithmException, FileNotFoundException, IOException
+    {
+        Map<String, String> renamedKeys = new HashMap<String, String>();
+
+        // Index objects only on the service by their hashes and sizes
+        Map<String, String> serverKeysByHash = new HashMap<String, String>();
+        Set<Long> serverObjectSizes = new HashSet<Long>();
+        for (String keyPath: discrepancyResults.onlyOnServerKeys) {
+            StorageObject storageObject = objectsMap.get(keyPath);
+            if (storageObject == null || storageObject.isDirectoryPlaceholder()
+                || storageObject.getContentLength() == 0)
+            {
+                continue;
+            }
+            String objectHash = getOriginalHashAsBase64(storageObject);
+            if (objectHash != null && !serverKeysByHash.containsKey(objectHash)) {
+                serverKeysByHash.put(objectHash, keyPath);
+                if (!storageObject.containsMetadata(StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5)) {
+                    serverObjectSizes.add(storageObject.getContentLength());
+                }
+            }
+        }
+        if (serverKeysByHash.isEmpty()) {
+            return renamedKeys;
+        }
+        // Only encoded objects can differ in size from their local files
+        boolean isSizeFilterReliable = (serverObjectSizes.size() == serverKeysByHash.size());
+
+        for (String keyPath: discrepancyResults.onlyOnClientKeys) {
+            String filepath = objectKeyToFilepathMap.get(keyPath);
+            if (filepath == null) {
+                continue;
+            }
+            File file = new File(filepath);
+            if (file.isDirectory() || file.length() == 0
+                || (isSizeFilterReliable && !serverObjectSizes.contains(file.length())))
+            {
+                continue;
+            }
+            String fileHashAsBase64 = ServiceUtils.toBase64(
+                generateFileMD5Hash(file, keyPath, progressWatcher));
+            String serverKeyPath = serverKeysByHash.get(fileHashAsBase64);
+            if (serverKeyPath != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Local file " + keyPath + " has the same data as object "
+                        + serverKeyPath + ", treating it as moved or renamed");
+                }
+                renamedKeys.put(keyPath, serverKeyPath);
+            }
+        }
+        return renamedKeys;
+    }
+
     private String[] splitFilePathIntoDirPaths(String path, boolean isDirectoryPlaceholder) {
         String[] pathComponents = path.split(Constants.FILE_PATH_DELIM);
         String[] dirPathsInOrder = new String[pathComponents.length];
@@ -0,0 +1,269 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+
+/**
+ * An on-disk record of the progress of a multipart upload of a file, used to resume
+ * the upload after the uploading process is interrupted. The checkpoint stores the
+ * upload ID, the part size, the identity of the source file (length and last-modified
+ * date) and the number and ETag of every part known to have been uploaded.
+ * <p>
+ * The checkpoint is a plain properties file that is re-written atomically, by way of
+ * a temporary file, every time new parts are recorded.
+ *
+ * @author James Murty
+ */
+public class MultipartUploadCheckpoint {
+    private static final Log log = LogFactory.getLog(MultipartUploadCheckpoint.class);
+
+    private static final String PART_PROPERTY_PREFIX = "part.";
+
+    private final File checkpointFile;
+    private String bucketName = null;
+    private String objectKey = null;
+    private String uploadId = null;
+    private long partSize = 0;
+    private long dataLength = 0;
+    private long dataLastModified = 0;
+    private final Map<Integer, MultipartPart> parts = new TreeMap<Integer, MultipartPart>();
+    private MultipartUpload multipartUpload = null;
+
+    /**
+     * Create a new checkpoint for a multipart upload of a file. The checkpoint is not
+     * written to disk until {@link #save()} or {@link #recordParts(Collection)} is called.
+     *
+     * @param checkpointFile
+     * the file in which the checkpoint will be stored.
+     * @param upload
+     * the multipart upload whose progress will be recorded.
+     * @param dataFile
+     * the file being uploaded.
+     * @param partSize
+     * the size of each part the file is split into.
+     */
+    public MultipartUploadCheckpoint(File checkpointFile, MultipartUpload upload,
+        File dataFile, long partSize)
+    {
+        this.checkpointFile = checkpointFile;
+        this.multipartUpload = upload;
+        this.bucketName = upload.getBucketName();
+        this.objectKey = upload.getObjectKey();
+        this.uploadId = upload.getUploadId();
+        this.partSize = partSize;
+        this.dataLength = dataFile.length();
+        this.dataLastModified = dataFile.lastModified();
+    }
+
+    private MultipartUploadCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Load a checkpoint from disk.
+     *
+     * @param checkpointFile
+     * the file containing the checkpoint.
+     * @return
+     * the checkpoint, or null if the checkpoint file does not exist or cannot be parsed.
+     * @throws IOException
+     */
+    public static MultipartUploadCheckpoint load(File checkpointFile) throws IOException {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream is = new BufferedInputStream(new FileInputStream(checkpointFile));
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+
+        MultipartUploadCheckpoint checkpoint = new MultipartUploadCheckpoint(checkpointFile);
+        try {
+            checkpoint.bucketName = properties.getProperty("bucket-name");
+            checkpoint.objectKey = properties.getProperty("object-key");
+            checkpoint.uploadId = properties.getProperty("upload-id");
+            checkpoint.partSize = Long.parseLong(properties.getProperty("part-size"));
+            checkpoint.dataLength = Long.parseLong(properties.getProperty("data-length"));
+            checkpoint.dataLastModified = Long.parseLong(
+                properties.getProperty("data-last-modified"));
+            for (Object nameObj: properties.keySet()) {
+                String name = (String) nameObj;
+                if (!name.startsWith(PART_PROPERTY_PREFIX)) {
+                    continue;
+                }
+                Integer partNumber = Integer.valueOf(name.substring(PART_PROPERTY_PREFIX.length()));
+                // Value format: <etag>,<size>,<last-modified-millis>
+                String[] values = properties.getProperty(name).split(",");
+                checkpoint.parts.put(partNumber, new MultipartPart(partNumber,
+                    new Date(Long.parseLong(values[2])), values[0], Long.valueOf(values[1])));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable multipart upload checkpoint file " + checkpointFile, e);
+            return null;
+        }
+        if (checkpoint.bucketName == null || checkpoint.objectKey == null
+            || checkpoint.uploadId == null)
+        {
+            log.warn("Ignoring incomplete multipart upload checkpoint file " + checkpointFile);
+            return null;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return
+     * true if this checkpoint applies to an upload of the given file to the given
+     * bucket and key with the given part size, and the file has not changed since the
+     * checkpoint was created.
+     */
+    public boolean matches(String bucketName, String objectKey, File dataFile, long partSize) {
+        return this.bucketName.equals(bucketName)
+            && this.objectKey.equals(objectKey)
+            && this.partSize == partSize
+            && this.dataLength == dataFile.length()
+            && this.dataLastModified == dataFile.lastModified();
+    }
+
+    /**
+     * @return
+     * the multipart upload recorded in this checkpoint. The same object is returned
+     * every time, so parts added to its uploaded list are visible to all callers.
+     */
+    public synchronized MultipartUpload getMultipartUpload() {
+        if (multipartUpload == null) {
+            multipartUpload = new MultipartUpload(uploadId, bucketName, objectKey);
+        }
+        return multipartUpload;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @return
+     * the parts recorded as uploaded, in part number order.
+     */
+    public synchronized List<MultipartPart> getParts() {
+        return new ArrayList<MultipartPart>(parts.values());
+    }
+
+    /**
+     * Record the given parts as uploaded, and write the checkpoint to disk if this
+     * changes what it records.
+     *
+     * @param uploadedParts
+     * @throws IOException
+     */
+    public synchronized void recordParts(Collection<MultipartPart> uploadedParts)
+        throws IOException
+    {
+        boolean changed = false;
+        for (MultipartPart part: uploadedParts) {
+            MultipartPart existing = parts.get(part.getPartNumber());
+            if (existing == null || !existing.getEtag().equals(part.getEtag())) {
+                parts.put(part.getPartNumber(), part);
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Write the checkpoint to disk, replacing any earlier version.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("bucket-name", bucketName);
+        properties.setProperty("object-key", objectKey);
+        properties.setProperty("upload-id", uploadId);
+        properties.setProperty("part-size", String.valueOf(partSize));
+        properties.setProperty("data-length", String.valueOf(dataLength));
+        properties.setProperty("data-last-modified", String.valueOf(dataLastModified));
+        for (MultipartPart part: parts.values()) {
+            properties.setProperty(PART_PROPERTY_PREFIX + part.getPartNumber(),
+                part.getEtag() + "," + part.getSize() + "," + part.getLastModified().getTime());
+        }
+
+        File parentDir = checkpointFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            properties.store(os, "JetS3t multipart upload checkpoint");
+        } finally {
+            os.close();
+        }
+        // File#renameTo will not replace an existing file on all platforms.
+        if (!tempFile.renameTo(checkpointFile)) {
+            checkpointFile.delete();
+            if (!tempFile.renameTo(checkpointFile)) {
+                throw new IOException("Unable to write multipart upload checkpoint file "
+                    + checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * Delete the checkpoint from disk, normally once the upload has been completed.
+     */
+    public void delete() {
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            log.warn("Unable to delete multipart upload checkpoint file " + checkpointFile);
+        }
+    }
+
+}
@@ -0,0 +1,616 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.MultipartCompleted;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * An output stream that uploads the data written to it to S3 as a multipart upload,
+ * for data whose length is not known in advance. Written bytes are collected into
+ * part-sized buffers, and each full buffer is uploaded as a multipart part by a pool
+ * of background threads while the caller goes on writing. The upload is completed
+ * when the stream is closed, or is aborted if any part fails to upload.
+ * <p>
+ * Memory use is bounded by a fixed pool of part buffers, set by the JetS3t property
+ * <tt>uploads.stream-part-buffer-count</tt> (default: 4). When every buffer is busy
+ * the writer blocks until a part upload finishes, unless the property
+ * <tt>uploads.stream-spill-directory</tt> names a directory in which case extra parts
+ * are written to temporary files there instead. Parts are uploaded by up to
+ * <tt>threaded-service.max-thread-count</tt> threads, which are only started once the
+ * data turns out to need a multipart upload.
+ * <p>
+ * Callers uploading many streams at once can share one executor and one pool of part
+ * buffers between the streams, to bound the threads and memory used by all of them.
+ * <p>
+ * If the stream is closed before a single full part has been written, the data
+ * is uploaded with an ordinary PUT request instead of a multipart upload.
+ *
+ * @author James Murty
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+    private static final Log log = LogFactory.getLog(MultipartUploadOutputStream.class);
+
+    /**
+     * Maximum number of parts permitted in a multipart upload by S3.
+     */
+    public static final int MAX_PART_COUNT = 10000;
+
+    private final S3Service s3Service;
+    private final String bucketName;
+    private final StorageObject objectTemplate;
+    private final int partSize;
+    private final File spillDirectory;
+
+    private final BlockingQueue<byte[]> bufferPool;
+    private final int threadCount;
+    private final boolean isExecutorOwned;
+    private ExecutorService executor;
+    private final List<Future<MultipartPart>> partFutures =
+        new ArrayList<Future<MultipartPart>>();
+
+    private MultipartUpload multipartUpload = null;
+    private MultipartCompleted multipartCompleted = null;
+    private int nextPartNumber = 1;
+
+    private byte[] currentBuffer = null;
+    private int currentBufferCount = 0;
+    private File currentSpillFile = null;
+    private OutputStream currentSpillStream = null;
+    private long currentSpillCount = 0;
+    private MessageDigest currentDigest = null;
+
+    private long bytesWritten = 0;
+    private volatile Throwable failure = null;
+    private boolean closed = false;
+
+    /**
+     * @param s3Service
+     * the service that will perform the upload.
+     * @param bucketName
+     * the name of the bucket in which the object will be stored.
+     * @param object
+     * an object describing the upload target, including its key name and any metadata,
+     * ACL, storage class or server-side encryption settings. Any data associated with
+     * this object is ignored.
+     * @param partSize
+     * the size of each uploaded part, must be between {@link MultipartUtils#MIN_PART_SIZE}
+     * and {@link Integer#MAX_VALUE} bytes.
+     */
+    public MultipartUploadOutputStream(S3Service s3Service, String bucketName,
+        StorageObject object, long partSize)
+    {
+        this(s3Service, bucketName, object, partSize, null, null);
+    }
+
+    /**
+     * @param s3Service
+     * the service that will perform the upload.
+     * @param bucketName
+     * the name of the bucket in which the object will be stored.
+     * @param object
+     * an object describing the upload target, including its key name and any metadata,
+     * ACL, storage class or server-side encryption settings. Any data associated with
+     * this object is ignored.
+     * @param partSize
+     * the size of each uploaded part, must be between {@link MultipartUtils#MIN_PART_SIZE}
+     * and {@link Integer#MAX_VALUE} bytes.
+     * @param partExecutor
+     * executor to upload parts, shared with other streams and not shut down by this
+     * stream. If null, the stream starts its own threads when needed.
+     * @param bufferPool
+     * pool of part buffers shared with other streams, created by
+     * {@link #createBufferPool(int)}. If null, the stream has its own pool.
+     */
+    public MultipartUploadOutputStream(S3Service s3Service, String bucketName,
+        StorageObject object, long partSize, ExecutorService partExecutor,
+        BlockingQueue<byte[]> bufferPool)
+    {
+        if (partSize < MultipartUtils.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size " + partSize
+                + " is less than the minimum legal part size " + MultipartUtils.MIN_PART_SIZE);
+        }
+        if (partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Part size " + partSize
+                + " is too large to buffer, maximum is " + Integer.MAX_VALUE);
+        }
+        this.s3Service = s3Service;
+        this.bucketName = bucketName;
+        this.objectTemplate = object;
+        this.partSize = (int) partSize;
+
+        Jets3tProperties properties = s3Service.getJetS3tProperties();
+        int bufferCount = Math.max(1,
+            properties.getIntProperty("uploads.stream-part-buffer-count", 4));
+        this.threadCount = Math.max(1, Math.min(bufferCount,
+            properties.getIntProperty("threaded-service.max-thread-count", 2)));
+        String spillDirectoryName = properties.getStringProperty(
+            "uploads.stream-spill-directory", null);
+        this.spillDirectory = (spillDirectoryName != null
+            ? new File(spillDirectoryName) : null);
+
+        this.bufferPool = (bufferPool != null ? bufferPool : createBufferPool(bufferCount));
+        this.executor = partExecutor;
+        this.isExecutorOwned = (partExecutor == null);
+    }
+
+    /**
+     * Creates a pool of part buffers that may be shared by several streams. Buffers are
+     * allocated lazily, the pool only bounds how many may exist at once.
+     *
+     * @param bufferCount
+     * the maximum number of part buffers.
+     * @return
+     * a pool to pass to {@link #MultipartUploadOutputStream(S3Service, String,
+     * StorageObject, long, ExecutorService, BlockingQueue)}.
+     */
+    public static BlockingQueue<byte[]> createBufferPool(int bufferCount) {
+        BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            bufferPool.add(new byte[0]);
+        }
+        return bufferPool;
+    }
+
+    /**
+     * @return
+     * the total number of bytes written to this stream.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return
+     * the multipart upload used by this stream, or null if no multipart upload has
+     * been started yet or the data was small enough to upload with a single PUT.
+     */
+    public MultipartUpload getMultipartUpload() {
+        return multipartUpload;
+    }
+
+    /**
+     * @return
+     * the result of completing the multipart upload, available once the stream has been
+     * closed; null if the data was uploaded with a single PUT.
+     */
+    public MultipartCompleted getMultipartCompleted() {
+        return multipartCompleted;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        checkNotClosedOrFailed();
+        while (length > 0) {
+            if (currentBuffer == null && currentSpillStream == null) {
+                startPartOrFail();
+            }
+            int count = Math.min(length, partSize - (int) getCurrentPartCount());
+            if (currentSpillStream != null) {
+                currentSpillStream.write(bytes, offset, count);
+                currentSpillCount += count;
+            } else {
+                System.arraycopy(bytes, offset, currentBuffer, currentBufferCount, count);
+                currentBufferCount += count;
+            }
+            currentDigest.update(bytes, offset, count);
+            bytesWritten += count;
+            offset += count;
+            length -= count;
+
+            if (getCurrentPartCount() == partSize) {
+                submitPartOrFail();
+            }
+        }
+    }
+
+    /**
+     * Uploads any remaining buffered data, waits for all part uploads to finish, then
+     * completes the multipart upload. If any part failed to upload, the multipart upload
+     * is aborted and an exception is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (failure == null) {
+                if (multipartUpload == null) {
+                    putAsSingleObject();
+                } else {
+                    if (getCurrentPartCount() > 0) {
+                        submitPart();
+                    }
+                    completeMultipartUpload();
+                }
+            }
+        } catch (IOException e) {
+            recordFailure(e);
+        } finally {
+            // A part that was not submitted still holds a pooled buffer or spill file
+            discardCurrentPart();
+            shutdownExecutor();
+        }
+        if (failure != null) {
+            abortQuietly();
+            throw toIOException(failure);
+        }
+    }
+
+    /**
+     * Abandons the upload, aborting any multipart upload that has been started. Use this
+     * instead of {@link #close()} when the data being written turns out to be incomplete.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (failure == null) {
+            failure = new IOException("Upload of " + objectTemplate.getKey() + " was aborted");
+        }
+        discardCurrentPart();
+        abortQuietly();
+        shutdownExecutor();
+    }
+
+    private long getCurrentPartCount() {
+        return (currentSpillStream != null ? currentSpillCount : currentBufferCount);
+    }
+
+    private void startPartOrFail() throws IOException {
+        try {
+            startPart();
+        } catch (IOException e) {
+            failAndRelease(e);
+        }
+    }
+
+    private void submitPartOrFail() throws IOException {
+        try {
+            submitPart();
+        } catch (IOException e) {
+            failAndRelease(e);
+        }
+    }
+
+    /**
+     * Records a failure of this stream, releases the current part and aborts the upload,
+     * then throws the failure.
+     */
+    private void failAndRelease(IOException e) throws IOException {
+        if (closed) {
+            discardCurrentPart();
+            throw e;
+        }
+        recordFailure(e);
+        checkNotClosedOrFailed();
+    }
+
+    private void startPart() throws IOException {
+        try {
+            currentDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw toIOException(e);
+        }
+        byte[] buffer = bufferPool.poll();
+        if (buffer == null && spillDirectory != null) {
+            currentSpillFile = File.createTempFile("jets3t-part-", ".tmp", spillDirectory);
+            currentSpillFile.deleteOnExit();
+            currentSpillStream = new BufferedOutputStream(new FileOutputStream(currentSpillFile));
+            currentSpillCount = 0;
+            if (log.isDebugEnabled()) {
+                log.debug("All part buffers busy, spilling part " + nextPartNumber
+                    + " of " + objectTemplate.getKey() + " to " + currentSpillFile);
+            }
+            return;
+        }
+        if (buffer == null) {
+            try {
+                buffer = bufferPool.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for a free part buffer");
+            }
+        }
+        if (buffer.length < partSize) {
+            buffer = new byte[partSize];
+        }
+        currentBuffer = buffer;
+        currentBufferCount = 0;
+        // A part may have failed while waiting for the buffer, which is then released
+        checkNotClosedOrFailed();
+    }
+
+    private void submitPart() throws IOException {
+        if (nextPartNumber > MAX_PART_COUNT) {
+            throw new IOException("Cannot upload more than " + MAX_PART_COUNT
+                + " parts of " + partSize + " bytes for " + objectTemplate.getKey());
+        }
+        if (multipartUpload == null) {
+            startMultipartUpload();
+        }
+
+        final S3Object partObject = new S3Object(objectTemplate.getKey());
+        final byte[] buffer = currentBuffer;
+        final File spillFile = currentSpillFile;
+        if (currentSpillStream != null) {
+            currentSpillStream.close();
+            partObject.setDataInputFile(spillFile);
+            partObject.setContentLength(currentSpillCount);
+        } else {
+            partObject.setDataInputStream(
+                new ByteArrayInputStream(buffer, 0, currentBufferCount));
+            partObject.setContentLength(currentBufferCount);
+        }
+        partObject.setMd5Hash(currentDigest.digest());
+        final Integer partNumber = nextPartNumber++;
+
+        currentBuffer = null;
+        currentBufferCount = 0;
+        currentSpillFile = null;
+        currentSpillStream = null;
+        currentSpillCount = 0;
+
+        Future<MultipartPart> future;
+        try {
+            future = getExecutor().submit(new Callable<MultipartPart>() {
+                public MultipartPart call() throws Exception {
+                    try {
+                        if (failure != null) {
+                            throw new ServiceException("Skipping upload of part " + partNumber
+                                + " after earlier failure", failure);
+                        }
+                        return s3Service.multipartUploadPart(
+                            multipartUpload, partNumber, partObject);
+                    } catch (Exception e) {
+                        recordFailure(e);
+                        throw e;
+                    } finally {
+                        if (spillFile != null) {
+                            spillFile.delete();
+                        } else {
+                            bufferPool.offer(buffer);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (spillFile != null) {
+                spillFile.delete();
+            } else {
+                bufferPool.offer(buffer);
+            }
+            IOException ioe = new IOException("Unable to schedule upload of part " + partNumber);
+            ioe.initCause(e);
+            throw ioe;
+        }
+        partFutures.add(future);
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                        "MultipartUploadOutputStream-" + objectTemplate.getKey());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private void shutdownExecutor() {
+        if (isExecutorOwned && executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the current part's buffer to the pool, or deletes its spill file. The pool
+     * may be shared with other streams, which would block waiting for a lost buffer.
+     */
+    private void discardCurrentPart() {
+        if (currentSpillStream != null) {
+            try {
+                currentSpillStream.close();
+            } catch (IOException e) {
+                log.debug("Unable to close spill file " + currentSpillFile, e);
+            }
+        }
+        if (currentSpillFile != null) {
+            currentSpillFile.delete();
+        } else if (currentBuffer != null) {
+            bufferPool.offer(currentBuffer);
+        }
+        currentBuffer = null;
+        currentBufferCount = 0;
+        currentSpillFile = null;
+        currentSpillStream = null;
+        currentSpillCount = 0;
+    }
+
+    private void startMultipartUpload() throws IOException {
+        try {
+            if (objectTemplate instanceof S3Object) {
+                multipartUpload = s3Service.multipartStartUpload(
+                    bucketName, (S3Object) objectTemplate);
+            } else {
+                multipartUpload = s3Service.multipartStartUpload(bucketName,
+                    objectTemplate.getKey(), objectTemplate.getMetadataMap(),
+                    objectTemplate.getAcl(), objectTemplate.getStorageClass());
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Started multipart upload for streamed data: " + multipartUpload);
+            }
+        } catch (ServiceException e) {
+            throw toIOException(e);
+        }
+    }
+
+    private void completeMultipartUpload() throws IOException {
+        List<MultipartPart> parts = new ArrayList<MultipartPart>();
+        for (Future<MultipartPart> future: partFutures) {
+            try {
+                parts.add(future.get());
+            } catch (InterruptedException e) {
+                recordFailure(e);
+            } catch (ExecutionException e) {
+                recordFailure(e.getCause());
+            }
+        }
+        if (failure != null) {
+            return;
+        }
+        try {
+            multipartCompleted = s3Service.multipartCompleteUpload(multipartUpload, parts);
+
+            // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
+            if (objectTemplate.getAcl() != null
+                && objectTemplate.getAcl().getValueForRESTHeaderACL() == null)
+            {
+                s3Service.putObjectAcl(bucketName, objectTemplate.getKey(),
+                    objectTemplate.getAcl());
+            }
+        } catch (ServiceException e) {
+            recordFailure(e);
+        }
+    }
+
+    private void putAsSingleObject() throws IOException {
+        StorageObject object = (StorageObject) objectTemplate.clone();
+        object.setBucketName(bucketName);
+        if (currentSpillStream != null) {
+            currentSpillStream.close();
+            object.setDataInputFile(currentSpillFile);
+            object.setContentLength(currentSpillCount);
+        } else {
+            object.setDataInputStream(new ByteArrayInputStream(
+                (currentBuffer != null ? currentBuffer : new byte[0]), 0, currentBufferCount));
+            object.setContentLength(currentBufferCount);
+        }
+        if (currentDigest != null) {
+            object.setMd5Hash(currentDigest.digest());
+        }
+        try {
+            s3Service.putObject(bucketName, object);
+        } catch (ServiceException e) {
+            throw toIOException(e);
+        } finally {
+            discardCurrentPart();
+        }
+    }
+
+    private void abortQuietly() {
+        // Parts still in flight would be stored after the abort and linger as orphaned
+        // parts, so wait for them first. Parts not yet started skip their upload once
+        // a failure is recorded.
+        boolean isInterrupted = false;
+        for (Future<MultipartPart> future: partFutures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (Exception e) {
+                    break;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (multipartUpload == null || multipartCompleted != null) {
+            return;
+        }
+        try {
+            s3Service.multipartAbortUpload(multipartUpload);
+        } catch (Exception e) {
+            log.warn("Streamed multipart upload failed and could not clean-up by aborting upload "
+                + multipartUpload, e);
+        }
+    }
+
+    private void recordFailure(Throwable t) {
+        if (failure == null) {
+            failure = t;
+            log.warn("Streamed multipart upload of " + objectTemplate.getKey() + " failed", t);
+        }
+    }
+
+    private void checkNotClosedOrFailed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+            closed = true;
+            discardCurrentPart();
+            abortQuietly();
+            shutdownExecutor();
+            throw toIOException(failure);
+        }
+    }
+
+    private static IOException toIOException(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        IOException ioe = new IOException("Multipart upload failed: " + t.getMessage());
+        ioe.initCause(t);
+        return ioe;
+    }
+
+}
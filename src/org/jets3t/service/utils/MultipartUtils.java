@@ -20,25 +20,33 @@ package org.jets3t.service.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
 import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.io.SegmentedRepeatableFileInputStream;
+import org.jets3t.service.io.SegmentedRepeatableFileChannelInputStream;
+import org.jets3t.service.io.SharedFileChannel;
+import org.jets3t.service.model.MultipartPart;
 import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.multi.StorageServiceEventAdaptor;
 import org.jets3t.service.multi.event.ServiceEvent;
+import org.jets3t.service.multi.s3.MultipartPartCopy;
 import org.jets3t.service.multi.s3.MultipartStartsEvent;
 import org.jets3t.service.multi.s3.MultipartUploadAndParts;
+import org.jets3t.service.multi.s3.MultipartUploadsEvent;
 import org.jets3t.service.multi.s3.S3ServiceEventAdaptor;
 import org.jets3t.service.multi.s3.S3ServiceEventListener;
 import org.jets3t.service.multi.s3.ThreadedS3Service;
@@ -67,6 +75,8 @@ public class MultipartUtils {
 
     protected long maxPartSize = MAX_OBJECT_SIZE;
 
+    protected File checkpointDirectory = null;
+
 
     /**
      * @param maxPartSize
@@ -111,8 +121,9 @@ public class MultipartUtils {
     /**
      * Split the given file into objects such that no object has a size greater than
      * the defined maximum part size. Each object uses a
-     * {@link SegmentedRepeatableFileInputStream} input stream to manage its own
-     * byte range within the underlying file.
+     * {@link SegmentedRepeatableFileChannelInputStream} input stream to manage its own
+     * byte range within the underlying file, and all the objects share a single
+     * {@link SharedFileChannel} so only one file descriptor is held for the file.
      *
      * @param objectKey
      * the object key name to apply to all objects returned by this method.
@@ -128,43 +139,73 @@ public class MultipartUtils {
     public List<S3Object> splitFileIntoObjectsByMaxPartSize(String objectKey, File file)
         throws IOException, NoSuchAlgorithmException
     {
-        long fileLength = file.length();
+        return splitFileIntoObjectsByMaxPartSize(objectKey, file, 0);
+    }
+
+    /**
+     * Split the given file into objects like {@link #splitFileIntoObjectsByMaxPartSize(String, File)},
+     * except that only the file's data from the given offset onwards is included.
+     *
+     * @param objectKey
+     * the object key name to apply to all objects returned by this method.
+     * @param file
+     * a file to split into multiple parts.
+     * @param startOffset
+     * the position in the file of the first byte of the first part.
+     * @return
+     * an ordered list of objects for the file's data following the start offset.
+     *
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public List<S3Object> splitFileIntoObjectsByMaxPartSize(String objectKey, File file,
+        long startOffset) throws IOException, NoSuchAlgorithmException
+    {
+        long fileLength = file.length() - startOffset;
         long partCount = fileLength / maxPartSize + (fileLength % maxPartSize > 0 ? 1 : 0);
 
         if (log.isDebugEnabled()) {
             log.debug("Splitting file " + file.getAbsolutePath() + " of "
-                + fileLength + " bytes into " + partCount
+                + fileLength + " bytes from offset " + startOffset + " into " + partCount
                 + " object parts with a maximum part size of " + maxPartSize);
         }
 
         ArrayList<S3Object> multipartPartList = new ArrayList<S3Object>();
-        SegmentedRepeatableFileInputStream segFIS = null;
-
-        for (long offset = 0; offset < partCount; offset++) {
-            S3Object object = new S3Object(objectKey);
-            if (offset < partCount - 1) {
-                object.setContentLength(maxPartSize);
-                segFIS = new SegmentedRepeatableFileInputStream(
-                    file, offset * maxPartSize, maxPartSize);
-            } else {
-                // Last part, may not be full size.
-                long partLength = fileLength % maxPartSize;
-                // Handle edge-case where last part is exactly the size of maxPartSize
-                if (partLength == 0) {
-                    partLength = maxPartSize;
+        SegmentedRepeatableFileChannelInputStream segFIS = null;
+
+        // Hold a reference to the shared channel while we hash the parts, so the
+        // channel stays open as each part's stream is closed and reset in turn.
+        SharedFileChannel sharedChannel = new SharedFileChannel(file);
+        sharedChannel.acquire();
+        try {
+            for (long offset = 0; offset < partCount; offset++) {
+                S3Object object = new S3Object(objectKey);
+                if (offset < partCount - 1) {
+                    object.setContentLength(maxPartSize);
+                    segFIS = new SegmentedRepeatableFileChannelInputStream(
+                        sharedChannel, startOffset + offset * maxPartSize, maxPartSize);
+                } else {
+                    // Last part, may not be full size.
+                    long partLength = fileLength % maxPartSize;
+                    // Handle edge-case where last part is exactly the size of maxPartSize
+                    if (partLength == 0) {
+                        partLength = maxPartSize;
+                    }
+                    object.setContentLength(partLength);
+                    segFIS = new SegmentedRepeatableFileChannelInputStream(
+                        sharedChannel, startOffset + offset * maxPartSize, partLength);
                 }
-                object.setContentLength(partLength);
-                segFIS = new SegmentedRepeatableFileInputStream(
-                    file, offset * maxPartSize, partLength);
-            }
-            object.setContentLength(segFIS.available());
-            object.setDataInputStream(segFIS);
+                object.setContentLength(segFIS.available());
+                object.setDataInputStream(segFIS);
 
-            // Calculate part's MD5 hash and reset stream
-            object.setMd5Hash(ServiceUtils.computeMD5Hash(segFIS));
-            segFIS.reset();
+                // Calculate part's MD5 hash and reset stream
+                object.setMd5Hash(ServiceUtils.computeMD5Hash(segFIS));
+                segFIS.reset();
 
-            multipartPartList.add(object);
+                multipartPartList.add(object);
+            }
+        } finally {
+            sharedChannel.release();
         }
         return multipartPartList;
     }
@@ -210,13 +251,16 @@ public class MultipartUtils {
             new ArrayList<MultipartUpload>();
         final List<MultipartUploadAndParts> uploadAndPartsList =
             new ArrayList<MultipartUploadAndParts>();
+        final Map<String, MultipartUploadCheckpoint> checkpointsByKey =
+            new HashMap<String, MultipartUploadCheckpoint>();
 
         if (eventListener == null) {
             eventListener = new S3ServiceEventAdaptor();
         }
 
         // Adaptor solely to capture newly-created MultipartUpload objects, which we
-        // will need when it comes time to upload parts or complete the uploads.
+        // will need when it comes time to upload parts or complete the uploads, and
+        // to record uploaded parts in checkpoints when uploads are resumable.
         StorageServiceEventAdaptor captureMultipartUploadObjectsEventAdaptor =
             new S3ServiceEventAdaptor() {
                 @Override
@@ -227,6 +271,12 @@ public class MultipartUtils {
                         }
                     }
                 }
+                @Override
+                public void event(MultipartUploadsEvent event) {
+                    if (ServiceEvent.EVENT_IN_PROGRESS == event.getEventCode()) {
+                        recordUploadedPartsInCheckpoints(checkpointsByKey.values());
+                    }
+                }
             };
 
         List<S3Object> partObjects = null;
@@ -249,39 +299,466 @@ public class MultipartUtils {
                 objectsByKey.put(object.getKey(), object);
             }
 
-            // Start all multipart uploads
-            threadedS3Service.multipartStartUploads(bucketName, objectsForMultipartUpload);
-            throwServiceEventAdaptorErrorIfPresent(eventListener);
+            // Resume any interrupted uploads recorded in checkpoints
+            List<StorageObject> objectsToStart = new ArrayList<StorageObject>();
+            for (StorageObject object: objectsForMultipartUpload) {
+                MultipartUploadCheckpoint checkpoint = null;
+                if (checkpointDirectory != null) {
+                    checkpoint = resumeFromCheckpoint(s3Service,
+                        getCheckpointFile(bucketName, object.getKey()), bucketName, object);
+                }
+                if (checkpoint != null) {
+                    checkpointsByKey.put(object.getKey(), checkpoint);
+                    multipartUploadList.add(checkpoint.getMultipartUpload());
+                } else {
+                    objectsToStart.add(object);
+                }
+            }
+
+            // Start all new multipart uploads
+            if (objectsToStart.size() > 0) {
+                threadedS3Service.multipartStartUploads(bucketName, objectsToStart);
+                throwServiceEventAdaptorErrorIfPresent(eventListener);
+            }
 
-            // Build upload and part lists from new multipart uploads, where new
+            // Build upload and part lists from multipart uploads, where new
             // MultipartUpload objects were captured by this method's
             // captureMultipartUploadObjectsEventAdaptor)
             for (MultipartUpload upload: multipartUploadList) {
                 StorageObject object = objectsByKey.get(upload.getObjectKey());
+                if (checkpointDirectory != null
+                    && !checkpointsByKey.containsKey(upload.getObjectKey()))
+                {
+                    MultipartUploadCheckpoint checkpoint = new MultipartUploadCheckpoint(
+                        getCheckpointFile(bucketName, upload.getObjectKey()),
+                        upload, object.getDataInputFile(), maxPartSize);
+                    checkpoint.save();
+                    checkpointsByKey.put(upload.getObjectKey(), checkpoint);
+                }
                 partObjects = splitFileIntoObjectsByMaxPartSize(
                     upload.getObjectKey(),
                     object.getDataInputFile());
-                uploadAndPartsList.add(
-                    new MultipartUploadAndParts(upload, partObjects));
+                if (checkpointsByKey.containsKey(upload.getObjectKey())) {
+                    // Only upload the parts the service does not already have
+                    Map<Integer, MultipartPart> uploadedParts = findUploadedParts(
+                        partObjects, upload.getMultipartPartsUploaded());
+                    int partNumber = 1;
+                    for (S3Object partObject: partObjects) {
+                        if (uploadedParts.containsKey(partNumber)) {
+                            partObject.closeDataInputStream();
+                        } else {
+                            List<S3Object> singlePart = new ArrayList<S3Object>();
+                            singlePart.add(partObject);
+                            uploadAndPartsList.add(
+                                new MultipartUploadAndParts(upload, singlePart, partNumber));
+                        }
+                        partNumber++;
+                    }
+                } else {
+                    uploadAndPartsList.add(
+                        new MultipartUploadAndParts(upload, partObjects));
+                }
             }
 
             // Upload all parts for all multipart uploads
-            threadedS3Service.multipartUploadParts(uploadAndPartsList);
-            throwServiceEventAdaptorErrorIfPresent(eventListener);
+            if (uploadAndPartsList.size() > 0) {
+                threadedS3Service.multipartUploadParts(uploadAndPartsList);
+                recordUploadedPartsInCheckpoints(checkpointsByKey.values());
+                throwServiceEventAdaptorErrorIfPresent(eventListener);
+            }
 
             // Complete all multipart uploads
             threadedS3Service.multipartCompleteUploads(multipartUploadList);
             throwServiceEventAdaptorErrorIfPresent(eventListener);
+
+            for (MultipartUploadCheckpoint checkpoint: checkpointsByKey.values()) {
+                checkpoint.delete();
+            }
         } catch (Exception e) {
             if (partObjects != null && partObjects.size() > 0) {
                 for (S3Object partObject: partObjects) {
                     partObject.closeDataInputStream();
                 }
             }
+            if (checkpointsByKey.size() > 0) {
+                throw new Exception("Multipart upload failed, it can be resumed from the"
+                    + " checkpoints in " + checkpointDirectory, e);
+            }
             throw new Exception("Multipart upload failed", e);
         }
     }
 
+    /**
+     * Check whether a file has only had data appended to it since it was uploaded as the
+     * given object, so that {@link #uploadAppendedObjects} can upload the new data alone.
+     * <p>
+     * The object must be at least as large as the maximum part size, the file must be
+     * larger than the object, and the object's ETag must match the ETag S3 would report
+     * for the file's leading bytes: the MD5 hash of the data for objects uploaded with a
+     * single PUT, or the hash of the part hashes for objects uploaded in parts of the
+     * maximum part size.
+     *
+     * @param file
+     * the local file.
+     * @param existingObject
+     * the object previously uploaded from the file, with its size and ETag.
+     * @return
+     * true if the object's data is a verified prefix of the file's data.
+     *
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public boolean isAppendedFile(File file, StorageObject existingObject)
+        throws IOException, NoSuchAlgorithmException
+    {
+        long existingLength = existingObject.getContentLength();
+        String etag = existingObject.getETag();
+        if (etag == null || existingLength < maxPartSize || file.length() <= existingLength) {
+            return false;
+        }
+        boolean isMultipartETag = (etag.indexOf('-') >= 0);
+        return etag.equalsIgnoreCase(computeETagOfFilePrefix(file, existingLength, isMultipartETag));
+    }
+
+    /**
+     * @return
+     * the ETag S3 would report for an object containing the first length bytes of the
+     * file, uploaded either with a single PUT or in parts of the maximum part size.
+     */
+    protected String computeETagOfFilePrefix(File file, long length, boolean isMultipart)
+        throws IOException, NoSuchAlgorithmException
+    {
+        if (!isMultipart) {
+            return ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+                new SegmentedRepeatableFileChannelInputStream(file, 0, length)));
+        }
+        MessageDigest partHashesDigest = MessageDigest.getInstance("MD5");
+        int partCount = 0;
+        SharedFileChannel sharedChannel = new SharedFileChannel(file);
+        sharedChannel.acquire();
+        try {
+            for (long offset = 0; offset < length; offset += maxPartSize) {
+                partHashesDigest.update(ServiceUtils.computeMD5Hash(
+                    new SegmentedRepeatableFileChannelInputStream(
+                        sharedChannel, offset, Math.min(maxPartSize, length - offset))));
+                partCount++;
+            }
+        } finally {
+            sharedChannel.release();
+        }
+        return ServiceUtils.toHex(partHashesDigest.digest()) + "-" + partCount;
+    }
+
+    /**
+     * Upload files that have grown by having data appended to them, without re-sending
+     * the data already stored in S3. Each new object is created by a multipart upload
+     * whose leading parts are server-side copies of the existing object's whole parts,
+     * and whose remaining parts are uploaded from the end of the file. Parts are of the
+     * maximum part size, so the new objects can themselves be checked with
+     * {@link #isAppendedFile} when the files grow again.
+     * <p>
+     * Like {@link #uploadObjects}, the uploads are started, their parts copied and
+     * uploaded, and the uploads completed in parallel using a {@link ThreadedS3Service}.
+     * Callers should check each file with {@link #isAppendedFile} first. The part copies
+     * only succeed while the existing objects' ETags are unchanged.
+     *
+     * @param bucketName
+     * the target bucket name.
+     * @param s3Service
+     * the S3 service that will perform the work.
+     * @param objects
+     * file-based objects containing the files' entire data, with the metadata and ACL
+     * to apply to the new objects.
+     * @param existingObjects
+     * the existing objects with the same keys, in the same order, whose data is a prefix
+     * of the files' data.
+     * @param eventListener
+     * an event listener to monitor progress event notifications, which should
+     * recognize and handle error events. May be null, in which case a standard
+     * {@link S3ServiceEventAdaptor} is used which won't report on events but will
+     * throw an exception if there is a failure.
+     *
+     * @throws Exception
+     */
+    public void uploadAppendedObjects(String bucketName, S3Service s3Service,
+        List<StorageObject> objects, List<StorageObject> existingObjects,
+        S3ServiceEventListener eventListener) throws Exception
+    {
+        if (objects == null || objects.size() < 1) {
+            return;
+        }
+
+        final List<MultipartUpload> multipartUploadList = new ArrayList<MultipartUpload>();
+        final List<MultipartPartCopy> partCopyList = new ArrayList<MultipartPartCopy>();
+        final List<MultipartUploadAndParts> uploadAndPartsList =
+            new ArrayList<MultipartUploadAndParts>();
+
+        if (eventListener == null) {
+            eventListener = new S3ServiceEventAdaptor();
+        }
+
+        // Adaptor solely to capture newly-created MultipartUpload objects
+        StorageServiceEventAdaptor captureMultipartUploadObjectsEventAdaptor =
+            new S3ServiceEventAdaptor() {
+                @Override
+                public void event(MultipartStartsEvent event) {
+                    if (ServiceEvent.EVENT_IN_PROGRESS == event.getEventCode()) {
+                        for (MultipartUpload upload: event.getStartedUploads()) {
+                            multipartUploadList.add(upload);
+                        }
+                    }
+                }
+            };
+
+        // Build map from object key to storage object and existing object
+        final Map<String, StorageObject> objectsByKey = new HashMap<String, StorageObject>();
+        final Map<String, StorageObject> existingObjectsByKey =
+            new HashMap<String, StorageObject>();
+        for (int i = 0; i < objects.size(); i++) {
+            StorageObject object = objects.get(i);
+            StorageObject existingObject = existingObjects.get(i);
+            if (object.getDataInputFile() == null) {
+                throw new ServiceException(
+                    "MultipartUtils#uploadAppendedObjects only supports file-based"
+                    + " storage objects with a non-null getDataInputFile"
+                    + " value. Invalid object: " + object);
+            }
+            if (existingObject.getContentLength() < maxPartSize) {
+                throw new ServiceException("Existing object " + existingObject.getKey()
+                    + " is smaller than the maximum part size " + maxPartSize);
+            }
+            objectsByKey.put(object.getKey(), object);
+            existingObjectsByKey.put(object.getKey(), existingObject);
+        }
+
+        ThreadedS3Service threadedS3Service = new ThreadedS3Service(s3Service, eventListener);
+        threadedS3Service.addServiceEventListener(captureMultipartUploadObjectsEventAdaptor);
+        try {
+            // Start all new multipart uploads
+            threadedS3Service.multipartStartUploads(bucketName, objects);
+            throwServiceEventAdaptorErrorIfPresent(eventListener);
+
+            // Copy the existing objects' whole parts, and split the appended data of
+            // the files into the remaining parts
+            for (MultipartUpload upload: multipartUploadList) {
+                StorageObject object = objectsByKey.get(upload.getObjectKey());
+                StorageObject existingObject = existingObjectsByKey.get(upload.getObjectKey());
+                long copiedPartCount = existingObject.getContentLength() / maxPartSize;
+                String sourceBucketName = (existingObject.getBucketName() != null
+                    ? existingObject.getBucketName() : bucketName);
+                String[] ifMatchTags = new String[] {existingObject.getETag()};
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Uploading appended file " + object.getDataInputFile() + " to "
+                        + bucketName + ":" + object.getKey() + ", copying " + copiedPartCount
+                        + " parts of " + maxPartSize + " bytes from the existing object");
+                }
+
+                for (int partNumber = 1; partNumber <= copiedPartCount; partNumber++) {
+                    long byteRangeStart = (partNumber - 1) * maxPartSize;
+                    partCopyList.add(new MultipartPartCopy(upload, partNumber,
+                        sourceBucketName, existingObject.getKey(), ifMatchTags,
+                        byteRangeStart, byteRangeStart + maxPartSize - 1));
+                }
+                uploadAndPartsList.add(new MultipartUploadAndParts(upload,
+                    splitFileIntoObjectsByMaxPartSize(object.getKey(),
+                        object.getDataInputFile(), copiedPartCount * maxPartSize),
+                    (int) copiedPartCount + 1));
+            }
+
+            // Copy and upload all parts for all multipart uploads
+            threadedS3Service.multipartCopyParts(partCopyList);
+            throwServiceEventAdaptorErrorIfPresent(eventListener);
+            threadedS3Service.multipartUploadParts(uploadAndPartsList);
+            throwServiceEventAdaptorErrorIfPresent(eventListener);
+
+            // Complete all multipart uploads
+            threadedS3Service.multipartCompleteUploads(multipartUploadList);
+            throwServiceEventAdaptorErrorIfPresent(eventListener);
+
+            // Apply non-canned ACL settings if necessary (canned ACL will already be applied)
+            List<StorageObject> objectsWithAcl = new ArrayList<StorageObject>();
+            for (StorageObject object: objects) {
+                if (object.getAcl() != null
+                    && object.getAcl().getValueForRESTHeaderACL() == null)
+                {
+                    objectsWithAcl.add(object);
+                }
+            }
+            if (objectsWithAcl.size() > 0) {
+                threadedS3Service.putACLs(bucketName,
+                    objectsWithAcl.toArray(new StorageObject[objectsWithAcl.size()]));
+                throwServiceEventAdaptorErrorIfPresent(eventListener);
+            }
+        } catch (Exception e) {
+            for (MultipartUploadAndParts uploadAndParts: uploadAndPartsList) {
+                for (S3Object partObject: uploadAndParts.getPartObjects()) {
+                    partObject.closeDataInputStream();
+                }
+            }
+            log.warn("Appended upload failed, attempting clean-up by aborting uploads", e);
+            for (MultipartUpload upload: multipartUploadList) {
+                try {
+                    s3Service.multipartAbortUpload(upload);
+                } catch (S3ServiceException e2) {
+                    log.warn("Appended upload failed and could not clean-up by aborting upload "
+                        + upload.getUploadId(), e2);
+                }
+            }
+            throw new Exception("Appended upload failed", e);
+        }
+    }
+
+    /**
+     * Enable resumable uploads in {@link #uploadObjects}, by recording the progress
+     * of each multipart upload in a {@link MultipartUploadCheckpoint} file in the
+     * given directory. If an upload is interrupted, running the same upload again
+     * with the same checkpoint directory and maximum part size will resume the
+     * original multipart upload and send only the parts that are missing.
+     *
+     * @param checkpointDirectory
+     * directory for checkpoint files, or null to disable resumable uploads.
+     */
+    public void setCheckpointDirectory(File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * @return
+     * directory for multipart upload checkpoint files, or null if resumable uploads
+     * are not enabled.
+     */
+    public File getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    /**
+     * @return
+     * the checkpoint file used for an upload to the given bucket and key within the
+     * checkpoint directory.
+     * @throws IOException
+     */
+    public File getCheckpointFile(String bucketName, String objectKey) throws IOException {
+        try {
+            String name = ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+                (bucketName + "/" + objectKey).getBytes(Constants.DEFAULT_ENCODING)));
+            return new File(checkpointDirectory, name + ".checkpoint");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to name checkpoint file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the checkpoint for an interrupted multipart upload of the given object and
+     * check that the upload can be resumed. The checkpoint must match the object's
+     * bucket, key and file, and the upload must still exist in S3. Parts that S3 reports
+     * as uploaded are added to the uploaded list of the checkpoint's multipart upload.
+     * <p>
+     * If the checkpoint is stale because the file has changed, its upload is aborted
+     * and the checkpoint deleted.
+     *
+     * @param s3Service
+     * @param checkpointFile
+     * @param bucketName
+     * @param object
+     * a file-based object.
+     * @return
+     * the checkpoint for an upload that can be resumed, or null if there is none.
+     * @throws IOException
+     * @throws S3ServiceException
+     */
+    public MultipartUploadCheckpoint resumeFromCheckpoint(S3Service s3Service,
+        File checkpointFile, String bucketName, StorageObject object)
+        throws IOException, S3ServiceException
+    {
+        MultipartUploadCheckpoint checkpoint = MultipartUploadCheckpoint.load(checkpointFile);
+        if (checkpoint == null) {
+            return null;
+        }
+        MultipartUpload upload = checkpoint.getMultipartUpload();
+        if (!checkpoint.matches(bucketName, object.getKey(),
+            object.getDataInputFile(), maxPartSize))
+        {
+            log.warn("Discarding stale multipart upload checkpoint " + checkpointFile
+                + " which does not match the current upload of " + object.getKey());
+            try {
+                s3Service.multipartAbortUpload(upload);
+            } catch (S3ServiceException e) {
+                log.debug("Unable to abort multipart upload from stale checkpoint", e);
+            }
+            checkpoint.delete();
+            return null;
+        }
+
+        try {
+            for (MultipartPart part: s3Service.multipartListParts(upload)) {
+                upload.addMultipartPartToUploadedList(part);
+            }
+        } catch (S3ServiceException e) {
+            if ("NoSuchUpload".equals(e.getErrorCode())) {
+                log.warn("Multipart upload " + checkpoint.getUploadId() + " recorded in "
+                    + checkpointFile + " no longer exists, starting a new upload");
+                checkpoint.delete();
+                return null;
+            }
+            throw e;
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Resuming multipart upload " + checkpoint.getUploadId() + " of "
+                + object.getKey() + " with " + upload.getMultipartPartsUploaded().size()
+                + " parts already uploaded");
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Find which of the given parts are already present in S3, where a part is only
+     * considered present if the uploaded part has the same size as the local part and
+     * an ETag equal to the local part's MD5 hash.
+     *
+     * @param partObjects
+     * the parts of a file, as created by {@link #splitFileIntoObjectsByMaxPartSize},
+     * numbered from 1.
+     * @param uploadedParts
+     * the parts S3 reports as uploaded.
+     * @return
+     * map of part number to uploaded part, for local parts that need not be uploaded.
+     */
+    public Map<Integer, MultipartPart> findUploadedParts(List<S3Object> partObjects,
+        List<MultipartPart> uploadedParts)
+    {
+        Map<Integer, MultipartPart> uploadedByNumber = new HashMap<Integer, MultipartPart>();
+        for (MultipartPart part: new ArrayList<MultipartPart>(uploadedParts)) {
+            uploadedByNumber.put(part.getPartNumber(), part);
+        }
+        Map<Integer, MultipartPart> result = new HashMap<Integer, MultipartPart>();
+        int partNumber = 1;
+        for (S3Object partObject: partObjects) {
+            MultipartPart part = uploadedByNumber.get(partNumber);
+            if (part != null
+                && part.getEtag().equalsIgnoreCase(partObject.getMd5HashAsHex())
+                && part.getSize().longValue() == partObject.getContentLength())
+            {
+                result.put(partNumber, part);
+            }
+            partNumber++;
+        }
+        return result;
+    }
+
+    protected void recordUploadedPartsInCheckpoints(
+        Collection<MultipartUploadCheckpoint> checkpoints)
+    {
+        for (MultipartUploadCheckpoint checkpoint: checkpoints) {
+            try {
+                checkpoint.recordParts(checkpoint.getMultipartUpload().getMultipartPartsUploaded());
+            } catch (IOException e) {
+                log.warn("Unable to update multipart upload checkpoint "
+                    + checkpoint.getCheckpointFile(), e);
+            }
+        }
+    }
+
     protected void throwServiceEventAdaptorErrorIfPresent(
         S3ServiceEventListener eventListener) throws Exception
     {
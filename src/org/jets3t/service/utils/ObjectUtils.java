@@ -20,20 +20,30 @@ package org.jets3t.service.utils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.acl.AccessControlList;
 import org.jets3t.service.io.BytesProgressWatcher;
-import org.jets3t.service.io.GZipDeflatingInputStream;
+import org.jets3t.service.io.CompressionCodec;
+import org.jets3t.service.io.GZipCompressionCodec;
 import org.jets3t.service.io.ProgressMonitoredInputStream;
 import org.jets3t.service.io.TempFile;
 import org.jets3t.service.model.S3Object;
@@ -51,6 +61,12 @@ import org.jets3t.service.security.EncryptionUtil;
 public class ObjectUtils {
     private static final Log log = LogFactory.getLog(ObjectUtils.class);
 
+    /**
+     * Largest original data size that a streaming upload transforms in memory and sends
+     * with a single PUT, regardless of the part size.
+     */
+    private static final long MAX_IN_MEMORY_STREAMING_SIZE = 1024 * 1024;
+
     /**
      * Prepares a file for upload to a named object in S3, potentially transforming it if
      * zipping or encryption is requested.
@@ -78,7 +94,8 @@ public class ObjectUtils {
      * if this variable is null no encryption will be applied, otherwise the provided
      * encryption utility object will be used to encrypt the file's data.
      * @param gzipFile
-     * if true the file will be Gzipped.
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
      * @param progressWatcher
      * watcher to monitor progress of file transformation and hash generation.
      *
@@ -93,6 +110,89 @@ public class ObjectUtils {
         byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil, boolean gzipFile,
         BytesProgressWatcher progressWatcher)
         throws Exception
+    {
+        return createObjectForUpload(objectKey, dataFile, md5HashOfDataFile, encryptionUtil,
+            gzipFile, progressWatcher,
+            Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME));
+    }
+
+    /**
+     * Prepares a file for upload to a named object in S3, potentially transforming it if
+     * compression or encryption is requested. This is the same as
+     * {@link #createObjectForUpload(String, File, byte[], EncryptionUtil, boolean, BytesProgressWatcher)}
+     * except that the compression settings are read from the given properties instead of
+     * the default JetS3t properties.
+     *
+     * @param objectKey
+     * the object key name to use in S3
+     * @param dataFile
+     * the file to prepare for upload.
+     * @param md5HashOfDataFile
+     * calculated MD5 hash value of the given dataFile; if null this value will be calculated
+     * automatically.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     * @param progressWatcher
+     * watcher to monitor progress of file transformation and hash generation.
+     * @param properties
+     * the properties of the service that will upload the object.
+     *
+     * @return
+     * an S3Object representing the file, or a transformed copy of the file, complete with
+     * all JetS3t-specific metadata items set and ready for upload to S3.
+     *
+     * @throws Exception
+     * exceptions could include IO failures, compression and encryption failures.
+     */
+    public static S3Object createObjectForUpload(String objectKey, File dataFile,
+        byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil, boolean gzipFile,
+        BytesProgressWatcher progressWatcher, Jets3tProperties properties)
+        throws Exception
+    {
+        return createObjectForUpload(objectKey, dataFile, md5HashOfDataFile, encryptionUtil,
+            (gzipFile ? CompressionCodecs.getUploadCodec(properties) : null),
+            CompressionCodecs.getUploadCompressionLevel(properties), progressWatcher);
+    }
+
+    /**
+     * Prepares a file for upload to a named object in S3, potentially transforming it if
+     * compression or encryption is requested. This is the same as
+     * {@link #createObjectForUpload(String, File, byte[], EncryptionUtil, boolean, BytesProgressWatcher)}
+     * except that the compression codec and level are given explicitly.
+     *
+     * @param objectKey
+     * the object key name to use in S3
+     * @param dataFile
+     * the file to prepare for upload.
+     * @param md5HashOfDataFile
+     * calculated MD5 hash value of the given dataFile; if null this value will be calculated
+     * automatically.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param compressionCodec
+     * the codec used to compress the file, or null if the file will not be compressed.
+     * @param compressionLevel
+     * the codec-specific compression level, or -1 for the codec's default level.
+     * @param progressWatcher
+     * watcher to monitor progress of file transformation and hash generation.
+     *
+     * @return
+     * an S3Object representing the file, or a transformed copy of the file, complete with
+     * all JetS3t-specific metadata items set and ready for upload to S3.
+     *
+     * @throws Exception
+     * exceptions could include IO failures, compression and encryption failures.
+     */
+    public static S3Object createObjectForUpload(String objectKey, File dataFile,
+        byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil,
+        CompressionCodec compressionCodec, int compressionLevel,
+        BytesProgressWatcher progressWatcher)
+        throws Exception
     {
         S3Object s3Object = new S3Object(objectKey);
 
@@ -108,7 +208,7 @@ public class ObjectUtils {
         } else {
             s3Object.setContentType(Mimetypes.getInstance().getMimetype(dataFile));
             File uploadFile = transformUploadFile(dataFile, s3Object, encryptionUtil,
-                gzipFile, progressWatcher);
+                compressionCodec, compressionLevel, progressWatcher);
             s3Object.setContentLength(uploadFile.length());
             s3Object.setDataInputFile(uploadFile);
 
@@ -169,7 +269,8 @@ public class ObjectUtils {
      * if this variable is null no encryption will be applied, otherwise the provided
      * encryption utility object will be used to encrypt the file's data.
      * @param gzipFile
-     * if true the file will be Gzipped.
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
      * @param progressWatcher
      * watcher to monitor progress of file transformation and hash generation.
      *
@@ -213,7 +314,8 @@ public class ObjectUtils {
      * if this variable is null no encryption will be applied, otherwise the provided
      * encryption utility object will be used to encrypt the file's data.
      * @param gzipFile
-     * if true the file will be Gzipped.
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
      *
      * @return
      * an S3Object representing the file, or a transformed copy of the file, complete with
@@ -240,8 +342,8 @@ public class ObjectUtils {
      * @param encryptionUtil
      * if this variable is null no encryption will be applied, otherwise the provided
      * encryption utility object will be used to encrypt the file's data.
-     * @param gzipFile
-     * if true the file will be Gzipped.
+     * @param compressionCodec
+     * the codec used to compress the file, or null if the file will not be compressed.
      * @param progressWatcher
      * watcher to monitor progress of file transformation and hash generation. Note
      * that if encryption and/or gzipping is enabled, the underlying file will be
@@ -255,15 +357,14 @@ public class ObjectUtils {
      * exceptions could include IO failures, gzipping and encryption failures.
      */
     private static File transformUploadFile(File dataFile, S3Object s3Object,
-        EncryptionUtil encryptionUtil, boolean gzipFile, BytesProgressWatcher progressWatcher) throws Exception
+        EncryptionUtil encryptionUtil, CompressionCodec compressionCodec, int compressionLevel,
+        BytesProgressWatcher progressWatcher) throws Exception
     {
-        if (!gzipFile && (encryptionUtil == null)) {
+        if (compressionCodec == null && (encryptionUtil == null)) {
             // No file pre-processing required.
             return dataFile;
         }
 
-        String actionText = "";
-
         // Create a temporary file to hold data transformed from the original file.
         final File tempUploadFile = new TempFile(File.createTempFile("JetS3t",".tmp"));
         tempUploadFile.deleteOnExit();
@@ -276,26 +377,9 @@ public class ObjectUtils {
             inputStream = new BufferedInputStream(new FileInputStream(dataFile));
             outputStream = new BufferedOutputStream(new FileOutputStream(tempUploadFile));
 
-            String contentEncoding = null;
-            if (gzipFile) {
-                inputStream = new GZipDeflatingInputStream(inputStream);
-                contentEncoding = "gzip";
-                s3Object.addMetadata(Constants.METADATA_JETS3T_COMPRESSED, "gzip");
-                actionText += "Compressing";
-            }
-            if (encryptionUtil != null) {
-                inputStream = encryptionUtil.encrypt(inputStream);
-                contentEncoding = null;
-                s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
-                s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM,
-                    encryptionUtil.getAlgorithm());
-                s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION,
-                    EncryptionUtil.DEFAULT_VERSION);
-                actionText += (actionText.length() == 0? "Encrypting" : " and encrypting");
-            }
-            if (contentEncoding != null) {
-                s3Object.addMetadata("Content-Encoding", contentEncoding);
-            }
+            String actionText = applyTransformMetadata(s3Object, encryptionUtil, compressionCodec);
+            inputStream = wrapWithTransforms(inputStream, encryptionUtil, compressionCodec,
+                compressionLevel);
 
             if (log.isDebugEnabled()) {
                 log.debug("Transforming upload file '" + dataFile + "' to temporary file '"
@@ -324,6 +408,339 @@ public class ObjectUtils {
         return tempUploadFile;
     }
 
+    /**
+     * Adds the metadata items describing gzip and/or encryption transformations to an object.
+     *
+     * @return
+     * a description of the transformations, for logging.
+     */
+    private static String applyTransformMetadata(S3Object s3Object,
+        EncryptionUtil encryptionUtil, CompressionCodec compressionCodec)
+    {
+        String actionText = "";
+        String contentEncoding = null;
+        if (compressionCodec != null) {
+            contentEncoding = compressionCodec.getContentEncoding();
+            s3Object.addMetadata(Constants.METADATA_JETS3T_COMPRESSED,
+                compressionCodec.getName());
+            actionText += "Compressing";
+        }
+        if (encryptionUtil != null) {
+            contentEncoding = null;
+            s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
+            s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM,
+                encryptionUtil.getAlgorithm());
+            s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION,
+                EncryptionUtil.DEFAULT_VERSION);
+            actionText += (actionText.length() == 0? "Encrypting" : " and encrypting");
+        }
+        if (contentEncoding != null) {
+            s3Object.addMetadata("Content-Encoding", contentEncoding);
+        }
+        return actionText;
+    }
+
+    /**
+     * Wraps an input stream of original data in streams that compress and/or encrypt the
+     * data, compressing it at the given level.
+     */
+    private static InputStream wrapWithTransforms(InputStream inputStream,
+        EncryptionUtil encryptionUtil, CompressionCodec compressionCodec, int compressionLevel)
+        throws Exception
+    {
+        if (compressionCodec != null) {
+            inputStream = compressionCodec.compress(inputStream, compressionLevel);
+        }
+        if (encryptionUtil != null) {
+            inputStream = encryptionUtil.encrypt(inputStream);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Prepares a file for a streaming upload to a named object in S3, where the file's
+     * data will be gzipped and/or encrypted on-the-fly by
+     * {@link #putObjectWithStreamingTransform} instead of being transformed into a
+     * temporary file.
+     * <p>
+     * The object has the same metadata items as an object created by
+     * {@link #createObjectForUpload(String, File, byte[], EncryptionUtil, boolean, BytesProgressWatcher)},
+     * except that it has no data, content length or MD5 hash since these are not known
+     * until the transformed data has been uploaded.
+     *
+     * @param objectKey
+     * the object key name to use in S3
+     * @param dataFile
+     * the file to prepare for upload.
+     * @param md5HashOfDataFile
+     * calculated MD5 hash value of the given dataFile; if null this value will be
+     * calculated during the upload.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     *
+     * @return
+     * an S3Object with metadata describing the file and its transformations, to be passed
+     * to {@link #putObjectWithStreamingTransform} along with the same file and options.
+     */
+    public static S3Object createObjectForStreamingUpload(String objectKey, File dataFile,
+        byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil, boolean gzipFile)
+    {
+        return createObjectForStreamingUpload(objectKey, dataFile, md5HashOfDataFile,
+            encryptionUtil, gzipFile,
+            Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME));
+    }
+
+    /**
+     * Prepares a file for a streaming upload to a named object in S3, as described for
+     * {@link #createObjectForStreamingUpload(String, File, byte[], EncryptionUtil, boolean)},
+     * except that the compression codec is named by the given properties instead of the
+     * default JetS3t properties.
+     *
+     * @param objectKey
+     * the object key name to use in S3
+     * @param dataFile
+     * the file to prepare for upload.
+     * @param md5HashOfDataFile
+     * calculated MD5 hash value of the given dataFile; if null this value will be
+     * calculated during the upload.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     * @param properties
+     * the properties of the service that will upload the object.
+     *
+     * @return
+     * an S3Object with metadata describing the file and its transformations, to be passed
+     * to {@link #putObjectWithStreamingTransform} along with the same file and options.
+     */
+    public static S3Object createObjectForStreamingUpload(String objectKey, File dataFile,
+        byte[] md5HashOfDataFile, EncryptionUtil encryptionUtil, boolean gzipFile,
+        Jets3tProperties properties)
+    {
+        S3Object s3Object = new S3Object(objectKey);
+
+        // Set object explicitly to private access by default.
+        s3Object.setAcl(AccessControlList.REST_CANNED_PRIVATE);
+
+        s3Object.addMetadata(Constants.METADATA_JETS3T_LOCAL_FILE_DATE,
+            ServiceUtils.formatIso8601Date(new Date(dataFile.lastModified())));
+        s3Object.setContentType(Mimetypes.getInstance().getMimetype(dataFile));
+        applyTransformMetadata(s3Object, encryptionUtil,
+            gzipFile ? CompressionCodecs.getUploadCodec(properties) : null);
+        if (md5HashOfDataFile != null) {
+            s3Object.addMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5,
+                ServiceUtils.toBase64(md5HashOfDataFile));
+        }
+        return s3Object;
+    }
+
+    /**
+     * Adds the {@link StorageObject#METADATA_HEADER_ORIGINAL_HASH_MD5} item for a file to an
+     * object prepared by {@link #createObjectForStreamingUpload}, by hashing the file, unless
+     * the object already has the item. The item must be present before a streaming
+     * multipart upload starts, since the upload's metadata cannot be changed afterwards.
+     *
+     * @param object
+     * the object created for the file by {@link #createObjectForStreamingUpload}.
+     * @param dataFile
+     * the file that will be uploaded.
+     *
+     * @throws Exception
+     * exceptions could include IO failures reading the file.
+     */
+    public static void addOriginalHashForStreamingUpload(S3Object object, File dataFile)
+        throws Exception
+    {
+        if (object.getMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5) == null) {
+            byte[] md5Hash = ServiceUtils.computeMD5Hash(new FileInputStream(dataFile));
+            object.addMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5,
+                ServiceUtils.toBase64(md5Hash));
+        }
+    }
+
+    /**
+     * Uploads a file to S3, gzipping and/or encrypting its data on-the-fly as it is sent.
+     * Transformed data is never written to disk, and the MD5 hashes of both the original
+     * and the transformed data are computed in the same pass as the upload.
+     * <p>
+     * Because the size of the transformed data is not known in advance, all but small
+     * files are sent with a {@link MultipartUploadOutputStream}. The metadata of a
+     * multipart upload is fixed when the upload starts, so if the object does not already
+     * have a {@link StorageObject#METADATA_HEADER_ORIGINAL_HASH_MD5} item the file is
+     * hashed before it is uploaded. Small files are transformed in memory and sent with a
+     * single PUT.
+     *
+     * @param s3Service
+     * the service that will perform the upload.
+     * @param bucketName
+     * the name of the bucket in which the object will be stored.
+     * @param object
+     * the object created for the file by {@link #createObjectForStreamingUpload}.
+     * @param dataFile
+     * the file to upload.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the file's data.
+     * @param gzipFile
+     * if true the file will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     * @param partSize
+     * the size of each part of a multipart upload.
+     * @param progressWatcher
+     * watcher to monitor progress of reading the file, may be null.
+     *
+     * @return
+     * the uploaded object, with its content length and MD5 hash set to those of the
+     * transformed data.
+     *
+     * @throws Exception
+     * exceptions could include IO failures, gzipping, encryption and service failures.
+     */
+    public static S3Object putObjectWithStreamingTransform(S3Service s3Service,
+        String bucketName, S3Object object, File dataFile, EncryptionUtil encryptionUtil,
+        boolean gzipFile, long partSize, BytesProgressWatcher progressWatcher)
+        throws Exception
+    {
+        addOriginalHashForStreamingUpload(object, dataFile);
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(dataFile));
+        if (progressWatcher != null) {
+            inputStream = new ProgressMonitoredInputStream(inputStream, progressWatcher);
+        }
+        return putObjectWithStreamingTransform(s3Service, bucketName, object, inputStream,
+            dataFile.length(), encryptionUtil, gzipFile, partSize, null, null);
+    }
+
+    /**
+     * Uploads data to S3, gzipping and/or encrypting it on-the-fly as it is sent, as
+     * described for
+     * {@link #putObjectWithStreamingTransform(S3Service, String, S3Object, File, EncryptionUtil, boolean, long, BytesProgressWatcher)}.
+     * Callers uploading many files at once may share one executor and one pool of part
+     * buffers between the uploads, to bound the memory used by all of them.
+     * <p>
+     * The hash of the original data is only recorded for a multipart upload if the object
+     * already has a {@link StorageObject#METADATA_HEADER_ORIGINAL_HASH_MD5} item, for
+     * example one added by {@link #addOriginalHashForStreamingUpload(S3Object, File)}.
+     *
+     * @param s3Service
+     * the service that will perform the upload.
+     * @param bucketName
+     * the name of the bucket in which the object will be stored.
+     * @param object
+     * the object created for the data by {@link #createObjectForStreamingUpload}.
+     * @param dataInputStream
+     * the original data to upload, which is closed by this method.
+     * @param dataLength
+     * the length of the original data.
+     * @param encryptionUtil
+     * if this variable is null no encryption will be applied, otherwise the provided
+     * encryption utility object will be used to encrypt the data.
+     * @param gzipFile
+     * if true the data will be compressed with the codec named by the JetS3t property
+     * <tt>uploads.compression-codec</tt>, which is gzip by default.
+     * @param partSize
+     * the size of each part of a multipart upload.
+     * @param partExecutor
+     * executor to upload the parts of multipart uploads, or null to use threads
+     * belonging to the upload.
+     * @param bufferPool
+     * pool of part buffers from {@link MultipartUploadOutputStream#createBufferPool(int)},
+     * or null to use buffers belonging to the upload.
+     *
+     * @return
+     * the uploaded object, with its content length and MD5 hash set to those of the
+     * transformed data.
+     *
+     * @throws Exception
+     * exceptions could include IO failures, gzipping, encryption and service failures.
+     */
+    public static S3Object putObjectWithStreamingTransform(S3Service s3Service,
+        String bucketName, S3Object object, InputStream dataInputStream, long dataLength,
+        EncryptionUtil encryptionUtil, boolean gzipFile, long partSize,
+        ExecutorService partExecutor, BlockingQueue<byte[]> bufferPool)
+        throws Exception
+    {
+        boolean isSmallFile = dataLength < Math.min(partSize / 2, MAX_IN_MEMORY_STREAMING_SIZE);
+        boolean isOriginalHashKnown =
+            object.getMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5) != null;
+
+        MessageDigest originalDigest = MessageDigest.getInstance("MD5");
+        MessageDigest transformedDigest = MessageDigest.getInstance("MD5");
+
+        InputStream inputStream = new DigestInputStream(dataInputStream, originalDigest);
+        Jets3tProperties properties = s3Service.getJetS3tProperties();
+        CompressionCodec compressionCodec = null;
+        if (gzipFile) {
+            // Use the codec recorded in the object's metadata, if any
+            compressionCodec = CompressionCodecs.getCodecForObject(object, properties);
+            if (compressionCodec == null) {
+                compressionCodec = CompressionCodecs.getUploadCodec(properties);
+            }
+        }
+        inputStream = wrapWithTransforms(inputStream, encryptionUtil, compressionCodec,
+            CompressionCodecs.getUploadCompressionLevel(properties));
+
+        ByteArrayOutputStream memoryOutputStream = null;
+        MultipartUploadOutputStream multipartOutputStream = null;
+        OutputStream outputStream = null;
+        if (isSmallFile) {
+            memoryOutputStream = new ByteArrayOutputStream((int) dataLength + 1024);
+            outputStream = new DigestOutputStream(memoryOutputStream, transformedDigest);
+        } else {
+            multipartOutputStream = new MultipartUploadOutputStream(
+                s3Service, bucketName, object, partSize, partExecutor, bufferPool);
+            outputStream = new DigestOutputStream(multipartOutputStream, transformedDigest);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Streaming upload of " + dataLength + " bytes to object '"
+                + object.getKey() + "' as " + (isSmallFile ? "single PUT" : "multipart upload"));
+        }
+
+        try {
+            byte[] buffer = new byte[8192];
+            int c;
+            while ((c = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, c);
+            }
+        } catch (Exception e) {
+            if (multipartOutputStream != null) {
+                multipartOutputStream.abort();
+            }
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+
+        String originalHash = ServiceUtils.toBase64(originalDigest.digest());
+
+        if (isSmallFile) {
+            if (!isOriginalHashKnown) {
+                object.addMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5, originalHash);
+            }
+            object.setDataInputStream(
+                new ByteArrayInputStream(memoryOutputStream.toByteArray()));
+            object.setContentLength(memoryOutputStream.size());
+            object.setMd5Hash(transformedDigest.digest());
+            s3Service.putObject(bucketName, object);
+        } else {
+            outputStream.close();
+            if (!isOriginalHashKnown && log.isDebugEnabled()) {
+                log.debug("Original hash of object '" + object.getKey() + "' is "
+                    + originalHash + ", not recorded since its upload had already started");
+            }
+            object.setContentLength(multipartOutputStream.getBytesWritten());
+            object.setMd5Hash(transformedDigest.digest());
+        }
+        return object;
+    }
+
     /**
      * Creates a download package representing an S3Object that will be downloaded, and the
      * target file the downloaded data will be written to.
@@ -349,21 +766,55 @@ public class ObjectUtils {
      */
     public static DownloadPackage createPackageForDownload(StorageObject object, File fileTarget,
         boolean automaticUnzip, boolean automaticDecrypt, String encryptionPassword) throws Exception
+    {
+        return createPackageForDownload(object, fileTarget, automaticUnzip, automaticDecrypt,
+            encryptionPassword, Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME));
+    }
+
+    /**
+     * Creates a download package representing an S3Object that will be downloaded, and the
+     * target file the downloaded data will be written to, as described for
+     * {@link #createPackageForDownload(StorageObject, File, boolean, boolean, String)}
+     * except that compression codecs are configured by the given properties instead of the
+     * default JetS3t properties.
+     *
+     * @param object
+     * the object
+     * @param fileTarget
+     * the file to which downloaded (and possibly transformed) data will be written.
+     * @param automaticUnzip
+     * if true, gzipped objects will be decrypted on-the-fly as they are downloaded.
+     * @param automaticDecrypt
+     * if true, encrypted files will be decrypted on-the-fly as they are downloaded (in which
+     * case the encryptionPassword must be correct)
+     * @param encryptionPassword
+     * the password required to decrypt encrypted objects.
+     * @param properties
+     * the properties of the service that will download the object.
+     *
+     * @return
+     * a download package representing an S3Object and a taret file for the object's data.
+     * @throws Exception
+     */
+    public static DownloadPackage createPackageForDownload(StorageObject object, File fileTarget,
+        boolean automaticUnzip, boolean automaticDecrypt, String encryptionPassword,
+        Jets3tProperties properties) throws Exception
     {
         // Recognize directory place-holder objects and ignore them
         if (object.isDirectoryPlaceholder()) {
             return null;
         }
         else {
-            boolean isZipped = false;
+            CompressionCodec compressionCodec = null;
             EncryptionUtil encryptionUtil = null;
 
-            if (automaticUnzip &&
-                ("gzip".equalsIgnoreCase(object.getContentEncoding())
-                || object.containsMetadata(Constants.METADATA_JETS3T_COMPRESSED)))
-            {
-                // Object data is gzipped.
-                isZipped = true;
+            if (automaticUnzip) {
+                // Object data may be compressed.
+                try {
+                    compressionCodec = CompressionCodecs.getCodecForObject(object, properties);
+                } catch (IllegalStateException e) {
+                    throw new ServiceException(e.getMessage(), e);
+                }
             }
             if (automaticDecrypt
                 && object.containsMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM))
@@ -385,7 +836,10 @@ public class ObjectUtils {
                 encryptionUtil = new EncryptionUtil(encryptionPassword, algorithm, version);
             }
 
-            return new DownloadPackage(object, fileTarget, isZipped, encryptionUtil);
+            DownloadPackage downloadPackage = new DownloadPackage(
+                object, fileTarget, compressionCodec != null, encryptionUtil);
+            downloadPackage.setCompressionCodec(compressionCodec);
+            return downloadPackage;
         }
     }
 
@@ -432,7 +886,16 @@ public class ObjectUtils {
                 ("gzip".equalsIgnoreCase(object.getContentEncoding())
                 || object.containsMetadata(Constants.METADATA_JETS3T_COMPRESSED)))
             {
-                // Object data is gzipped.
+                // Object data is compressed, only gzip is supported by this legacy method.
+                if (object.containsMetadata(Constants.METADATA_JETS3T_COMPRESSED)
+                    && !GZipCompressionCodec.NAME.equals(
+                        object.getMetadata(Constants.METADATA_JETS3T_COMPRESSED)))
+                {
+                    throw new ServiceException("Object '" + object.getKey()
+                        + "' is compressed with codec '"
+                        + object.getMetadata(Constants.METADATA_JETS3T_COMPRESSED)
+                        + "' which is not supported by this deprecated method");
+                }
                 isZipped = true;
             }
             if (automaticDecrypt
@@ -77,6 +77,7 @@ import org.apache.http.util.EntityUtils;
 import org.jets3t.service.Constants;
 import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.impl.rest.httpclient.JetS3tRequestAuthorizer;
+import org.jets3t.service.impl.rest.httpclient.RoundRobinDnsResolver;
 import org.jets3t.service.io.UnrecoverableIOException;
 
 /**
@@ -320,24 +321,42 @@ public class RestUtils {
     {
         PoolingHttpClientConnectionManager connectionManager = null;
 
+        // Optionally spread new connections across all of an endpoint's addresses
+        RoundRobinDnsResolver dnsResolver = null;
+        if (jets3tProperties.getBoolProperty("storage-service.dns-round-robin-enabled", false)) {
+            dnsResolver = RoundRobinDnsResolver.getInstance(jets3tProperties);
+        }
+
         // All this crap is required for HttpClient 4.5 to support AWS S3's SSL
         // certificate common name wildcards like "*.s3.amazonaws.com".
         // There might be a simpler/better way of doing this in the future,
         // maybe DefaultHostnameVerifier will work for this one day.
         HostnameVerifier hostnameVerifier = new BrowserCompatHostnameVerifier();
+        Registry<ConnectionSocketFactory> registry = null;
         try {
             SSLContext sslContext = SSLContextBuilder.create().build();
             SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
                 sslContext, hostnameVerifier);
-            Registry<ConnectionSocketFactory> registry =
-                RegistryBuilder.<ConnectionSocketFactory>create()
-                    .register("http", new PlainConnectionSocketFactory())
-                    .register("https", sslsf)
-                    .build();
-            connectionManager = new PoolingHttpClientConnectionManager(registry);
+            registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", reportConnectFailures(
+                    new PlainConnectionSocketFactory(), dnsResolver))
+                .register("https", reportConnectFailures(sslsf, dnsResolver))
+                .build();
         } catch (Exception ex) {
             log.warn("Failed to initialise SSL connection context, falling back"
                 + " to default connection without SSL customisations", ex);
+        }
+        if (registry != null) {
+            connectionManager = new PoolingHttpClientConnectionManager(registry, dnsResolver);
+        } else if (dnsResolver != null) {
+            registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", reportConnectFailures(
+                    PlainConnectionSocketFactory.getSocketFactory(), dnsResolver))
+                .register("https", reportConnectFailures(
+                    SSLConnectionSocketFactory.getSocketFactory(), dnsResolver))
+                .build();
+            connectionManager = new PoolingHttpClientConnectionManager(registry, dnsResolver);
+        } else {
             connectionManager = new PoolingHttpClientConnectionManager();
         }
 
@@ -403,6 +422,12 @@ public class RestUtils {
         return httpClientBuilder;
     }
 
+    private static ConnectionSocketFactory reportConnectFailures(
+        ConnectionSocketFactory factory, RoundRobinDnsResolver dnsResolver)
+    {
+        return (dnsResolver == null ? factory : dnsResolver.wrapSocketFactory(factory));
+    }
+
     /**
      * Initialises this service's HTTP proxy by auto-detecting the proxy settings.
      */
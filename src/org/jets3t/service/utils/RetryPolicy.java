@@ -0,0 +1,242 @@
+/*
+ * JetS3t : Java S3 Toolkit
+ * Project hosted at http://bitbucket.org/jmurty/jets3t/
+ *
+ * Copyright 2016 James Murty
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jets3t.service.utils;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+
+/**
+ * Decides how long to wait before retrying a failed request, and whether a retry
+ * is permitted at all.
+ * <p>
+ * Delays follow a "decorrelated jitter" exponential backoff: each delay is chosen at
+ * random between the base delay and three times the previous delay, capped at a
+ * maximum. The randomness stops threads that failed together from retrying together.
+ * Throttling errors (<code>SlowDown</code>, HTTP 429) back off from a larger base
+ * delay, and a <code>Retry-After</code> header in an error response takes precedence
+ * over the computed delay.
+ * <p>
+ * Retries are also limited by a token-bucket budget shared by all requests of a
+ * service: each request adds a fraction of a token to the bucket and each retry
+ * spends a whole token, so during widespread failures retries cannot grow beyond
+ * that fraction of overall traffic.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author James Murty
+ */
+public class RetryPolicy {
+
+    private final long baseDelayMs;
+    private final long throttledBaseDelayMs;
+    private final long maxDelayMs;
+    private final double budgetRatio;
+    private final double budgetMaxTokens;
+
+    private final Random random = new Random();
+    private double budgetTokens;
+    private long retryCount = 0;
+    private long budgetExhaustedCount = 0;
+
+    /**
+     * @param baseDelayMs
+     * the minimum delay before retrying, in milliseconds.
+     * @param throttledBaseDelayMs
+     * the minimum delay before retrying a request that was throttled, in milliseconds.
+     * @param maxDelayMs
+     * the maximum delay before retrying, in milliseconds.
+     * @param budgetRatio
+     * the fraction of a retry token earned by each request, e.g. 0.1 allows retries of
+     * up to roughly 10% of requests. If 0 or less, retries are not budgeted.
+     * @param budgetMaxTokens
+     * the maximum number of retry tokens that can be saved up, which is also the number
+     * available when the service starts.
+     */
+    public RetryPolicy(long baseDelayMs, long throttledBaseDelayMs, long maxDelayMs,
+        double budgetRatio, double budgetMaxTokens)
+    {
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.throttledBaseDelayMs = Math.max(this.baseDelayMs, throttledBaseDelayMs);
+        this.maxDelayMs = Math.max(this.throttledBaseDelayMs, maxDelayMs);
+        this.budgetRatio = budgetRatio;
+        this.budgetMaxTokens = budgetMaxTokens;
+        this.budgetTokens = budgetMaxTokens;
+    }
+
+    /**
+     * Create a retry policy configured by the <code>storage-service.retry-*</code> properties.
+     *
+     * @param properties
+     * @return
+     * a retry policy.
+     */
+    public static RetryPolicy getInstance(Jets3tProperties properties) {
+        return new RetryPolicy(
+            properties.getLongProperty("storage-service.retry-base-delay-ms", 50),
+            properties.getLongProperty("storage-service.retry-throttled-base-delay-ms", 500),
+            properties.getLongProperty("storage-service.retry-max-delay-ms", 20000),
+            Double.parseDouble(properties.getStringProperty(
+                "storage-service.retry-budget-ratio", "0.1")),
+            Double.parseDouble(properties.getStringProperty(
+                "storage-service.retry-budget-max-tokens", "100")));
+    }
+
+    /**
+     * @param exception
+     * @return
+     * true if the exception indicates the service is throttling requests.
+     */
+    public static boolean isThrottled(ServiceException exception) {
+        return exception.getResponseCode() == 429
+            || "SlowDown".equals(exception.getErrorCode())
+            || "Throttling".equals(exception.getErrorCode());
+    }
+
+    /**
+     * Record a request, which earns a fraction of a retry token.
+     */
+    public synchronized void recordRequest() {
+        budgetTokens = Math.min(budgetMaxTokens, budgetTokens + budgetRatio);
+    }
+
+    /**
+     * Spend a retry token, if the budget allows a retry.
+     *
+     * @return
+     * true if a retry may be performed, false if the retry budget is exhausted.
+     */
+    public synchronized boolean acquireRetry() {
+        if (budgetRatio > 0) {
+            if (budgetTokens < 1) {
+                budgetExhaustedCount++;
+                return false;
+            }
+            budgetTokens -= 1;
+        }
+        retryCount++;
+        return true;
+    }
+
+    /**
+     * @param retryCount
+     * the number of retries of the request so far, including the retry about to happen.
+     * @param previousDelayMs
+     * the delay before the previous retry of the request, or 0 if it is not known.
+     * @param exception
+     * the error that caused the request to fail.
+     * @return
+     * how long to wait before retrying the request, in milliseconds.
+     */
+    public long getDelayMs(int retryCount, long previousDelayMs, ServiceException exception) {
+        long retryAfterMs =
+            getRetryAfterMs(exception.getResponseHeaders(), new Date(), maxDelayMs);
+        if (retryAfterMs >= 0) {
+            return retryAfterMs;
+        }
+        long base = (isThrottled(exception) ? throttledBaseDelayMs : baseDelayMs);
+        if (previousDelayMs <= 0) {
+            // Approximate the previous delay by plain exponential growth
+            previousDelayMs = base << Math.min(Math.max(0, retryCount - 1), 20);
+        }
+        long upper = Math.max(base, Math.min(maxDelayMs, previousDelayMs * 3));
+        double fraction;
+        synchronized (random) {
+            fraction = random.nextDouble();
+        }
+        return base + (long) (fraction * (upper - base));
+    }
+
+    /**
+     * @param responseHeaders
+     * headers of an error response, may be null.
+     * @param now
+     * the current time, for interpreting a <code>Retry-After</code> date.
+     * @return
+     * the delay in milliseconds requested by a <code>Retry-After</code> header, or -1 if
+     * there is no such header or it cannot be interpreted.
+     */
+    public static long getRetryAfterMs(Map<String, String> responseHeaders, Date now) {
+        return getRetryAfterMs(responseHeaders, now, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param responseHeaders
+     * headers of an error response, may be null.
+     * @param now
+     * the current time, for interpreting a <code>Retry-After</code> date.
+     * @param maxDelayMs
+     * the longest delay to return, however long the requested delay.
+     * @return
+     * the delay in milliseconds requested by a <code>Retry-After</code> header, no more
+     * than the maximum, or -1 if there is no such header or it cannot be interpreted.
+     */
+    public static long getRetryAfterMs(Map<String, String> responseHeaders, Date now,
+        long maxDelayMs)
+    {
+        if (responseHeaders == null) {
+            return -1;
+        }
+        String value = null;
+        for (Map.Entry<String, String> header: responseHeaders.entrySet()) {
+            if ("Retry-After".equalsIgnoreCase(header.getKey())) {
+                value = header.getValue();
+                break;
+            }
+        }
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            // Clamp the seconds before converting them, so a huge value cannot overflow
+            long seconds = Math.max(0, Long.parseLong(value));
+            return (seconds > maxDelayMs / 1000 ? maxDelayMs : seconds * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so may be an HTTP date
+        }
+        try {
+            return Math.min(maxDelayMs, Math.max(0,
+                ServiceUtils.parseRfc822Date(value).getTime() - now.getTime()));
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return
+     * the number of retries this policy has permitted.
+     */
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return
+     * the number of retries this policy has refused because the retry budget was exhausted.
+     */
+    public synchronized long getBudgetExhaustedCount() {
+        return budgetExhaustedCount;
+    }
+
+}
@@ -88,6 +88,21 @@ public class ServiceUtils {
         rfc822DateParser.setTimeZone(new SimpleTimeZone(0, "GMT"));
     }
 
+    /**
+     * The shared date parsers above are only used as prototypes and are never used directly,
+     * since <code>SimpleDateFormat</code> is not thread-safe. Each parse or format operation
+     * uses its own clone instead, which avoids both lock contention and synchronized blocks
+     * that would pin the carrier threads of virtual threads.
+     *
+     * @param prototype
+     * the shared date format to copy.
+     * @return
+     * a copy of the date format that the caller may use without synchronization.
+     */
+    private static SimpleDateFormat newDateFormat(SimpleDateFormat prototype) {
+        return (SimpleDateFormat) prototype.clone();
+    }
+
     /**
      * Parse an ISO 8601 formatted date string.
      * @param dateString
@@ -100,49 +115,37 @@ public class ServiceUtils {
      */
     public static Date parseIso8601Date(String dateString) throws ParseException {
         ParseException exception = null;
-        synchronized (iso8601DateParser) {
-            try {
-                return iso8601DateParser.parse(dateString);
-            } catch (ParseException e) {
-                exception = e;
-            }
+        try {
+            return newDateFormat(iso8601DateParser).parse(dateString);
+        } catch (ParseException e) {
+            exception = e;
         }
         // Fall-back to parse ISO 8601 dates without millisecond component
-        synchronized (iso8601DateParser_withoutMS) {
-            try {
-                return iso8601DateParser_withoutMS.parse(dateString);
-            } catch (ParseException e) {
-                // Ignore alternative ISO 8601 date parsing exceptions
-            }
+        try {
+            return newDateFormat(iso8601DateParser_withoutMS).parse(dateString);
+        } catch (ParseException e) {
+            // Ignore alternative ISO 8601 date parsing exceptions
         }
         // Work-around to parse datetime value returned by Walrus
-        synchronized (iso8601DateParser_Walrus) {
-            try {
-                return iso8601DateParser_Walrus.parse(dateString);
-            } catch (ParseException e) {
-                // Ignore work-around exceptions
-            }
+        try {
+            return newDateFormat(iso8601DateParser_Walrus).parse(dateString);
+        } catch (ParseException e) {
+            // Ignore work-around exceptions
         }
         // Throw original exception if the Walrus work-around doesn't save us.
         throw exception;
     }
 
     public static String formatIso8601Date(Date date) {
-        synchronized (iso8601DateParser) {
-            return iso8601DateParser.format(date);
-        }
+        return newDateFormat(iso8601DateParser).format(date);
     }
 
     public static Date parseRfc822Date(String dateString) throws ParseException {
-        synchronized (rfc822DateParser) {
-            return rfc822DateParser.parse(dateString);
-        }
+        return newDateFormat(rfc822DateParser).parse(dateString);
     }
 
     public static String formatRfc822Date(Date date) {
-        synchronized (rfc822DateParser) {
-            return rfc822DateParser.format(date);
-        }
+        return newDateFormat(rfc822DateParser).format(date);
     }
 
     /**
@@ -828,6 +828,49 @@ public class TestRestS3Service extends BaseStorageServiceTests {
         }
     }
 
+    public void testMultipartCopy() throws Exception {
+        // Copy objects over 6 MB as multipart uploads of 5 MB part copies
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("s3service.multipart-copy-threshold", String.valueOf(6 * 1024 * 1024));
+        properties.setProperty("s3service.multipart-copy-part-size", String.valueOf(5 * 1024 * 1024));
+        RestS3Service service = (RestS3Service) getStorageService(getCredentials(), properties);
+        StorageBucket bucket = createBucketForTest("testMultipartCopy");
+        String bucketName = bucket.getName();
+
+        try {
+            byte[] testData = new byte[12 * 1024 * 1024 + 100];
+            for (int i = 0; i < testData.length; i++) {
+                testData[i] = (byte) (i % 256);
+            }
+            S3Object sourceObject = new S3Object("multipart-copy-source.bin", testData);
+            sourceObject.setContentType("application/x-test");
+            sourceObject.addMetadata("my-metadata", "copied");
+            service.putObject(bucketName, sourceObject);
+
+            // Copy keeps source metadata and is performed as a multipart upload
+            Map<String, Object> result = service.copyObject(bucketName, sourceObject.getKey(),
+                bucketName, new S3Object("multipart-copy-target.bin"), false);
+            assertEquals("3", result.get("X-JetS3t-MultipartCopyPartCount"));
+            StorageObject copiedObject = service.getObjectDetails(
+                bucketName, "multipart-copy-target.bin");
+            assertEquals(testData.length, copiedObject.getContentLength());
+            assertEquals("application/x-test", copiedObject.getContentType());
+            assertEquals("copied", copiedObject.getMetadata("my-metadata"));
+            assertFalse(ServiceUtils.isEtagAlsoAnMD5Hash(copiedObject.getETag()));
+
+            // Move applies replacement metadata and deletes the source
+            S3Object movedObject = new S3Object("multipart-copy-moved.bin");
+            movedObject.addMetadata("my-metadata", "replaced");
+            service.moveObject(bucketName, "multipart-copy-target.bin",
+                bucketName, movedObject, true);
+            assertFalse(service.isObjectInBucket(bucketName, "multipart-copy-target.bin"));
+            assertEquals("replaced", service.getObjectDetails(
+                bucketName, "multipart-copy-moved.bin").getMetadata("my-metadata"));
+        } finally {
+            cleanupBucketForTest("testMultipartCopy");
+        }
+    }
+
     public void testS3WebsiteConfig() throws Exception {
         // Testing takes place in the us-west-1 location
         S3Service s3Service = (S3Service) getStorageService(getCredentials());
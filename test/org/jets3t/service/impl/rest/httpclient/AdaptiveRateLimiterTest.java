@@ -0,0 +1,75 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import junit.framework.TestCase;
+
+public class AdaptiveRateLimiterTest extends TestCase {
+
+    private static final long SECOND = 1000000000L;
+
+    public void testRequestsAreSpacedByRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 100, 10, 0.5, 0);
+        long now = 5 * SECOND;
+        assertEquals(0, limiter.reserve("bucket", now));
+        assertEquals(SECOND / 10, limiter.reserve("bucket", now));
+        assertEquals(2 * SECOND / 10, limiter.reserve("bucket", now));
+        // Other buckets are limited separately
+        assertEquals(0, limiter.reserve("other", now));
+        assertEquals(0, limiter.reserve(null, now));
+    }
+
+    public void testRateIncreasesAdditivelyAndDecreasesMultiplicatively() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 100, 10, 0.5, 0);
+        // A second's worth of successes at 10/s adds about 10/s
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess("bucket");
+        }
+        double rate = limiter.getRate("bucket");
+        assertTrue(rate > 15 && rate < 20);
+
+        long now = 5 * SECOND;
+        limiter.onThrottled("bucket", now);
+        assertEquals(rate / 2, limiter.getRate("bucket"), 0.001);
+        // A burst of throttled responses only cuts the rate once
+        limiter.onThrottled("bucket", now + SECOND / 50);
+        assertEquals(rate / 2, limiter.getRate("bucket"), 0.001);
+        limiter.onThrottled("bucket", now + SECOND);
+        assertEquals(rate / 4, limiter.getRate("bucket"), 0.001);
+        assertEquals(3, limiter.getThrottledCount());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onThrottled("bucket", now + (2 + i) * SECOND);
+        }
+        assertEquals(1.0, limiter.getRate("bucket"), 0.001);
+        assertEquals(1, limiter.getRates().size());
+    }
+
+    public void testNegativeClockAndIdlePartitions() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 100, 10, 0.5, 0);
+        // System.nanoTime() may be negative, which must not delay the first request
+        long now = -1000 * SECOND;
+        assertEquals(0, limiter.reserve("bucket", now));
+        assertEquals(SECOND / 10, limiter.reserve("bucket", now));
+        assertEquals(0, limiter.reserve("bucket", now + SECOND));
+
+        // Idle partitions are forgotten once there are many of them
+        for (int i = 0; i < 1000; i++) {
+            limiter.reserve("bucket-" + i, now);
+        }
+        assertEquals(1001, limiter.getPartitionCount());
+        limiter.reserve("new-bucket", now + 600 * SECOND);
+        assertEquals(1, limiter.getPartitionCount());
+    }
+
+    public void testPartitionNames() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 100, 10, 0.5, 1);
+        assertEquals("bucket/logs/", limiter.getPartitionName("bucket", "logs/2016/a.log"));
+        assertEquals("bucket/", limiter.getPartitionName("bucket", "a.log"));
+        assertEquals("bucket", limiter.getPartitionName("bucket", null));
+        assertNull(limiter.getPartitionName(null, null));
+
+        limiter = new AdaptiveRateLimiter(10, 1, 100, 10, 0.5, 2);
+        assertEquals("bucket/logs/2016/", limiter.getPartitionName("bucket", "logs/2016/a.log"));
+        assertEquals("bucket/logs/", limiter.getPartitionName("bucket", "logs/a.log"));
+    }
+
+}
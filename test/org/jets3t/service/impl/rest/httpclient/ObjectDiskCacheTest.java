@@ -0,0 +1,182 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+public class ObjectDiskCacheTest extends TestCase {
+
+    private File directory;
+
+    /**
+     * Fetcher for an object with fixed data, which responds with 304 when its ETag matches.
+     */
+    private static class FixedFetcher implements ObjectDiskCache.ObjectFetcher {
+        String etag;
+        String data;
+        int fetchCount = 0;
+        CountDownLatch releaseFetch = null;
+
+        FixedFetcher(String etag, String data) {
+            this.etag = etag;
+            this.data = data;
+        }
+
+        public synchronized StorageObject fetchObject(String[] ifNoneMatchTags)
+            throws ServiceException
+        {
+            fetchCount++;
+            if (releaseFetch != null) {
+                try {
+                    releaseFetch.await();
+                } catch (InterruptedException e) {
+                    throw new ServiceException(e);
+                }
+            }
+            if (ifNoneMatchTags != null && ifNoneMatchTags[0].equals(etag)) {
+                ServiceException e = new ServiceException("Not Modified");
+                e.setResponseCode(304);
+                throw e;
+            }
+            S3Object object = new S3Object("key");
+            object.setETag(etag);
+            object.setContentLength(data.length());
+            object.setDataInputStream(new ByteArrayInputStream(data.getBytes()));
+            return object;
+        }
+
+        public StorageObject newObject() {
+            return new S3Object();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("object-cache", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRevalidatedReadsAreServedFromCache() throws Exception {
+        ObjectDiskCache cache = new ObjectDiskCache(directory, 1000);
+        FixedFetcher fetcher = new FixedFetcher("etag1", "first version");
+
+        assertEquals("first version", read(cache.getObject("bucket", "key", null, fetcher)));
+        assertEquals("first version", read(cache.getObject("bucket", "key", null, fetcher)));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getRevalidatedCount());
+
+        // Changed object replaces cached copy
+        fetcher.etag = "etag2";
+        fetcher.data = "second version";
+        assertEquals("second version", read(cache.getObject("bucket", "key", null, fetcher)));
+        assertEquals(2, cache.getMissCount());
+        assertEquals("second version".length(), cache.getSize());
+
+        // Cache entries survive a restart
+        cache = new ObjectDiskCache(directory, 1000);
+        assertEquals(1, cache.getEntryCount());
+        StorageObject object = cache.getObject("bucket", "key", null, fetcher);
+        assertEquals("second version", read(object));
+        assertTrue(object instanceof S3Object);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testLeastRecentlyUsedObjectsAreEvicted() throws Exception {
+        ObjectDiskCache cache = new ObjectDiskCache(directory, 25);
+        FixedFetcher fetcher = new FixedFetcher("etag", "0123456789");
+        cache.getObject("bucket", "a", null, fetcher);
+        cache.getObject("bucket", "b", null, fetcher);
+        cache.getObject("bucket", "a", null, fetcher);
+        cache.getObject("bucket", "c", null, fetcher);
+        assertEquals(2, cache.getEntryCount());
+
+        // Object "b" was evicted, so must be fetched again
+        cache.getObject("bucket", "a", null, fetcher);
+        assertEquals(2, cache.getRevalidatedCount());
+        cache.getObject("bucket", "b", null, fetcher);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    public void testConcurrentReadsShareOneFetch() throws Exception {
+        final ObjectDiskCache cache = new ObjectDiskCache(directory, 1000);
+        final FixedFetcher fetcher = new FixedFetcher("etag", "shared");
+        fetcher.releaseFetch = new CountDownLatch(1);
+
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = read(cache.getObject("bucket", "key", null, fetcher));
+                    } catch (Exception e) {
+                        results[index] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(200);
+        fetcher.releaseFetch.countDown();
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        for (String result: results) {
+            assertEquals("shared", result);
+        }
+        assertEquals(1, fetcher.fetchCount);
+        assertEquals(3, cache.getHitCount());
+    }
+
+    public void testUncacheableObjectsAreFetchedOnce() throws Exception {
+        ObjectDiskCache cache = new ObjectDiskCache(directory, 5);
+        FixedFetcher fetcher = new FixedFetcher("etag", "too large to cache");
+        assertEquals("too large to cache", read(cache.getObject("bucket", "key", null, fetcher)));
+        assertEquals(1, fetcher.fetchCount);
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testScopesDoNotShareCachedObjects() throws Exception {
+        ObjectDiskCache cache = new ObjectDiskCache(directory, 1000);
+        FixedFetcher fetcher = new FixedFetcher("etag", "endpoint A data");
+        cache.getObject("endpointA\nkey1", "bucket", "key", null, fetcher);
+
+        FixedFetcher otherFetcher = new FixedFetcher("etag", "endpoint B data");
+        assertEquals("endpoint B data",
+            read(cache.getObject("endpointB\nkey1", "bucket", "key", null, otherFetcher)));
+        assertEquals(1, otherFetcher.fetchCount);
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    private static String read(StorageObject object) throws Exception {
+        InputStream is = object.getDataInputStream();
+        StringBuffer sb = new StringBuffer();
+        int b;
+        while ((b = is.read()) != -1) {
+            sb.append((char) b);
+        }
+        is.close();
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+public class ReadCoalescerTest extends TestCase {
+
+    public void testConcurrentIdenticalReadsShareOneRequest() throws Exception {
+        assertSharedRead(new ReadCoalescer(1024), "shared data");
+        // Data larger than the buffer is shared through a temporary file
+        assertSharedRead(new ReadCoalescer(4), "shared data in a file");
+    }
+
+    public void testReadsWithDifferentScopesAreNotShared() {
+        String scope = "s3.amazonaws.com\nkey1";
+        String name = ReadCoalescer.getReadName(scope, false, "bucket", "object", null,
+            null, null, null, null, null, null);
+        assertEquals(name, ReadCoalescer.getReadName(scope, false, "bucket", "object", null,
+            null, null, null, null, null, null));
+        assertFalse(name.equals(ReadCoalescer.getReadName("s3.amazonaws.com\nkey2", false,
+            "bucket", "object", null, null, null, null, null, null, null)));
+        assertFalse(name.equals(ReadCoalescer.getReadName("storage.example.com\nkey1", false,
+            "bucket", "object", null, null, null, null, null, null, null)));
+        assertFalse(name.equals(ReadCoalescer.getReadName(scope, false, "bucket", "object",
+            null, new Long(0), new Long(9), null, null, null, null)));
+        assertFalse(name.equals(ReadCoalescer.getReadName(scope, true, "bucket", "object",
+            null, null, null, null, null, null, null)));
+    }
+
+    public void testInterruptedJoinerDoesNotKeepTemporaryFile() throws Exception {
+        Set<String> existingFiles = listTemporaryFiles();
+        ReadCoalescer coalescer = new ReadCoalescer(4);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        ReadCoalescer.Read read = createBlockedRead(releaseRead,
+            new ByteArrayInputStream("shared data in a file".getBytes()));
+
+        String[] leaderResult = new String[1];
+        Thread leader = startLeader(coalescer, read, leaderResult);
+        Thread joiner = startJoiner(coalescer, read);
+        joiner.interrupt();
+        joiner.join();
+
+        releaseRead.countDown();
+        leader.join();
+        assertEquals("shared data in a file", leaderResult[0]);
+        assertEquals(existingFiles, listTemporaryFiles());
+    }
+
+    public void testFailedSharedReadDeletesTemporaryFile() throws Exception {
+        Set<String> existingFiles = listTemporaryFiles();
+        ReadCoalescer coalescer = new ReadCoalescer(4);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        InputStream failingStream = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ < 8) {
+                    return 'x';
+                }
+                throw new IOException("Connection reset");
+            }
+        };
+        ReadCoalescer.Read read = createBlockedRead(releaseRead, failingStream);
+
+        String[] leaderResult = new String[1];
+        Thread leader = startLeader(coalescer, read, leaderResult);
+        Thread joiner = startJoiner(coalescer, read);
+        releaseRead.countDown();
+        leader.join();
+        joiner.join();
+        assertTrue(leaderResult[0], leaderResult[0].startsWith(
+            ServiceException.class.getName()));
+        assertEquals(existingFiles, listTemporaryFiles());
+    }
+
+    /**
+     * Starts a thread that leads a read, and waits until it has sent the request.
+     */
+    private static Thread startLeader(final ReadCoalescer coalescer,
+        final ReadCoalescer.Read read, final String[] result) throws InterruptedException
+    {
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = read(coalescer.read("name", read));
+                } catch (Exception e) {
+                    result[0] = e.toString();
+                }
+            }
+        };
+        leader.start();
+        while (coalescer.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        return leader;
+    }
+
+    private static ReadCoalescer.Read createBlockedRead(final CountDownLatch releaseRead,
+        final InputStream dataInputStream)
+    {
+        return new ReadCoalescer.Read() {
+            public StorageObject perform() throws ServiceException {
+                try {
+                    releaseRead.await();
+                } catch (InterruptedException e) {
+                    throw new ServiceException(e);
+                }
+                S3Object object = new S3Object("key");
+                object.setDataInputStream(dataInputStream);
+                return object;
+            }
+        };
+    }
+
+    /**
+     * Starts a thread that joins the read in progress, and waits until it has joined.
+     */
+    private static Thread startJoiner(final ReadCoalescer coalescer,
+        final ReadCoalescer.Read read) throws InterruptedException
+    {
+        Thread joiner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    coalescer.read("name", read);
+                } catch (ServiceException e) {
+                    // Expected when interrupted, or when the read fails
+                }
+            }
+        };
+        joiner.start();
+        while (coalescer.getCoalescedCount() == 0) {
+            Thread.sleep(10);
+        }
+        return joiner;
+    }
+
+    private static Set<String> listTemporaryFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(
+            new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("jets3t-coalesced-");
+                }
+            });
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    private void assertSharedRead(final ReadCoalescer coalescer, final String data)
+        throws Exception
+    {
+        final CountDownLatch releaseRead = new CountDownLatch(1);
+        final ReadCoalescer.Read read = new ReadCoalescer.Read() {
+            public StorageObject perform() throws ServiceException {
+                try {
+                    releaseRead.await();
+                } catch (InterruptedException e) {
+                    throw new ServiceException(e);
+                }
+                S3Object object = new S3Object("key");
+                object.setContentLength(data.length());
+                object.setDataInputStream(new ByteArrayInputStream(data.getBytes()));
+                return object;
+            }
+        };
+
+        long requestCount = coalescer.getRequestCount();
+        long coalescedCount = coalescer.getCoalescedCount();
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        StorageObject object = coalescer.read("name", read);
+                        assertTrue(object instanceof S3Object);
+                        results[index] = read(object);
+                    } catch (Exception e) {
+                        results[index] = e.toString();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long endTime = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalescedCount() - coalescedCount < threads.length - 1
+            && System.currentTimeMillis() < endTime)
+        {
+            Thread.sleep(10);
+        }
+        releaseRead.countDown();
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        for (String result: results) {
+            assertEquals(data, result);
+        }
+        assertEquals(1, coalescer.getRequestCount() - requestCount);
+        assertEquals(threads.length - 1, coalescer.getCoalescedCount() - coalescedCount);
+    }
+
+    private static String read(StorageObject object) throws Exception {
+        InputStream is = object.getDataInputStream();
+        StringBuffer sb = new StringBuffer();
+        int b;
+        while ((b = is.read()) != -1) {
+            sb.append((char) b);
+        }
+        is.close();
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class RegionEndpointCacheTest extends TestCase {
+
+    public void testRegionsArePersisted() throws Exception {
+        File file = File.createTempFile("bucket-regions", ".properties");
+        file.delete();
+        try {
+            RegionEndpointCache cache = new RegionEndpointCache(file);
+            cache.putRegionForBucketName("eu-bucket", "eu-central-1");
+            cache.putRegionForBucketName("us-bucket", "us-east-1");
+            cache.putRegionForBucketName(null, "us-east-1");
+            cache.flush();
+            assertTrue(file.exists());
+
+            cache = new RegionEndpointCache(file);
+            assertEquals("eu-central-1", cache.getRegionForBucketName("eu-bucket"));
+            assertEquals("us-east-1", cache.getRegionForBucketName("us-bucket"));
+            assertFalse(cache.containsRegionForBucketName(null));
+
+            cache.removeRegionForBucketName("eu-bucket");
+            cache.flush();
+            cache = new RegionEndpointCache(file);
+            assertFalse(cache.containsRegionForBucketName("eu-bucket"));
+            assertFalse(cache.containsRegionForAnyBucketName("eu-central-1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testChangesAreSavedTogetherAfterDelay() throws Exception {
+        File file = File.createTempFile("bucket-regions", ".properties");
+        file.delete();
+        try {
+            RegionEndpointCache cache = new RegionEndpointCache(file);
+            for (int i = 0; i < 100; i++) {
+                cache.putRegionForBucketName("bucket-" + i, "eu-central-1");
+            }
+            // Nothing is written until the save delay has passed
+            assertFalse(file.exists());
+
+            long deadline = System.currentTimeMillis() + RegionEndpointCache.SAVE_DELAY_MS * 10;
+            while (!file.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            cache = new RegionEndpointCache(file);
+            for (int i = 0; i < 100; i++) {
+                assertEquals("eu-central-1", cache.getRegionForBucketName("bucket-" + i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testConcurrentUpdates() throws Exception {
+        final RegionEndpointCache cache = new RegionEndpointCache();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        cache.putRegionForBucketName("bucket-" + index + "-" + j, "region-" + index);
+                        cache.getRegionForBucketName("bucket-" + ((index + 1) % 8) + "-" + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            assertEquals("region-" + i, cache.getRegionForBucketName("bucket-" + i + "-999"));
+        }
+    }
+
+    public void testRegionForBucketLocation() {
+        assertEquals("us-east-1", RestStorageService.regionForBucketLocation(null));
+        assertEquals("us-east-1", RestStorageService.regionForBucketLocation("US"));
+        assertEquals("eu-west-1", RestStorageService.regionForBucketLocation("EU"));
+        assertEquals("ap-south-1", RestStorageService.regionForBucketLocation("ap-south-1"));
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.ServiceException;
+
+public class RequestHedgerTest extends TestCase {
+
+    /**
+     * Creates attempts of which the first is slow until cancelled, and later ones are fast.
+     */
+    private static class SlowFirstAttemptFactory implements RequestHedger.AttemptFactory<String> {
+        final AtomicInteger attemptCount = new AtomicInteger(0);
+        final AtomicInteger cancelCount = new AtomicInteger(0);
+
+        public RequestHedger.Attempt<String> newAttempt() {
+            final int attemptNumber = attemptCount.incrementAndGet();
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            return new RequestHedger.Attempt<String>() {
+                public String perform() throws ServiceException {
+                    if (attemptNumber == 1) {
+                        try {
+                            if (cancelled.await(2, TimeUnit.SECONDS)) {
+                                throw new ServiceException("Aborted");
+                            }
+                        } catch (InterruptedException e) {
+                            throw new ServiceException(e);
+                        }
+                    }
+                    return "attempt-" + attemptNumber;
+                }
+
+                public void cancel(String result) {
+                    cancelCount.incrementAndGet();
+                    cancelled.countDown();
+                }
+            };
+        }
+    }
+
+    public void testSlowRequestIsHedgedWithinBudget() throws Exception {
+        RequestHedger hedger = new RequestHedger(20, 0, 0, 1, Executors.newScheduledThreadPool(2));
+        try {
+            SlowFirstAttemptFactory factory = new SlowFirstAttemptFactory();
+            assertEquals("attempt-2", hedger.execute(factory));
+            assertEquals(1, hedger.getHedgeCount());
+            assertEquals(1, hedger.getHedgeWinCount());
+            // The slow attempt is cancelled
+            assertEquals(1, factory.cancelCount.get());
+
+            // With the budget spent, a slow request waits for its only attempt
+            factory = new SlowFirstAttemptFactory();
+            long startTime = System.currentTimeMillis();
+            assertEquals("attempt-1", hedger.execute(factory));
+            assertTrue(System.currentTimeMillis() - startTime >= 1900);
+            assertEquals(1, factory.attemptCount.get());
+            assertEquals(1, hedger.getBudgetExhaustedCount());
+        } finally {
+            hedger.shutdown();
+        }
+    }
+
+    public void testPrimaryRunsOnCallerAndItsLatencyIsLearned() throws Exception {
+        RequestHedger hedger = new RequestHedger(20, 50, 1, 100,
+            Executors.newScheduledThreadPool(1));
+        try {
+            for (int i = 0; i < 20; i++) {
+                final Thread callerThread = Thread.currentThread();
+                SlowFirstAttemptFactory factory = new SlowFirstAttemptFactory() {
+                    @Override
+                    public RequestHedger.Attempt<String> newAttempt() {
+                        if (attemptCount.get() == 0) {
+                            assertSame(callerThread, Thread.currentThread());
+                        }
+                        return super.newAttempt();
+                    }
+                };
+                assertEquals("attempt-2", hedger.execute(factory));
+            }
+            assertEquals(20, hedger.getHedgeWinCount());
+            // Learned from the abandoned primaries, not the fast hedges that won
+            assertTrue("Delay learned from winners: " + hedger.getHedgeDelayMs(),
+                hedger.getHedgeDelayMs() >= 20);
+        } finally {
+            hedger.shutdown();
+        }
+    }
+
+    public void testHedgeDelayIsLearnedFromLatencies() {
+        RequestHedger hedger = new RequestHedger(100, 95, 0.05, 10,
+            Executors.newScheduledThreadPool(1));
+        try {
+            for (int i = 1; i <= 10; i++) {
+                hedger.recordLatency(i * 1000000L);
+            }
+            // Too few latencies to learn from
+            assertEquals(100, hedger.getHedgeDelayMs());
+
+            // The delay is learned once enough latencies are known, then updated periodically
+            for (int i = 11; i <= 20; i++) {
+                hedger.recordLatency(i * 1000000L);
+            }
+            assertEquals(19, hedger.getHedgeDelayMs());
+            for (int i = 21; i <= 120; i++) {
+                hedger.recordLatency(i * 1000000L);
+            }
+            assertEquals(114, hedger.getHedgeDelayMs());
+        } finally {
+            hedger.shutdown();
+        }
+    }
+
+}
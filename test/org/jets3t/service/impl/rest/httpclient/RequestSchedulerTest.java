@@ -0,0 +1,147 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+public class RequestSchedulerTest extends TestCase {
+
+    public void testInteractiveRequestsUseReservedSlots() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler(2, 1, 8, 4, 1);
+        scheduler.acquire(RequestScheduler.PRIORITY_BULK);
+
+        // A second bulk request must wait, since the remaining slot is reserved
+        Thread bulkThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(RequestScheduler.PRIORITY_BULK);
+                    scheduler.release();
+                } catch (InterruptedException e) {
+                    // Finish early
+                }
+            }
+        };
+        bulkThread.start();
+        waitForWaitingCount(scheduler, RequestScheduler.PRIORITY_BULK, 1);
+
+        // An interactive request is admitted immediately
+        Thread interactiveThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(RequestScheduler.PRIORITY_INTERACTIVE);
+                    scheduler.release();
+                } catch (InterruptedException e) {
+                    // Finish early
+                }
+            }
+        };
+        interactiveThread.start();
+        interactiveThread.join(5000);
+        assertFalse(interactiveThread.isAlive());
+        assertEquals(1, scheduler.getAdmittedCount(RequestScheduler.PRIORITY_INTERACTIVE));
+
+        // Nested requests by a thread reuse its slot
+        scheduler.acquire(RequestScheduler.PRIORITY_BULK);
+        scheduler.release();
+        assertEquals(1, scheduler.getWaitingCount(RequestScheduler.PRIORITY_BULK));
+
+        scheduler.release();
+        bulkThread.join(5000);
+        assertFalse(bulkThread.isAlive());
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    public void testWaitingClassesShareSlotsByWeight() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler(1, 0, 3, 2, 1);
+        scheduler.acquire(RequestScheduler.PRIORITY_NORMAL);
+
+        final List<Integer> admittedOrder =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 12; i++) {
+            final int priority = (i % 2 == 0
+                ? RequestScheduler.PRIORITY_INTERACTIVE : RequestScheduler.PRIORITY_BULK);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        scheduler.acquire(priority);
+                        admittedOrder.add(new Integer(priority));
+                        scheduler.release();
+                    } catch (InterruptedException e) {
+                        // Finish early
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        waitForWaitingCount(scheduler, RequestScheduler.PRIORITY_INTERACTIVE, 6);
+        waitForWaitingCount(scheduler, RequestScheduler.PRIORITY_BULK, 6);
+
+        scheduler.release();
+        for (Thread thread: threads) {
+            thread.join(5000);
+        }
+        assertEquals(12, admittedOrder.size());
+
+        // Interactive requests get three slots for each bulk slot, without starving bulk
+        int interactiveCount = 0;
+        for (Integer priority: admittedOrder.subList(0, 4)) {
+            if (priority.intValue() == RequestScheduler.PRIORITY_INTERACTIVE) {
+                interactiveCount++;
+            }
+        }
+        assertEquals(3, interactiveCount);
+    }
+
+    public void testSlotIsHeldUntilResponseBodyIsRead() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler(1, 0, 3, 2, 1);
+        scheduler.acquire(RequestScheduler.PRIORITY_NORMAL);
+        HttpEntity entity = scheduler.releaseAfterEntity(new ByteArrayEntity(new byte[100]));
+        assertEquals(1, scheduler.getActiveCount());
+
+        // The body is read by another thread, which may use the held slot
+        final InputStream content = entity.getContent();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (content.read(new byte[30]) != -1) {
+                        assertEquals(1, scheduler.getActiveCount());
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join(5000);
+        assertEquals(0, scheduler.getActiveCount());
+
+        // Closing the content after the end of the data does not release another slot
+        content.close();
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    private void waitForWaitingCount(RequestScheduler scheduler, int priority, int count)
+        throws InterruptedException
+    {
+        long endTime = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaitingCount(priority) < count
+            && System.currentTimeMillis() < endTime)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getWaitingCount(priority));
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.TestCase;
+
+import org.apache.http.conn.DnsResolver;
+
+public class RoundRobinDnsResolverTest extends TestCase {
+
+    /**
+     * Resolver that returns fixed addresses and counts lookups.
+     */
+    private static class StubDnsResolver implements DnsResolver {
+        InetAddress[] addresses;
+        int lookupCount = 0;
+
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            lookupCount++;
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }
+    }
+
+    /**
+     * Resolver with a clock controlled by the test.
+     */
+    private static class TestRoundRobinDnsResolver extends RoundRobinDnsResolver {
+        long now = 1000000;
+
+        TestRoundRobinDnsResolver(DnsResolver delegate) {
+            super(delegate, 60000, 30000);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    public void testAddressesAreRotatedAndRefreshed() throws Exception {
+        StubDnsResolver stub = new StubDnsResolver();
+        stub.addresses = new InetAddress[] {address(1), address(2), address(3)};
+        TestRoundRobinDnsResolver resolver = new TestRoundRobinDnsResolver(stub);
+
+        assertEquals(address(1), resolver.resolve("host")[0]);
+        assertEquals(address(2), resolver.resolve("host")[0]);
+        assertEquals(address(3), resolver.resolve("host")[0]);
+        assertEquals(address(1), resolver.resolve("host")[0]);
+        assertEquals(3, resolver.resolve("host").length);
+        assertEquals(1, stub.lookupCount);
+
+        // Addresses are looked up again after the TTL
+        resolver.now += 60000;
+        stub.addresses = new InetAddress[] {address(4)};
+        assertEquals(address(4), resolver.resolve("host")[0]);
+        assertEquals(2, stub.lookupCount);
+
+        // Known addresses are kept if the host cannot be resolved
+        resolver.now += 60000;
+        stub.addresses = null;
+        assertEquals(address(4), resolver.resolve("host")[0]);
+        try {
+            resolver.resolve("unknown-host");
+            fail("Expected unknown host to fail");
+        } catch (UnknownHostException e) {
+            // Expected
+        }
+    }
+
+    public void testFailedAddressesAreEjected() throws Exception {
+        StubDnsResolver stub = new StubDnsResolver();
+        stub.addresses = new InetAddress[] {address(1), address(2)};
+        TestRoundRobinDnsResolver resolver = new TestRoundRobinDnsResolver(stub);
+
+        resolver.reportFailure(address(1));
+        assertTrue(resolver.isEjected(address(1)));
+        for (int i = 0; i < 4; i++) {
+            InetAddress[] addresses = resolver.resolve("host");
+            assertEquals(address(2), addresses[0]);
+            // Ejected addresses are still tried last
+            assertEquals(address(1), addresses[1]);
+        }
+
+        resolver.now += 30000;
+        assertFalse(resolver.isEjected(address(1)));
+        assertEquals(address(1), resolver.resolve("host")[0]);
+    }
+
+    private static InetAddress address(int lastByte) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) lastByte});
+    }
+
+}
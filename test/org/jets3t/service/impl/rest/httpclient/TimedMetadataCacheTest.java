@@ -0,0 +1,122 @@
+package org.jets3t.service.impl.rest.httpclient;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+
+import org.jets3t.service.model.StorageObject;
+
+public class TimedMetadataCacheTest extends TestCase {
+
+    /**
+     * Cache whose clock is advanced by the test.
+     */
+    private static class ManualClockCache extends TimedMetadataCache {
+        long now = 1000;
+
+        ManualClockCache(int maxEntries, long timeToLiveMs, long notFoundTimeToLiveMs) {
+            super(maxEntries, timeToLiveMs, notFoundTimeToLiveMs);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    public void testEntriesExpire() {
+        ManualClockCache cache = new ManualClockCache(10, 500, 100);
+        StorageObject details = new StorageObject("a");
+        cache.put("bucket", "a", details);
+        cache.put("bucket", "missing", MetadataCache.NOT_FOUND);
+
+        assertSame(details, cache.get("bucket", "a"));
+        assertSame(MetadataCache.NOT_FOUND, cache.get("bucket", "missing"));
+        assertEquals(2, cache.getHitCount());
+
+        // Missing objects are forgotten sooner
+        cache.now += 200;
+        assertNull(cache.get("bucket", "missing"));
+        assertSame(details, cache.get("bucket", "a"));
+
+        cache.now += 300;
+        assertNull(cache.get("bucket", "a"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testLeastRecentlyUsedEntriesAreDiscarded() {
+        TimedMetadataCache cache = new TimedMetadataCache(2, 60000, 0);
+        cache.put("bucket", "a", new StorageObject("a"));
+        cache.put("bucket", "b", new StorageObject("b"));
+        cache.get("bucket", "a");
+        cache.put("bucket", "c", new StorageObject("c"));
+
+        assertNull(cache.get("bucket", "b"));
+        assertNotNull(cache.get("bucket", "a"));
+        assertNotNull(cache.get("bucket", "c"));
+
+        // Negative caching is disabled
+        cache.put("bucket", "missing", MetadataCache.NOT_FOUND);
+        assertNull(cache.get("bucket", "missing"));
+
+        cache.invalidate("bucket", "a");
+        assertNull(cache.get("bucket", "a"));
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    public void testDetailsReadBeforeInvalidationAreNotCached() {
+        TimedMetadataCache cache = new TimedMetadataCache(1, 60000, 60000);
+        long generation = cache.getGeneration("bucket", "a");
+        // The object is changed while its details are being retrieved
+        cache.invalidate("bucket", "a");
+        cache.put("bucket", "a", new StorageObject("a"), generation);
+        assertNull(cache.get("bucket", "a"));
+
+        cache.put("bucket", "a", new StorageObject("a"), cache.getGeneration("bucket", "a"));
+        assertNotNull(cache.get("bucket", "a"));
+
+        // Other objects are unaffected, until the invalidation of "a" is forgotten
+        generation = cache.getGeneration("bucket", "b");
+        cache.invalidate("bucket", "a");
+        cache.put("bucket", "b", new StorageObject("b"), generation);
+        assertNotNull(cache.get("bucket", "b"));
+        cache.invalidate("bucket", "c");
+        cache.put("bucket", "a", new StorageObject("a"), generation);
+        assertNull(cache.get("bucket", "a"));
+    }
+
+    public void testServiceCachesBucketStatusUntilBucketIsDeleted() throws Exception {
+        final int[] statusRequestCount = new int[] {0};
+        RestS3Service service = new RestS3Service(null) {
+            @Override
+            protected int checkBucketStatusImpl(String bucketName) {
+                statusRequestCount[0]++;
+                return BUCKET_STATUS__MY_BUCKET;
+            }
+            @Override
+            protected HttpResponse performRestDelete(String bucketName, String objectKey,
+                Map<String, String> requestParameters, String multiFactorSerialNumber,
+                String multiFactorAuthCode)
+            {
+                return null;
+            }
+        };
+        service.setMetadataCache(new TimedMetadataCache(10, 60000, 60000));
+
+        assertEquals(RestS3Service.BUCKET_STATUS__MY_BUCKET, service.checkBucketStatus("bucket"));
+        assertEquals(RestS3Service.BUCKET_STATUS__MY_BUCKET, service.checkBucketStatus("bucket"));
+        assertEquals(1, statusRequestCount[0]);
+
+        // Objects cannot collide with the bucket's entry
+        assertNull(service.getMetadataCache().get("bucket", "bucket-status"));
+
+        service.deleteBucketImpl("bucket");
+        service.checkBucketStatus("bucket");
+        assertEquals(2, statusRequestCount[0]);
+    }
+
+}
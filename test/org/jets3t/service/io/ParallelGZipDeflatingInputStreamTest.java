@@ -0,0 +1,58 @@
+package org.jets3t.service.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelGZipDeflatingInputStreamTest extends TestCase {
+
+    public void testMultiMemberOutputInflatesToOriginalData() throws Exception {
+        // Compressible data spanning several blocks, with a partial final block
+        byte[] data = new byte[5 * 1000 + 123];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        byte[] compressed = readFully(new ParallelGZipDeflatingInputStream(
+            new ByteArrayInputStream(data), 4, 1000));
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        GZipInflatingOutputStream gzipOutput = new GZipInflatingOutputStream(inflated);
+        // Write in odd-sized chunks so members and trailers straddle writes
+        for (int offset = 0; offset < compressed.length; offset += 7) {
+            gzipOutput.write(compressed, offset, Math.min(7, compressed.length - offset));
+        }
+        gzipOutput.close();
+        assertTrue(Arrays.equals(data, inflated.toByteArray()));
+
+        assertTrue(Arrays.equals(data, readFully(
+            new GZIPInputStream(new ByteArrayInputStream(compressed)))));
+    }
+
+    public void testEmptyInputProducesValidGZipData() throws Exception {
+        byte[] compressed = readFully(new ParallelGZipDeflatingInputStream(
+            new ByteArrayInputStream(new byte[0]), 2, 1000));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        GZipInflatingOutputStream gzipOutput = new GZipInflatingOutputStream(inflated);
+        gzipOutput.write(compressed, 0, compressed.length);
+        gzipOutput.close();
+        assertEquals(0, inflated.size());
+    }
+
+    private byte[] readFully(InputStream is) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[333];
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        is.close();
+        return out.toByteArray();
+    }
+
+}
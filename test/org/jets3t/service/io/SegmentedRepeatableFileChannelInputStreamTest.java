@@ -0,0 +1,67 @@
+package org.jets3t.service.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.TestFileUtils;
+
+public class SegmentedRepeatableFileChannelInputStreamTest extends TestCase {
+
+    public void testSegmentsShareChannelAndRepeatWithoutReopening() throws Exception {
+        File file = TestFileUtils.createTempFileWithSize("segmented-channel", ".bin", 1000);
+        try {
+            SharedFileChannel sharedChannel = new SharedFileChannel(file);
+            SegmentedRepeatableFileChannelInputStream first =
+                new SegmentedRepeatableFileChannelInputStream(sharedChannel, 0, 600);
+            SegmentedRepeatableFileChannelInputStream second =
+                new SegmentedRepeatableFileChannelInputStream(sharedChannel, 600, 400);
+            assertEquals(2, sharedChannel.getReferenceCount());
+            assertSame(first.getFileChannel(), second.getFileChannel());
+
+            assertEquals(400, second.available());
+            assertEquals(600 % 256, second.read());
+            byte[] buffer = new byte[1000];
+            assertEquals(399, second.read(buffer, 0, buffer.length));
+            assertEquals(-1, second.read());
+
+            second.reset();
+            assertEquals(400, second.available());
+            assertEquals(600 % 256, second.read());
+
+            first.close();
+            second.close();
+            assertEquals(0, sharedChannel.getReferenceCount());
+
+            // A closed stream can be reset, which re-acquires the channel.
+            first.reset();
+            assertEquals(1, sharedChannel.getReferenceCount());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(600, first.transferTo(Channels.newChannel(out)));
+            assertEquals(600, out.size());
+            assertEquals(599 % 256, out.toByteArray()[599] & 0xFF);
+            first.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSegmentBeyondEndOfFileIsRejected() throws Exception {
+        File file = TestFileUtils.createTempFileWithSize("segmented-channel", ".bin", 100);
+        try {
+            SharedFileChannel sharedChannel = new SharedFileChannel(file);
+            try {
+                new SegmentedRepeatableFileChannelInputStream(sharedChannel, 50, 51);
+                fail("Expected segment beyond end of file to be rejected");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(0, sharedChannel.getReferenceCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+}
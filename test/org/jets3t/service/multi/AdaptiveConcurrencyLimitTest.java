@@ -0,0 +1,57 @@
+package org.jets3t.service.multi;
+
+import junit.framework.TestCase;
+
+public class AdaptiveConcurrencyLimitTest extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    public void testLimitGrowsWhileDurationsAreSteady() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 50);
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(100 * MS, false);
+        }
+        assertEquals(50, limit.getLimit());
+    }
+
+    public void testLimitShrinksWhenTasksQueue() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(40, 1, 50);
+        limit.onSample(100 * MS, false);
+        for (int i = 0; i < 50; i++) {
+            // Durations grow as more tasks run at once
+            limit.onSample(100 * MS * limit.getLimit() / 4, false);
+        }
+        assertTrue("Limit not reduced: " + limit.getLimit(), limit.getLimit() < 20);
+    }
+
+    public void testLimitReachesMinimumWhenDurationsStayInflated() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 2, 50);
+        limit.onSample(100 * MS, false);
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(1000 * MS, false);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    public void testLimitGrowsWithMixedObjectSizesAtSteadyThroughput() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 50);
+        long[] sizes = new long[] {1024, 8 * 1024 * 1024, 256 * 1024, 64 * 1024 * 1024};
+        for (int i = 0; i < 200; i++) {
+            long bytes = sizes[i % sizes.length];
+            // 20ms per request, plus transfer time at 10 MB/s
+            limit.onSample(20 * MS + bytes * 100, bytes, false);
+        }
+        assertEquals(50, limit.getLimit());
+    }
+
+    public void testFailuresShrinkLimitWithinBounds() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 2, 20);
+        limit.onSample(100 * MS, true);
+        assertEquals(9, limit.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(100 * MS, true);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+}
@@ -0,0 +1,128 @@
+package org.jets3t.service.multi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.MemoryS3Service;
+import org.jets3t.service.utils.ServiceUtils;
+
+public class AsyncStorageServiceTest extends TestCase {
+
+    private static class RecordingCallback<T> implements ServiceCallback<T> {
+        volatile T result;
+        volatile ServiceException exception;
+        volatile Thread thread;
+
+        public void succeeded(T result) {
+            this.result = result;
+            this.thread = Thread.currentThread();
+        }
+
+        public void failed(ServiceException exception) {
+            this.exception = exception;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    public void testResultsAndFailuresAreDelivered() throws Exception {
+        AsyncStorageService asyncService =
+            new AsyncStorageService(null, Executors.newFixedThreadPool(2));
+        try {
+            RecordingCallback<String> callback = new RecordingCallback<String>();
+            Future<String> future = asyncService.submit(
+                new AsyncStorageService.ServiceOperation<String>() {
+                    public String perform() {
+                        return "done";
+                    }
+                }, callback);
+            assertEquals("done", AsyncStorageService.getResult(future));
+            assertEquals("done", callback.result);
+            // Callbacks are notified on the worker thread
+            assertNotSame(Thread.currentThread(), callback.thread);
+
+            final ServiceException failure = new ServiceException("Not Found");
+            failure.setResponseCode(404);
+            callback = new RecordingCallback<String>();
+            future = asyncService.submit(
+                new AsyncStorageService.ServiceOperation<String>() {
+                    public String perform() throws ServiceException {
+                        throw failure;
+                    }
+                }, callback);
+            try {
+                AsyncStorageService.getResult(future);
+                fail("Expected failure");
+            } catch (ServiceException e) {
+                assertSame(failure, e);
+            }
+            assertSame(failure, callback.exception);
+            assertNull(callback.result);
+        } finally {
+            asyncService.shutdown();
+        }
+    }
+
+    public void testRuntimeExceptionsAreMappedToServiceExceptions() throws Exception {
+        AsyncStorageService asyncService =
+            new AsyncStorageService(null, Executors.newFixedThreadPool(1));
+        try {
+            final IllegalStateException failure = new IllegalStateException("Broken");
+            RecordingCallback<String> callback = new RecordingCallback<String>();
+            Future<String> future = asyncService.submit(
+                new AsyncStorageService.ServiceOperation<String>() {
+                    public String perform() {
+                        throw failure;
+                    }
+                }, callback);
+            try {
+                AsyncStorageService.getResult(future);
+                fail("Expected failure");
+            } catch (ServiceException e) {
+                assertSame(failure, e.getCause());
+            }
+            assertSame(failure, callback.exception.getCause());
+        } finally {
+            asyncService.shutdown();
+        }
+    }
+
+    public void testRequestsArePerformedByUnderlyingService() throws Exception {
+        AsyncStorageService asyncService =
+            new AsyncStorageService(new MemoryS3Service(new Jets3tProperties()));
+        try {
+            RecordingCallback<StorageObject> putCallback =
+                new RecordingCallback<StorageObject>();
+            StorageObject putObject = AsyncStorageService.getResult(asyncService.putObject(
+                "bucket", new S3Object("key", "data"), putCallback));
+            assertSame(putObject, putCallback.result);
+
+            RecordingCallback<StorageObject> getCallback =
+                new RecordingCallback<StorageObject>();
+            StorageObject object = AsyncStorageService.getResult(
+                asyncService.getObject("bucket", "key", getCallback));
+            assertSame(object, getCallback.result);
+            assertEquals("data", ServiceUtils.readInputStreamToString(
+                object.getDataInputStream(), "UTF-8"));
+
+            // Errors of the underlying service reach both the callback and the caller
+            RecordingCallback<StorageObject> missingCallback =
+                new RecordingCallback<StorageObject>();
+            try {
+                AsyncStorageService.getResult(
+                    asyncService.getObjectDetails("bucket", "missing", missingCallback));
+                fail("Expected failure");
+            } catch (ServiceException e) {
+                assertSame(e, missingCallback.exception);
+            }
+        } finally {
+            asyncService.shutdown();
+        }
+    }
+
+}
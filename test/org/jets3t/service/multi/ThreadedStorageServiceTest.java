@@ -0,0 +1,206 @@
+package org.jets3t.service.multi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.DownloadCheckpoint;
+import org.jets3t.service.utils.MemoryS3Service;
+import org.jets3t.service.utils.ServiceUtils;
+
+public class ThreadedStorageServiceTest extends TestCase {
+
+    /**
+     * Service that records deletions instead of sending requests.
+     */
+    private static class RecordingService extends RestS3Service {
+        final Map<String, Boolean> deletedKeys = new ConcurrentHashMap<String, Boolean>();
+        final AtomicInteger inProgress = new AtomicInteger(0);
+        volatile int maxInProgress = 0;
+
+        RecordingService(Jets3tProperties properties) {
+            super(null, null, null, properties);
+        }
+
+        @Override
+        protected void deleteObjectImpl(String bucketName, String objectKey,
+            String versionId, String multiFactorSerialNumber, String multiFactorAuthCode)
+        {
+            int count = inProgress.incrementAndGet();
+            maxInProgress = Math.max(maxInProgress, count);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                // Finish early
+            }
+            deletedKeys.put(objectKey, Boolean.TRUE);
+            inProgress.decrementAndGet();
+        }
+    }
+
+    public void testStreamingDeletePullsObjectsLazily() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("threaded-service.admin-max-thread-count", "3");
+        properties.setProperty("threaded-service.max-thread-count", "3");
+        final RecordingService service = new RecordingService(properties);
+        ThreadedStorageService threadedService = new ThreadedStorageService(
+            service, new StorageServiceEventAdaptor(), 50);
+
+        final int objectCount = 60;
+        final int[] pulledCount = new int[] {0};
+        final int[] maxOutstanding = new int[] {0};
+        Iterator<StorageObject> objects = new Iterator<StorageObject>() {
+            public boolean hasNext() {
+                return pulledCount[0] < objectCount;
+            }
+            public StorageObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                maxOutstanding[0] = Math.max(maxOutstanding[0],
+                    pulledCount[0] - service.deletedKeys.size());
+                return new StorageObject("key-" + pulledCount[0]++);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        assertTrue(threadedService.deleteObjects("bucket", objects));
+        assertEquals(objectCount, service.deletedKeys.size());
+        assertTrue(service.maxInProgress <= 3);
+        // Objects are only created as threads become free, not all up front
+        assertTrue("Too many objects pulled ahead: " + maxOutstanding[0],
+            maxOutstanding[0] <= 3);
+    }
+
+    public void testVirtualThreadsFallBackOnOlderJVMs() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("threaded-service.virtual-threads-enabled", "true");
+        RecordingService service = new RecordingService(properties);
+        ThreadedStorageService threadedService = new ThreadedStorageService(
+            service, new StorageServiceEventAdaptor(), 50);
+
+        boolean isSupported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            isSupported = true;
+        } catch (NoSuchMethodException e) {
+            isSupported = false;
+        }
+        assertEquals(isSupported, threadedService.isVirtualThreadsEnabled());
+
+        StorageObject[] objects = new StorageObject[20];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new StorageObject("key-" + i);
+        }
+        assertTrue(threadedService.deleteObjects("bucket", objects));
+        assertEquals(objects.length, service.deletedKeys.size());
+    }
+
+    /**
+     * Service whose first object download fails part way through, as if the connection
+     * was lost, and which records the start of each ranged download.
+     */
+    private static class InterruptingService extends MemoryS3Service {
+        final long failAfterByteCount;
+        volatile Long lastByteRangeStart = null;
+        volatile boolean hasFailed = false;
+
+        InterruptingService(long failAfterByteCount) {
+            super(new Jets3tProperties());
+            this.failAfterByteCount = failAfterByteCount;
+        }
+
+        @Override
+        protected StorageObject getObjectImpl(String bucketName, String objectKey,
+            Calendar ifModifiedSince, Calendar ifUnmodifiedSince, String[] ifMatchTags,
+            String[] ifNoneMatchTags, Long byteRangeStart, Long byteRangeEnd, String versionId)
+            throws ServiceException
+        {
+            lastByteRangeStart = byteRangeStart;
+            StorageObject object = super.getObjectImpl(bucketName, objectKey,
+                ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags,
+                byteRangeStart, byteRangeEnd, versionId);
+            if (!hasFailed) {
+                hasFailed = true;
+                object.setDataInputStream(new FilterInputStream(object.getDataInputStream()) {
+                    private long byteCount = 0;
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (byteCount >= failAfterByteCount) {
+                            throw new IOException("Connection reset");
+                        }
+                        int count = super.read(b, off,
+                            (int) Math.min(len, failAfterByteCount - byteCount));
+                        byteCount += Math.max(0, count);
+                        return count;
+                    }
+                });
+            }
+            return object;
+        }
+    }
+
+    public void testResumedDownloadRehashesPartialFile() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 1000];
+        new Random(1).nextBytes(data);
+        long partialLength = 1024 * 1024 + 5000;
+        InterruptingService service = new InterruptingService(partialLength);
+        service.putObject("bucket", new S3Object("key", data));
+
+        File file = File.createTempFile("jets3t-test-", ".dat");
+        file.deleteOnExit();
+        File sidecarFile = DownloadCheckpoint.getSidecarFile(file);
+        sidecarFile.deleteOnExit();
+        try {
+            StorageServiceEventAdaptor eventAdaptor = new StorageServiceEventAdaptor();
+            new ThreadedStorageService(service, eventAdaptor).downloadObjects(
+                "bucket", new DownloadPackage[] {createResumablePackage(file)});
+            assertNotNull(eventAdaptor.getErrorThrown());
+            long fileLength = file.length();
+            assertTrue(fileLength > 0);
+            assertTrue(fileLength <= partialLength);
+            assertNotNull(DownloadCheckpoint.load(sidecarFile));
+
+            eventAdaptor = new StorageServiceEventAdaptor();
+            new ThreadedStorageService(service, eventAdaptor).downloadObjects(
+                "bucket", new DownloadPackage[] {createResumablePackage(file)});
+            // The download resumed, and the partial file re-hashed with the new data
+            // passed verification against the ETag
+            eventAdaptor.throwErrorIfPresent();
+            assertEquals(Long.valueOf(fileLength), service.lastByteRangeStart);
+            assertTrue(Arrays.equals(ServiceUtils.computeMD5Hash(data),
+                ServiceUtils.computeMD5Hash(new FileInputStream(file))));
+            assertFalse(sidecarFile.exists());
+        } finally {
+            file.delete();
+            sidecarFile.delete();
+        }
+    }
+
+    private static DownloadPackage createResumablePackage(File file) {
+        DownloadPackage downloadPackage = new DownloadPackage(new S3Object("key"), file);
+        downloadPackage.setResumable(true);
+        return downloadPackage;
+    }
+
+}
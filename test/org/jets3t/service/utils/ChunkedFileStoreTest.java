@@ -0,0 +1,182 @@
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.model.StorageObject;
+
+public class ChunkedFileStoreTest extends TestCase {
+
+    /**
+     * Store that keeps objects in memory instead of a service.
+     */
+    private static class MemoryChunkedFileStore extends ChunkedFileStore {
+        private final Map<String, byte[]> objects;
+
+        public MemoryChunkedFileStore(Map<String, byte[]> objects) {
+            super(null, "bucket", "backup", 4096, 3);
+            this.objects = objects;
+        }
+
+        @Override
+        protected InputStream getObjectData(String key) {
+            return new ByteArrayInputStream(objects.get(key));
+        }
+
+        @Override
+        protected void putObject(StorageObject object) {
+            try {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                InputStream is = object.getDataInputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    data.write(buffer, 0, count);
+                }
+                objects.put(object.getKey(), data.toByteArray());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected List<String> listObjectKeys(String prefix) {
+            List<String> keys = new ArrayList<String>();
+            for (String key: objects.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+    }
+
+    public void testInsertedDataOnlyChangesNearbyChunks() throws Exception {
+        byte[] data = new byte[200 * 1024];
+        new Random(7).nextBytes(data);
+        byte[] changedData = new byte[data.length + 100];
+        System.arraycopy(data, 0, changedData, 0, 50000);
+        System.arraycopy(data, 50000, changedData, 50100, data.length - 50000);
+
+        ChunkedFileStore store = new ChunkedFileStore(null, "bucket", "", 4096, 1);
+        List<ChunkedFileStore.Chunk> chunks =
+            store.findChunks(new ByteArrayInputStream(data), null);
+        List<ChunkedFileStore.Chunk> changedChunks =
+            store.findChunks(new ByteArrayInputStream(changedData), null);
+
+        long totalLength = 0;
+        Set<String> hashes = new HashSet<String>();
+        for (ChunkedFileStore.Chunk chunk: chunks) {
+            assertEquals(totalLength, chunk.getOffset());
+            assertTrue(chunk.getLength() <= 4 * 4096);
+            totalLength += chunk.getLength();
+            hashes.add(chunk.getHash());
+        }
+        assertEquals(data.length, totalLength);
+
+        int newChunkCount = 0;
+        for (ChunkedFileStore.Chunk chunk: changedChunks) {
+            if (!hashes.contains(chunk.getHash())) {
+                newChunkCount++;
+            }
+        }
+        assertTrue("Too many changed chunks: " + newChunkCount, newChunkCount <= 3);
+    }
+
+    public void testPutAndRestoreFile() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        new Random(11).nextBytes(data);
+        // Repeated data is stored once
+        System.arraycopy(data, 0, data, 60 * 1024, 30 * 1024);
+        File file = File.createTempFile("chunked", ".bin");
+        File restoredFile = File.createTempFile("restored", ".bin");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(data);
+            fos.close();
+
+            Map<String, byte[]> objects = new HashMap<String, byte[]>();
+            ChunkedFileStore store = new MemoryChunkedFileStore(objects);
+            StorageObject manifest = new StorageObject("backup/chunked.bin");
+            int uploadedCount = store.putFile(manifest, file);
+            assertTrue(uploadedCount > 0);
+            assertTrue(ChunkedFileStore.isChunkManifest(manifest));
+            assertEquals(objects.size(), uploadedCount + 1);
+
+            // Storing the file again uploads no chunks
+            store = new MemoryChunkedFileStore(objects);
+            assertEquals(0, store.putFile(new StorageObject("backup/copy.bin"), file));
+
+            store.restoreFile("backup/chunked.bin", restoredFile);
+            byte[] restoredData = new byte[(int) restoredFile.length()];
+            FileInputStream fis = new FileInputStream(restoredFile);
+            int offset = 0;
+            while (offset < restoredData.length) {
+                offset += fis.read(restoredData, offset, restoredData.length - offset);
+            }
+            fis.close();
+            assertTrue(Arrays.equals(data, restoredData));
+        } finally {
+            file.delete();
+            restoredFile.delete();
+        }
+    }
+
+    public void testFailedRestoreLeavesFileUnchanged() throws Exception {
+        byte[] data = new byte[50 * 1024];
+        new Random(13).nextBytes(data);
+        File dir = File.createTempFile("chunked", "");
+        dir.delete();
+        dir.mkdirs();
+        File file = new File(dir, "chunked.bin");
+        File restoredFile = new File(dir, "restored.bin");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(data);
+            fos.close();
+            fos = new FileOutputStream(restoredFile);
+            fos.write("original".getBytes());
+            fos.close();
+
+            Map<String, byte[]> objects = new HashMap<String, byte[]>();
+            ChunkedFileStore store = new MemoryChunkedFileStore(objects);
+            store.putFile(new StorageObject("backup/chunked.bin"), file);
+            // Lose one of the file's chunks
+            for (String key: new ArrayList<String>(objects.keySet())) {
+                if (ChunkedFileStore.isChunkKeyPath(key.substring("backup/".length()))) {
+                    objects.remove(key);
+                    break;
+                }
+            }
+
+            try {
+                store.restoreFile("backup/chunked.bin", restoredFile);
+                fail("Expected restore with a missing chunk to fail");
+            } catch (Exception e) {
+                // Expected
+            }
+            store.shutdown();
+            assertEquals(8, restoredFile.length());
+            assertEquals(2, dir.listFiles().length);
+        } finally {
+            file.delete();
+            restoredFile.delete();
+            dir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.CompressionCodec;
+import org.jets3t.service.io.GZipCompressionCodec;
+import org.jets3t.service.model.S3Object;
+
+public class CompressionCodecsTest extends TestCase {
+
+    /**
+     * Codec that leaves data unchanged, loaded by class name.
+     */
+    public static class ConfiguredCodec implements CompressionCodec {
+        public String getName() {
+            return "configured-test";
+        }
+        public String getContentEncoding() {
+            return null;
+        }
+        public InputStream compress(InputStream inputStream, int level) {
+            return inputStream;
+        }
+        public OutputStream decompress(OutputStream outputStream) {
+            return outputStream;
+        }
+    }
+
+    public void testGZipCodecRoundTripWithLevel() throws Exception {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + (i % 7));
+        }
+        CompressionCodec codec = CompressionCodecs.getCodec(
+            GZipCompressionCodec.NAME, new Jets3tProperties());
+        assertNotNull(codec);
+
+        InputStream compressing = codec.compress(new ByteArrayInputStream(data), 9);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int count;
+        while ((count = compressing.read(buffer)) != -1) {
+            compressed.write(buffer, 0, count);
+        }
+        compressing.close();
+        assertTrue(compressed.size() < data.length);
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        OutputStream decompressing = codec.decompress(inflated);
+        decompressing.write(compressed.toByteArray());
+        decompressing.close();
+        assertTrue(Arrays.equals(data, inflated.toByteArray()));
+    }
+
+    public void testCodecForObject() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        S3Object plain = new S3Object("plain");
+        assertNull(CompressionCodecs.getCodecForObject(plain, properties));
+
+        S3Object legacy = new S3Object("legacy");
+        legacy.setContentEncoding("gzip");
+        assertEquals(GZipCompressionCodec.NAME,
+            CompressionCodecs.getCodecForObject(legacy, properties).getName());
+
+        CompressionCodec identity = new CompressionCodec() {
+            public String getName() {
+                return "identity-test";
+            }
+            public String getContentEncoding() {
+                return null;
+            }
+            public InputStream compress(InputStream inputStream, int level) {
+                return inputStream;
+            }
+            public OutputStream decompress(OutputStream outputStream) {
+                return outputStream;
+            }
+        };
+        S3Object custom = new S3Object("custom");
+        custom.addMetadata(Constants.METADATA_JETS3T_COMPRESSED, "identity-test");
+        try {
+            CompressionCodecs.getCodecForObject(custom, properties);
+            fail("Unregistered codec should be rejected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        CompressionCodecs.registerCodec(identity);
+        assertSame(identity, CompressionCodecs.getCodecForObject(custom, properties));
+    }
+
+    public void testCodecClassesAreReadFromGivenProperties() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("compression.codec-classes",
+            ConfiguredCodec.class.getName());
+        properties.setProperty("uploads.compression-codec", "configured-test");
+        properties.setProperty("uploads.compression-level", "3");
+
+        assertTrue(CompressionCodecs.getUploadCodec(properties) instanceof ConfiguredCodec);
+        assertEquals(3, CompressionCodecs.getUploadCompressionLevel(properties));
+        // Other properties do not see the codec, and use gzip by default
+        Jets3tProperties otherProperties = new Jets3tProperties();
+        assertNull(CompressionCodecs.getCodec("configured-test", otherProperties));
+        assertEquals(GZipCompressionCodec.NAME,
+            CompressionCodecs.getUploadCodec(otherProperties).getName());
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.StorageServiceEventAdaptor;
+import org.jets3t.service.multi.StorageServiceEventListener;
+
+public class FileBundlerTest extends TestCase {
+
+    /**
+     * Bundler that stores objects in memory instead of a service.
+     */
+    private static class MemoryFileBundler extends FileBundler {
+        private final Map<String, byte[]> objects;
+
+        public MemoryFileBundler(Map<String, byte[]> objects) {
+            super(null, "bucket", "backup", 1000);
+            this.objects = objects;
+        }
+
+        @Override
+        protected InputStream getObjectData(String key) {
+            byte[] data = objects.get(key);
+            return (data == null ? null : new ByteArrayInputStream(data));
+        }
+
+        @Override
+        protected InputStream getObjectData(String key, long offset, long length) {
+            return new ByteArrayInputStream(objects.get(key), (int) offset, (int) length);
+        }
+
+        @Override
+        protected void putObject(String key, byte[] data) {
+            objects.put(key, data);
+        }
+
+        @Override
+        protected void putObjects(StorageObject[] bundles,
+            StorageServiceEventListener eventListener) throws ServiceException
+        {
+            try {
+                for (StorageObject bundle: bundles) {
+                    objects.put(bundle.getKey(),
+                        MemoryS3Service.readAll(bundle.getDataInputStream()));
+                }
+            } catch (IOException e) {
+                throw new ServiceException(e);
+            }
+        }
+
+        @Override
+        protected int getMaxPendingBundles() {
+            return 1;
+        }
+
+        @Override
+        protected void deleteObject(String key) {
+            objects.remove(key);
+        }
+    }
+
+    public void testBundleUpdateAndRestore() throws Exception {
+        File dir = File.createTempFile("bundler", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            FileComparer fileComparer = FileComparer.getInstance(new Jets3tProperties());
+            Map<String, String> localFiles = new TreeMap<String, String>();
+            localFiles.put("a.txt", writeFile(new File(dir, "a.txt"), 600, 'a'));
+            localFiles.put("b.txt", writeFile(new File(dir, "b.txt"), 300, 'b'));
+            localFiles.put("c/d.txt", writeFile(new File(dir, "d.txt"), 700, 'd'));
+            localFiles.put("empty.txt", writeFile(new File(dir, "empty.txt"), 0, 'e'));
+
+            Map<String, byte[]> objects = new HashMap<String, byte[]>();
+            FileBundler bundler = new MemoryFileBundler(objects);
+            bundler.loadIndex();
+            FileComparerResults results = bundler.compareFiles(localFiles, fileComparer, null);
+            assertEquals(4, results.onlyOnClientKeys.size());
+            bundler.uploadChanges(results, localFiles, true);
+            // Index plus two bundles, since all the data does not fit in one bundle
+            assertEquals(3, objects.size());
+
+            // Change one file and remove another
+            writeFile(new File(dir, "b.txt"), 300, 'B');
+            localFiles.remove("c/d.txt");
+            bundler = new MemoryFileBundler(objects);
+            bundler.loadIndex();
+            assertEquals(4, bundler.getMembers().size());
+            results = bundler.compareFiles(localFiles, fileComparer, null);
+            assertEquals(Arrays.asList("b.txt"), results.updatedOnClientKeys);
+            assertEquals(Arrays.asList("c/d.txt"), results.onlyOnServerKeys);
+            bundler.uploadChanges(results, localFiles, true);
+
+            bundler = new MemoryFileBundler(objects);
+            bundler.loadIndex();
+            assertEquals(3, bundler.getMembers().size());
+            results = bundler.compareFiles(localFiles, fileComparer, null);
+            assertEquals(3, results.alreadySynchronisedKeys.size());
+
+            File restored = new File(dir, "restored/b.txt");
+            bundler.restoreFile("b.txt", restored);
+            assertEquals(300, restored.length());
+            bundler.restoreFile("empty.txt", new File(dir, "restored/empty.txt"));
+            assertTrue(new File(dir, "restored/empty.txt").exists());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public void testRestoreFilesWithThreadedRangedDownloads() throws Exception {
+        File dir = File.createTempFile("bundler", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            FileComparer fileComparer = FileComparer.getInstance(new Jets3tProperties());
+            Map<String, String> localFiles = new TreeMap<String, String>();
+            localFiles.put("a.txt", writeFile(new File(dir, "a.txt"), 600, 'a'));
+            localFiles.put("b.txt", writeFile(new File(dir, "b.txt"), 300, 'b'));
+            localFiles.put("c/d.txt", writeFile(new File(dir, "d.txt"), 700, 'd'));
+            localFiles.put("empty.txt", writeFile(new File(dir, "empty.txt"), 0, 'e'));
+
+            MemoryS3Service service = new MemoryS3Service(new Jets3tProperties());
+            FileBundler bundler = new FileBundler(service, "bucket", "backup", 1000);
+            bundler.uploadChanges(
+                bundler.compareFiles(localFiles, fileComparer, null), localFiles, true);
+
+            Map<String, File> files = new TreeMap<String, File>();
+            for (String keyPath: localFiles.keySet()) {
+                files.put(keyPath, new File(dir, "restored/" + keyPath));
+            }
+            bundler.restoreFiles(files, null);
+            for (String keyPath: localFiles.keySet()) {
+                assertTrue(Arrays.equals(readFile(new File(localFiles.get(keyPath))),
+                    readFile(files.get(keyPath))));
+            }
+            // One ranged GET for each non-empty file
+            assertEquals(3, service.getCount.get());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public void testThreadedUploadHashesBundledData() throws Exception {
+        File dir = File.createTempFile("bundler", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            FileComparer fileComparer = FileComparer.getInstance(new Jets3tProperties());
+            Map<String, String> localFiles = new TreeMap<String, String>();
+            for (int i = 0; i < 6; i++) {
+                localFiles.put("f" + i + ".txt",
+                    writeFile(new File(dir, "f" + i + ".txt"), 400, (char) ('a' + i)));
+            }
+
+            MemoryS3Service service = new MemoryS3Service(new Jets3tProperties());
+            FileBundler bundler = new FileBundler(service, "bucket", "backup", 1000);
+            FileComparerResults results = bundler.compareFiles(localFiles, fileComparer, null);
+            // A file that changes after the comparison is bundled with its new data's hash
+            writeFile(new File(dir, "f0.txt"), 400, 'z');
+            StorageServiceEventAdaptor eventAdaptor = new StorageServiceEventAdaptor();
+            bundler.uploadChanges(results, localFiles, true, eventAdaptor);
+            eventAdaptor.throwErrorIfPresent();
+            // Index plus three bundles of two files each
+            assertEquals(4, service.putCount.get());
+
+            bundler = new FileBundler(service, "bucket", "backup", 1000);
+            bundler.loadIndex();
+            Map<String, File> files = new TreeMap<String, File>();
+            for (String keyPath: localFiles.keySet()) {
+                files.put(keyPath, new File(dir, "restored/" + keyPath));
+            }
+            bundler.restoreFiles(files, null);
+            for (String keyPath: localFiles.keySet()) {
+                assertTrue(Arrays.equals(readFile(new File(localFiles.get(keyPath))),
+                    readFile(files.get(keyPath))));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        return MemoryS3Service.readAll(new FileInputStream(file));
+    }
+
+    private String writeFile(File file, int size, char c) throws Exception {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) c);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        return file.getAbsolutePath();
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+}
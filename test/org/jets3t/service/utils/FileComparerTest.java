@@ -0,0 +1,51 @@
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.TestFileUtils;
+import org.jets3t.service.model.StorageObject;
+
+public class FileComparerTest extends TestCase {
+
+    public void testFindRenamedFiles() throws Exception {
+        File movedFile = TestFileUtils.createTempFileWithSize("moved", ".bin", 2000);
+        File newFile = TestFileUtils.createTempFileWithSize("new", ".bin", 3000);
+        try {
+            FileComparer fileComparer = FileComparer.getInstance(new Jets3tProperties());
+
+            Map<String, String> objectKeyToFilepathMap = new HashMap<String, String>();
+            objectKeyToFilepathMap.put("photos/2016/moved.bin", movedFile.getAbsolutePath());
+            objectKeyToFilepathMap.put("photos/new.bin", newFile.getAbsolutePath());
+
+            // Service object uploaded from the moved file at its old path
+            StorageObject oldObject = new StorageObject("backup/photos/moved.bin");
+            oldObject.setContentLength(movedFile.length());
+            oldObject.setETag(ServiceUtils.toHex(
+                fileComparer.generateFileMD5Hash(movedFile, "photos/moved.bin", null)));
+            StorageObject otherObject = new StorageObject("backup/photos/other.bin");
+            otherObject.setContentLength(2000);
+            otherObject.setETag("0123456789abcdef0123456789abcdef");
+            Map<String, StorageObject> objectsMap = new HashMap<String, StorageObject>();
+            objectsMap.put("photos/moved.bin", oldObject);
+            objectsMap.put("photos/other.bin", otherObject);
+
+            FileComparerResults results = new FileComparerResults();
+            results.onlyOnClientKeys.addAll(objectKeyToFilepathMap.keySet());
+            results.onlyOnServerKeys.addAll(objectsMap.keySet());
+
+            Map<String, String> renamedKeys = fileComparer.findRenamedFiles(
+                results, objectKeyToFilepathMap, objectsMap, null);
+            assertEquals(1, renamedKeys.size());
+            assertEquals("photos/moved.bin", renamedKeys.get("photos/2016/moved.bin"));
+        } finally {
+            movedFile.delete();
+            newFile.delete();
+        }
+    }
+
+}
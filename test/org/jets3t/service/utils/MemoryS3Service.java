@@ -0,0 +1,279 @@
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartCompleted;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.AWSCredentials;
+
+/**
+ * Service that keeps objects and multipart uploads in memory instead of sending requests,
+ * for tests of the upload and download utilities.
+ */
+public class MemoryS3Service extends RestS3Service {
+    final Map<String, byte[]> objectData = new ConcurrentHashMap<String, byte[]>();
+    final Map<String, Map<String, Object>> objectMetadata =
+        new ConcurrentHashMap<String, Map<String, Object>>();
+    final Map<String, Map<Integer, byte[]>> uploadParts =
+        new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+    final Map<String, Map<String, Object>> uploadMetadata =
+        new ConcurrentHashMap<String, Map<String, Object>>();
+    final Map<Integer, Long> partSizes = new ConcurrentSkipListMap<Integer, Long>();
+    final AtomicInteger putCount = new AtomicInteger(0);
+    final AtomicInteger getCount = new AtomicInteger(0);
+    final AtomicInteger copyCount = new AtomicInteger(0);
+    final AtomicInteger abortCount = new AtomicInteger(0);
+    final AtomicInteger partsInProgress = new AtomicInteger(0);
+    final AtomicInteger maxPartsInProgress = new AtomicInteger(0);
+    volatile int partsInProgressAtAbort = -1;
+    private final AtomicInteger uploadCount = new AtomicInteger(0);
+
+    public MemoryS3Service(Jets3tProperties properties) {
+        super(new AWSCredentials("access-key", "secret-key"), null, null, properties);
+    }
+
+    /**
+     * Called before each part is stored, tests may override this to delay or fail parts.
+     */
+    protected void beforeUploadPart(int partNumber) throws S3ServiceException {
+    }
+
+    static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            data.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return data.toByteArray();
+    }
+
+    /**
+     * @return
+     * the parts stored for an upload, failing like S3 if the upload does not exist.
+     */
+    private Map<Integer, byte[]> getUploadParts(String uploadId) throws S3ServiceException {
+        Map<Integer, byte[]> parts = uploadParts.get(uploadId);
+        if (parts == null) {
+            S3ServiceException e = new S3ServiceException("No such upload: " + uploadId);
+            e.setErrorCode("NoSuchUpload");
+            throw e;
+        }
+        return parts;
+    }
+
+    private static String md5Hex(byte[] data) {
+        try {
+            return ServiceUtils.toHex(ServiceUtils.computeMD5Hash(data));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected StorageObject putObjectImpl(String bucketName, StorageObject object)
+        throws ServiceException
+    {
+        try {
+            InputStream inputStream = object.getDataInputStream();
+            byte[] data = (inputStream != null ? readAll(inputStream) : new byte[0]);
+            objectData.put(object.getKey(), data);
+            objectMetadata.put(object.getKey(),
+                new HashMap<String, Object>(object.getMetadataMap()));
+            putCount.incrementAndGet();
+            object.setETag(md5Hex(data));
+            return object;
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    @Override
+    protected StorageObject getObjectImpl(String bucketName, String objectKey,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince, String[] ifMatchTags,
+        String[] ifNoneMatchTags, Long byteRangeStart, Long byteRangeEnd, String versionId)
+        throws ServiceException
+    {
+        byte[] data = objectData.get(objectKey);
+        if (data == null) {
+            throw new ServiceException("No such key: " + objectKey);
+        }
+        getCount.incrementAndGet();
+        int start = (byteRangeStart != null ? byteRangeStart.intValue() : 0);
+        int end = (byteRangeEnd != null ? byteRangeEnd.intValue() + 1 : data.length);
+        S3Object object = new S3Object(objectKey);
+        object.replaceAllMetadata(new HashMap<String, Object>(objectMetadata.get(objectKey)));
+        object.setDataInputStream(new ByteArrayInputStream(
+            Arrays.copyOfRange(data, start, Math.min(end, data.length))));
+        object.setContentLength(Math.min(end, data.length) - start);
+        object.setETag(md5Hex(data));
+        return object;
+    }
+
+    @Override
+    protected StorageObject getObjectDetailsImpl(String bucketName, String objectKey,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince, String[] ifMatchTags,
+        String[] ifNoneMatchTags, String versionId) throws ServiceException
+    {
+        byte[] data = objectData.get(objectKey);
+        if (data == null) {
+            throw new ServiceException("No such key: " + objectKey);
+        }
+        S3Object object = new S3Object(objectKey);
+        object.replaceAllMetadata(new HashMap<String, Object>(objectMetadata.get(objectKey)));
+        object.setContentLength(data.length);
+        object.setETag(md5Hex(data));
+        return object;
+    }
+
+    @Override
+    protected Map<String, Object> copyObjectImpl(String sourceBucketName,
+        String sourceObjectKey, String destinationBucketName, String destinationObjectKey,
+        AccessControlList acl, Map<String, Object> destinationMetadata,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince, String[] ifMatchTags,
+        String[] ifNoneMatchTags, String versionId, String destinationObjectStorageClass,
+        String destinationObjectServerSideEncryptionAlgorithm) throws ServiceException
+    {
+        byte[] data = objectData.get(sourceObjectKey);
+        if (data == null) {
+            throw new ServiceException("No such key: " + sourceObjectKey);
+        }
+        copyCount.incrementAndGet();
+        objectData.put(destinationObjectKey, data);
+        objectMetadata.put(destinationObjectKey, new HashMap<String, Object>(
+            destinationMetadata != null
+                ? destinationMetadata : objectMetadata.get(sourceObjectKey)));
+        return new HashMap<String, Object>();
+    }
+
+    @Override
+    protected MultipartUpload multipartStartUploadImpl(String bucketName, String objectKey,
+        Map<String, Object> metadata, AccessControlList acl, String storageClass,
+        String serverSideEncryptionAlgorithm) throws S3ServiceException
+    {
+        String uploadId = "upload-" + uploadCount.incrementAndGet();
+        uploadParts.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+        uploadMetadata.put(uploadId, new HashMap<String, Object>(metadata));
+        return new MultipartUpload(uploadId, bucketName, objectKey);
+    }
+
+    @Override
+    protected MultipartPart multipartUploadPartImpl(String uploadId, String bucketName,
+        Integer partNumber, S3Object object) throws S3ServiceException
+    {
+        partsInProgress.incrementAndGet();
+        try {
+            beforeUploadPart(partNumber.intValue());
+            byte[] data = readAll(object.getDataInputStream());
+            getUploadParts(uploadId).put(partNumber, data);
+            partSizes.put(partNumber, Long.valueOf(data.length));
+            return new MultipartPart(partNumber, new Date(), md5Hex(data),
+                Long.valueOf(data.length));
+        } catch (S3ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new S3ServiceException(e);
+        } finally {
+            partsInProgress.decrementAndGet();
+        }
+    }
+
+    @Override
+    protected MultipartPart multipartUploadPartCopyImpl(String uploadId,
+        String targetBucketName, String targetObjectKey, Integer partNumber,
+        String sourceBucketName, String sourceObjectKey,
+        Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
+        String[] ifMatchTags, String[] ifNoneMatchTags,
+        Long byteRangeStart, Long byteRangeEnd, String versionId) throws S3ServiceException
+    {
+        int inProgress = partsInProgress.incrementAndGet();
+        try {
+            synchronized (maxPartsInProgress) {
+                maxPartsInProgress.set(Math.max(maxPartsInProgress.get(), inProgress));
+            }
+            beforeUploadPart(partNumber.intValue());
+            byte[] sourceData = objectData.get(sourceObjectKey);
+            if (sourceData == null) {
+                throw new S3ServiceException("No such key: " + sourceObjectKey);
+            }
+            if (ifMatchTags != null && !Arrays.asList(ifMatchTags).contains(md5Hex(sourceData))) {
+                throw new S3ServiceException("Precondition failed for " + sourceObjectKey);
+            }
+            byte[] data = Arrays.copyOfRange(sourceData,
+                byteRangeStart.intValue(), byteRangeEnd.intValue() + 1);
+            copyCount.incrementAndGet();
+            getUploadParts(uploadId).put(partNumber, data);
+            partSizes.put(partNumber, Long.valueOf(data.length));
+            return new MultipartPart(partNumber, new Date(), md5Hex(data),
+                Long.valueOf(data.length));
+        } finally {
+            partsInProgress.decrementAndGet();
+        }
+    }
+
+    @Override
+    protected List<MultipartPart> multipartListPartsImpl(String uploadId,
+        String bucketName, String objectKey) throws S3ServiceException
+    {
+        List<MultipartPart> parts = new ArrayList<MultipartPart>();
+        Map<Integer, byte[]> sortedParts =
+            new TreeMap<Integer, byte[]>(getUploadParts(uploadId));
+        for (Map.Entry<Integer, byte[]> entry: sortedParts.entrySet()) {
+            parts.add(new MultipartPart(entry.getKey(), new Date(), md5Hex(entry.getValue()),
+                Long.valueOf(entry.getValue().length)));
+        }
+        return parts;
+    }
+
+    @Override
+    protected MultipartCompleted multipartCompleteUploadImpl(String uploadId,
+        String bucketName, String objectKey, List<MultipartPart> parts)
+        throws S3ServiceException
+    {
+        Map<Integer, byte[]> storedParts = getUploadParts(uploadId);
+        uploadParts.remove(uploadId);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (MultipartPart part: parts) {
+            byte[] partData = storedParts.get(part.getPartNumber());
+            data.write(partData, 0, partData.length);
+        }
+        objectData.put(objectKey, data.toByteArray());
+        objectMetadata.put(objectKey, uploadMetadata.remove(uploadId));
+        return new MultipartCompleted("location", bucketName, objectKey,
+            md5Hex(data.toByteArray()));
+    }
+
+    @Override
+    protected void multipartAbortUploadImpl(String uploadId, String bucketName,
+        String objectKey) throws S3ServiceException
+    {
+        partsInProgressAtAbort = partsInProgress.get();
+        abortCount.incrementAndGet();
+        uploadParts.remove(uploadId);
+        uploadMetadata.remove(uploadId);
+    }
+
+}
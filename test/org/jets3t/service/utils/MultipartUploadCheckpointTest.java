@@ -0,0 +1,229 @@
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.TestFileUtils;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+public class MultipartUploadCheckpointTest extends TestCase {
+
+    private static final long PART_SIZE = MultipartUtils.MIN_PART_SIZE;
+
+    private File dataFile;
+    private File checkpointDirectory;
+
+    /**
+     * Service that fails the first upload of part 3, and records the parts uploaded.
+     */
+    private static class InterruptingService extends MemoryS3Service {
+        final List<Integer> uploadedPartNumbers =
+            Collections.synchronizedList(new ArrayList<Integer>());
+        volatile boolean hasFailed = false;
+
+        InterruptingService() {
+            super(createProperties());
+        }
+
+        @Override
+        protected void beforeUploadPart(int partNumber) throws S3ServiceException {
+            if (partNumber == 3 && !hasFailed) {
+                hasFailed = true;
+                throw new S3ServiceException("Connection reset");
+            }
+            uploadedPartNumbers.add(partNumber);
+        }
+    }
+
+    private static Jets3tProperties createProperties() {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("threaded-service.max-thread-count", "2");
+        return properties;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dataFile = TestFileUtils.createTempFileWithSize(
+            "checkpoint-data", ".bin", 2 * PART_SIZE + 1000);
+        checkpointDirectory = File.createTempFile("checkpoints", "");
+        checkpointDirectory.delete();
+        checkpointDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dataFile.delete();
+        File[] files = checkpointDirectory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        checkpointDirectory.delete();
+    }
+
+    /**
+     * Runs a resumable upload of the data file that is interrupted by the failure of
+     * part 3, leaving a checkpoint and an incomplete upload.
+     *
+     * @return
+     * the ID of the incomplete upload.
+     */
+    private String runInterruptedUpload(InterruptingService service,
+        MultipartUtils multipartUtils) throws Exception
+    {
+        try {
+            multipartUtils.uploadObjects("bucket", service, createObjects(), null);
+            fail("Expected failure of part 3 to interrupt the upload");
+        } catch (Exception e) {
+            // Expected
+        }
+        assertTrue(multipartUtils.getCheckpointFile("bucket", "key").exists());
+        assertEquals(1, service.uploadParts.size());
+        return service.uploadParts.keySet().iterator().next();
+    }
+
+    private List<StorageObject> createObjects() throws Exception {
+        List<StorageObject> objects = new ArrayList<StorageObject>();
+        objects.add(new S3Object(dataFile));
+        objects.get(0).setKey("key");
+        return objects;
+    }
+
+    private MultipartUtils createMultipartUtils() {
+        MultipartUtils multipartUtils = new MultipartUtils(PART_SIZE);
+        multipartUtils.setCheckpointDirectory(checkpointDirectory);
+        return multipartUtils;
+    }
+
+    private void assertUploadCompleted(MemoryS3Service service, MultipartUtils multipartUtils)
+        throws Exception
+    {
+        assertTrue(Arrays.equals(MemoryS3Service.readAll(new FileInputStream(dataFile)),
+            service.objectData.get("key")));
+        assertTrue(service.uploadParts.isEmpty());
+        assertFalse(multipartUtils.getCheckpointFile("bucket", "key").exists());
+    }
+
+    public void testUploadResumesFromCheckpoint() throws Exception {
+        InterruptingService service = new InterruptingService();
+        MultipartUtils multipartUtils = createMultipartUtils();
+        String uploadId = runInterruptedUpload(service, multipartUtils);
+        Set<Integer> missingPartNumbers = new TreeSet<Integer>(Arrays.asList(1, 2, 3));
+        missingPartNumbers.removeAll(service.uploadParts.get(uploadId).keySet());
+        assertTrue(missingPartNumbers.contains(3));
+        assertTrue(missingPartNumbers.size() < 3);
+
+        service.uploadedPartNumbers.clear();
+        multipartUtils.uploadObjects("bucket", service, createObjects(), null);
+
+        // Only the parts missing from the interrupted upload were sent
+        assertEquals(missingPartNumbers, new TreeSet<Integer>(service.uploadedPartNumbers));
+        assertEquals(0, service.abortCount.get());
+        assertUploadCompleted(service, multipartUtils);
+    }
+
+    public void testChangedFileStartsNewUpload() throws Exception {
+        InterruptingService service = new InterruptingService();
+        MultipartUtils multipartUtils = createMultipartUtils();
+        runInterruptedUpload(service, multipartUtils);
+
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        raf.setLength(dataFile.length() + 10);
+        raf.close();
+
+        service.uploadedPartNumbers.clear();
+        multipartUtils.uploadObjects("bucket", service, createObjects(), null);
+
+        // The stale upload was aborted and every part sent to a new upload
+        assertEquals(1, service.abortCount.get());
+        assertEquals(Arrays.asList(1, 2, 3), sorted(service.uploadedPartNumbers));
+        assertUploadCompleted(service, multipartUtils);
+    }
+
+    public void testMissingUploadStartsNewUpload() throws Exception {
+        InterruptingService service = new InterruptingService();
+        MultipartUtils multipartUtils = createMultipartUtils();
+        String uploadId = runInterruptedUpload(service, multipartUtils);
+
+        // The upload expired or was aborted elsewhere
+        service.uploadParts.remove(uploadId);
+
+        service.uploadedPartNumbers.clear();
+        multipartUtils.uploadObjects("bucket", service, createObjects(), null);
+
+        assertEquals(Arrays.asList(1, 2, 3), sorted(service.uploadedPartNumbers));
+        assertUploadCompleted(service, multipartUtils);
+    }
+
+    private static List<Integer> sorted(List<Integer> values) {
+        List<Integer> sortedValues = new ArrayList<Integer>(values);
+        Collections.sort(sortedValues);
+        return sortedValues;
+    }
+
+    public void testCheckpointRoundTripAndUploadedPartDetection() throws Exception {
+        long partSize = 5 * 1024 * 1024;
+        File dataFile = TestFileUtils.createTempFileWithSize(
+            "checkpoint-data", ".bin", partSize + 1000);
+        File checkpointFile = File.createTempFile("multipart", ".checkpoint");
+        checkpointFile.delete();
+        try {
+            MultipartUpload upload = new MultipartUpload("upload-id", "bucket", "key");
+            MultipartUploadCheckpoint checkpoint = new MultipartUploadCheckpoint(
+                checkpointFile, upload, dataFile, partSize);
+            checkpoint.save();
+
+            MultipartUtils multipartUtils = new MultipartUtils(partSize);
+            List<S3Object> partObjects =
+                multipartUtils.splitFileIntoObjectsByMaxPartSize("key", dataFile);
+            S3Object firstPart = partObjects.get(0);
+            List<MultipartPart> uploaded = new ArrayList<MultipartPart>();
+            uploaded.add(new MultipartPart(1, new Date(),
+                "\"" + firstPart.getMd5HashAsHex() + "\"", firstPart.getContentLength()));
+            // A second part whose ETag does not match the local data must be re-sent
+            uploaded.add(new MultipartPart(2, new Date(), "\"bad-etag\"", 1000L));
+            checkpoint.recordParts(uploaded);
+
+            MultipartUploadCheckpoint loaded = MultipartUploadCheckpoint.load(checkpointFile);
+            assertNotNull(loaded);
+            assertEquals("upload-id", loaded.getUploadId());
+            assertEquals(partSize, loaded.getPartSize());
+            assertEquals(2, loaded.getParts().size());
+            assertTrue(loaded.matches("bucket", "key", dataFile, partSize));
+            assertFalse(loaded.matches("bucket", "key", dataFile, partSize * 2));
+            assertFalse(loaded.matches("bucket", "other-key", dataFile, partSize));
+
+            assertEquals(1, multipartUtils.findUploadedParts(
+                partObjects, loaded.getParts()).size());
+            assertTrue(multipartUtils.findUploadedParts(
+                partObjects, loaded.getParts()).containsKey(1));
+
+            for (S3Object partObject: partObjects) {
+                partObject.closeDataInputStream();
+            }
+            loaded.delete();
+            assertFalse(checkpointFile.exists());
+            assertNull(MultipartUploadCheckpoint.load(checkpointFile));
+        } finally {
+            dataFile.delete();
+            checkpointFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.jets3t.service.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Object;
+
+public class MultipartUploadOutputStreamTest extends TestCase {
+
+    private static final int PART_SIZE = (int) MultipartUtils.MIN_PART_SIZE;
+
+    private Jets3tProperties properties;
+
+    @Override
+    protected void setUp() {
+        properties = new Jets3tProperties();
+        properties.setProperty("uploads.stream-part-buffer-count", "2");
+        properties.setProperty("threaded-service.max-thread-count", "2");
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Writes data in uneven pieces, as a transforming stream would.
+     */
+    private static void writeInPieces(MultipartUploadOutputStream out, byte[] data)
+        throws IOException
+    {
+        int offset = 0;
+        int pieceSize = 1;
+        while (offset < data.length) {
+            int count = Math.min(pieceSize, data.length - offset);
+            out.write(data, offset, count);
+            offset += count;
+            pieceSize = (pieceSize * 7 + 13) % 100003;
+        }
+    }
+
+    public void testUnknownLengthDataIsUploadedInParts() throws Exception {
+        MemoryS3Service service = new MemoryS3Service(properties);
+        byte[] data = randomData(2 * PART_SIZE + 12345);
+
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+            service, "bucket", new S3Object("key"), PART_SIZE);
+        writeInPieces(out, data);
+        out.close();
+
+        assertEquals(data.length, out.getBytesWritten());
+        assertNotNull(out.getMultipartCompleted());
+        assertTrue(Arrays.equals(data, service.objectData.get("key")));
+        assertEquals(Arrays.asList(new Long[] {Long.valueOf(PART_SIZE),
+            Long.valueOf(PART_SIZE), Long.valueOf(12345)}),
+            new ArrayList<Long>(service.partSizes.values()));
+        assertEquals(0, service.putCount.get());
+    }
+
+    public void testDataEndingOnPartBoundaryHasNoEmptyPart() throws Exception {
+        MemoryS3Service service = new MemoryS3Service(properties);
+        byte[] data = randomData(2 * PART_SIZE);
+
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+            service, "bucket", new S3Object("key"), PART_SIZE);
+        out.write(data);
+        out.close();
+
+        assertTrue(Arrays.equals(data, service.objectData.get("key")));
+        assertEquals(2, service.partSizes.size());
+    }
+
+    public void testDataSmallerThanOnePartUsesSinglePut() throws Exception {
+        MemoryS3Service service = new MemoryS3Service(properties);
+        byte[] data = randomData(PART_SIZE - 1);
+
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+            service, "bucket", new S3Object("key"), PART_SIZE);
+        writeInPieces(out, data);
+        out.close();
+
+        assertNull(out.getMultipartUpload());
+        assertEquals(1, service.putCount.get());
+        assertTrue(Arrays.equals(data, service.objectData.get("key")));
+        assertEquals(0, service.partSizes.size());
+    }
+
+    public void testFailedPartAbortsUploadAfterPartsInFlight() throws Exception {
+        MemoryS3Service service = new MemoryS3Service(properties) {
+            @Override
+            protected void beforeUploadPart(int partNumber) throws S3ServiceException {
+                try {
+                    Thread.sleep(partNumber == 1 ? 300 : 50);
+                } catch (InterruptedException e) {
+                    throw new S3ServiceException(e);
+                }
+                if (partNumber == 2) {
+                    throw new S3ServiceException("Part upload failed");
+                }
+            }
+        };
+
+        MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+            service, "bucket", new S3Object("key"), PART_SIZE);
+        try {
+            out.write(randomData(3 * PART_SIZE));
+            out.close();
+            fail("Expected failure of part 2 to fail the upload");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, service.abortCount.get());
+        assertEquals(0, service.partsInProgressAtAbort);
+        assertNull(service.objectData.get("key"));
+    }
+
+    public void testStreamsShareExecutorAndBuffers() throws Exception {
+        MemoryS3Service service = new MemoryS3Service(properties);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        BlockingQueue<byte[]> bufferPool = MultipartUploadOutputStream.createBufferPool(2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                byte[] data = randomData(PART_SIZE + i);
+                MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+                    service, "bucket", new S3Object("key-" + i), PART_SIZE,
+                    executor, bufferPool);
+                out.write(data);
+                out.close();
+                assertTrue(Arrays.equals(data, service.objectData.get("key-" + i)));
+            }
+            // The shared executor is still usable, and every buffer was returned
+            assertFalse(executor.isShutdown());
+            assertEquals(2, bufferPool.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testFailedStreamReturnsSharedBuffers() throws Exception {
+        MemoryS3Service failingService = new MemoryS3Service(properties) {
+            @Override
+            protected void beforeUploadPart(int partNumber) throws S3ServiceException {
+                throw new S3ServiceException("Part upload failed");
+            }
+        };
+        MemoryS3Service service = new MemoryS3Service(properties);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        BlockingQueue<byte[]> bufferPool = MultipartUploadOutputStream.createBufferPool(1);
+        try {
+            // The failed part leaves the stream holding the only buffer for its next part
+            MultipartUploadOutputStream failed = new MultipartUploadOutputStream(
+                failingService, "bucket", new S3Object("failed"), PART_SIZE,
+                executor, bufferPool);
+            try {
+                failed.write(randomData(PART_SIZE + 10));
+                failed.close();
+                fail("Expected failure of part 1 to fail the upload");
+            } catch (IOException e) {
+                // Expected
+            }
+            failed.close();
+            assertEquals(1, bufferPool.size());
+
+            byte[] data = randomData(2 * PART_SIZE + 10);
+            MultipartUploadOutputStream out = new MultipartUploadOutputStream(
+                service, "bucket", new S3Object("key"), PART_SIZE, executor, bufferPool);
+            out.write(data);
+            out.close();
+            assertTrue(Arrays.equals(data, service.objectData.get("key")));
+            assertEquals(1, bufferPool.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.jets3t.service.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.TestFileUtils;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+public class MultipartUtilsTest extends TestCase {
+
+    public void testAppendedFileDetection() throws Exception {
+        long partSize = MultipartUtils.MIN_PART_SIZE;
+        File file = TestFileUtils.createTempFileWithSize(
+            "appended-data", ".bin", partSize * 2 + 1000);
+        try {
+            MultipartUtils multipartUtils = new MultipartUtils(partSize);
+
+            // Object uploaded in two parts before the last 1000 bytes were appended
+            MessageDigest partHashes = MessageDigest.getInstance("MD5");
+            InputStream is = new FileInputStream(file);
+            byte[] part = new byte[(int) partSize];
+            for (int i = 0; i < 2; i++) {
+                int offset = 0;
+                while (offset < part.length) {
+                    offset += is.read(part, offset, part.length - offset);
+                }
+                partHashes.update(MessageDigest.getInstance("MD5").digest(part));
+            }
+            is.close();
+            StorageObject existingObject = new StorageObject("appended-data.bin");
+            existingObject.setContentLength(partSize * 2);
+            existingObject.setETag(ServiceUtils.toHex(partHashes.digest()) + "-2");
+            assertTrue(multipartUtils.isAppendedFile(file, existingObject));
+
+            // Data that differs from the object's is not an append
+            existingObject.setETag("0123456789abcdef0123456789abcdef-2");
+            assertFalse(multipartUtils.isAppendedFile(file, existingObject));
+
+            // An object smaller than one part cannot be copied in parts
+            StorageObject smallObject = new StorageObject("appended-data.bin");
+            smallObject.setContentLength(partSize - 1);
+            smallObject.setETag(ServiceUtils.toHex(ServiceUtils.computeMD5Hash(
+                new FileInputStream(file))));
+            assertFalse(multipartUtils.isAppendedFile(file, smallObject));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testAppendedUploadCopiesPartsInParallel() throws Exception {
+        long partSize = MultipartUtils.MIN_PART_SIZE;
+        File file = TestFileUtils.createTempFileWithSize(
+            "appended-data", ".bin", partSize * 3 + 1000);
+        try {
+            Jets3tProperties properties = new Jets3tProperties();
+            properties.setProperty("threaded-service.max-admin-thread-count", "3");
+            MemoryS3Service service = new MemoryS3Service(properties) {
+                @Override
+                protected void beforeUploadPart(int partNumber) throws S3ServiceException {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new S3ServiceException(e);
+                    }
+                }
+            };
+            byte[] data = MemoryS3Service.readAll(new FileInputStream(file));
+            StorageObject existingObject = putExistingObject(service, "key",
+                Arrays.copyOf(data, (int) (partSize * 3)));
+
+            S3Object object = new S3Object("key");
+            object.setDataInputFile(file);
+            object.setContentLength(file.length());
+            List<StorageObject> objects = Collections.<StorageObject>singletonList(object);
+            new MultipartUtils(partSize).uploadAppendedObjects("bucket", service,
+                objects, Collections.singletonList(existingObject), null);
+
+            assertTrue(Arrays.equals(data, service.objectData.get("key")));
+            assertEquals(3, service.copyCount.get());
+            assertTrue(service.maxPartsInProgress.get() > 1);
+            assertEquals(Long.valueOf(1000), service.partSizes.get(4));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testAppendedUploadOfChangedObjectIsAborted() throws Exception {
+        long partSize = MultipartUtils.MIN_PART_SIZE;
+        File file = TestFileUtils.createTempFileWithSize(
+            "appended-data", ".bin", partSize + 1000);
+        try {
+            MemoryS3Service service = new MemoryS3Service(new Jets3tProperties());
+            byte[] data = MemoryS3Service.readAll(new FileInputStream(file));
+            StorageObject existingObject = putExistingObject(service, "key",
+                Arrays.copyOf(data, (int) partSize));
+            existingObject.setETag("0123456789abcdef0123456789abcdef");
+
+            S3Object object = new S3Object("key");
+            object.setDataInputFile(file);
+            object.setContentLength(file.length());
+            try {
+                new MultipartUtils(partSize).uploadAppendedObjects("bucket", service,
+                    Collections.<StorageObject>singletonList(object),
+                    Collections.singletonList(existingObject), null);
+                fail("Expected the part copy precondition to fail");
+            } catch (Exception e) {
+                // Expected
+            }
+            assertEquals(1, service.abortCount.get());
+            assertEquals(partSize, service.objectData.get("key").length);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private StorageObject putExistingObject(MemoryS3Service service, String key, byte[] data)
+        throws Exception
+    {
+        StorageObject existingObject = service.putObject("bucket", new S3Object(key, data));
+        existingObject.setContentLength(data.length);
+        return existingObject;
+    }
+
+}
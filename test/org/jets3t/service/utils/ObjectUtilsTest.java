@@ -0,0 +1,164 @@
+package org.jets3t.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.io.BytesProgressWatcher;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.s3.S3ServiceEventAdaptor;
+import org.jets3t.service.multi.s3.ThreadedS3Service;
+import org.jets3t.service.security.EncryptionUtil;
+
+public class ObjectUtilsTest extends TestCase {
+
+    private static final long PART_SIZE = MultipartUtils.MIN_PART_SIZE;
+
+    private MemoryS3Service service;
+    private EncryptionUtil encryptionUtil;
+
+    @Override
+    protected void setUp() throws Exception {
+        Jets3tProperties properties = new Jets3tProperties();
+        properties.setProperty("uploads.stream-part-buffer-count", "2");
+        properties.setProperty("threaded-service.max-thread-count", "2");
+        service = new MemoryS3Service(properties);
+        encryptionUtil = new EncryptionUtil("password");
+    }
+
+    private File createFile(int length) throws Exception {
+        byte[] data = new byte[length];
+        // Random data does not compress, so the gzipped data still spans several parts
+        new Random(length).nextBytes(data);
+        File file = File.createTempFile("jets3t-test-", ".dat");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+        return file;
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        return MemoryS3Service.readAll(new java.io.FileInputStream(file));
+    }
+
+    /**
+     * Reverses the encryption and gzip applied to an uploaded object's data.
+     */
+    private byte[] restoreData(String key) throws Exception {
+        InputStream inputStream = encryptionUtil.decrypt(
+            new ByteArrayInputStream(service.objectData.get(key)));
+        return MemoryS3Service.readAll(new GZIPInputStream(inputStream));
+    }
+
+    private String getOriginalHash(String key) {
+        return (String) service.objectMetadata.get(key).get(
+            StorageObject.METADATA_HEADER_ORIGINAL_HASH_MD5);
+    }
+
+    public void testLargeFileRoundTripsThroughMultipartUpload() throws Exception {
+        File file = createFile((int) (2 * PART_SIZE + 1000));
+        byte[] data = readFile(file);
+        BytesProgressWatcher progressWatcher = new BytesProgressWatcher(file.length());
+
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "key", file, null, encryptionUtil, true);
+        S3Object uploaded = ObjectUtils.putObjectWithStreamingTransform(service, "bucket",
+            object, file, encryptionUtil, true, PART_SIZE, progressWatcher);
+
+        assertTrue(Arrays.equals(data, restoreData("key")));
+        assertEquals(file.length(), progressWatcher.getBytesTransferred());
+        // The hash is in the metadata the upload starts with, so it is never copied
+        assertEquals(ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data)),
+            getOriginalHash("key"));
+        assertEquals(0, service.copyCount.get());
+        assertEquals(0, service.putCount.get());
+
+        byte[] transformed = service.objectData.get("key");
+        assertEquals(transformed.length, uploaded.getContentLength());
+        assertEquals(ServiceUtils.toHex(ServiceUtils.computeMD5Hash(transformed)),
+            uploaded.getMd5HashAsHex());
+        assertEquals(3, service.partSizes.size());
+        assertEquals(Long.valueOf(PART_SIZE), service.partSizes.get(1));
+        assertEquals(Long.valueOf(PART_SIZE), service.partSizes.get(2));
+        assertEquals(Long.valueOf(transformed.length - 2 * PART_SIZE),
+            service.partSizes.get(3));
+    }
+
+    public void testSmallFileRoundTripsThroughSinglePut() throws Exception {
+        File file = createFile(1000);
+        byte[] data = readFile(file);
+
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "key", file, null, encryptionUtil, true);
+        ObjectUtils.putObjectWithStreamingTransform(service, "bucket",
+            object, file, encryptionUtil, true, PART_SIZE, null);
+
+        assertTrue(Arrays.equals(data, restoreData("key")));
+        assertEquals(ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data)),
+            getOriginalHash("key"));
+        assertEquals(1, service.putCount.get());
+        assertEquals(0, service.copyCount.get());
+        assertEquals(0, service.partSizes.size());
+    }
+
+    public void testKnownOriginalHashIsNotCopied() throws Exception {
+        File file = createFile((int) PART_SIZE);
+        byte[] hash = ServiceUtils.computeMD5Hash(readFile(file));
+
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "key", file, hash, encryptionUtil, true);
+        ObjectUtils.putObjectWithStreamingTransform(service, "bucket",
+            object, file, encryptionUtil, true, PART_SIZE, null);
+
+        assertEquals(ServiceUtils.toBase64(hash), getOriginalHash("key"));
+        assertEquals(0, service.copyCount.get());
+    }
+
+    public void testStreamedMultipartUploadWithoutHashIsNotCopied() throws Exception {
+        File file = createFile((int) (PART_SIZE + 1000));
+        byte[] data = readFile(file);
+
+        S3Object object = ObjectUtils.createObjectForStreamingUpload(
+            "key", file, null, encryptionUtil, true);
+        ObjectUtils.putObjectWithStreamingTransform(service, "bucket", object,
+            new java.io.FileInputStream(file), file.length(), encryptionUtil, true,
+            PART_SIZE, null, null);
+
+        assertTrue(Arrays.equals(data, restoreData("key")));
+        assertNull(getOriginalHash("key"));
+        assertEquals(0, service.copyCount.get());
+    }
+
+    public void testThreadedUploadsShareBuffers() throws Exception {
+        File[] files = new File[] {
+            createFile((int) (PART_SIZE + 10)), createFile(10), createFile((int) PART_SIZE * 2)};
+        S3Object[] objects = new S3Object[files.length];
+        for (int i = 0; i < files.length; i++) {
+            objects[i] = ObjectUtils.createObjectForStreamingUpload(
+                "key-" + i, files[i], null, encryptionUtil, true);
+        }
+
+        S3ServiceEventAdaptor eventAdaptor = new S3ServiceEventAdaptor();
+        ThreadedS3Service threadedService = new ThreadedS3Service(service, eventAdaptor);
+        assertTrue(threadedService.putObjectsWithStreamingTransform(
+            "bucket", objects, files, encryptionUtil, true, PART_SIZE));
+        eventAdaptor.throwErrorIfPresent();
+
+        for (int i = 0; i < files.length; i++) {
+            byte[] data = readFile(files[i]);
+            assertTrue(Arrays.equals(data, restoreData("key-" + i)));
+            assertEquals(ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(data)),
+                getOriginalHash("key-" + i));
+        }
+    }
+
+}
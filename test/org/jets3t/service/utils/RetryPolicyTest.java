@@ -0,0 +1,80 @@
+package org.jets3t.service.utils;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jets3t.service.ServiceException;
+
+public class RetryPolicyTest extends TestCase {
+
+    public void testDelaysAreJitteredAndCapped() {
+        RetryPolicy policy = new RetryPolicy(50, 500, 2000, 0, 0);
+        ServiceException internalError = new ServiceException("Internal Error");
+        internalError.setResponseCode(500);
+
+        long previousDelay = 0;
+        boolean varied = false;
+        for (int retry = 1; retry <= 20; retry++) {
+            long delay = policy.getDelayMs(retry, previousDelay, internalError);
+            assertTrue(delay >= 50);
+            assertTrue(delay <= 2000);
+            assertTrue(delay <= Math.max(50, previousDelay * 3) || previousDelay == 0);
+            varied |= (delay != previousDelay);
+            previousDelay = delay;
+        }
+        assertTrue(varied);
+
+        ServiceException throttled = new ServiceException("Too Many Requests");
+        throttled.setResponseCode(429);
+        assertTrue(RetryPolicy.isThrottled(throttled));
+        assertTrue(policy.getDelayMs(1, 0, throttled) >= 500);
+    }
+
+    public void testRetryAfterHeaderTakesPrecedence() throws Exception {
+        RetryPolicy policy = new RetryPolicy(50, 500, 20000, 0, 0);
+        ServiceException e = new ServiceException("Slow Down");
+        e.setResponseCode(503);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("retry-after", "3");
+        e.setResponseHeaders(headers);
+        assertEquals(3000, policy.getDelayMs(1, 0, e));
+
+        Date now = ServiceUtils.parseRfc822Date("Sun, 18 Oct 2026 10:00:00 GMT");
+        headers.put("retry-after", "Sun, 18 Oct 2026 10:00:07 GMT");
+        assertEquals(7000, RetryPolicy.getRetryAfterMs(headers, now));
+        headers.put("retry-after", "soon");
+        assertEquals(-1, RetryPolicy.getRetryAfterMs(headers, now));
+        assertEquals(-1, RetryPolicy.getRetryAfterMs(null, now));
+    }
+
+    public void testHugeRetryAfterIsClampedToMaximumDelay() throws Exception {
+        RetryPolicy policy = new RetryPolicy(50, 500, 20000, 0, 0);
+        ServiceException e = new ServiceException("Slow Down");
+        e.setResponseCode(503);
+        Map<String, String> headers = new HashMap<String, String>();
+        // Multiplying this many seconds by 1000 overflows a long
+        headers.put("Retry-After", String.valueOf(Long.MAX_VALUE / 10));
+        e.setResponseHeaders(headers);
+        assertEquals(20000, policy.getDelayMs(1, 0, e));
+        assertEquals(Long.MAX_VALUE, RetryPolicy.getRetryAfterMs(headers, new Date()));
+    }
+
+    public void testRetryBudgetLimitsRetries() {
+        RetryPolicy policy = new RetryPolicy(50, 500, 2000, 0.5, 2);
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertFalse(policy.acquireRetry());
+        assertEquals(1, policy.getBudgetExhaustedCount());
+
+        // Two requests earn one more retry
+        policy.recordRequest();
+        assertFalse(policy.acquireRetry());
+        policy.recordRequest();
+        assertTrue(policy.acquireRetry());
+        assertEquals(3, policy.getRetryCount());
+    }
+
+}